@@ -27,9 +27,11 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 public class RecordStoreClient {
   private final String tenant;
@@ -85,6 +87,17 @@ public class RecordStoreClient {
       .build());
   }
 
+  public ListenableFuture<RecordStoreProtocol.PutRecordBatchResponse> putRecords(List<? extends Message> records) {
+    return this.asyncRecordStub.putBatch(RecordStoreProtocol.PutRecordBatchRequest.newBuilder()
+      .addAllRecords(records.stream()
+        .map(record -> RecordStoreProtocol.PutRecordRequest.newBuilder()
+          .setMessage(record.toByteString())
+          .setRecordTypeName(record.getClass().getSimpleName())
+          .build())
+        .collect(Collectors.toList()))
+      .build());
+  }
+
   public ListenableFuture<RecordStoreProtocol.StatResponse> getStats() {
     return asyncSchemaStub.stat(RecordStoreProtocol.StatRequest.newBuilder().build());
   }
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.benchmarks;
+
+import com.apple.foundationdb.record.RecordMetaData;
+import com.apple.foundationdb.record.RecordMetaDataBuilder;
+import com.apple.foundationdb.record.metadata.Index;
+import com.apple.foundationdb.record.metadata.Key;
+import com.github.javafaker.Faker;
+import fr.pierrezemb.recordstore.datasets.UserDataset;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import org.testcontainers.containers.FoundationDBContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Data shared by the benchmarks. Users are generated with a fixed seed, so that every run works on the same records.
+ */
+public class BenchmarkData {
+  public static final String CLUSTER_FILE_PROPERTY = "fdb.cluster.file";
+  private static final long SEED = 42;
+
+  public static List<DemoUserProto.User> users(int count) {
+    UserDataset dataset = new UserDataset();
+    Faker faker = new Faker(new Random(SEED));
+    List<DemoUserProto.User> users = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      users.add(dataset.createUser(i, faker));
+    }
+    return users;
+  }
+
+  /**
+   * metadata of the demo users, with the value indexes created by the record-store
+   */
+  public static RecordMetaData usersMetaData() {
+    RecordMetaDataBuilder builder = RecordMetaData.newBuilder().setRecords(DemoUserProto.getDescriptor());
+    builder.getRecordType("User").setPrimaryKey(Key.Expressions.field("id"));
+    builder.addIndex("User", new Index("User_idx_name_VALUE", Key.Expressions.field("name")));
+    builder.addIndex("User", new Index("User_idx_email_VALUE", Key.Expressions.field("email")));
+    return builder.build();
+  }
+
+  /**
+   * Cluster to run the benchmarks against: the one of the {@value #CLUSTER_FILE_PROPERTY} system property,
+   * or a {@link FoundationDBContainer} started for the run.
+   */
+  public static class Cluster implements AutoCloseable {
+    private final FoundationDBContainer container;
+    private final String clusterFilePath;
+
+    public Cluster() {
+      String property = System.getProperty(CLUSTER_FILE_PROPERTY);
+      if (property != null) {
+        container = null;
+        clusterFilePath = property;
+      } else {
+        container = new FoundationDBContainer();
+        container.start();
+        clusterFilePath = container.getClusterFile().getAbsolutePath();
+      }
+    }
+
+    public String getClusterFilePath() {
+      return clusterFilePath;
+    }
+
+    @Override
+    public void close() {
+      if (container != null) {
+        container.stop();
+      }
+    }
+  }
+}
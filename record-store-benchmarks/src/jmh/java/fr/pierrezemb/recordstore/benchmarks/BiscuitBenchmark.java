@@ -0,0 +1,56 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.benchmarks;
+
+import com.clevercloud.biscuit.error.Error;
+import com.google.common.collect.ImmutableList;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.auth.BiscuitManager;
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Verification of the token sent with each gRPC call, with and without the cache of verified tokens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class BiscuitBenchmark {
+  private static final String TENANT = "benchmarks";
+
+  // 0 disables the cache, so that every call runs the Datalog verifier
+  @Param({"0", "10000"})
+  public long cacheSize;
+
+  private BiscuitManager biscuitManager;
+  private String token;
+
+  @Setup
+  public void setup() {
+    biscuitManager = new BiscuitManager(Constants.CONFIG_BISCUIT_KEY_DEFAULT, cacheSize, Constants.CONFIG_AUTH_CACHE_TTL_MS_DEFAULT);
+    token = biscuitManager.create(TENANT, ImmutableList.of("users"));
+  }
+
+  @Benchmark
+  public Either<Error, Void> checkTenant() {
+    return biscuitManager.checkTenant(TENANT, token);
+  }
+}
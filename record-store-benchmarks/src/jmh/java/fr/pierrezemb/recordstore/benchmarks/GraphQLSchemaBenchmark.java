@@ -0,0 +1,53 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.benchmarks;
+
+import com.apple.foundationdb.record.RecordMetaData;
+import fr.pierrezemb.recordstore.graphql.GraphQLSchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Generation of the GraphQL schema of the demo users, which is done each time the metadata of a recordSpace changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class GraphQLSchemaBenchmark {
+  private RecordMetaData metaData;
+  private String schema;
+
+  @Setup
+  public void setup() {
+    metaData = BenchmarkData.usersMetaData();
+    schema = GraphQLSchemaGenerator.generate(metaData);
+  }
+
+  @Benchmark
+  public String generate() {
+    return GraphQLSchemaGenerator.generate(metaData);
+  }
+
+  @Benchmark
+  public TypeDefinitionRegistry parse() {
+    return new SchemaParser().parse(schema);
+  }
+}
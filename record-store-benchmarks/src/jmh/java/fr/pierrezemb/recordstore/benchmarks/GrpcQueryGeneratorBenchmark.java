@@ -0,0 +1,101 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.benchmarks;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.query.GrpcQueryGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Translation of gRPC query requests into Record Layer queries, for each kind of filter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class GrpcQueryGeneratorBenchmark {
+
+  @Param({"ALL", "EQUALS", "RANGE", "OR", "TEXT", "MAP"})
+  public String filter;
+
+  private RecordStoreProtocol.QueryRequest request;
+
+  @Setup
+  public void setup() {
+    RecordStoreProtocol.QueryRequest.Builder builder = RecordStoreProtocol.QueryRequest.newBuilder()
+      .setRecordTypeName("User");
+
+    switch (filter) {
+      case "ALL":
+        break;
+      case "EQUALS":
+        builder.setFilter(idNode(RecordStoreProtocol.FilterOperation.EQUALS, 1));
+        break;
+      case "RANGE":
+        builder.setFilter(RecordStoreProtocol.QueryFilterNode.newBuilder()
+          .setAndNode(RecordStoreProtocol.QueryFilterAndNode.newBuilder()
+            .addNodes(idNode(RecordStoreProtocol.FilterOperation.GREATER_THAN_OR_EQUALS, 1))
+            .addNodes(idNode(RecordStoreProtocol.FilterOperation.LESS_THAN_OR_EQUALS, 10))));
+        break;
+      case "OR":
+        builder.setFilter(RecordStoreProtocol.QueryFilterNode.newBuilder()
+          .setOrNode(RecordStoreProtocol.QueryFilterOrNode.newBuilder()
+            .addNodes(idNode(RecordStoreProtocol.FilterOperation.EQUALS, 1))
+            .addNodes(idNode(RecordStoreProtocol.FilterOperation.EQUALS, 10))));
+        break;
+      case "TEXT":
+        builder.setFilter(RecordStoreProtocol.QueryFilterNode.newBuilder()
+          .setFieldNode(RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+            .setField("rick_and_morty_quotes")
+            .setOperation(RecordStoreProtocol.FilterOperation.TEXT_CONTAINS_ANY)
+            .addTokens("jerry")));
+        break;
+      case "MAP":
+        builder.setFilter(RecordStoreProtocol.QueryFilterNode.newBuilder()
+          .setMapNode(RecordStoreProtocol.QueryFilterMapNode.newBuilder()
+            .setField("favorite_locations_from_tv")
+            .setKey(RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+              .setOperation(RecordStoreProtocol.FilterOperation.START_WITH)
+              .setStringValue("hitchhikers_guide"))
+            .setValue(RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+              .setOperation(RecordStoreProtocol.FilterOperation.EQUALS)
+              .setStringValue("Eroticon VI"))));
+        break;
+      default:
+        throw new IllegalArgumentException("unknown filter " + filter);
+    }
+    request = builder.build();
+  }
+
+  @Benchmark
+  public RecordQuery generate() {
+    return GrpcQueryGenerator.generate(request);
+  }
+
+  private static RecordStoreProtocol.QueryFilterNode idNode(RecordStoreProtocol.FilterOperation operation, long value) {
+    return RecordStoreProtocol.QueryFilterNode.newBuilder()
+      .setFieldNode(RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+        .setField("id")
+        .setInt64Value(value)
+        .setOperation(operation))
+      .build();
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.benchmarks;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.UserDataset;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.RecordLayer;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Writes and queries of demo users through the {@link RecordLayer}, against the cluster given by the
+ * {@value BenchmarkData#CLUSTER_FILE_PROPERTY} system property, or a container started for the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecordLayerBenchmark {
+  private static final String TENANT = "benchmarks";
+  private static final String RECORD_SPACE = "users";
+
+  @Param({"1000"})
+  public int recordCount;
+
+  @Param({"100"})
+  public int batchSize;
+
+  private BenchmarkData.Cluster cluster;
+  private RecordLayer recordLayer;
+  private List<byte[]> users;
+  private List<RecordStoreProtocol.PutRecordRequest> batch;
+  private final AtomicInteger nextUser = new AtomicInteger();
+
+  @Setup(Level.Trial)
+  public void setup() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException, InvalidProtocolBufferException {
+    cluster = new BenchmarkData.Cluster();
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(cluster.getClusterFilePath(), false, secretKey);
+    recordLayer.deleteContainer(TENANT, RECORD_SPACE);
+
+    // creates the schema and its indexes
+    new UserDataset().load(recordLayer, TENANT, RECORD_SPACE, 0, 1);
+
+    users = BenchmarkData.users(recordCount).stream()
+      .map(DemoUserProto.User::toByteArray)
+      .collect(Collectors.toList());
+    batch = users.subList(0, batchSize).stream()
+      .map(user -> RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(ByteString.copyFrom(user))
+        .build())
+      .collect(Collectors.toList());
+    for (byte[] user : users) {
+      recordLayer.putRecord(TENANT, RECORD_SPACE, "User", user);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    recordLayer.deleteContainer(TENANT, RECORD_SPACE);
+    cluster.close();
+  }
+
+  @Benchmark
+  public void putRecord() throws InvalidProtocolBufferException {
+    recordLayer.putRecord(TENANT, RECORD_SPACE, "User", users.get(nextUser.getAndIncrement() % recordCount));
+  }
+
+  @Benchmark
+  public RecordStoreProtocol.PutRecordBatchResponse putRecords() {
+    return recordLayer.putRecords(TENANT, RECORD_SPACE, batch);
+  }
+
+  @Benchmark
+  public List<Message> queryById() {
+    RecordQuery query = RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.field("id").equalsValue((long) (nextUser.getAndIncrement() % recordCount)))
+      .build();
+    return recordLayer.queryRecords(TENANT, RECORD_SPACE, query);
+  }
+
+  @Benchmark
+  public List<Message> queryByIndexedField() {
+    RecordQuery query = RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.field("name").greaterThanOrEquals("M"))
+      .build();
+    return recordLayer.queryRecords(TENANT, RECORD_SPACE, query);
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.benchmarks;
+
+import com.apple.foundationdb.record.RecordMetaData;
+import com.apple.foundationdb.record.metadata.RecordType;
+import com.apple.foundationdb.record.provider.common.RecordSerializer;
+import com.apple.foundationdb.record.provider.common.TransformedRecordSerializerJCE;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.RecordSerializers;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Serialization of a demo user, with a serializer built for each record like the record store used to,
+ * and with the serializers shared through {@link RecordSerializers}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class RecordSerializerBenchmark {
+  private static final Tuple PRIMARY_KEY = Tuple.from(1L);
+
+  // 0 compresses every record, like the JCE serializer
+  @Param({"0", "128"})
+  public int compressionThreshold;
+
+  private SecretKeySpec key;
+  private RecordMetaData metaData;
+  private RecordType recordType;
+  private DemoUserProto.User user;
+  private byte[] serialized;
+  private RecordSerializers serializers;
+  private RecordStoreProtocol.CompressionOptions compression;
+
+  @Setup
+  public void setup() {
+    key = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    metaData = BenchmarkData.usersMetaData();
+    recordType = metaData.getRecordType("User");
+    user = BenchmarkData.users(1).get(0);
+
+    serializers = new RecordSerializers(Constants.CONFIG_COMPRESSION_LEVEL_DEFAULT, compressionThreshold);
+    compression = RecordStoreProtocol.CompressionOptions.getDefaultInstance();
+    serialized = newSerializer().serialize(metaData, recordType, user, null);
+  }
+
+  @Benchmark
+  public byte[] serializeWithNewSerializer() {
+    return newSerializer().serialize(metaData, recordType, user, null);
+  }
+
+  @Benchmark
+  public byte[] serializeWithSharedSerializer() {
+    return serializers.get(key, compression).serialize(metaData, recordType, user, null);
+  }
+
+  @Benchmark
+  public Message deserializeWithNewSerializer() {
+    return newSerializer().deserialize(metaData, PRIMARY_KEY, serialized, null);
+  }
+
+  @Benchmark
+  public Message deserializeWithSharedSerializer() {
+    return serializers.get(key, compression).deserialize(metaData, PRIMARY_KEY, serialized, null);
+  }
+
+  private RecordSerializer<Message> newSerializer() {
+    return TransformedRecordSerializerJCE.newDefaultBuilder()
+      .setEncryptWhenSerializing(true)
+      .setCompressWhenSerializing(true)
+      .setEncryptionKey(key)
+      .build();
+  }
+}
@@ -23,10 +23,83 @@ public class Constants {
   public static final String CONFIG_FDB_CLUSTER_FILE_DEFAULT = "/var/fdb/fdb.cluster";
   public static final String CONFIG_BISCUIT_KEY = "biscuit-key";
   public static final String CONFIG_ENCRYPTION_KEY = "encryption-key";
+  public static final String CONFIG_AUTH_CACHE_SIZE = "auth-cache-size";
+  public static final long CONFIG_AUTH_CACHE_SIZE_DEFAULT = 10_000;
+  public static final String CONFIG_AUTH_CACHE_TTL_MS = "auth-cache-ttl-ms";
+  public static final long CONFIG_AUTH_CACHE_TTL_MS_DEFAULT = 60_000;
 
   public static final String CONFIG_GRPC_LISTEN_ADDRESS = "grpc-listen-address";
   public static final String CONFIG_GRPC_LISTEN_PORT = "grpc-listen-port";
 
   public static final String CONFIG_GRAPHQL_LISTEN_PORT = "graphql-listen-port";
   public static final String CONFIG_LOAD_DEMO = "load-demo";
+  public static final String CONFIG_LOAD_DEMO_SIZE = "load-demo-size";
+  public static final int CONFIG_LOAD_DEMO_SIZE_DEFAULT = 100;
+  public static final String CONFIG_LOAD_DEMO_PARALLELISM = "load-demo-parallelism";
+  public static final int CONFIG_LOAD_DEMO_PARALLELISM_DEFAULT = 4;
+  public static final String CONFIG_GRAPHQL_SCHEMA_CACHE_SIZE = "graphql-schema-cache-size";
+  public static final long CONFIG_GRAPHQL_SCHEMA_CACHE_SIZE_DEFAULT = 100;
+  public static final String CONFIG_GRAPHQL_DOCUMENT_CACHE_SIZE = "graphql-document-cache-size";
+  public static final long CONFIG_GRAPHQL_DOCUMENT_CACHE_SIZE_DEFAULT = 1000;
+  public static final String CONFIG_PREPARED_QUERY_CACHE_SIZE = "prepared-query-cache-size";
+  public static final long CONFIG_PREPARED_QUERY_CACHE_SIZE_DEFAULT = 10_000;
+  public static final String CONFIG_PREPARED_QUERY_TTL_MS = "prepared-query-ttl-ms";
+  public static final long CONFIG_PREPARED_QUERY_TTL_MS_DEFAULT = 3_600_000;
+
+  public static final String CONFIG_METADATA_CACHE_SIZE = "metadata-cache-size";
+  public static final int CONFIG_METADATA_CACHE_SIZE_DEFAULT = 1000;
+  public static final String CONFIG_QUERY_PLAN_CACHE_SIZE = "query-plan-cache-size";
+  public static final int CONFIG_QUERY_PLAN_CACHE_SIZE_DEFAULT = 10_000;
+
+  public static final String CONFIG_PUT_BATCH_MAX_BYTES = "put-batch-max-bytes";
+  public static final int CONFIG_PUT_BATCH_MAX_BYTES_DEFAULT = 5_000_000;
+  public static final String CONFIG_PUT_BATCH_MAX_RECORDS = "put-batch-max-records";
+  public static final int CONFIG_PUT_BATCH_MAX_RECORDS_DEFAULT = 1_000;
+  public static final String CONFIG_QUERY_SCANNED_BYTES_LIMIT = "query-scanned-bytes-limit";
+  public static final long CONFIG_QUERY_SCANNED_BYTES_LIMIT_DEFAULT = 1_000_000;
+  public static final String CONFIG_QUERY_TRANSACTION_TIME_LIMIT_MS = "query-transaction-time-limit-ms";
+  public static final long CONFIG_QUERY_TRANSACTION_TIME_LIMIT_MS_DEFAULT = 4_000;
+  public static final String CONFIG_TRANSACTION_TIMEOUT_MS = "transaction-timeout-ms";
+  public static final long CONFIG_TRANSACTION_TIMEOUT_MS_DEFAULT = 5_000;
+  public static final String CONFIG_TRANSACTION_MAX_ATTEMPTS = "transaction-max-attempts";
+  public static final int CONFIG_TRANSACTION_MAX_ATTEMPTS_DEFAULT = 10;
+  public static final String CONFIG_READ_VERSION_STALENESS_MS = "read-version-staleness-ms";
+  public static final long CONFIG_READ_VERSION_STALENESS_MS_DEFAULT = 0;
+  public static final String CONFIG_COMPRESSION_LEVEL = "compression-level";
+  public static final int CONFIG_COMPRESSION_LEVEL_DEFAULT = 9;
+  public static final String CONFIG_COMPRESSION_THRESHOLD_BYTES = "compression-threshold-bytes";
+  public static final int CONFIG_COMPRESSION_THRESHOLD_BYTES_DEFAULT = 128;
+  public static final String CONFIG_IMPORT_PARALLELISM = "import-parallelism";
+  public static final int CONFIG_IMPORT_PARALLELISM_DEFAULT = 4;
+  public static final String CONFIG_EXPORT_PARALLELISM = "export-parallelism";
+  public static final int CONFIG_EXPORT_PARALLELISM_DEFAULT = 4;
+  public static final String CONFIG_EXPORT_DIRECTORY = "export-directory";
+  public static final String CONFIG_QUERY_MAX_PARALLELISM = "query-max-parallelism";
+  public static final int CONFIG_QUERY_MAX_PARALLELISM_DEFAULT = 8;
+  public static final String CONFIG_QUERY_PARTITION_BUFFER_SIZE = "query-partition-buffer-size";
+  public static final int CONFIG_QUERY_PARTITION_BUFFER_SIZE_DEFAULT = 256;
+  public static final String CONFIG_INDEX_INLINE_BUILD_MAX_RECORDS = "index-inline-build-max-records";
+  public static final long CONFIG_INDEX_INLINE_BUILD_MAX_RECORDS_DEFAULT = 200;
+  public static final String CONFIG_INDEX_BUILD_RECORDS_PER_SECOND = "index-build-records-per-second";
+  public static final int CONFIG_INDEX_BUILD_RECORDS_PER_SECOND_DEFAULT = 10_000;
+  public static final String CONFIG_RANK_MAX_RECORDS = "rank-max-records";
+  public static final int CONFIG_RANK_MAX_RECORDS_DEFAULT = 1_000;
+  public static final String CONFIG_MULTI_GET_MAX_KEYS = "multi-get-max-keys";
+  public static final int CONFIG_MULTI_GET_MAX_KEYS_DEFAULT = 1_000;
+  public static final String CONFIG_DELETE_BATCH_SIZE = "delete-batch-size";
+  public static final int CONFIG_DELETE_BATCH_SIZE_DEFAULT = 500;
+  public static final String CONFIG_WATCH_BATCH_SIZE = "watch-batch-size";
+  public static final int CONFIG_WATCH_BATCH_SIZE_DEFAULT = 500;
+  public static final String CONFIG_WATCH_BATCH_DELAY_MS = "watch-batch-delay-ms";
+  public static final long CONFIG_WATCH_BATCH_DELAY_MS_DEFAULT = 10;
+  public static final String CONFIG_WATCH_POLL_INTERVAL_MS = "watch-poll-interval-ms";
+  public static final long CONFIG_WATCH_POLL_INTERVAL_MS_DEFAULT = 60_000;
+  public static final String CONFIG_EXPIRATION_SWEEP_INTERVAL_MS = "expiration-sweep-interval-ms";
+  public static final long CONFIG_EXPIRATION_SWEEP_INTERVAL_MS_DEFAULT = 60_000;
+  public static final String CONFIG_EXPIRATION_BATCH_SIZE = "expiration-batch-size";
+  public static final int CONFIG_EXPIRATION_BATCH_SIZE_DEFAULT = 100;
+  public static final String CONFIG_EXPIRATION_RECORDS_PER_SECOND = "expiration-records-per-second";
+  public static final int CONFIG_EXPIRATION_RECORDS_PER_SECOND_DEFAULT = 1_000;
+  public static final String CONFIG_EXPIRATION_BACKLOG_SCAN_LIMIT = "expiration-backlog-scan-limit";
+  public static final int CONFIG_EXPIRATION_BACKLOG_SCAN_LIMIT_DEFAULT = 10_000;
 }
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore;
+
+import fr.pierrezemb.recordstore.fdb.RecordExporter;
+import fr.pierrezemb.recordstore.fdb.RecordLayer;
+import fr.pierrezemb.recordstore.fdb.RecordLayerOptions;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.vertx.core.cli.CLIException;
+import io.vertx.core.cli.annotations.Argument;
+import io.vertx.core.cli.annotations.DefaultValue;
+import io.vertx.core.cli.annotations.Description;
+import io.vertx.core.cli.annotations.Name;
+import io.vertx.core.cli.annotations.Option;
+import io.vertx.core.cli.annotations.Summary;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Exports the records of a recordSpace in a local directory.
+ */
+@Name("export")
+@Summary("Export the records of a recordSpace in files of length-delimited Protobuf")
+@Description("Export the records of a recordSpace in a directory, with one file per recordType and primary key range, " +
+  "described by a manifest.")
+public class ExportCommand extends RecordSpaceCommand {
+  private String directory;
+  private int parallelism;
+
+  @Argument(index = 0, argName = "directory")
+  @Description("directory in which the files are written")
+  public void setDirectory(String directory) {
+    this.directory = directory;
+  }
+
+  @Option(longName = Constants.CONFIG_EXPORT_PARALLELISM, argName = "ranges")
+  @Description("number of primary key ranges scanned concurrently")
+  @DefaultValue("" + Constants.CONFIG_EXPORT_PARALLELISM_DEFAULT)
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  @Override
+  public void run() throws CLIException {
+    Path path = Paths.get(directory);
+    RecordLayer recordLayer = connect(new RecordLayerOptions().setExportParallelism(parallelism));
+
+    RecordStoreProtocol.ExportManifest manifest = new RecordExporter(recordLayer, tenant, recordSpace, parallelism).export(path);
+    out.println("exported " + manifest.getRecordCount() + " records in " + manifest.getFilesCount() + " files to " + path);
+  }
+}
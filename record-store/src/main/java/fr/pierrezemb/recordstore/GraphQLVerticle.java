@@ -17,8 +17,8 @@ package fr.pierrezemb.recordstore;
 
 import com.apple.foundationdb.record.RecordMetaData;
 import com.google.common.collect.ImmutableMap;
-import fr.pierrezemb.recordstore.datasets.DatasetsLoader;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
+import fr.pierrezemb.recordstore.fdb.RecordLayerOptions;
 import fr.pierrezemb.recordstore.graphql.GraphQLSchemaGenerator;
 import fr.pierrezemb.recordstore.graphql.RecordStoreGraphQLHandler;
 import io.vertx.core.AbstractVerticle;
@@ -53,15 +53,18 @@ public class GraphQLVerticle extends AbstractVerticle {
     byte[] key = this.context.config().getString(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT, Constants.CONFIG_ENCRYPTION_KEY_DEFAULT).getBytes();
     SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
 
-    recordLayer = new RecordLayer(clusterFilePath, vertx.isMetricsEnabled(), secretKey);
+    recordLayer = new RecordLayer(clusterFilePath, vertx.isMetricsEnabled(), secretKey, new RecordLayerOptions(this.context.config()));
 
-    DatasetsLoader datasetsLoader = new DatasetsLoader(recordLayer);
-    datasetsLoader.loadDataset(this.context.config().getString(Constants.CONFIG_LOAD_DEMO, ""));
+    if (!this.context.config().getString(Constants.CONFIG_LOAD_DEMO, "").isEmpty()) {
+      LOGGER.warn("{} is ignored by the GraphQL verticle, demo datasets are loaded by the gRPC verticle", Constants.CONFIG_LOAD_DEMO);
+    }
 
     Router router = Router.router(vertx);
     router.route("/api/v0/:tenant/:recordspace/schema").handler(this::getSchema);
     router.route("/graphiql/*").handler(GraphiQLHandler.create(options));
-    router.route("/graphql").handler(new RecordStoreGraphQLHandler(recordLayer));
+    router.route("/graphql").handler(new RecordStoreGraphQLHandler(recordLayer,
+      this.context.config().getLong(Constants.CONFIG_GRAPHQL_SCHEMA_CACHE_SIZE, Constants.CONFIG_GRAPHQL_SCHEMA_CACHE_SIZE_DEFAULT),
+      this.context.config().getLong(Constants.CONFIG_GRAPHQL_DOCUMENT_CACHE_SIZE, Constants.CONFIG_GRAPHQL_DOCUMENT_CACHE_SIZE_DEFAULT)));
 
     LOGGER.info("starting graphQL server on {}", port);
 
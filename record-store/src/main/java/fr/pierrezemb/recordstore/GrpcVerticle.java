@@ -16,12 +16,15 @@
 package fr.pierrezemb.recordstore;
 
 
+import fr.pierrezemb.recordstore.auth.BiscuitManager;
 import fr.pierrezemb.recordstore.datasets.DatasetsLoader;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
+import fr.pierrezemb.recordstore.fdb.RecordLayerOptions;
 import fr.pierrezemb.recordstore.grpc.AdminService;
 import fr.pierrezemb.recordstore.grpc.AuthInterceptor;
 import fr.pierrezemb.recordstore.grpc.RecordService;
 import fr.pierrezemb.recordstore.grpc.SchemaService;
+import fr.pierrezemb.recordstore.query.PreparedQueries;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Promise;
 import io.vertx.grpc.VertxServer;
@@ -30,6 +33,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import static fr.pierrezemb.recordstore.Constants.CONFIG_BISCUIT_KEY_DEFAULT;
 
@@ -37,6 +42,7 @@ import static fr.pierrezemb.recordstore.Constants.CONFIG_BISCUIT_KEY_DEFAULT;
 public class GrpcVerticle extends AbstractVerticle {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(GrpcVerticle.class);
+  private RecordLayer recordLayer;
 
   @Override
   public void start(Promise<Void> startPromise) throws Exception {
@@ -55,30 +61,63 @@ public class GrpcVerticle extends AbstractVerticle {
     }
     SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
 
-    RecordLayer recordLayer = new RecordLayer(clusterFilePath, vertx.isMetricsEnabled(), secretKey);
+    recordLayer = new RecordLayer(clusterFilePath, vertx.isMetricsEnabled(), secretKey, new RecordLayerOptions(this.context.config()));
+    recordLayer.startExpirationSweeper();
 
-    DatasetsLoader datasetsLoader = new DatasetsLoader(recordLayer);
-    datasetsLoader.loadDataset(this.context.config().getString(Constants.CONFIG_LOAD_DEMO, ""));
+    String exportDirectoryConfig = this.context.config().getString(Constants.CONFIG_EXPORT_DIRECTORY);
+    Path exportDirectory = exportDirectoryConfig != null ? Paths.get(exportDirectoryConfig) : null;
 
     VertxServerBuilder serverBuilder = VertxServerBuilder
       .forAddress(vertx,
         this.context.config().getString(Constants.CONFIG_GRPC_LISTEN_ADDRESS, "localhost"),
         this.context.config().getInteger(Constants.CONFIG_GRPC_LISTEN_PORT, 8080))
-      .intercept(new AuthInterceptor(tokenKey))
+      .intercept(new AuthInterceptor(new BiscuitManager(tokenKey,
+        this.context.config().getLong(Constants.CONFIG_AUTH_CACHE_SIZE, Constants.CONFIG_AUTH_CACHE_SIZE_DEFAULT),
+        this.context.config().getLong(Constants.CONFIG_AUTH_CACHE_TTL_MS, Constants.CONFIG_AUTH_CACHE_TTL_MS_DEFAULT),
+        recordLayer.getTimer())))
       .addService(new AdminService(recordLayer))
       .addService(new SchemaService(recordLayer))
-      .addService(new RecordService(recordLayer));
+      .addService(new RecordService(recordLayer, exportDirectory, new PreparedQueries(
+        this.context.config().getLong(Constants.CONFIG_PREPARED_QUERY_CACHE_SIZE, Constants.CONFIG_PREPARED_QUERY_CACHE_SIZE_DEFAULT),
+        this.context.config().getLong(Constants.CONFIG_PREPARED_QUERY_TTL_MS, Constants.CONFIG_PREPARED_QUERY_TTL_MS_DEFAULT))));
 
     VertxServer server = serverBuilder.build();
 
-    server.start(ar -> {
-      if (ar.succeeded()) {
-        System.out.println("gRPC service started on " + this.context.config().getInteger("grpc-listen-port"));
-        startPromise.complete();
-      } else {
-        System.out.println("Could not start server " + ar.cause().getMessage());
-        startPromise.fail(ar.cause());
+    // the demo is loaded on a worker thread, the server is started once it is there
+    DatasetsLoader datasetsLoader = new DatasetsLoader(recordLayer,
+      this.context.config().getInteger(Constants.CONFIG_LOAD_DEMO_SIZE, Constants.CONFIG_LOAD_DEMO_SIZE_DEFAULT),
+      this.context.config().getInteger(Constants.CONFIG_LOAD_DEMO_PARALLELISM, Constants.CONFIG_LOAD_DEMO_PARALLELISM_DEFAULT));
+    String datasetsToLoad = this.context.config().getString(Constants.CONFIG_LOAD_DEMO, "");
+    vertx.<Void>executeBlocking(promise -> {
+      try {
+        datasetsLoader.loadDataset(datasetsToLoad);
+        promise.complete();
+      } catch (Exception e) {
+        promise.fail(e);
       }
+    }, loaded -> {
+      if (loaded.failed()) {
+        LOGGER.error("could not load demo datasets", loaded.cause());
+        startPromise.fail(loaded.cause());
+        return;
+      }
+
+      server.start(ar -> {
+        if (ar.succeeded()) {
+          System.out.println("gRPC service started on " + this.context.config().getInteger("grpc-listen-port"));
+          startPromise.complete();
+        } else {
+          System.out.println("Could not start server " + ar.cause().getMessage());
+          startPromise.fail(ar.cause());
+        }
+      });
     });
   }
+
+  @Override
+  public void stop() {
+    if (recordLayer != null) {
+      recordLayer.close();
+    }
+  }
 }
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore;
+
+import fr.pierrezemb.recordstore.fdb.RecordImporter;
+import fr.pierrezemb.recordstore.fdb.RecordLayer;
+import fr.pierrezemb.recordstore.fdb.RecordLayerOptions;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.vertx.core.cli.CLIException;
+import io.vertx.core.cli.annotations.Argument;
+import io.vertx.core.cli.annotations.DefaultValue;
+import io.vertx.core.cli.annotations.Description;
+import io.vertx.core.cli.annotations.Name;
+import io.vertx.core.cli.annotations.Option;
+import io.vertx.core.cli.annotations.Summary;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Imports a file of records in a recordSpace.
+ */
+@Name("import")
+@Summary("Import a file of length-delimited Protobuf or NDJSON records in a recordSpace")
+@Description("Import a file in a recordSpace, which must already have a schema. " +
+  "Running the same import again resumes it after the last records committed.")
+public class ImportCommand extends RecordSpaceCommand {
+  private String file;
+  private String recordType;
+  private String format;
+  private String importID;
+  private int parallelism;
+
+  @Argument(index = 0, argName = "file")
+  @Description("file to import")
+  public void setFile(String file) {
+    this.file = file;
+  }
+
+  @Option(longName = "record-type", required = true)
+  @Description("recordType of the records")
+  public void setRecordType(String recordType) {
+    this.recordType = recordType;
+  }
+
+  @Option(longName = "format", choices = {"DELIMITED", "NDJSON"})
+  @Description("encoding of the records")
+  @DefaultValue("DELIMITED")
+  public void setFormat(String format) {
+    this.format = format;
+  }
+
+  @Option(longName = "import-id")
+  @Description("identifier of the import, used to resume it. Defaults to the name of the file")
+  public void setImportID(String importID) {
+    this.importID = importID;
+  }
+
+  @Option(longName = Constants.CONFIG_IMPORT_PARALLELISM, argName = "batches")
+  @Description("number of batches parsed and committed concurrently")
+  @DefaultValue("" + Constants.CONFIG_IMPORT_PARALLELISM_DEFAULT)
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  @Override
+  public void run() throws CLIException {
+    Path path = Paths.get(file);
+    String id = importID != null ? importID : path.getFileName().toString();
+    RecordLayer recordLayer = connect(new RecordLayerOptions().setImportParallelism(parallelism));
+
+    RecordImporter importer = new RecordImporter(recordLayer, tenant, recordSpace, id, recordType,
+      RecordStoreProtocol.ImportFormat.valueOf(format), parallelism);
+    try {
+      RecordStoreProtocol.ImportRecordsResponse response = importer.importFile(path);
+      out.println("imported " + response.getImportedCount() + " records from " + path +
+        ", " + response.getFailedCount() + " failed");
+    } catch (IOException e) {
+      throw new CLIException("cannot read " + path + ": " + e.getMessage(), e);
+    }
+  }
+}
@@ -23,7 +23,10 @@ import io.vertx.micrometer.VertxPrometheusOptions;
 public class Launcher extends io.vertx.core.Launcher {
 
   public static void main(String[] args) {
-    new Launcher().dispatch(args);
+    new Launcher()
+      .register(ImportCommand.class)
+      .register(ExportCommand.class)
+      .dispatch(args);
   }
 
   @Override
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore;
+
+import fr.pierrezemb.recordstore.fdb.RecordLayer;
+import fr.pierrezemb.recordstore.fdb.RecordLayerOptions;
+import io.vertx.core.cli.CLIException;
+import io.vertx.core.cli.annotations.DefaultValue;
+import io.vertx.core.cli.annotations.Description;
+import io.vertx.core.cli.annotations.Option;
+import io.vertx.core.spi.launcher.DefaultCommand;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Command of the {@link Launcher} working on a recordSpace directly in FoundationDB, without going through a running record-store.
+ */
+public abstract class RecordSpaceCommand extends DefaultCommand {
+  protected String tenant;
+  protected String recordSpace;
+  private String clusterFile;
+  private String encryptionKey;
+
+  @Option(longName = Constants.CONFIG_FDB_CLUSTER_FILE, argName = "path")
+  @Description("FoundationDB cluster file")
+  @DefaultValue(Constants.CONFIG_FDB_CLUSTER_FILE_DEFAULT)
+  public void setClusterFile(String clusterFile) {
+    this.clusterFile = clusterFile;
+  }
+
+  @Option(longName = Constants.CONFIG_ENCRYPTION_KEY, argName = "key")
+  @Description("key used to encrypt the records")
+  @DefaultValue(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT)
+  public void setEncryptionKey(String encryptionKey) {
+    this.encryptionKey = encryptionKey;
+  }
+
+  @Option(longName = "tenant", required = true)
+  @Description("tenant of the recordSpace")
+  public void setTenant(String tenant) {
+    this.tenant = tenant;
+  }
+
+  @Option(longName = "record-space", required = true)
+  @Description("name of the recordSpace")
+  public void setRecordSpace(String recordSpace) {
+    this.recordSpace = recordSpace;
+  }
+
+  protected RecordLayer connect(RecordLayerOptions options) throws CLIException {
+    try {
+      SecretKeySpec secretKey = new SecretKeySpec(encryptionKey.getBytes(), "AES");
+      return new RecordLayer(clusterFile, false, secretKey, options);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      throw new CLIException("cannot connect to FoundationDB: " + e.getMessage(), e);
+    }
+  }
+}
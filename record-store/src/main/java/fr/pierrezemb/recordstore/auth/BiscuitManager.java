@@ -15,22 +15,31 @@
  */
 package fr.pierrezemb.recordstore.auth;
 
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoreTimer;
 import com.clevercloud.biscuit.crypto.KeyPair;
 import com.clevercloud.biscuit.datalog.SymbolTable;
 import com.clevercloud.biscuit.error.Error;
 import com.clevercloud.biscuit.token.Biscuit;
 import com.clevercloud.biscuit.token.Verifier;
 import com.clevercloud.biscuit.token.builder.Block;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.vavr.control.Either;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 import static com.clevercloud.biscuit.token.builder.Utils.caveat;
 import static com.clevercloud.biscuit.token.builder.Utils.fact;
@@ -39,20 +48,52 @@ import static com.clevercloud.biscuit.token.builder.Utils.rule;
 import static com.clevercloud.biscuit.token.builder.Utils.s;
 import static com.clevercloud.biscuit.token.builder.Utils.string;
 import static com.clevercloud.biscuit.token.builder.Utils.var;
+import static fr.pierrezemb.recordstore.Constants.CONFIG_AUTH_CACHE_SIZE_DEFAULT;
+import static fr.pierrezemb.recordstore.Constants.CONFIG_AUTH_CACHE_TTL_MS_DEFAULT;
 import static fr.pierrezemb.recordstore.Constants.CONFIG_BISCUIT_KEY_DEFAULT;
 import static io.vavr.API.Left;
 import static io.vavr.API.Right;
 
+/**
+ * Creates and verifies the biscuits used as tokens.
+ * <p>
+ * The result of the verification of a token for a tenant is cached for a short time, so that the calls
+ * of a long-lived channel do not run the Datalog verifier each time. The hits and the time spent verifying
+ * are recorded in the {@link FDBStoreTimer} of the record layer.
+ */
 public class BiscuitManager {
   private static final Logger LOGGER = LoggerFactory.getLogger(BiscuitManager.class);
   private final SymbolTable symbols;
+  private final Cache<VerifiedToken, Either<Error, Void>> verifiedTokens;
+  private final FDBStoreTimer timer;
   KeyPair root;
   byte[] seed = {0, 0, 0, 0};
   SecureRandom rng = new SecureRandom(seed);
 
   public BiscuitManager(String key) {
+    this(key, CONFIG_AUTH_CACHE_SIZE_DEFAULT, CONFIG_AUTH_CACHE_TTL_MS_DEFAULT);
+  }
+
+  /**
+   * @param cacheSize  number of verified token/tenant pairs kept in memory, 0 disables the cache
+   * @param cacheTtlMs time during which a verification is reused. Expiration caveats are only checked again after it.
+   */
+  public BiscuitManager(String key, long cacheSize, long cacheTtlMs) {
+    this(key, cacheSize, cacheTtlMs, new FDBStoreTimer());
+  }
+
+  /**
+   * @param timer where the cache hits and the verifications are recorded
+   */
+  public BiscuitManager(String key, long cacheSize, long cacheTtlMs, FDBStoreTimer timer) {
+    this.timer = timer;
     root = new KeyPair(key);
     symbols = Biscuit.default_symbol_table();
+    verifiedTokens = CacheBuilder.newBuilder()
+      .maximumSize(cacheSize)
+      .expireAfterWrite(cacheTtlMs, TimeUnit.MILLISECONDS)
+      .recordStats()
+      .build();
   }
 
   public BiscuitManager() {
@@ -87,7 +128,36 @@ public class BiscuitManager {
   }
 
   public Either<Error, Void> checkTenant(String tenant, String serializedBiscuit) {
+    HashCode tokenHash = Hashing.sha256().hashString(serializedBiscuit, StandardCharsets.UTF_8);
+    VerifiedToken cacheKey = new VerifiedToken(tokenHash, tenant);
+    Either<Error, Void> cached = verifiedTokens.getIfPresent(cacheKey);
+    if (cached != null) {
+      timer.increment(RecordStoreMetrics.Counts.AUTH_TOKEN_CACHE_HIT);
+      return cached;
+    }
+    timer.increment(RecordStoreMetrics.Counts.AUTH_TOKEN_CACHE_MISS);
+
+    long startTime = System.nanoTime();
+    Either<Error, Void> result = verify(tenant, serializedBiscuit);
+    timer.recordSinceNanoTime(RecordStoreMetrics.Events.AUTH_TOKEN_VERIFICATION, startTime);
 
+    verifiedTokens.put(cacheKey, result);
+    return result;
+  }
+
+  /**
+   * forget the cached verifications of a token, so that it goes through the verifier again on its next use
+   */
+  public void revoke(String serializedBiscuit) {
+    HashCode tokenHash = Hashing.sha256().hashString(serializedBiscuit, StandardCharsets.UTF_8);
+    verifiedTokens.asMap().keySet().removeIf(verifiedToken -> verifiedToken.tokenHash.equals(tokenHash));
+  }
+
+  public long getCacheHitCount() {
+    return verifiedTokens.stats().hitCount();
+  }
+
+  private Either<Error, Void> verify(String tenant, String serializedBiscuit) {
     Either<Error, Verifier> res = createVerifier(serializedBiscuit);
     if (res.isLeft()) {
       LOGGER.error("could not create verifier: {}", res.getLeft());
@@ -136,4 +206,30 @@ public class BiscuitManager {
     return Right(verifier);
   }
 
+  private static class VerifiedToken {
+    private final HashCode tokenHash;
+    private final String tenant;
+
+    private VerifiedToken(HashCode tokenHash, String tenant) {
+      this.tokenHash = tokenHash;
+      this.tenant = tenant;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      VerifiedToken that = (VerifiedToken) o;
+      return tokenHash.equals(that.tokenHash) && tenant.equals(that.tenant);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(tokenHash, tenant);
+    }
+  }
 }
@@ -20,5 +20,11 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
 
 public interface Dataset {
-  void load(RecordLayer recordLayer, String tenant, String recordSpace, int nbrRecord) throws Descriptors.DescriptorValidationException, InvalidProtocolBufferException;
+  /**
+   * create the schema of the dataset and load records in it
+   *
+   * @param nbrRecord   number of records to generate
+   * @param parallelism number of records generators, and of transactions committed concurrently
+   */
+  void load(RecordLayer recordLayer, String tenant, String recordSpace, int nbrRecord, int parallelism) throws Descriptors.DescriptorValidationException, InvalidProtocolBufferException, InterruptedException;
 }
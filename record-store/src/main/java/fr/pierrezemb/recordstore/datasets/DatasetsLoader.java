@@ -17,6 +17,7 @@ package fr.pierrezemb.recordstore.datasets;
 
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.InvalidProtocolBufferException;
+import fr.pierrezemb.recordstore.Constants;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,13 +30,19 @@ public class DatasetsLoader {
   private static final Logger LOGGER = LoggerFactory.getLogger(DatasetsLoader.class);
   private final RecordLayer recordLayer;
   private final int nbrRecords;
+  private final int parallelism;
 
   public DatasetsLoader(RecordLayer recordLayer) {
+    this(recordLayer, Constants.CONFIG_LOAD_DEMO_SIZE_DEFAULT, Constants.CONFIG_LOAD_DEMO_PARALLELISM_DEFAULT);
+  }
+
+  public DatasetsLoader(RecordLayer recordLayer, int nbrRecords, int parallelism) {
     this.recordLayer = recordLayer;
-    nbrRecords = 100;
+    this.nbrRecords = nbrRecords;
+    this.parallelism = parallelism;
   }
 
-  public void loadDataset(List<DemoDatasetEnum> datasets) throws InvalidProtocolBufferException, Descriptors.DescriptorValidationException {
+  public void loadDataset(List<DemoDatasetEnum> datasets) throws InvalidProtocolBufferException, Descriptors.DescriptorValidationException, InterruptedException {
     List<String> alreadyLoadedDatasets = this.recordLayer.listContainers(DEFAULT_DEMO_TENANT);
     for (DemoDatasetEnum d : datasets) {
       Dataset dataset;
@@ -47,7 +54,7 @@ public class DatasetsLoader {
           continue;
       }
       if (!alreadyLoadedDatasets.contains(d.toString())) {
-        dataset.load(recordLayer, DEFAULT_DEMO_TENANT, d.toString(), this.nbrRecords);
+        dataset.load(recordLayer, DEFAULT_DEMO_TENANT, d.toString(), this.nbrRecords, this.parallelism);
         LOGGER.info("successfully loaded {} records for {}", this.nbrRecords, d.toString());
       } else {
         LOGGER.info("dataset {} already loaded, skipping", d.toString());
@@ -55,7 +62,7 @@ public class DatasetsLoader {
     }
   }
 
-  public void loadDataset(String datasetsToLoad) throws InvalidProtocolBufferException, Descriptors.DescriptorValidationException {
+  public void loadDataset(String datasetsToLoad) throws InvalidProtocolBufferException, Descriptors.DescriptorValidationException, InterruptedException {
 
     if (datasetsToLoad == null) {
       return;
@@ -63,7 +70,6 @@ public class DatasetsLoader {
 
     if (datasetsToLoad.length() > 0) {
       String[] d = datasetsToLoad.split(",");
-      DatasetsLoader datasetsLoader = new DatasetsLoader(recordLayer);
 
       ArrayList<DemoDatasetEnum> datasets = new ArrayList<>();
       for (String dataset : d) {
@@ -73,7 +79,7 @@ public class DatasetsLoader {
           LOGGER.error("cannot find dataset {}", dataset);
         }
       }
-      datasetsLoader.loadDataset(datasets);
+      loadDataset(datasets);
     }
   }
 }
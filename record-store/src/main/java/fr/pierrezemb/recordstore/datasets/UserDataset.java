@@ -21,6 +21,7 @@ import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.InvalidProtocolBufferException;
 import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.BulkLoader;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
 import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
 import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
@@ -29,13 +30,21 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UserDataset implements Dataset {
   private static final Logger LOGGER = LoggerFactory.getLogger(UserDataset.class);
+  // users generated by the same Faker, seeded with the position of the chunk so that datasets are reproducible
+  private static final int CHUNK_SIZE = 10_000;
+  private static final long SEED = 42;
 
   @Override
-  public void load(RecordLayer recordLayer, String tenant, String recordSpace, int nbrRecord) throws Descriptors.DescriptorValidationException, InvalidProtocolBufferException {
+  public void load(RecordLayer recordLayer, String tenant, String recordSpace, int nbrRecord, int parallelism) throws Descriptors.DescriptorValidationException, InvalidProtocolBufferException, InterruptedException {
 
     DescriptorProtos.FileDescriptorSet dependencies =
       ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
@@ -78,9 +87,34 @@ public class UserDataset implements Dataset {
       )
     );
 
-    Faker faker = new Faker(new Random(42));
+    try (BulkLoader loader = new BulkLoader(recordLayer, tenant, recordSpace, parallelism)) {
+      ExecutorService generators = Executors.newFixedThreadPool(parallelism);
+      try {
+        List<Future<?>> chunks = new ArrayList<>();
+        for (int start = 0; start < nbrRecord; start += CHUNK_SIZE) {
+          int chunkStart = start;
+          int chunkEnd = Math.min(nbrRecord, start + CHUNK_SIZE);
+          chunks.add(generators.submit(() -> {
+            generate(loader, chunkStart, chunkEnd);
+            return null;
+          }));
+        }
+        for (Future<?> chunk : chunks) {
+          chunk.get();
+        }
+      } finally {
+        generators.shutdownNow();
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+    }
+  }
+
+  private void generate(BulkLoader loader, int start, int end) throws InterruptedException {
+    Faker faker = new Faker(new Random(SEED + start / CHUNK_SIZE));
 
-    for (int i = 0; i < nbrRecord; i++) {
+    for (int i = start; i < end; i++) {
 
       DemoUserProto.User person = createUser(i, faker);
 
@@ -88,7 +122,7 @@ public class UserDataset implements Dataset {
         LOGGER.trace("inserting User '{}'", person);
       }
 
-      recordLayer.putRecord(tenant, recordSpace, "User", person.toByteArray());
+      loader.add("User", person.toByteString());
     }
   }
 
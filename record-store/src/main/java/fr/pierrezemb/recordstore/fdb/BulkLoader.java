@@ -0,0 +1,206 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.google.protobuf.ByteString;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads a large number of records in a recordSpace.
+ * <p>
+ * Records added by any number of producer threads are packed into batches sized by the putBatch options,
+ * so that each batch is written by a single transaction, and up to {@code parallelism} batches are committed
+ * concurrently. {@link #add} blocks while that many commits are in flight, which keeps the producers at
+ * the pace of the cluster.
+ */
+public class BulkLoader implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkLoader.class);
+  private static final long PROGRESS_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final RecordLayer recordLayer;
+  private final FDBMetricsStoreTimer timer;
+  private final String tenantID;
+  private final String recordSpace;
+  private final int parallelism;
+  private final int maxBatchRecords;
+  private final long maxBatchBytes;
+  private final Semaphore inFlight;
+  private final AtomicLong loaded = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong transactionCount = new AtomicLong();
+  private final AtomicReference<Throwable> error = new AtomicReference<>();
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong lastProgressNanos = new AtomicLong(startNanos);
+
+  private List<RecordStoreProtocol.PutRecordRequest> batch = new ArrayList<>();
+  private long batchBytes = 0;
+  private boolean finished = false;
+
+  public BulkLoader(RecordLayer recordLayer, String tenantID, String recordSpace, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1, got " + parallelism);
+    }
+    this.recordLayer = recordLayer;
+    this.timer = recordLayer.getTimer();
+    this.tenantID = tenantID;
+    this.recordSpace = recordSpace;
+    this.parallelism = parallelism;
+    this.maxBatchRecords = recordLayer.getOptions().getPutBatchMaxRecords();
+    this.maxBatchBytes = recordLayer.getOptions().getPutBatchMaxBytes();
+    this.inFlight = new Semaphore(parallelism);
+  }
+
+  /**
+   * add a record, committing the current batch once it is full
+   *
+   * @throws RuntimeException the error that stopped the load, if a batch could not be committed
+   */
+  public void add(String recordTypeName, ByteString message) throws InterruptedException {
+    add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+      .setRecordTypeName(recordTypeName)
+      .setMessage(message)
+      .build());
+  }
+
+  public void add(RecordStoreProtocol.PutRecordRequest record) throws InterruptedException {
+    rethrowError();
+    List<RecordStoreProtocol.PutRecordRequest> full = null;
+    synchronized (this) {
+      if (finished) {
+        throw new IllegalStateException("bulk load of " + tenantID + "/" + recordSpace + " is already finished");
+      }
+      if (!batch.isEmpty() && batchBytes + record.getMessage().size() > maxBatchBytes) {
+        full = takeBatch();
+      }
+      batch.add(record);
+      batchBytes += record.getMessage().size();
+      if (full == null && batch.size() >= maxBatchRecords) {
+        full = takeBatch();
+      }
+    }
+    if (full != null) {
+      commit(full);
+    }
+  }
+
+  /**
+   * commit the last batch and wait for every batch in flight
+   *
+   * @return the number of records loaded
+   * @throws RuntimeException the error that stopped the load, if a batch could not be committed
+   */
+  public long finish() throws InterruptedException {
+    List<RecordStoreProtocol.PutRecordRequest> last;
+    synchronized (this) {
+      if (finished) {
+        return loaded.get();
+      }
+      finished = true;
+      last = takeBatch();
+    }
+    if (!last.isEmpty()) {
+      commit(last);
+    }
+    inFlight.acquire(parallelism);
+    inFlight.release(parallelism);
+    rethrowError();
+
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    LOGGER.info("loaded {} records in {}/{} with {} transactions in {}ms, {} failed",
+      loaded.get(), tenantID, recordSpace, transactionCount.get(), elapsedMs, failed.get());
+    return loaded.get();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    finish();
+  }
+
+  public long getLoadedCount() {
+    return loaded.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public long getTransactionCount() {
+    return transactionCount.get();
+  }
+
+  private List<RecordStoreProtocol.PutRecordRequest> takeBatch() {
+    List<RecordStoreProtocol.PutRecordRequest> taken = batch;
+    batch = new ArrayList<>();
+    batchBytes = 0;
+    return taken;
+  }
+
+  private void commit(List<RecordStoreProtocol.PutRecordRequest> records) throws InterruptedException {
+    inFlight.acquire();
+    recordLayer.putRecordsAsync(tenantID, recordSpace, records).whenComplete((response, err) -> {
+      try {
+        if (err != null) {
+          error.compareAndSet(null, err);
+          LOGGER.error("could not load {} records in {}/{}: {}", records.size(), tenantID, recordSpace, err.getMessage());
+          return;
+        }
+        long success = response.getResultsList().stream().filter(RecordStoreProtocol.PutRecordResult::getSuccess).count();
+        loaded.addAndGet(success);
+        failed.addAndGet(records.size() - success);
+        transactionCount.addAndGet(response.getTransactionCount());
+        timer.increment(RecordStoreMetrics.Counts.BULK_LOAD_RECORD, (int) success);
+        timer.increment(RecordStoreMetrics.Counts.BULK_LOAD_FAILED_RECORD, (int) (records.size() - success));
+        timer.increment(RecordStoreMetrics.Counts.BULK_LOAD_TRANSACTION, (int) response.getTransactionCount());
+        logProgress();
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  private void logProgress() {
+    long now = System.nanoTime();
+    long last = lastProgressNanos.get();
+    if (now - last < PROGRESS_LOG_INTERVAL_NANOS || !lastProgressNanos.compareAndSet(last, now)) {
+      return;
+    }
+    long elapsedSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(now - startNanos));
+    LOGGER.info("loaded {} records in {}/{} ({} records/s)", loaded.get(), tenantID, recordSpace, loaded.get() / elapsedSeconds);
+  }
+
+  private void rethrowError() {
+    Throwable err = error.get();
+    if (err == null) {
+      return;
+    }
+    while (err instanceof CompletionException && err.getCause() != null) {
+      err = err.getCause();
+    }
+    throw err instanceof RuntimeException ? (RuntimeException) err : new CompletionException(err);
+  }
+}
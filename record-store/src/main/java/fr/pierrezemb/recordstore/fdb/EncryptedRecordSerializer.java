@@ -0,0 +1,105 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.provider.common.DynamicMessageRecordSerializer;
+import com.apple.foundationdb.record.provider.common.RecordSerializationException;
+import com.apple.foundationdb.record.provider.common.RecordSerializer;
+import com.apple.foundationdb.record.provider.common.StoreTimer;
+import com.apple.foundationdb.record.provider.common.TransformedRecordSerializerJCE;
+import com.google.protobuf.Message;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+/**
+ * {@link TransformedRecordSerializerJCE} writing the same format, but meant to be shared by every record store
+ * using the same key: each thread reuses its own {@link Cipher}, and records smaller than a threshold are not compressed.
+ */
+public class EncryptedRecordSerializer extends TransformedRecordSerializerJCE<Message> {
+  private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+  private final int compressionThreshold;
+  private final ThreadLocal<Cipher> ciphers;
+
+  /**
+   * @param compressionLevel     deflate level, 0 disables compression
+   * @param compressionThreshold size under which records are not compressed
+   */
+  public EncryptedRecordSerializer(Key encryptionKey, int compressionLevel, int compressionThreshold) {
+    super(DynamicMessageRecordSerializer.instance(), compressionLevel > 0, compressionLevel, true,
+      DEFAULT_CIPHER, encryptionKey, SECURE_RANDOM);
+    this.compressionThreshold = compressionThreshold;
+    this.ciphers = ThreadLocal.withInitial(() -> {
+      try {
+        return Cipher.getInstance(cipherName);
+      } catch (GeneralSecurityException e) {
+        throw new RecordSerializationException("cannot create cipher", e);
+      }
+    });
+  }
+
+  @Override
+  protected void compress(TransformState state, StoreTimer timer) {
+    if (state.length < compressionThreshold) {
+      state.compressed = false;
+      if (timer != null) {
+        timer.increment(RecordSerializer.Counts.ESCHEW_RECORD_COMPRESSION);
+      }
+      return;
+    }
+    super.compress(state, timer);
+  }
+
+  @Override
+  protected void encrypt(TransformState state, StoreTimer timer) throws GeneralSecurityException {
+    long startTime = System.nanoTime();
+
+    byte[] ivData = new byte[IV_SIZE];
+    secureRandom.nextBytes(ivData);
+
+    Cipher cipher = ciphers.get();
+    cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(ivData));
+
+    // IV followed by the cipher text, like the JCE serializer
+    byte[] serialized = new byte[IV_SIZE + cipher.getOutputSize(state.length)];
+    System.arraycopy(ivData, 0, serialized, 0, IV_SIZE);
+    int length = cipher.doFinal(state.data, state.offset, state.length, serialized, IV_SIZE);
+
+    state.encrypted = true;
+    state.setDataArray(serialized, 0, IV_SIZE + length);
+    if (timer != null) {
+      timer.recordSinceNanoTime(RecordSerializer.Events.ENCRYPT_SERIALIZED_RECORD, startTime);
+    }
+  }
+
+  @Override
+  protected void decrypt(TransformState state, StoreTimer timer) throws GeneralSecurityException {
+    long startTime = System.nanoTime();
+
+    Cipher cipher = ciphers.get();
+    cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(state.data, state.offset, IV_SIZE));
+    byte[] decrypted = cipher.doFinal(state.data, state.offset + IV_SIZE, state.length - IV_SIZE);
+
+    state.setDataArray(decrypted);
+    if (timer != null) {
+      timer.recordSinceNanoTime(RecordSerializer.Events.DECRYPT_SERIALIZED_RECORD, startTime);
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.IndexState;
+import com.apple.foundationdb.record.RecordMetaDataProvider;
+import com.apple.foundationdb.record.metadata.Index;
+import com.apple.foundationdb.record.metadata.RecordType;
+import com.apple.foundationdb.record.provider.foundationdb.FDBDatabase;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordStore;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordStoreBase;
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoreTimer;
+import com.apple.foundationdb.record.provider.foundationdb.OnlineIndexer;
+import com.apple.foundationdb.tuple.Tuple;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds in the background the indexes added to recordTypes that already hold records.
+ * <p>
+ * When the metadata of a recordSpace gains an index, the store marks it write-only instead of rebuilding
+ * it inline if it holds more records than the configured threshold, so the upsert stays in a single short
+ * transaction. The index is then built by an {@link OnlineIndexer} in throttled transactions, and becomes
+ * readable once built. Built ranges are saved by the indexer, so a build interrupted by a restart resumes
+ * where it stopped the next time the recordSpace is opened.
+ */
+class IndexBuilder {
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexBuilder.class);
+  // delay before a failed build is tried again, for instance when another record-store holds the lease of the build
+  private static final long RETRY_DELAY_MS = 60_000;
+
+  private final FDBDatabase db;
+  private final TransactionRunner transactions;
+  private final FDBMetricsStoreTimer timer;
+  private final RecordLayerOptions options;
+  private final Map<Tuple, Build> builds = new ConcurrentHashMap<>();
+
+  IndexBuilder(FDBDatabase db, TransactionRunner transactions, FDBMetricsStoreTimer timer, RecordLayerOptions options) {
+    this.db = db;
+    this.transactions = transactions;
+    this.timer = timer;
+    this.options = options;
+  }
+
+  /**
+   * decides if an index added to the metadata is rebuilt inline or left write-only for a background build
+   */
+  FDBRecordStoreBase.UserVersionChecker userVersionChecker() {
+    return new FDBRecordStoreBase.UserVersionChecker() {
+      @Override
+      public CompletableFuture<Integer> checkUserVersion(int oldUserVersion, int oldMetaDataVersion, RecordMetaDataProvider metaData) {
+        return CompletableFuture.completedFuture(oldUserVersion);
+      }
+
+      @Override
+      public IndexState needRebuildIndex(Index index, long recordCount, boolean indexOnNewRecordTypes) {
+        if (indexOnNewRecordTypes || recordCount <= options.getIndexInlineBuildMaxRecords()) {
+          return IndexState.READABLE;
+        }
+        LOGGER.info("{} records to index, index {} will be built in the background", recordCount, index.getName());
+        return IndexState.WRITE_ONLY;
+      }
+    };
+  }
+
+  /**
+   * start the builds of the indexes, unless they are already running
+   *
+   * @param storeBuilder builder of the store, without context
+   */
+  void build(List<Index> indexes, FDBRecordStore.Builder storeBuilder, String tenantID, String recordSpace) {
+    for (Index index : indexes) {
+      Tuple key = Tuple.from(tenantID, recordSpace, index.getName());
+      long now = System.currentTimeMillis();
+      Build build = new Build();
+      Build previous = builds.compute(key, (k, existing) ->
+        existing != null && (existing.running || now - existing.failedAt < RETRY_DELAY_MS) ? existing : build);
+      if (previous == build) {
+        start(key, build, storeBuilder, index, tenantID, recordSpace);
+      }
+    }
+  }
+
+  /**
+   * @return the build of the index running on this record-store, or null
+   */
+  Build getBuild(String tenantID, String recordSpace, String indexName) {
+    Build build = builds.get(Tuple.from(tenantID, recordSpace, indexName));
+    return build != null && build.running ? build : null;
+  }
+
+  private void start(Tuple key, Build build, FDBRecordStore.Builder storeBuilder, Index index, String tenantID, String recordSpace) {
+    timer.increment(RecordStoreMetrics.Counts.INDEX_BUILD_STARTED);
+    transactions.readAsync(tenantID, context -> storeBuilder.copyBuilder().setContext(context).openAsync()
+      .thenCompose(r -> estimateRecordCount(r, index)))
+      .whenComplete((count, err) -> {
+        // the estimation is only used to report the progress
+        build.estimatedRecords = err != null ? 0 : count;
+        LOGGER.info("building index {} of {}/{} in the background, around {} records", index.getName(), tenantID, recordSpace, build.estimatedRecords);
+        buildIndex(key, build, storeBuilder, index, tenantID, recordSpace);
+      });
+  }
+
+  private void buildIndex(Tuple key, Build build, FDBRecordStore.Builder storeBuilder, Index index, String tenantID, String recordSpace) {
+    OnlineIndexer indexer;
+    try {
+      indexer = OnlineIndexer.newBuilder()
+        .setDatabase(db)
+        .setRecordStoreBuilder(storeBuilder)
+        .setIndex(index)
+        .setTimer(build.timer)
+        .setMdcContext(Collections.singletonMap("tenant", tenantID))
+        .setRecordsPerSecond(options.getIndexBuildRecordsPerSecond())
+        .setMaxAttempts(options.getTransactionMaxAttempts())
+        .build();
+    } catch (RuntimeException e) {
+      failed(build, index, tenantID, recordSpace, e);
+      return;
+    }
+
+    indexer.buildIndexAsync().whenComplete((v, err) -> {
+      indexer.close();
+      if (err != null) {
+        failed(build, index, tenantID, recordSpace, err);
+        return;
+      }
+      LOGGER.info("index {} of {}/{} is built, {} records scanned", index.getName(), tenantID, recordSpace, build.getScannedRecords());
+      timer.increment(RecordStoreMetrics.Counts.INDEX_BUILD_COMPLETED);
+      builds.remove(key, build);
+    });
+  }
+
+  private void failed(Build build, Index index, String tenantID, String recordSpace, Throwable err) {
+    LOGGER.warn("build of index {} of {}/{} stopped after {} records: {}", index.getName(), tenantID, recordSpace,
+      build.getScannedRecords(), err.getMessage());
+    timer.increment(RecordStoreMetrics.Counts.INDEX_BUILD_FAILED);
+    build.failedAt = System.currentTimeMillis();
+    build.running = false;
+  }
+
+  private static CompletableFuture<Long> estimateRecordCount(FDBRecordStore r, Index index) {
+    CompletableFuture<Long> count = CompletableFuture.completedFuture(0L);
+    for (RecordType recordType : r.getRecordMetaData().recordTypesForIndex(index)) {
+      count = count.thenCombine(r.getSnapshotRecordCountForRecordType(recordType.getName()), Long::sum);
+    }
+    return count;
+  }
+
+  /**
+   * a build running on this record-store
+   */
+  static class Build {
+    // the indexer reports the records it scanned through its own timer
+    private final FDBStoreTimer timer = new FDBStoreTimer();
+    private volatile long estimatedRecords = 0;
+    private volatile boolean running = true;
+    private volatile long failedAt = 0;
+
+    long getScannedRecords() {
+      return timer.getCount(FDBStoreTimer.Counts.ONLINE_INDEX_BUILDER_RECORDS_SCANNED);
+    }
+
+    /**
+     * @return the fraction of the records scanned, between 0 and 1
+     */
+    float getProgress() {
+      if (estimatedRecords <= 0) {
+        return 0;
+      }
+      return Math.min(1f, (float) getScannedRecords() / estimatedRecords);
+    }
+  }
+}
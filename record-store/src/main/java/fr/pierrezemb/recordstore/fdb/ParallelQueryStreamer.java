@@ -0,0 +1,317 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.RecordCursorContinuation;
+import com.apple.foundationdb.record.metadata.expressions.KeyExpression;
+import com.apple.foundationdb.record.provider.foundationdb.FDBQueriedRecord;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Streams the records of a query split in partitions to a gRPC observer.
+ * <p>
+ * Each partition is read concurrently, in pages of at most the buffer size fetched in their own
+ * transaction, and a partition only fetches its next page once half of its buffer was sent, so memory
+ * stays bounded when the client is slower than the scans. When the query is sorted, partitions are
+ * expected to be sorted too and records are merged by their sort key, otherwise they are interleaved
+ * as they come.
+ */
+class ParallelQueryStreamer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParallelQueryStreamer.class);
+
+  private final TransactionRunner transactions;
+  private final FDBMetricsStoreTimer timer;
+  private final String tenantID;
+  private final KeyExpression sort;
+  private final boolean sortReverse;
+  private final RecordProjection projection;
+  private final int resultLimit;
+  private final int bufferSize;
+  private final StreamObserver<RecordStoreProtocol.QueryResponse> observer;
+  private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+  private List<Partition> partitions;
+  private int nextPartition = 0;
+  private int returned = 0;
+  private long transactionCount = 0;
+  private boolean finished = false;
+  private volatile boolean cancelled = false;
+
+  /**
+   * @param sort       sort of the query, null to interleave the partitions
+   * @param bufferSize max number of records buffered for each partition
+   */
+  ParallelQueryStreamer(TransactionRunner transactions, FDBMetricsStoreTimer timer, String tenantID, KeyExpression sort, boolean sortReverse,
+                        RecordProjection projection, int resultLimit, int bufferSize, StreamObserver<RecordStoreProtocol.QueryResponse> observer) {
+    this.transactions = transactions;
+    this.timer = timer;
+    this.tenantID = tenantID;
+    this.sort = sort;
+    this.sortReverse = sortReverse;
+    this.projection = projection;
+    this.resultLimit = resultLimit;
+    this.bufferSize = Math.max(1, bufferSize);
+    this.observer = observer;
+  }
+
+  /**
+   * start streaming once the partitions are known, the observer is completed when the returned future is
+   *
+   * @param cursorFactories one cursor factory per partition, in the order of the sort if there is one
+   */
+  CompletableFuture<Void> start(CompletableFuture<List<QueryStreamer.CursorFactory>> cursorFactories) {
+    // handlers must be set before the call returns, so before the partitions are known
+    if (observer instanceof ServerCallStreamObserver) {
+      ((ServerCallStreamObserver<?>) observer).setOnCancelHandler(() -> {
+        cancelled = true;
+        drain();
+      });
+    }
+    if (observer instanceof CallStreamObserver) {
+      ((CallStreamObserver<?>) observer).setOnReadyHandler(this::drain);
+    }
+
+    cursorFactories.whenComplete((factories, err) -> {
+      if (err != null) {
+        fail(err);
+        return;
+      }
+      synchronized (this) {
+        List<Partition> list = new ArrayList<>();
+        for (QueryStreamer.CursorFactory factory : factories) {
+          list.add(new Partition(list.size(), factory));
+        }
+        partitions = list;
+      }
+      LOGGER.debug("running query over {} partitions", factories.size());
+      timer.increment(RecordStoreMetrics.Counts.QUERY_PARALLEL);
+      timer.increment(RecordStoreMetrics.Counts.QUERY_PARALLEL_PARTITION, factories.size());
+      drain();
+    });
+    return done;
+  }
+
+  /**
+   * send the buffered records while the observer is ready, then fetch the partitions running low.
+   * Everything touching the partitions happens under the lock, which also serializes the calls to the observer.
+   */
+  private synchronized void drain() {
+    try {
+      while (!finished && partitions != null) {
+        if (cancelled) {
+          LOGGER.debug("parallel query cancelled after {} records", returned);
+          finished = true;
+          done.cancel(false);
+          return;
+        }
+        if (resultLimit > 0 && returned >= resultLimit) {
+          finish(RecordStoreProtocol.NoNextReason.RETURN_LIMIT_REACHED);
+          return;
+        }
+
+        Partition partition = sort == null ? nextUnordered() : nextOrdered();
+        if (partition == null) {
+          if (partitions.stream().allMatch(p -> p.exhausted && p.buffer.isEmpty())) {
+            finish(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED);
+            return;
+          }
+          break;
+        }
+        if (!isReady()) {
+          break;
+        }
+
+        returned++;
+        observer.onNext(RecordStoreProtocol.QueryResponse.newBuilder()
+          .setRecord(partition.buffer.poll().record)
+          .build());
+      }
+
+      if (!finished && partitions != null) {
+        for (Partition partition : partitions) {
+          if (!partition.fetching && !partition.exhausted && partition.buffer.size() <= bufferSize / 2) {
+            fetch(partition);
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * @return the next partition holding a record, in turns
+   */
+  private Partition nextUnordered() {
+    for (int i = 0; i < partitions.size(); i++) {
+      Partition partition = partitions.get((nextPartition + i) % partitions.size());
+      if (!partition.buffer.isEmpty()) {
+        nextPartition = (partition.index + 1) % partitions.size();
+        return partition;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the partition holding the lowest record, or null if a partition that may hold it has not been fetched yet
+   */
+  private Partition nextOrdered() {
+    Partition lowest = null;
+    for (Partition partition : partitions) {
+      if (partition.buffer.isEmpty()) {
+        if (!partition.exhausted) {
+          return null;
+        }
+        continue;
+      }
+      if (lowest == null || compare(partition.buffer.peek(), lowest.buffer.peek()) < 0) {
+        lowest = partition;
+      }
+    }
+    return lowest;
+  }
+
+  private int compare(Entry a, Entry b) {
+    return sortReverse ? b.sortKey.compareTo(a.sortKey) : a.sortKey.compareTo(b.sortKey);
+  }
+
+  /**
+   * fetch the next page of the partition in a new transaction
+   */
+  private void fetch(Partition partition) {
+    partition.fetching = true;
+    if (partition.fetched) {
+      timer.increment(RecordStoreMetrics.Counts.QUERY_CHAINED_TRANSACTION);
+    }
+    partition.fetched = true;
+    transactionCount++;
+    timer.increment(RecordStoreMetrics.Counts.QUERY_TRANSACTION);
+
+    int limit = bufferSize - partition.buffer.size();
+    byte[] continuation = partition.continuation;
+    transactions.readAsync(tenantID, context -> partition.cursorFactory.open(context, continuation, limit).thenCompose(cursor -> {
+      List<Entry> entries = new ArrayList<>();
+      return cursor.forEachResult(result -> entries.add(entry(result.get())))
+        .thenApply(last -> new Page(entries, last.getContinuation()))
+        .whenComplete((page, err) -> cursor.close());
+    })).whenComplete((page, err) -> onPage(partition, page, err));
+  }
+
+  private synchronized void onPage(Partition partition, Page page, Throwable err) {
+    partition.fetching = false;
+    if (finished) {
+      return;
+    }
+    if (err != null) {
+      fail(err);
+      return;
+    }
+    partition.buffer.addAll(page.entries);
+    partition.exhausted = page.continuation.isEnd();
+    partition.continuation = partition.exhausted ? null : page.continuation.toBytes();
+    drain();
+  }
+
+  private Entry entry(FDBQueriedRecord<Message> record) {
+    Tuple sortKey = sort == null ? null : sort.evaluateSingleton(record).toTuple();
+    return new Entry(projection.apply(record.getRecord()).toByteString(), sortKey);
+  }
+
+  private void finish(RecordStoreProtocol.NoNextReason noNextReason) {
+    finished = true;
+    observer.onNext(RecordStoreProtocol.QueryResponse.newBuilder()
+      .setContinuation(RecordStoreProtocol.QueryContinuation.newBuilder()
+        .setNoNextReason(noNextReason)
+        .setTransactionCount(transactionCount)
+        .build())
+      .build());
+    observer.onCompleted();
+    timer.recordQueryTransactions(transactionCount);
+    done.complete(null);
+  }
+
+  private synchronized void fail(Throwable t) {
+    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    if (finished) {
+      return;
+    }
+    finished = true;
+    LOGGER.error("parallel query failed after {} records in {} transactions: {}", returned, transactionCount, cause.getMessage());
+    if (!cancelled) {
+      observer.onError(cause instanceof StatusRuntimeException ?
+        cause : new StatusRuntimeException(Status.INTERNAL.withDescription(cause.getMessage())));
+    }
+    done.completeExceptionally(cause);
+  }
+
+  private boolean isReady() {
+    return !(observer instanceof CallStreamObserver) || ((CallStreamObserver<?>) observer).isReady();
+  }
+
+  private static class Partition {
+    private final int index;
+    private final QueryStreamer.CursorFactory cursorFactory;
+    private final ArrayDeque<Entry> buffer = new ArrayDeque<>();
+    private byte[] continuation = null;
+    private boolean fetching = false;
+    private boolean fetched = false;
+    private boolean exhausted = false;
+
+    Partition(int index, QueryStreamer.CursorFactory cursorFactory) {
+      this.index = index;
+      this.cursorFactory = cursorFactory;
+    }
+  }
+
+  private static class Entry {
+    private final ByteString record;
+    private final Tuple sortKey;
+
+    Entry(ByteString record, Tuple sortKey) {
+      this.record = record;
+      this.sortKey = sortKey;
+    }
+  }
+
+  private static class Page {
+    private final List<Entry> entries;
+    private final RecordCursorContinuation continuation;
+
+    Page(List<Entry> entries, RecordCursorContinuation continuation) {
+      this.entries = entries;
+      this.continuation = continuation;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.EvaluationContext;
+import com.apple.foundationdb.record.EvaluationContextBuilder;
+import com.apple.foundationdb.record.ExecuteProperties;
+import com.apple.foundationdb.record.RecordCursor;
+import com.apple.foundationdb.record.RecordStoreState;
+import com.apple.foundationdb.record.provider.foundationdb.FDBQueriedRecord;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordStore;
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoreTimer;
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Comparisons;
+import com.apple.foundationdb.record.query.expressions.ComponentWithChildren;
+import com.apple.foundationdb.record.query.expressions.ComponentWithComparison;
+import com.apple.foundationdb.record.query.expressions.ComponentWithSingleChild;
+import com.apple.foundationdb.record.query.expressions.QueryComponent;
+import com.apple.foundationdb.record.query.plan.plans.RecordQueryPlan;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Size-bounded cache of the plans of the queries of each tenant/recordSpace.
+ * <p>
+ * The literals compared to the fields are replaced by parameters before planning, so queries differing
+ * only by their values share the same plan, which is run with the values bound in its {@link EvaluationContext}.
+ * Plans are keyed by the versionstamp of the metadata and the indexes that are not readable, so schema changes
+ * and index builds are never served a stale plan. Metadata that was not stamped yet is planned without caching.
+ */
+class QueryPlanCache {
+  // prefix of the parameters holding the literals of a query
+  static final String LITERAL_PREFIX = "literal_";
+  // comparisons planned the same whatever their value, other ones like text or prefix comparisons are kept in the shape
+  private static final Set<Comparisons.Type> PARAMETERIZED_TYPES = EnumSet.of(
+    Comparisons.Type.EQUALS, Comparisons.Type.NOT_EQUALS,
+    Comparisons.Type.LESS_THAN, Comparisons.Type.LESS_THAN_OR_EQUALS,
+    Comparisons.Type.GREATER_THAN, Comparisons.Type.GREATER_THAN_OR_EQUALS);
+
+  private final Cache<Tuple, RecordQueryPlan> cache;
+  private final RecordStoreMetaDataCache metaDataCache;
+  private final FDBStoreTimer timer;
+
+  QueryPlanCache(long maximumSize, RecordStoreMetaDataCache metaDataCache, FDBStoreTimer timer) {
+    this.metaDataCache = metaDataCache;
+    this.timer = timer;
+    cache = CacheBuilder.newBuilder()
+      .maximumSize(maximumSize)
+      .removalListener((RemovalListener<Tuple, RecordQueryPlan>) notification -> {
+        if (notification.wasEvicted()) {
+          timer.increment(RecordStoreMetrics.Counts.QUERY_PLAN_CACHE_EVICTION);
+        }
+      })
+      .build();
+  }
+
+  /**
+   * @return the plan of the query in this record store, along with the values of its parameters
+   */
+  PreparedQuery plan(FDBRecordStore r, String tenant, String recordSpace, RecordQuery query) {
+    ParameterizedQuery parameterized = parameterize(query);
+    byte[] versionstamp = metaDataCache.getVersionstamp(r.getRecordMetaData());
+    if (versionstamp == null) {
+      timer.increment(RecordStoreMetrics.Counts.QUERY_PLAN_CACHE_MISS);
+      return new PreparedQuery(r.planQuery(parameterized.query), parameterized.bindings);
+    }
+
+    RecordStoreState state = r.getRecordStoreState();
+    Set<String> unreadableIndexes = new TreeSet<>(state.getWriteOnlyIndexNames());
+    unreadableIndexes.addAll(state.getDisabledIndexNames());
+    Tuple cacheKey = Tuple.from(tenant, recordSpace, versionstamp, String.join(",", unreadableIndexes), parameterized.shape);
+
+    RecordQueryPlan cached = cache.getIfPresent(cacheKey);
+    if (cached != null) {
+      timer.increment(RecordStoreMetrics.Counts.QUERY_PLAN_CACHE_HIT);
+      return new PreparedQuery(cached, parameterized.bindings);
+    }
+
+    timer.increment(RecordStoreMetrics.Counts.QUERY_PLAN_CACHE_MISS);
+    RecordQueryPlan plan = r.planQuery(parameterized.query);
+    cache.put(cacheKey, plan);
+    return new PreparedQuery(plan, parameterized.bindings);
+  }
+
+  void invalidate(String tenant, String recordSpace) {
+    cache.asMap().keySet().removeIf(key -> key.getString(0).equals(tenant) && key.getString(1).equals(recordSpace));
+  }
+
+  /**
+   * replace the literals of the filter of the query by parameters
+   */
+  static ParameterizedQuery parameterize(RecordQuery query) {
+    if (query.getFilter() == null) {
+      return new ParameterizedQuery(query, shape(query, null), new ArrayList<>());
+    }
+    List<Object> bindings = new ArrayList<>();
+    QueryComponent filter = parameterize(query.getFilter(), bindings);
+    return new ParameterizedQuery(query.toBuilder().setFilter(filter).build(), shape(query, filter), bindings);
+  }
+
+  private static QueryComponent parameterize(QueryComponent component, List<Object> bindings) {
+    if (component instanceof ComponentWithComparison) {
+      Comparisons.Comparison comparison = ((ComponentWithComparison) component).getComparison();
+      if (!(comparison instanceof Comparisons.SimpleComparison) || !PARAMETERIZED_TYPES.contains(comparison.getType())) {
+        return component;
+      }
+      String parameter = LITERAL_PREFIX + bindings.size();
+      bindings.add(comparison.getComparand());
+      return ((ComponentWithComparison) component).withOtherComparison(new Comparisons.ParameterComparison(comparison.getType(), parameter));
+    }
+    if (component instanceof ComponentWithChildren) {
+      List<QueryComponent> children = ((ComponentWithChildren) component).getChildren().stream()
+        .map(child -> parameterize(child, bindings))
+        .collect(Collectors.toList());
+      return ((ComponentWithChildren) component).withOtherChildren(children);
+    }
+    if (component instanceof ComponentWithSingleChild) {
+      QueryComponent child = parameterize(((ComponentWithSingleChild) component).getChild(), bindings);
+      return ((ComponentWithSingleChild) component).withOtherChild(child);
+    }
+    return component;
+  }
+
+  /**
+   * @return everything the planner looks at, with the parameterized filter
+   */
+  private static String shape(RecordQuery query, QueryComponent filter) {
+    return "types=" + new TreeSet<>(query.getRecordTypes()) +
+      " filter=" + filter +
+      " sort=" + query.getSort() + (query.isSortReverse() ? " reverse" : "") +
+      " results=" + query.getRequiredResults() +
+      " indexes=" + (query.hasAllowedIndexes() ? new TreeSet<>(query.getAllowedIndexes()) : "all") +
+      (query.removesDuplicates() ? "" : " duplicates");
+  }
+
+  /**
+   * a query whose literals were replaced by parameters
+   */
+  static class ParameterizedQuery {
+    private final RecordQuery query;
+    private final String shape;
+    private final List<Object> bindings;
+
+    private ParameterizedQuery(RecordQuery query, String shape, List<Object> bindings) {
+      this.query = query;
+      this.shape = shape;
+      this.bindings = bindings;
+    }
+
+    RecordQuery getQuery() {
+      return query;
+    }
+
+    String getShape() {
+      return shape;
+    }
+
+    List<Object> getBindings() {
+      return bindings;
+    }
+  }
+
+  /**
+   * a plan and the values of its parameters
+   */
+  static class PreparedQuery {
+    private final RecordQueryPlan plan;
+    private final List<Object> bindings;
+
+    private PreparedQuery(RecordQueryPlan plan, List<Object> bindings) {
+      this.plan = plan;
+      this.bindings = bindings;
+    }
+
+    RecordQueryPlan getPlan() {
+      return plan;
+    }
+
+    EvaluationContext getContext() {
+      EvaluationContextBuilder context = EvaluationContext.newBuilder();
+      for (int i = 0; i < bindings.size(); i++) {
+        context.setBinding(LITERAL_PREFIX + i, bindings.get(i));
+      }
+      return context.build();
+    }
+
+    RecordCursor<FDBQueriedRecord<Message>> execute(FDBRecordStore r, byte[] continuation, ExecuteProperties executeProperties) {
+      return plan.execute(r, getContext(), continuation, executeProperties);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.RecordCursor;
+import com.apple.foundationdb.record.RecordCursorContinuation;
+import com.apple.foundationdb.record.RecordCursorResult;
+import com.apple.foundationdb.record.provider.foundationdb.FDBQueriedRecord;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContext;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Streams the records of a query to a gRPC observer.
+ * <p>
+ * Records are only pulled from the cursor while the observer is ready, so a slow client slows down
+ * the scan instead of having records buffered in memory. The transaction is closed while the observer is not ready,
+ * and a new one resumes from the last record sent, so a client paused for longer than the transaction timeout
+ * does not fail the query nor hold a transaction open. When a transaction reaches its time or scan
+ * limits, the query is resumed from the continuation in a new transaction if transactions are chained,
+ * otherwise the continuation is sent to the client.
+ */
+class QueryStreamer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryStreamer.class);
+
+  private final TransactionRunner transactions;
+  private final FDBMetricsStoreTimer timer;
+  private final String tenantID;
+  private final CursorFactory cursorFactory;
+  private final RecordProjection projection;
+  private final int resultLimit;
+  private final boolean chainTransactions;
+  private final StreamObserver<RecordStoreProtocol.QueryResponse> observer;
+  private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+  private FDBRecordContext context;
+  private RecordCursor<FDBQueriedRecord<Message>> cursor;
+  // continuation the transaction was opened with, and the one of the last record sent in it
+  private byte[] transactionContinuation;
+  private RecordCursorContinuation lastContinuation;
+  // set while the transaction is closed because the observer is not ready
+  private boolean paused = false;
+  private int returned = 0;
+  private long transactionCount = 0;
+  private boolean running = false;
+  private boolean finished = false;
+  private volatile boolean cancelled = false;
+
+  QueryStreamer(TransactionRunner transactions, FDBMetricsStoreTimer timer, String tenantID, CursorFactory cursorFactory, RecordProjection projection,
+                int resultLimit, boolean chainTransactions, StreamObserver<RecordStoreProtocol.QueryResponse> observer) {
+    this.transactions = transactions;
+    this.timer = timer;
+    this.tenantID = tenantID;
+    this.cursorFactory = cursorFactory;
+    this.projection = projection;
+    this.resultLimit = resultLimit;
+    this.chainTransactions = chainTransactions;
+    this.observer = observer;
+  }
+
+  /**
+   * start streaming, the observer is completed when the returned future is
+   *
+   * @param continuation continuation returned by a previous query, null to start from the beginning
+   */
+  CompletableFuture<Void> start(byte[] continuation) {
+    if (observer instanceof ServerCallStreamObserver) {
+      ((ServerCallStreamObserver<?>) observer).setOnCancelHandler(() -> {
+        cancelled = true;
+        resume();
+      });
+    }
+    if (observer instanceof CallStreamObserver) {
+      ((CallStreamObserver<?>) observer).setOnReadyHandler(this::resume);
+    }
+
+    synchronized (this) {
+      running = true;
+    }
+    try {
+      openTransaction(continuation);
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+    return done;
+  }
+
+  private void resume() {
+    synchronized (this) {
+      if (running || finished) {
+        return;
+      }
+      running = true;
+    }
+    if (paused && !cancelled) {
+      paused = false;
+      try {
+        openTransaction(resumeContinuation());
+      } catch (RuntimeException e) {
+        fail(e);
+      }
+      return;
+    }
+    pump();
+  }
+
+  private void pump() {
+    try {
+      while (true) {
+        if (cancelled) {
+          LOGGER.debug("query cancelled after {} records", returned);
+          closeTransaction();
+          finished = true;
+          done.cancel(false);
+          return;
+        }
+
+        if (!isReady()) {
+          pause();
+          synchronized (this) {
+            running = false;
+          }
+          // the observer may have become ready before running was reset
+          if (isReady()) {
+            resume();
+          }
+          return;
+        }
+
+        CompletableFuture<RecordCursorResult<FDBQueriedRecord<Message>>> next = cursor.onNext();
+        if (!next.isDone()) {
+          next.whenComplete((result, err) -> {
+            if (err != null) {
+              fail(err);
+            } else {
+              step(result);
+            }
+          });
+          return;
+        }
+        if (!handle(next.join())) {
+          return;
+        }
+      }
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void step(RecordCursorResult<FDBQueriedRecord<Message>> result) {
+    try {
+      if (handle(result)) {
+        pump();
+      }
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * @return true if the next record can be pulled right away
+   */
+  private boolean handle(RecordCursorResult<FDBQueriedRecord<Message>> result) {
+    if (result.hasNext()) {
+      returned++;
+      lastContinuation = result.getContinuation();
+      observer.onNext(RecordStoreProtocol.QueryResponse.newBuilder()
+        .setRecord(projection.apply(result.get().getRecord()).toByteString())
+        .build());
+      return true;
+    }
+
+    closeTransaction();
+    RecordCursorContinuation continuation = result.getContinuation();
+    if (chainTransactions && result.getNoNextReason().isOutOfBand() && !continuation.isEnd()
+      && (resultLimit == 0 || returned < resultLimit)) {
+      LOGGER.debug("query reached {} after {} records, chaining a new transaction", result.getNoNextReason(), returned);
+      timer.increment(RecordStoreMetrics.Counts.QUERY_CHAINED_TRANSACTION);
+      openTransaction(continuation.toBytes());
+      return false;
+    }
+
+    finish(result);
+    return false;
+  }
+
+  /**
+   * open a new transaction and resume streaming once its cursor is ready
+   */
+  private void openTransaction(byte[] continuation) {
+    transactionContinuation = continuation;
+    lastContinuation = null;
+    context = transactions.openReadContext(tenantID);
+    transactionCount++;
+    timer.increment(RecordStoreMetrics.Counts.QUERY_TRANSACTION);
+    cursorFactory.open(context, continuation, resultLimit == 0 ? 0 : resultLimit - returned)
+      .whenComplete((newCursor, err) -> {
+        if (err != null) {
+          fail(err);
+          return;
+        }
+        cursor = newCursor;
+        pump();
+      });
+  }
+
+  /**
+   * close the transaction until the observer is ready again, unless the cursor is already at its end
+   */
+  private void pause() {
+    if (cursor == null || (lastContinuation != null && lastContinuation.isEnd())) {
+      return;
+    }
+    LOGGER.debug("observer not ready after {} records, closing the transaction", returned);
+    paused = true;
+    closeTransaction();
+  }
+
+  /**
+   * @return the continuation after the last record sent
+   */
+  private byte[] resumeContinuation() {
+    return lastContinuation != null ? lastContinuation.toBytes() : transactionContinuation;
+  }
+
+  private void closeTransaction() {
+    if (cursor != null) {
+      cursor.close();
+      cursor = null;
+    }
+    if (context != null) {
+      transactions.close(context);
+      context = null;
+    }
+  }
+
+  private void finish(RecordCursorResult<FDBQueriedRecord<Message>> result) {
+    RecordCursorContinuation continuation = result.getContinuation();
+    observer.onNext(RecordStoreProtocol.QueryResponse.newBuilder()
+      .setContinuation(RecordStoreProtocol.QueryContinuation.newBuilder()
+        .setContinuation(continuation.isEnd() ? ByteString.EMPTY : ByteString.copyFrom(continuation.toBytes()))
+        .setNoNextReason(RecordStoreProtocol.NoNextReason.valueOf(result.getNoNextReason().name()))
+        .setTransactionCount(transactionCount)
+        .build())
+      .build());
+    observer.onCompleted();
+    timer.recordQueryTransactions(transactionCount);
+    finished = true;
+    done.complete(null);
+  }
+
+  private void fail(Throwable t) {
+    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    closeTransaction();
+    if (finished) {
+      return;
+    }
+    finished = true;
+    LOGGER.error("query failed after {} records in {} transactions: {}", returned, transactionCount, cause.getMessage());
+    if (!cancelled) {
+      observer.onError(cause instanceof StatusRuntimeException ?
+        cause : new StatusRuntimeException(Status.INTERNAL.withDescription(cause.getMessage())));
+    }
+    done.completeExceptionally(cause);
+  }
+
+  private boolean isReady() {
+    return !(observer instanceof CallStreamObserver) || ((CallStreamObserver<?>) observer).isReady();
+  }
+
+  interface CursorFactory {
+    CompletableFuture<RecordCursor<FDBQueriedRecord<Message>>> open(FDBRecordContext context, byte[] continuation, int resultLimit);
+  }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.google.protobuf.ByteString;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes the records matching a query by batches, each of them in its own transaction.
+ * <p>
+ * Each batch resumes the query from the continuation of the previous one, so a delete never hits the time
+ * and size limits of a transaction, and a cancelled or failed delete can be resumed from its last continuation.
+ * Counts only include the committed batches. Deletes can run in the background, as jobs kept in memory
+ * until a while after they finished.
+ */
+class RecordDeleter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecordDeleter.class);
+  // how long finished jobs can still be looked at
+  private static final long JOB_RETENTION_MS = 3_600_000;
+
+  private final FDBMetricsStoreTimer timer;
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+  RecordDeleter(FDBMetricsStoreTimer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * delete the records batch after batch
+   *
+   * @param continuation continuation of a previous delete, null to start from the beginning
+   * @return the job, completed once every batch is committed
+   */
+  Job delete(String tenantID, String recordSpace, BatchDeleter deleter, byte[] continuation) {
+    Job job = new Job(tenantID, recordSpace, continuation);
+    next(job, deleter);
+    return job;
+  }
+
+  /**
+   * start deleting the records in the background
+   */
+  Job start(String tenantID, String recordSpace, BatchDeleter deleter, byte[] continuation) {
+    long now = System.currentTimeMillis();
+    jobs.values().removeIf(job -> job.finishedAt > 0 && now - job.finishedAt > JOB_RETENTION_MS);
+
+    Job job = new Job(tenantID, recordSpace, continuation);
+    jobs.put(job.id, job);
+    LOGGER.info("deleting records of {}/{} in the background, job {}", tenantID, recordSpace, job.id);
+    next(job, deleter);
+    return job;
+  }
+
+  List<Job> getJobs(String tenantID) {
+    return jobs.values().stream().filter(job -> job.tenantID.equals(tenantID)).collect(Collectors.toList());
+  }
+
+  Job getJob(String tenantID, String jobID) {
+    Job job = jobs.get(jobID);
+    // jobs of other tenants are not disclosed
+    if (job == null || !job.tenantID.equals(tenantID)) {
+      throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("delete job " + jobID + " not found"));
+    }
+    return job;
+  }
+
+  private void next(Job job, BatchDeleter deleter) {
+    if (job.cancelled) {
+      LOGGER.info("delete {} of {}/{} cancelled after {} records", job.id, job.tenantID, job.recordSpace, job.deleted);
+      job.finish(RecordStoreProtocol.DeleteJobState.DELETE_JOB_CANCELLED, null);
+      return;
+    }
+
+    deleter.deleteBatch(job.continuation).whenComplete((batch, err) -> {
+      if (err != null) {
+        Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+        LOGGER.warn("delete {} of {}/{} stopped after {} records: {}", job.id, job.tenantID, job.recordSpace, job.deleted, cause.getMessage());
+        job.finish(RecordStoreProtocol.DeleteJobState.DELETE_JOB_FAILED, cause);
+        return;
+      }
+
+      timer.increment(RecordStoreMetrics.Counts.DELETE_TRANSACTION);
+      timer.increment(RecordStoreMetrics.Counts.DELETE_RECORD, (int) batch.deleted);
+      job.deleted += batch.deleted;
+      job.transactions++;
+      job.continuation = batch.continuation;
+      if (batch.continuation == null) {
+        job.finish(RecordStoreProtocol.DeleteJobState.DELETE_JOB_COMPLETED, null);
+        return;
+      }
+      next(job, deleter);
+    });
+  }
+
+  /**
+   * deletes a batch of records in a single transaction
+   */
+  interface BatchDeleter {
+    /**
+     * @param continuation where the previous batch stopped, null for the first one
+     */
+    CompletableFuture<Batch> deleteBatch(byte[] continuation);
+  }
+
+  static class Batch {
+    private final long deleted;
+    private final byte[] continuation;
+
+    /**
+     * @param continuation where the batch stopped, null if there is no more records to delete
+     */
+    Batch(long deleted, byte[] continuation) {
+      this.deleted = deleted;
+      this.continuation = continuation;
+    }
+  }
+
+  /**
+   * a delete, running or finished
+   */
+  static class Job {
+    private final String id = UUID.randomUUID().toString();
+    private final String tenantID;
+    private final String recordSpace;
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+    private volatile byte[] continuation;
+    private volatile long deleted = 0;
+    private volatile long transactions = 0;
+    private volatile boolean cancelled = false;
+    private volatile RecordStoreProtocol.DeleteJobState state = RecordStoreProtocol.DeleteJobState.DELETE_JOB_RUNNING;
+    private volatile String error = null;
+    private volatile long finishedAt = 0;
+
+    private Job(String tenantID, String recordSpace, byte[] continuation) {
+      this.tenantID = tenantID;
+      this.recordSpace = recordSpace;
+      this.continuation = continuation;
+    }
+
+    /**
+     * stop the delete once its current batch is committed
+     */
+    void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * @return the number of deleted records, once every batch is committed
+     */
+    CompletableFuture<Long> getDone() {
+      return done;
+    }
+
+    private void finish(RecordStoreProtocol.DeleteJobState state, Throwable err) {
+      this.error = err == null ? null : String.valueOf(err.getMessage());
+      this.state = state;
+      finishedAt = System.currentTimeMillis();
+      if (state == RecordStoreProtocol.DeleteJobState.DELETE_JOB_COMPLETED) {
+        done.complete(deleted);
+      } else if (err != null) {
+        done.completeExceptionally(err);
+      } else {
+        done.completeExceptionally(new StatusRuntimeException(Status.CANCELLED.withDescription("delete cancelled after " + deleted + " records")));
+      }
+    }
+
+    RecordStoreProtocol.DeleteJob toProto() {
+      RecordStoreProtocol.DeleteJob.Builder job = RecordStoreProtocol.DeleteJob.newBuilder()
+        .setJobId(id)
+        .setRecordSpace(recordSpace)
+        .setState(state)
+        .setDeletedCount(deleted)
+        .setTransactionCount(transactions);
+      byte[] resume = continuation;
+      if (resume != null && state != RecordStoreProtocol.DeleteJobState.DELETE_JOB_COMPLETED) {
+        job.setContinuation(ByteString.copyFrom(resume));
+      }
+      if (error != null) {
+        job.setError(error);
+      }
+      return job.build();
+    }
+  }
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.EndpointType;
+import com.apple.foundationdb.record.ExecuteProperties;
+import com.apple.foundationdb.record.IndexScanType;
+import com.apple.foundationdb.record.IsolationLevel;
+import com.apple.foundationdb.record.ScanProperties;
+import com.apple.foundationdb.record.TupleRange;
+import com.apple.foundationdb.record.metadata.Index;
+import com.apple.foundationdb.record.metadata.IndexTypes;
+import com.apple.foundationdb.record.metadata.Key;
+import com.apple.foundationdb.record.metadata.RecordType;
+import com.apple.foundationdb.record.metadata.expressions.KeyExpression;
+import com.apple.foundationdb.record.metadata.expressions.VersionKeyExpression;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContext;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordStore;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordVersion;
+import com.apple.foundationdb.tuple.Tuple;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static fr.pierrezemb.recordstore.fdb.RecordStoreKeySpace.APPLICATION_NAME;
+import static fr.pierrezemb.recordstore.fdb.RecordStoreKeySpace.RS_KEY_SPACE;
+
+/**
+ * Deletes in the background the records whose time to live is over.
+ * <p>
+ * Expiring recordTypes have an index on their timestamp field, or a VERSION index, so the expired records are
+ * the first entries of that index. Every sweep interval, the expirer looks for the recordTypes with a time to live,
+ * and deletes their expired records by small batches, each in its own transaction, throttled to the configured
+ * number of records per second so that expirations do not compete with the traffic. Record-stores sharing a cluster
+ * all sweep it, their deletes of the same records conflict and are retried.
+ */
+class RecordExpirer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecordExpirer.class);
+  // tenant of the transactions that are not run for a tenant
+  private static final String SWEEPER_TENANT = "expiration-sweeper";
+  // the versions of a cluster advance by about a million per second
+  private static final long VERSIONS_PER_SECOND = 1_000_000;
+
+  private final TransactionRunner transactions;
+  private final RecordStoreMetaDataCache metaDataCache;
+  private final FDBMetricsStoreTimer timer;
+  private final RecordLayerOptions options;
+  private final StoreOpener opener;
+  private CompletableFuture<Long> sweeping;
+  private ScheduledExecutorService scheduler;
+  private ScheduledFuture<?> nextSweep;
+
+  RecordExpirer(TransactionRunner transactions, RecordStoreMetaDataCache metaDataCache, FDBMetricsStoreTimer timer,
+                RecordLayerOptions options, StoreOpener opener) {
+    this.transactions = transactions;
+    this.metaDataCache = metaDataCache;
+    this.timer = timer;
+    this.options = options;
+    this.opener = opener;
+  }
+
+  /**
+   * @return the index listing the records of the recordType by expiration, or null if it has none
+   */
+  static Index getExpirationIndex(RecordType recordType, RecordStoreProtocol.TimeToLive timeToLive) {
+    boolean byVersion = timeToLive.getTimestampField().isEmpty();
+    String indexType = byVersion ? IndexTypes.VERSION : IndexTypes.VALUE;
+    KeyExpression expression = byVersion ? VersionKeyExpression.VERSION : Key.Expressions.field(timeToLive.getTimestampField());
+    return recordType.getIndexes().stream()
+      .filter(index -> indexType.equals(index.getType()) && expression.equals(index.getRootExpression()))
+      .findFirst()
+      .orElse(null);
+  }
+
+  /**
+   * sweep the expired records every sweep interval, until {@link #stop()}
+   */
+  synchronized void start() {
+    if (options.getExpirationSweepIntervalMs() <= 0) {
+      LOGGER.info("expiration sweeper disabled");
+      return;
+    }
+    if (scheduler != null) {
+      return;
+    }
+    LOGGER.info("sweeping expired records every {}ms", options.getExpirationSweepIntervalMs());
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, SWEEPER_TENANT);
+      thread.setDaemon(true);
+      return thread;
+    });
+    schedule();
+  }
+
+  /**
+   * cancel the next sweep, a running one is not interrupted
+   */
+  synchronized void stop() {
+    if (scheduler == null) {
+      return;
+    }
+    nextSweep.cancel(false);
+    scheduler.shutdown();
+    scheduler = null;
+    LOGGER.info("expiration sweeper stopped");
+  }
+
+  private synchronized void schedule() {
+    if (scheduler == null) {
+      return;
+    }
+    nextSweep = scheduler.schedule(() -> sweep()
+      .whenComplete((expired, err) -> {
+        if (err != null) {
+          LOGGER.warn("could not sweep expired records: {}", err.getMessage());
+        }
+        schedule();
+      }), options.getExpirationSweepIntervalMs(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * delete every expired record, unless a sweep is already running
+   *
+   * @return the number of deleted records
+   */
+  synchronized CompletableFuture<Long> sweep() {
+    if (sweeping != null && !sweeping.isDone()) {
+      return sweeping;
+    }
+    long start = System.currentTimeMillis();
+    sweeping = listTargets()
+      .thenCompose(targets -> estimateBacklog(targets).thenCompose(v -> expire(targets, 0, 0L)))
+      .thenApply(expired -> {
+        long elapsedMs = Math.max(1, System.currentTimeMillis() - start);
+        timer.setExpiredPerSecond(expired * 1000 / elapsedMs);
+        if (expired > 0) {
+          LOGGER.info("expired {} records in {}ms", expired, elapsedMs);
+        }
+        return expired;
+      });
+    return sweeping;
+  }
+
+  /**
+   * @return the recordTypes with a time to live, of every recordSpace
+   */
+  private CompletableFuture<List<Target>> listTargets() {
+    return transactions.readAsync(SWEEPER_TENANT, context -> RS_KEY_SPACE.path("application", APPLICATION_NAME)
+      .listSubdirectoryAsync(context, "tenant", null, ScanProperties.FORWARD_SCAN)
+      .map(e -> e.getResolvedValue().toString())
+      .asList())
+      .thenCompose(tenants -> {
+        List<CompletableFuture<List<Target>>> targets = tenants.stream().map(this::listTargets).collect(Collectors.toList());
+        return CompletableFuture.allOf(targets.toArray(new CompletableFuture[0]))
+          .thenApply(v -> targets.stream().flatMap(t -> t.join().stream()).collect(Collectors.toList()));
+      });
+  }
+
+  private CompletableFuture<List<Target>> listTargets(String tenantID) {
+    return transactions.readAsync(tenantID, context -> RecordStoreKeySpace.getApplicationKeySpacePath(tenantID)
+      .listSubdirectoryAsync(context, "recordSpace", null, ScanProperties.FORWARD_SCAN)
+      .mapPipelined(e -> {
+        String recordSpace = e.getResolvedValue().toString();
+        return metaDataCache.getTimeToLiveAsync(context, tenantID, recordSpace).thenApply(timeToLive -> {
+          List<Target> targets = new ArrayList<>();
+          for (Map.Entry<String, RecordStoreProtocol.TimeToLive> recordType : timeToLive.getRecordTypesMap().entrySet()) {
+            if (recordType.getValue().getTtlSeconds() > 0) {
+              targets.add(new Target(tenantID, recordSpace, recordType.getKey(), recordType.getValue()));
+            }
+          }
+          return targets;
+        });
+      }, 10)
+      .asList()
+      .thenApply(targets -> targets.stream().flatMap(List::stream).collect(Collectors.toList())));
+  }
+
+  /**
+   * count the expired records, up to the backlog scan limit for each recordType
+   */
+  private CompletableFuture<Void> estimateBacklog(List<Target> targets) {
+    ScanProperties scanProperties = new ScanProperties(ExecuteProperties.newBuilder()
+      .setIsolationLevel(IsolationLevel.SNAPSHOT)
+      .setReturnedRowLimit(options.getExpirationBacklogScanLimit())
+      .build());
+    long[] backlog = {0};
+    CompletableFuture<Void> counted = CompletableFuture.completedFuture(null);
+    for (Target target : targets) {
+      counted = counted.thenCompose(v -> transactions.readAsync(target.tenantID, context -> opener.open(context, target.tenantID, target.recordSpace)
+        .thenCompose(r -> expiredRange(context, target).thenCompose(range -> range == null ? CompletableFuture.completedFuture(0) :
+          r.scanIndex(getReadableExpirationIndex(r, target), IndexScanType.BY_VALUE, range, null, scanProperties).getCount())))
+        .handle((count, err) -> {
+          if (err == null) {
+            backlog[0] += count;
+          }
+          return null;
+        }));
+    }
+    return counted.thenRun(() -> timer.setExpirationBacklog(backlog[0]));
+  }
+
+  private CompletableFuture<Long> expire(List<Target> targets, int position, long expired) {
+    if (position == targets.size()) {
+      return CompletableFuture.completedFuture(expired);
+    }
+    Target target = targets.get(position);
+    return expire(target, 0L).handle((count, err) -> {
+      if (err != null) {
+        // the index may still be building, or the recordType gone from the schema
+        LOGGER.warn("could not expire records of {} in {}/{}: {}", target.recordType, target.tenantID, target.recordSpace, err.getMessage());
+        return 0L;
+      }
+      return count;
+    }).thenCompose(count -> expire(targets, position + 1, expired + count));
+  }
+
+  /**
+   * delete the expired records of a recordType batch after batch, until a batch is not full
+   */
+  private CompletableFuture<Long> expire(Target target, long expired) {
+    long start = System.currentTimeMillis();
+    return expireBatch(target).thenCompose(deleted -> {
+      timer.increment(RecordStoreMetrics.Counts.EXPIRATION_TRANSACTION);
+      timer.increment(RecordStoreMetrics.Counts.EXPIRED_RECORD, deleted);
+      if (deleted < options.getExpirationBatchSize()) {
+        return CompletableFuture.completedFuture(expired + deleted);
+      }
+      // waiting long enough for the batch to fit in the allowed rate
+      long delayMs = options.getExpirationRecordsPerSecond() <= 0 ? 0 :
+        Math.max(0, deleted * 1000L / options.getExpirationRecordsPerSecond() - (System.currentTimeMillis() - start));
+      return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS))
+        .thenCompose(v -> expire(target, expired + deleted));
+    });
+  }
+
+  private CompletableFuture<Integer> expireBatch(Target target) {
+    ScanProperties scanProperties = new ScanProperties(ExecuteProperties.newBuilder()
+      .setIsolationLevel(IsolationLevel.SERIALIZABLE)
+      .setReturnedRowLimit(options.getExpirationBatchSize())
+      .build());
+    return transactions.runAsync(target.tenantID, context -> opener.open(context, target.tenantID, target.recordSpace)
+      .thenCompose(r -> expiredRange(context, target).thenCompose(range -> {
+        if (range == null) {
+          return CompletableFuture.completedFuture(0);
+        }
+        // counted per attempt, only the one of the committed attempt is returned
+        int[] deleted = {0};
+        return r.scanIndex(getReadableExpirationIndex(r, target), IndexScanType.BY_VALUE, range, null, scanProperties)
+          .mapPipelined(e -> r.deleteRecordAsync(e.getPrimaryKey()), RecordLayer.DELETE_PIPELINE_SIZE)
+          .forEach(wasDeleted -> {
+            if (wasDeleted) {
+              deleted[0]++;
+            }
+          })
+          .thenApply(v -> deleted[0]);
+      })));
+  }
+
+  /**
+   * @return the range of the expiration index holding the expired records, null if none can have expired yet
+   */
+  private static CompletableFuture<TupleRange> expiredRange(FDBRecordContext context, Target target) {
+    long ttlSeconds = target.timeToLive.getTtlSeconds();
+    if (!target.timeToLive.getTimestampField().isEmpty()) {
+      long expiredBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ttlSeconds);
+      // starting after 0 skips the records without timestamp, or with 0 or a negative one, which never expire
+      return CompletableFuture.completedFuture(new TupleRange(Tuple.from(0L), Tuple.from(expiredBefore),
+        EndpointType.RANGE_EXCLUSIVE, EndpointType.RANGE_EXCLUSIVE));
+    }
+    return context.getReadVersionAsync().thenApply(readVersion -> {
+      long expiredBefore = readVersion - ttlSeconds * VERSIONS_PER_SECOND;
+      if (expiredBefore <= 0) {
+        return null;
+      }
+      return new TupleRange(null, Tuple.from(FDBRecordVersion.firstInDBVersion(expiredBefore).toVersionstamp()),
+        EndpointType.TREE_START, EndpointType.RANGE_EXCLUSIVE);
+    });
+  }
+
+  private static Index getReadableExpirationIndex(FDBRecordStore r, Target target) {
+    RecordType recordType = r.getRecordMetaData().getRecordTypes().get(target.recordType);
+    if (recordType == null) {
+      throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("recordType " + target.recordType + " does not exist"));
+    }
+    Index index = getExpirationIndex(recordType, target.timeToLive);
+    if (index == null) {
+      throw new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription("recordType " + target.recordType + " has no expiration index"));
+    }
+    if (!r.isIndexReadable(index)) {
+      throw new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription("index " + index.getName() + " is still being built"));
+    }
+    return index;
+  }
+
+  /**
+   * opens the record store of a recordSpace in a transaction
+   */
+  interface StoreOpener {
+    CompletableFuture<FDBRecordStore> open(FDBRecordContext context, String tenantID, String recordSpace);
+  }
+
+  /**
+   * an expiring recordType
+   */
+  private static class Target {
+    private final String tenantID;
+    private final String recordSpace;
+    private final String recordType;
+    private final RecordStoreProtocol.TimeToLive timeToLive;
+
+    private Target(String tenantID, String recordSpace, String recordType, RecordStoreProtocol.TimeToLive timeToLive) {
+      this.tenantID = tenantID;
+      this.recordSpace = recordSpace;
+      this.recordType = recordType;
+      this.timeToLive = timeToLive;
+    }
+  }
+}
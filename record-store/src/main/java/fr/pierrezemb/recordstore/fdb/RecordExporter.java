@@ -0,0 +1,332 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.CursorStreamingMode;
+import com.apple.foundationdb.record.EndpointType;
+import com.apple.foundationdb.record.ExecuteProperties;
+import com.apple.foundationdb.record.IsolationLevel;
+import com.apple.foundationdb.record.RecordCursorContinuation;
+import com.apple.foundationdb.record.ScanProperties;
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoredRecord;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports the records of a recordSpace in files of length-delimited Protobuf, one per recordType and primary key range.
+ * <p>
+ * The data subspace is split on the primary key boundaries of the store, which follow the shards of the cluster,
+ * and up to {@code parallelism} ranges are scanned concurrently, each of them by as many transactions as needed to
+ * stay under the scan limits of queries. As the transactions read different versions of the database, the export
+ * is not a snapshot: the manifest written next to the files gives the read versions used for each range.
+ * <p>
+ * The files are written from a pool of {@code parallelism} threads owned by the export, never from the threads
+ * completing the FDB futures.
+ */
+public class RecordExporter {
+  public static final String MANIFEST_FILE = "manifest.textproto";
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecordExporter.class);
+
+  private final RecordLayer recordLayer;
+  private final FDBMetricsStoreTimer timer;
+  private final String tenantID;
+  private final String recordSpace;
+  private final int parallelism;
+
+  public RecordExporter(RecordLayer recordLayer, String tenantID, String recordSpace, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1, got " + parallelism);
+    }
+    this.recordLayer = recordLayer;
+    this.timer = recordLayer.getTimer();
+    this.tenantID = tenantID;
+    this.recordSpace = recordSpace;
+    this.parallelism = parallelism;
+  }
+
+  public RecordStoreProtocol.ExportManifest export(Path directory) {
+    try {
+      return exportAsync(directory).join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+    }
+  }
+
+  /**
+   * export the records in the directory, which is created if needed
+   */
+  public CompletableFuture<RecordStoreProtocol.ExportManifest> exportAsync(Path directory) {
+    ExecutorService ioExecutor = Executors.newFixedThreadPool(parallelism);
+
+    return CompletableFuture.runAsync(() -> {
+      try {
+        Files.createDirectories(directory);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, ioExecutor)
+      .thenCompose(v -> recordLayer.readRecordStoreAsync(tenantID, recordSpace, (context, r) -> r.getPrimaryKeyBoundaries(null, null).asList()
+        .thenApply(boundaries -> {
+          List<Range> ranges = new ArrayList<>();
+          Tuple low = null;
+          for (Tuple boundary : boundaries) {
+            ranges.add(new Range(ranges.size(), low, boundary));
+            low = boundary;
+          }
+          ranges.add(new Range(ranges.size(), low, null));
+          return new Export(directory, ioExecutor, r.getRecordMetaData().getVersion(), ranges);
+        })))
+      .thenCompose(export -> {
+        LOGGER.info("exporting {}/{} in {} ranges to {}", tenantID, recordSpace, export.ranges.size(), directory);
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, export.ranges.size()); i++) {
+          workers.add(exportNextRange(export));
+        }
+        return CompletableFuture.allOf(workers.toArray(new CompletableFuture[0]))
+          .thenApplyAsync(v -> writeManifest(export), ioExecutor);
+      })
+      .whenComplete((manifest, err) -> ioExecutor.shutdown());
+  }
+
+  private CompletableFuture<Void> exportNextRange(Export export) {
+    int index = export.nextRange.getAndIncrement();
+    if (index >= export.ranges.size()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    Range range = export.ranges.get(index);
+    return scanRange(export, range, null)
+      .handleAsync((v, err) -> {
+        range.close();
+        if (err != null) {
+          throw new CompletionException(err);
+        }
+        return v;
+      }, export.ioExecutor)
+      .thenCompose(v -> exportNextRange(export));
+  }
+
+  /**
+   * scan the range from the continuation in a single transaction, then chain a new one until the end of the range
+   */
+  private CompletableFuture<Void> scanRange(Export export, Range range, byte[] continuation) {
+    return recordLayer.readRecordStoreAsync(tenantID, recordSpace, (context, r) -> {
+      ScanProperties scanProperties = new ScanProperties(ExecuteProperties.newBuilder()
+        .setIsolationLevel(IsolationLevel.SNAPSHOT)
+        .setScannedBytesLimit(recordLayer.getOptions().getQueryScannedBytesLimit())
+        .setTimeLimit(recordLayer.getOptions().getQueryTransactionTimeLimitMs())
+        .setDefaultCursorStreamingMode(CursorStreamingMode.WANT_ALL)
+        .build());
+      List<FDBStoredRecord<Message>> records = new ArrayList<>();
+      return context.getReadVersionAsync().thenCompose(readVersion -> r.scanRecords(range.low, range.high,
+        range.low == null ? EndpointType.TREE_START : EndpointType.RANGE_INCLUSIVE,
+        range.high == null ? EndpointType.TREE_END : EndpointType.RANGE_EXCLUSIVE,
+        continuation, scanProperties)
+        .forEachResult(result -> records.add(result.get()))
+        .thenApply(last -> new Chunk(records, last.getContinuation(), readVersion)));
+    }).thenComposeAsync(chunk -> {
+      timer.increment(RecordStoreMetrics.Counts.EXPORT_TRANSACTION);
+      timer.increment(RecordStoreMetrics.Counts.EXPORT_RECORD, chunk.records.size());
+      range.write(export.directory, chunk);
+      if (chunk.continuation.isEnd()) {
+        return CompletableFuture.completedFuture(null);
+      }
+      return scanRange(export, range, chunk.continuation.toBytes());
+    }, export.ioExecutor);
+  }
+
+  private RecordStoreProtocol.ExportManifest writeManifest(Export export) {
+    RecordStoreProtocol.ExportManifest.Builder manifest = RecordStoreProtocol.ExportManifest.newBuilder()
+      .setTenant(tenantID)
+      .setRecordSpace(recordSpace)
+      .setMetadataVersion(export.metaDataVersion);
+    for (Range range : export.ranges) {
+      for (RecordStoreProtocol.ExportedFile file : range.files()) {
+        manifest.addFiles(file);
+        manifest.setRecordCount(manifest.getRecordCount() + file.getRecordCount());
+      }
+    }
+
+    try {
+      Files.write(export.directory.resolve(MANIFEST_FILE), TextFormat.printToString(manifest).getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    LOGGER.info("exported {} records of {}/{} in {} files", manifest.getRecordCount(), tenantID, recordSpace, manifest.getFilesCount());
+    return manifest.build();
+  }
+
+  private static class Export {
+    private final Path directory;
+    private final ExecutorService ioExecutor;
+    private final int metaDataVersion;
+    private final List<Range> ranges;
+    private final AtomicInteger nextRange = new AtomicInteger();
+
+    Export(Path directory, ExecutorService ioExecutor, int metaDataVersion, List<Range> ranges) {
+      this.directory = directory;
+      this.ioExecutor = ioExecutor;
+      this.metaDataVersion = metaDataVersion;
+      this.ranges = ranges;
+    }
+  }
+
+  private static class Chunk {
+    private final List<FDBStoredRecord<Message>> records;
+    private final RecordCursorContinuation continuation;
+    private final long readVersion;
+
+    Chunk(List<FDBStoredRecord<Message>> records, RecordCursorContinuation continuation, long readVersion) {
+      this.records = records;
+      this.continuation = continuation;
+      this.readVersion = readVersion;
+    }
+  }
+
+  /**
+   * a primary key range, and the files in which its records are written. Only used by one scan at a time.
+   */
+  private static class Range {
+    private final int index;
+    private final Tuple low;
+    private final Tuple high;
+    private final List<Long> readVersions = new ArrayList<>();
+    private final Map<String, Output> outputs = new LinkedHashMap<>();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+
+    Range(int index, Tuple low, Tuple high) {
+      this.index = index;
+      this.low = low;
+      this.high = high;
+    }
+
+    /**
+     * write the records of the chunk with a single write per recordType, from a direct buffer reused by all the chunks
+     * of the range, in which they are serialized without intermediate copy
+     */
+    void write(Path directory, Chunk chunk) {
+      readVersions.add(chunk.readVersion);
+
+      Map<String, Integer> sizes = new LinkedHashMap<>();
+      for (FDBStoredRecord<Message> record : chunk.records) {
+        int size = record.getRecord().getSerializedSize();
+        sizes.merge(record.getRecordType().getName(), CodedOutputStream.computeUInt32SizeNoTag(size) + size, Integer::sum);
+      }
+
+      try {
+        for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+          if (buffer.capacity() < entry.getValue()) {
+            buffer = ByteBuffer.allocateDirect(Math.max(entry.getValue(), 2 * buffer.capacity()));
+          }
+          buffer.clear();
+          CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+          long count = 0;
+          for (FDBStoredRecord<Message> record : chunk.records) {
+            if (record.getRecordType().getName().equals(entry.getKey())) {
+              output.writeUInt32NoTag(record.getRecord().getSerializedSize());
+              record.getRecord().writeTo(output);
+              count++;
+            }
+          }
+          output.flush();
+          buffer.flip();
+
+          Output file = outputs.get(entry.getKey());
+          if (file == null) {
+            file = new Output(directory, String.format("%05d-%s.bin", index, entry.getKey()));
+            outputs.put(entry.getKey(), file);
+          }
+          file.write(buffer, count);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void close() {
+      try {
+        for (Output output : outputs.values()) {
+          output.channel.close();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    List<RecordStoreProtocol.ExportedFile> files() {
+      List<RecordStoreProtocol.ExportedFile> files = new ArrayList<>();
+      for (Map.Entry<String, Output> entry : outputs.entrySet()) {
+        files.add(RecordStoreProtocol.ExportedFile.newBuilder()
+          .setPath(entry.getValue().name)
+          .setRecordTypeName(entry.getKey())
+          .setRecordCount(entry.getValue().count)
+          .setSizeBytes(entry.getValue().size)
+          .setStartKey(low == null ? ByteString.EMPTY : ByteString.copyFrom(low.pack()))
+          .setEndKey(high == null ? ByteString.EMPTY : ByteString.copyFrom(high.pack()))
+          .addAllReadVersions(readVersions)
+          .build());
+      }
+      return files;
+    }
+  }
+
+  private static class Output {
+    private final String name;
+    private final FileChannel channel;
+    private long count = 0;
+    private long size = 0;
+
+    Output(Path directory, String name) throws IOException {
+      this.name = name;
+      this.channel = FileChannel.open(directory.resolve(name),
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    void write(ByteBuffer buffer, long records) throws IOException {
+      size += buffer.remaining();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      count += records;
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.metadata.RecordType;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.JsonMessageParser;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Imports a file of records in a recordSpace, resuming where a previous attempt of the same import stopped.
+ * <p>
+ * Records are framed sequentially, grouped in batches sized by the putBatch options, and each batch is parsed
+ * on the common pool and committed with {@link RecordLayer#putRecordsAsync}, with up to {@code parallelism}
+ * batches in flight. Once every batch before a position of the file is committed, that position is saved as the
+ * checkpoint of the import in the recordSpace, so that a new attempt skips the records already imported.
+ * <p>
+ * {@link #feed} must be called by one thread at a time.
+ */
+public class RecordImporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecordImporter.class);
+  // size of the regions of a file mapped at once, grown when a record does not fit in it
+  private static final int MAPPED_REGION_BYTES = 64 * 1024 * 1024;
+
+  private final RecordLayer recordLayer;
+  private final FDBMetricsStoreTimer timer;
+  private final String tenantID;
+  private final String recordSpace;
+  private final String importID;
+  private final String recordTypeName;
+  private final RecordStoreProtocol.ImportFormat format;
+  private final int parallelism;
+  private final int maxBatchRecords;
+  private final long maxBatchBytes;
+
+  // owned by the thread feeding the importer
+  private Descriptors.Descriptor descriptor;
+  private List<ByteString> pending = new ArrayList<>();
+  private long pendingBytes = 0;
+  private long pendingEnd = 0;
+  private long dispatchedEnd = 0;
+  private long nextSequence = 0;
+
+  // guarded by this
+  private final TreeMap<Long, Batch> committed = new TreeMap<>();
+  private long nextCommitted = 0;
+  private int inFlight = 0;
+  private long transactionCount = 0;
+  private RecordStoreProtocol.ImportCheckpoint checkpoint;
+  private RecordStoreProtocol.ImportCheckpoint savedCheckpoint;
+  private boolean saving = false;
+  private Throwable error;
+  private CompletableFuture<Void> ready;
+  private CompletableFuture<RecordStoreProtocol.ImportRecordsResponse> done;
+
+  public RecordImporter(RecordLayer recordLayer, String tenantID, String recordSpace, String importID,
+                        String recordTypeName, RecordStoreProtocol.ImportFormat format, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1, got " + parallelism);
+    }
+    this.recordLayer = recordLayer;
+    this.timer = recordLayer.getTimer();
+    this.tenantID = tenantID;
+    this.recordSpace = recordSpace;
+    this.importID = importID;
+    this.recordTypeName = recordTypeName;
+    this.format = format;
+    this.parallelism = parallelism;
+    this.maxBatchRecords = recordLayer.getOptions().getPutBatchMaxRecords();
+    this.maxBatchBytes = recordLayer.getOptions().getPutBatchMaxBytes();
+  }
+
+  /**
+   * load the recordType and the checkpoint of the import
+   *
+   * @return the position in the file from which records must be fed
+   */
+  public CompletableFuture<Long> startAsync() {
+    return recordLayer.getSchemaAsync(tenantID, recordSpace)
+      .thenCombine(recordLayer.getImportCheckpointAsync(tenantID, recordSpace, importID), (metaData, loaded) -> {
+        RecordType recordType = metaData.getRecordTypes().get(recordTypeName);
+        if (recordType == null) {
+          throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("cannot find recordType " + recordTypeName));
+        }
+        descriptor = recordType.getDescriptor();
+        pendingEnd = loaded.getOffset();
+        dispatchedEnd = loaded.getOffset();
+        synchronized (this) {
+          checkpoint = loaded;
+          savedCheckpoint = loaded;
+        }
+        if (loaded.getOffset() > 0) {
+          LOGGER.info("resuming import {} in {}/{} at offset {}", importID, tenantID, recordSpace, loaded.getOffset());
+        }
+        return loaded.getOffset();
+      });
+  }
+
+  /**
+   * frame the records of the buffer, from its position, and send the full batches.
+   * Framing stops when {@code parallelism} batches are in flight, or when the rest of the buffer is not a whole record.
+   *
+   * @param position position in the file of the first byte remaining in the buffer
+   * @param last     true if the buffer holds the end of the file
+   * @return the number of bytes consumed from the buffer
+   */
+  public int feed(ByteBuffer buffer, long position, boolean last) {
+    rethrowError();
+    int start = buffer.position();
+
+    // the beginning of the file may already be imported
+    if (position < dispatchedEnd) {
+      int skipped = (int) Math.min(buffer.remaining(), dispatchedEnd - position);
+      buffer.position(start + skipped);
+    }
+
+    while (buffer.hasRemaining() && hasCapacity()) {
+      int recordStart = buffer.position();
+      ByteString record = format == RecordStoreProtocol.ImportFormat.NDJSON ?
+        nextLine(buffer, last) : nextDelimited(buffer, position + recordStart - start);
+      if (record == null) {
+        if (last) {
+          throw new StatusRuntimeException(Status.INVALID_ARGUMENT
+            .withDescription("truncated record at offset " + (position + recordStart - start)));
+        }
+        break;
+      }
+      pendingEnd = position + buffer.position() - start;
+      // blank lines are skipped, while an empty Protobuf record is a record with default values
+      if (format == RecordStoreProtocol.ImportFormat.DELIMITED || !record.isEmpty()) {
+        pending.add(record);
+        pendingBytes += record.size();
+      }
+      if (pending.size() >= maxBatchRecords || pendingBytes >= maxBatchBytes) {
+        dispatch();
+      }
+    }
+
+    if (last && !buffer.hasRemaining()) {
+      dispatch();
+    }
+    return buffer.position() - start;
+  }
+
+  /**
+   * @return a future completed once another batch can be sent
+   */
+  public synchronized CompletableFuture<Void> ready() {
+    if (error != null) {
+      CompletableFuture<Void> failed = new CompletableFuture<>();
+      failed.completeExceptionally(error);
+      return failed;
+    }
+    if (inFlight < parallelism) {
+      return CompletableFuture.completedFuture(null);
+    }
+    if (ready == null) {
+      ready = new CompletableFuture<>();
+    }
+    return ready;
+  }
+
+  /**
+   * send the last batch, and wait for every batch and for the checkpoint covering them
+   */
+  public CompletableFuture<RecordStoreProtocol.ImportRecordsResponse> finishAsync() {
+    dispatch();
+    synchronized (this) {
+      done = new CompletableFuture<>();
+      if (error != null) {
+        done.completeExceptionally(error);
+      } else {
+        completeIfDone();
+      }
+      return done;
+    }
+  }
+
+  /**
+   * import a file, mapping it in memory region by region
+   */
+  public RecordStoreProtocol.ImportRecordsResponse importFile(Path path) throws IOException {
+    long position = join(startAsync());
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (position > size) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT
+          .withDescription("import " + importID + " is checkpointed at offset " + position + ", after the end of " + path));
+      }
+      long regionBytes = MAPPED_REGION_BYTES;
+      while (position < size) {
+        long length = Math.min(regionBytes, size - position);
+        boolean last = position + length == size;
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        int consumed;
+        do {
+          join(ready());
+          consumed = feed(region, position + region.position(), last);
+        } while (consumed > 0 && region.hasRemaining());
+
+        if (region.position() == 0) {
+          if (regionBytes >= Integer.MAX_VALUE) {
+            throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("record at offset " + position + " is too large"));
+          }
+          regionBytes = Math.min(Integer.MAX_VALUE, regionBytes * 2);
+        }
+        position += region.position();
+      }
+    }
+    return join(finishAsync());
+  }
+
+  private boolean hasCapacity() {
+    synchronized (this) {
+      return inFlight < parallelism;
+    }
+  }
+
+  private void dispatch() {
+    if (pendingEnd == dispatchedEnd) {
+      return;
+    }
+    Batch batch = new Batch(nextSequence++, pendingEnd, pending);
+    pending = new ArrayList<>();
+    pendingBytes = 0;
+    dispatchedEnd = pendingEnd;
+    synchronized (this) {
+      inFlight++;
+    }
+
+    Descriptors.Descriptor recordDescriptor = descriptor;
+    CompletableFuture.supplyAsync(() -> parse(batch, recordDescriptor))
+      .thenCompose(records -> recordLayer.putRecordsAsync(tenantID, recordSpace, records))
+      .whenComplete((response, err) -> onCommitted(batch, response, err));
+  }
+
+  /**
+   * records in the JSON mapping are converted to Protobuf, the ones already in Protobuf are parsed
+   * against the metadata when they are written
+   */
+  private List<RecordStoreProtocol.PutRecordRequest> parse(Batch batch, Descriptors.Descriptor recordDescriptor) {
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>(batch.records.size());
+    for (ByteString record : batch.records) {
+      ByteString message = record;
+      if (format == RecordStoreProtocol.ImportFormat.NDJSON) {
+        try {
+          byte[] json = record.toByteArray();
+          message = JsonMessageParser.parse(recordDescriptor, json, 0, json.length).toByteString();
+        } catch (InvalidProtocolBufferException e) {
+          LOGGER.debug("could not parse record of import {} in {}/{}: {}", importID, tenantID, recordSpace, e.getMessage());
+          batch.parseFailures++;
+          continue;
+        }
+      }
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName(recordTypeName)
+        .setMessage(message)
+        .build());
+    }
+    return records;
+  }
+
+  private synchronized void onCommitted(Batch batch, RecordStoreProtocol.PutRecordBatchResponse response, Throwable err) {
+    inFlight--;
+    if (err != null) {
+      fail(err);
+      return;
+    }
+
+    long success = response.getResultsList().stream().filter(RecordStoreProtocol.PutRecordResult::getSuccess).count();
+    batch.imported = success;
+    batch.failed = batch.parseFailures + response.getResultsCount() - success;
+    transactionCount += response.getTransactionCount();
+    timer.increment(RecordStoreMetrics.Counts.IMPORT_RECORD, (int) batch.imported);
+    timer.increment(RecordStoreMetrics.Counts.IMPORT_FAILED_RECORD, (int) batch.failed);
+
+    // the checkpoint only moves over batches committed without gap
+    committed.put(batch.sequence, batch);
+    RecordStoreProtocol.ImportCheckpoint.Builder next = checkpoint.toBuilder();
+    while (!committed.isEmpty() && committed.firstKey() == nextCommitted) {
+      Batch first = committed.pollFirstEntry().getValue();
+      next.setOffset(first.end)
+        .setImportedCount(next.getImportedCount() + first.imported)
+        .setFailedCount(next.getFailedCount() + first.failed);
+      nextCommitted++;
+    }
+    checkpoint = next.build();
+    saveCheckpoint();
+
+    if (ready != null) {
+      CompletableFuture<Void> waiting = ready;
+      ready = null;
+      waiting.complete(null);
+    }
+    completeIfDone();
+  }
+
+  /**
+   * save the latest checkpoint, one transaction at a time
+   */
+  private void saveCheckpoint() {
+    if (saving || checkpoint.equals(savedCheckpoint)) {
+      return;
+    }
+    saving = true;
+    RecordStoreProtocol.ImportCheckpoint toSave = checkpoint;
+    recordLayer.saveImportCheckpointAsync(tenantID, recordSpace, importID, toSave).whenComplete((v, err) -> {
+      synchronized (this) {
+        saving = false;
+        if (err != null) {
+          fail(err);
+          return;
+        }
+        savedCheckpoint = toSave;
+        timer.increment(RecordStoreMetrics.Counts.IMPORT_CHECKPOINT);
+        saveCheckpoint();
+        completeIfDone();
+      }
+    });
+  }
+
+  private void completeIfDone() {
+    if (done == null || inFlight > 0 || saving || !checkpoint.equals(savedCheckpoint)) {
+      return;
+    }
+    LOGGER.info("import {} in {}/{} reached offset {}: {} records imported, {} failed",
+      importID, tenantID, recordSpace, checkpoint.getOffset(), checkpoint.getImportedCount(), checkpoint.getFailedCount());
+    done.complete(RecordStoreProtocol.ImportRecordsResponse.newBuilder()
+      .setImportedCount(checkpoint.getImportedCount())
+      .setFailedCount(checkpoint.getFailedCount())
+      .setTransactionCount(transactionCount)
+      .setCheckpoint(checkpoint.getOffset())
+      .build());
+  }
+
+  private void fail(Throwable err) {
+    Throwable cause = unwrap(err);
+    if (error == null) {
+      LOGGER.error("import {} in {}/{} failed: {}", importID, tenantID, recordSpace, cause.getMessage());
+      error = cause;
+    }
+    if (ready != null) {
+      ready.completeExceptionally(cause);
+      ready = null;
+    }
+    if (done != null) {
+      done.completeExceptionally(cause);
+    }
+  }
+
+  private synchronized void rethrowError() {
+    if (error != null) {
+      throw error instanceof RuntimeException ? (RuntimeException) error : new CompletionException(error);
+    }
+  }
+
+  /**
+   * @return the next record prefixed by its varint size, or null if the buffer does not hold all of it
+   */
+  private static ByteString nextDelimited(ByteBuffer buffer, long offset) {
+    int position = buffer.position();
+    int size = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (position >= buffer.limit()) {
+        return null;
+      }
+      if (shift >= 32) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("malformed size at offset " + offset));
+      }
+      byte b = buffer.get(position++);
+      size |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    if (size < 0) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("malformed size at offset " + offset));
+    }
+    if (buffer.limit() - position < size) {
+      return null;
+    }
+    ByteString record = copy(buffer, position, position + size);
+    buffer.position(position + size);
+    return record;
+  }
+
+  /**
+   * @return the next line, empty if it is blank, or null if the buffer does not hold all of it
+   */
+  private static ByteString nextLine(ByteBuffer buffer, boolean last) {
+    int start = buffer.position();
+    int end = start;
+    while (end < buffer.limit() && buffer.get(end) != '\n') {
+      end++;
+    }
+    if (end == buffer.limit() && !last) {
+      return null;
+    }
+    buffer.position(end < buffer.limit() ? end + 1 : end);
+
+    boolean blank = true;
+    for (int i = start; i < end && blank; i++) {
+      blank = Character.isWhitespace(buffer.get(i));
+    }
+    return blank ? ByteString.EMPTY : copy(buffer, start, end);
+  }
+
+  private static ByteString copy(ByteBuffer buffer, int start, int end) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(end);
+    slice.position(start);
+    return ByteString.copyFrom(slice);
+  }
+
+  private static Throwable unwrap(Throwable t) {
+    while (t instanceof CompletionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = unwrap(e);
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+    }
+  }
+
+  private static class Batch {
+    private final long sequence;
+    // position in the file after the last record of the batch
+    private final long end;
+    private final List<ByteString> records;
+    private int parseFailures = 0;
+    private long imported;
+    private long failed;
+
+    Batch(long sequence, long end, List<ByteString> records) {
+      this.sequence = sequence;
+      this.end = end;
+      this.records = records;
+    }
+  }
+}
@@ -15,41 +15,56 @@
  */
 package fr.pierrezemb.recordstore.fdb;
 
+import com.apple.foundationdb.FDBException;
 import com.apple.foundationdb.record.CursorStreamingMode;
+import com.apple.foundationdb.record.EndpointType;
 import com.apple.foundationdb.record.EvaluationContext;
 import com.apple.foundationdb.record.ExecuteProperties;
+import com.apple.foundationdb.record.FunctionNames;
+import com.apple.foundationdb.record.IndexScanType;
 import com.apple.foundationdb.record.IsolationLevel;
+import com.apple.foundationdb.record.RecordCoreException;
 import com.apple.foundationdb.record.RecordCursor;
 import com.apple.foundationdb.record.RecordMetaData;
 import com.apple.foundationdb.record.RecordMetaDataBuilder;
 import com.apple.foundationdb.record.ScanProperties;
 import com.apple.foundationdb.record.TupleRange;
 import com.apple.foundationdb.record.metadata.Index;
+import com.apple.foundationdb.record.metadata.IndexAggregateFunction;
+import com.apple.foundationdb.record.metadata.IndexRecordFunction;
 import com.apple.foundationdb.record.metadata.IndexTypes;
 import com.apple.foundationdb.record.metadata.Key;
 import com.apple.foundationdb.record.metadata.MetaDataEvolutionValidator;
+import com.apple.foundationdb.record.metadata.RecordType;
+import com.apple.foundationdb.record.metadata.expressions.EmptyKeyExpression;
+import com.apple.foundationdb.record.metadata.expressions.FieldKeyExpression;
+import com.apple.foundationdb.record.metadata.expressions.GroupingKeyExpression;
 import com.apple.foundationdb.record.metadata.expressions.KeyExpression;
 import com.apple.foundationdb.record.metadata.expressions.VersionKeyExpression;
-import com.apple.foundationdb.record.provider.common.TransformedRecordSerializer;
-import com.apple.foundationdb.record.provider.common.TransformedRecordSerializerJCE;
 import com.apple.foundationdb.record.provider.foundationdb.FDBDatabase;
 import com.apple.foundationdb.record.provider.foundationdb.FDBDatabaseFactory;
+import com.apple.foundationdb.record.provider.foundationdb.FDBExceptions;
+import com.apple.foundationdb.record.provider.foundationdb.FDBIndexedRecord;
 import com.apple.foundationdb.record.provider.foundationdb.FDBMetaDataStore;
 import com.apple.foundationdb.record.provider.foundationdb.FDBQueriedRecord;
-import com.apple.foundationdb.record.provider.foundationdb.FDBRecord;
 import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContext;
 import com.apple.foundationdb.record.provider.foundationdb.FDBRecordStore;
-import com.apple.foundationdb.record.provider.foundationdb.keyspace.KeySpacePath;
-import com.apple.foundationdb.record.provider.foundationdb.keyspace.ResolvedKeySpacePath;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordVersion;
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoredRecord;
 import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.apple.foundationdb.record.query.plan.plans.RecordQueryCoveringIndexPlan;
 import com.apple.foundationdb.record.query.plan.plans.RecordQueryPlan;
 import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
 import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
@@ -59,16 +74,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static fr.pierrezemb.recordstore.fdb.UniversalIndexes.COUNT_INDEX;
@@ -76,104 +97,208 @@ import static fr.pierrezemb.recordstore.fdb.UniversalIndexes.COUNT_UPDATES_INDEX
 import static fr.pierrezemb.recordstore.fdb.UniversalIndexes.INDEX_COUNT_AGGREGATE_FUNCTION;
 import static fr.pierrezemb.recordstore.fdb.UniversalIndexes.INDEX_COUNT_UPDATES_AGGREGATE_FUNCTION;
 
+/**
+ * All the operations on FoundationDB.
+ * <p>
+ * Every operation is available as a method returning a {@link CompletableFuture}, which never blocks the calling
+ * thread, and as a blocking method waiting for it.
+ */
 public class RecordLayer {
   private static final Logger LOGGER = LoggerFactory.getLogger(RecordLayer.class);
+  // number of records deleted concurrently by a delete query
+  static final int DELETE_PIPELINE_SIZE = 10;
+  // transaction_too_large, key_too_large and value_too_large, solved by putting less records at once
+  private static final Set<Integer> SIZE_ERROR_CODES = ImmutableSet.of(2101, 2102, 2103);
   private final FDBDatabase db;
   private final FDBMetricsStoreTimer timer;
   private final SecretKey defaultKey;
+  private final RecordLayerOptions options;
+  private final RecordStoreMetaDataCache metaDataCache;
+  private final QueryPlanCache queryPlanCache;
+  private final TransactionRunner transactions;
+  private final RecordSerializers serializers;
+  private final IndexBuilder indexBuilder;
+  private final RecordDeleter recordDeleter;
+  private final RecordExpirer recordExpirer;
 
   public RecordLayer(String clusterFilePath, boolean enableMetrics, SecretKey key) throws InterruptedException, ExecutionException, TimeoutException {
+    this(clusterFilePath, enableMetrics, key, new RecordLayerOptions());
+  }
+
+  public RecordLayer(String clusterFilePath, boolean enableMetrics, SecretKey key, RecordLayerOptions options) throws InterruptedException, ExecutionException, TimeoutException {
     db = FDBDatabaseFactory.instance().getDatabase(clusterFilePath);
     db.performNoOpAsync().get(2, TimeUnit.SECONDS);
     System.out.println("connected to FDB!");
     timer = new FDBMetricsStoreTimer(enableMetrics);
     defaultKey = key;
+    this.options = options;
+    metaDataCache = new RecordStoreMetaDataCache(options.getMetaDataCacheSize(), timer);
+    queryPlanCache = new QueryPlanCache(options.getQueryPlanCacheSize(), metaDataCache, timer);
+    transactions = new TransactionRunner(db, timer, options);
+    serializers = new RecordSerializers(options.getCompressionLevel(), options.getCompressionThresholdBytes());
+    indexBuilder = new IndexBuilder(db, transactions, timer, options);
+    recordDeleter = new RecordDeleter(timer);
+    recordExpirer = new RecordExpirer(transactions, metaDataCache, timer, options,
+      (context, tenantID, recordSpace) -> openRecordStoreAsync(context, defaultKey, tenantID, recordSpace));
+  }
+
+  public RecordLayerOptions getOptions() {
+    return options;
+  }
+
+  public FDBMetricsStoreTimer getTimer() {
+    return timer;
   }
 
   /**
    * List all recordSpaces for a tenant
    */
   public List<String> listContainers(String tenantID) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    KeySpacePath tenantKeySpace = RecordStoreKeySpace.getApplicationKeySpacePath(tenantID);
-    List<ResolvedKeySpacePath> recordSpaces = tenantKeySpace
-      .listSubdirectory(context, "recordSpace", ScanProperties.FORWARD_SCAN);
-    return recordSpaces.stream()
+    return join(listContainersAsync(tenantID));
+  }
+
+  public CompletableFuture<List<String>> listContainersAsync(String tenantID) {
+    return transactions.readAsync(tenantID, context -> RecordStoreKeySpace.getApplicationKeySpacePath(tenantID)
+      .listSubdirectoryAsync(context, "recordSpace", null, ScanProperties.FORWARD_SCAN)
       .map(e -> e.getResolvedValue().toString())
-      .collect(Collectors.toList());
+      .asList());
   }
 
   /**
    * delete a recordSpace for a tenant
    */
   public void deleteContainer(String tenantID, String recordSpace) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBRecordStore.deleteStore(context, RecordStoreKeySpace.getDataKeySpacePath(tenantID, recordSpace));
-    FDBRecordStore.deleteStore(context, RecordStoreKeySpace.getMetaDataKeySpacePath(tenantID, recordSpace));
-    context.commit();
+    join(deleteContainerAsync(tenantID, recordSpace));
+  }
+
+  public CompletableFuture<Void> deleteContainerAsync(String tenantID, String recordSpace) {
+    CompletableFuture<Void> deleted = transactions.runAsync(tenantID, context ->
+      RecordStoreKeySpace.getDataKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context)
+        .thenAcceptBoth(RecordStoreKeySpace.getMetaDataKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context),
+          (dataSubspace, metaDataSubspace) -> {
+            FDBRecordStore.deleteStore(context, dataSubspace);
+            FDBRecordStore.deleteStore(context, metaDataSubspace);
+          })
+        .thenCompose(v -> RecordStoreKeySpace.getImportsKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context))
+        .thenAccept(importsSubspace -> context.ensureActive().clear(importsSubspace.range()))
+        .thenCompose(v -> RecordStoreKeySpace.getChangesKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context))
+        .thenAccept(changesSubspace -> context.ensureActive().clear(changesSubspace.pack())));
+    return deleted.thenRun(() -> {
+      metaDataCache.invalidate(tenantID, recordSpace);
+      queryPlanCache.invalidate(tenantID, recordSpace);
+    });
   }
 
   /**
    * get schema for a tenant and a recordSpace
    */
   public RecordMetaData getSchema(String tenantID, String recordSpace) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metaDataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, recordSpace);
+    return join(getSchemaAsync(tenantID, recordSpace));
+  }
 
-    List<RecordStoreProtocol.IndexDescription> indexes = metaDataStore.getRecordMetaData().getAllIndexes().stream()
-      .filter(e -> !e.getName().startsWith("global"))
-      .map(e ->
-        RecordStoreProtocol.IndexDescription.newBuilder()
-          .build()
-      ).collect(Collectors.toList());
+  public CompletableFuture<RecordMetaData> getSchemaAsync(String tenantID, String recordSpace) {
+    return transactions.readAsync(tenantID, context -> metaDataCache.getRecordMetaDataAsync(context, tenantID, recordSpace));
+  }
 
-    return metaDataStore.getRecordMetaData();
+  /**
+   * get the metadata of a recordSpace, along with the versionstamp of its last upsert
+   */
+  public CompletableFuture<RecordStoreMetaDataCache.RecordSpaceMetaData> getRecordSpaceAsync(String tenantID, String recordSpace) {
+    return transactions.readAsync(tenantID, context -> metaDataCache.getRecordSpaceAsync(context, tenantID, recordSpace));
   }
 
   public List<RecordStoreProtocol.IndexDescription> getIndexes(String tenantID, String recordSpace) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metaDataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, recordSpace);
+    return join(getIndexesAsync(tenantID, recordSpace));
+  }
 
-    return metaDataStore.getRecordMetaData().getAllIndexes().stream()
-      .filter(e -> !e.getName().startsWith("global"))
-      .map(e ->
-        RecordStoreProtocol.IndexDescription.newBuilder()
-          .build()
-      ).collect(Collectors.toList());
+  /**
+   * describe the indexes of a recordSpace, with the progress of the ones built in the background by this record-store
+   */
+  public CompletableFuture<List<RecordStoreProtocol.IndexDescription>> getIndexesAsync(String tenantID, String recordSpace) {
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, defaultKey, tenantID, recordSpace)
+      .thenApply(r -> r.getRecordMetaData().getAllIndexes().stream()
+        .filter(e -> !e.getName().startsWith("global"))
+        .map(e -> {
+          RecordStoreProtocol.IndexDescription.Builder description = RecordStoreProtocol.IndexDescription.newBuilder()
+            .setName(e.getName())
+            .setType(e.getType());
+          if (r.isIndexReadable(e)) {
+            return description.setStatus(RecordStoreProtocol.IndexStatus.InSync).setBuildProgress(1).build();
+          }
+          description.setStatus(RecordStoreProtocol.IndexStatus.Building);
+          IndexBuilder.Build build = indexBuilder.getBuild(tenantID, recordSpace, e.getName());
+          if (build != null) {
+            description.setBuildProgress(build.getProgress()).setScannedRecords(build.getScannedRecords());
+          }
+          return description.build();
+        }).collect(Collectors.toList())));
   }
 
   public void upsertSchema(String tenantID, String recordSpace, DescriptorProtos.FileDescriptorSet schema, List<RecordStoreProtocol.RecordTypeIndexDefinition> indexes) throws Descriptors.DescriptorValidationException {
+    join(upsertSchemaAsync(tenantID, recordSpace, schema, indexes), Descriptors.DescriptorValidationException.class);
+  }
 
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metaDataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, recordSpace);
+  public CompletableFuture<Void> upsertSchemaAsync(String tenantID, String recordSpace, DescriptorProtos.FileDescriptorSet schema, List<RecordStoreProtocol.RecordTypeIndexDefinition> indexes) {
+    return upsertSchemaAsync(tenantID, recordSpace, schema, indexes, RecordStoreProtocol.CompressionOptions.getDefaultInstance());
+  }
 
-    RecordMetaData oldMetaData = null;
-    int version = 0;
-    try {
-      oldMetaData = metaDataStore.getRecordMetaData();
-      LOGGER.debug("metadata for {}:{} is in version {}", tenantID, recordSpace, oldMetaData.getVersion());
-      version = oldMetaData.getVersion() + 1;
-    } catch (FDBMetaDataStore.MissingMetaDataException e) {
-      LOGGER.info("missing metadata, creating one");
+  /**
+   * create or update the metadata of a recordSpace. The recordTypes with a time to live get the index used to find
+   * their expired records, if they do not have it yet.
+   */
+  public CompletableFuture<Void> upsertSchemaAsync(String tenantID, String recordSpace, DescriptorProtos.FileDescriptorSet schema, List<RecordStoreProtocol.RecordTypeIndexDefinition> indexes, RecordStoreProtocol.CompressionOptions compression) {
+    RecordStoreProtocol.TimeToLiveOptions.Builder timeToLive = RecordStoreProtocol.TimeToLiveOptions.newBuilder();
+    List<RecordStoreProtocol.RecordTypeIndexDefinition> definitions = new ArrayList<>();
+    for (RecordStoreProtocol.RecordTypeIndexDefinition definition : indexes) {
+      if (definition.getTimeToLive().getTtlSeconds() < 0) {
+        return CompletableFuture.failedFuture(new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("time to live of " + definition.getName() + " cannot be negative")));
+      }
+      if (definition.getTimeToLive().getTtlSeconds() > 0) {
+        timeToLive.putRecordTypes(definition.getName(), definition.getTimeToLive());
+        definition = withExpirationIndex(definition);
+      }
+      definitions.add(definition);
     }
 
-    RecordMetaData newRecordMetaData = createRecordMetaData(schema, indexes, version, oldMetaData);
-
-    // handling upgrade
-    if (null != oldMetaData) {
-      MetaDataEvolutionValidator metaDataEvolutionValidator = MetaDataEvolutionValidator.newBuilder()
-        .setAllowIndexRebuilds(true)
-        .setAllowMissingFormerIndexNames(false)
-        .build();
-
-      metaDataEvolutionValidator.validate(oldMetaData, newRecordMetaData);
-    }
+    return transactions.runAsync(tenantID, context -> metaDataCache.getRecordMetaDataAsync(context, tenantID, recordSpace)
+      .handle((oldMetaData, err) -> {
+        if (err == null) {
+          LOGGER.debug("metadata for {}:{} is in version {}", tenantID, recordSpace, oldMetaData.getVersion());
+          return oldMetaData;
+        }
+        if (unwrap(err) instanceof FDBMetaDataStore.MissingMetaDataException) {
+          LOGGER.info("missing metadata, creating one");
+          return null;
+        }
+        throw new CompletionException(unwrap(err));
+      })
+      .thenAccept(oldMetaData -> {
+        int version = oldMetaData != null ? oldMetaData.getVersion() + 1 : 0;
+
+        RecordMetaData newRecordMetaData;
+        try {
+          newRecordMetaData = createRecordMetaData(schema, definitions, version, oldMetaData);
+        } catch (Descriptors.DescriptorValidationException e) {
+          throw new CompletionException(e);
+        }
 
-    // and save it
-    metaDataStore.saveRecordMetaData(newRecordMetaData.getRecordMetaData().toProto());
+        // handling upgrade
+        if (null != oldMetaData) {
+          MetaDataEvolutionValidator metaDataEvolutionValidator = MetaDataEvolutionValidator.newBuilder()
+            .setAllowIndexRebuilds(true)
+            .setAllowMissingFormerIndexNames(false)
+            .build();
 
-    context.commit();
+          metaDataEvolutionValidator.validate(oldMetaData, newRecordMetaData);
+        }
 
+        // and save it
+        metaDataCache.saveRecordMetaData(context, tenantID, recordSpace, newRecordMetaData.getRecordMetaData(), compression, timeToLive.build());
+      }))
+      // open the store with the new metadata in its own transaction, so new indexes are marked
+      // and their background builds started without waiting for the next operation
+      .thenCompose(v -> transactions.runAsync(tenantID, context -> openRecordStoreAsync(context, defaultKey, tenantID, recordSpace)))
+      .thenApply(r -> null);
   }
 
   private RecordMetaData createRecordMetaData(DescriptorProtos.FileDescriptorSet schema, List<RecordStoreProtocol.RecordTypeIndexDefinition> indexes, int version, RecordMetaData oldMetadata) throws Descriptors.DescriptorValidationException {
@@ -218,6 +343,9 @@ public class RecordLayer {
     // we need to loop through all index requests
     for (RecordStoreProtocol.RecordTypeIndexDefinition idxRequest : indexes) {
       LOGGER.trace("adding indexes for {}", idxRequest.getName());
+      if (idxRequest.getTimeToLive().getTtlSeconds() > 0) {
+        checkTimestampField(metadataBuilder.getRecordType(idxRequest.getName()).getDescriptor(), idxRequest.getTimeToLive().getTimestampField());
+      }
       // add new indexes
       for (RecordStoreProtocol.IndexDefinition indexDefinition : idxRequest.getIndexDefinitionsList()) {
 
@@ -242,9 +370,43 @@ public class RecordLayer {
     return metadataBuilder.build();
   }
 
+  /**
+   * @return the definition, with the index on the expiration of its records
+   */
+  private RecordStoreProtocol.RecordTypeIndexDefinition withExpirationIndex(RecordStoreProtocol.RecordTypeIndexDefinition definition) {
+    String field = definition.getTimeToLive().getTimestampField();
+    RecordStoreProtocol.IndexDefinition expirationIndex = field.isEmpty() ?
+      RecordStoreProtocol.IndexDefinition.newBuilder().setIndexType(RecordStoreProtocol.IndexType.VERSION).build() :
+      RecordStoreProtocol.IndexDefinition.newBuilder().setField(field).setIndexType(RecordStoreProtocol.IndexType.VALUE).build();
+    String indexName = generateIndexName(definition.getName(), expirationIndex);
+    boolean present = definition.getIndexDefinitionsList().stream()
+      .anyMatch(indexDefinition -> generateIndexName(definition.getName(), indexDefinition).equals(indexName));
+    return present ? definition : definition.toBuilder().addIndexDefinitions(expirationIndex).build();
+  }
+
+  /**
+   * records expire after their timestamp field, which must hold milliseconds since epoch
+   */
+  private static void checkTimestampField(Descriptors.Descriptor recordType, String fieldName) {
+    if (fieldName.isEmpty()) {
+      return;
+    }
+    Descriptors.FieldDescriptor field = recordType.findFieldByName(fieldName);
+    if (field == null) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("timestamp field " + fieldName + " does not exist in " + recordType.getName()));
+    }
+    if (field.isRepeated() || (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.INT && field.getJavaType() != Descriptors.FieldDescriptor.JavaType.LONG)) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("timestamp field " + fieldName + " of " + recordType.getName() + " must be a single integer"));
+    }
+  }
+
   private String generateIndexName(String name, RecordStoreProtocol.IndexDefinition indexDefinition) {
     if (!indexDefinition.hasNestedIndex()) {
-      return name + "_idx_" + indexDefinition.getField() + "_" + indexDefinition.getIndexType().toString();
+      String indexName = name + "_idx_" + indexDefinition.getField() + "_" + indexDefinition.getIndexType().toString();
+      if (indexDefinition.getGroupByFieldsCount() > 0) {
+        indexName += "_by_" + String.join("_", indexDefinition.getGroupByFieldsList());
+      }
+      return indexName;
     }
     return name + "_idx_" + indexDefinition.getField() + "_nested_" + generateIndexName(name, indexDefinition.getNestedIndex());
   }
@@ -297,12 +459,67 @@ public class RecordLayer {
           Key.Expressions.mapKeyValues(indexDefinition.getField())
         );
         break;
+      case SUM:
+        index = new Index(
+          indexName,
+          createAggregatedKeyExpression(indexDefinition),
+          IndexTypes.SUM);
+        break;
+      // the tuple variants accept any type of field, the long ones only integers
+      case MAX_EVER:
+        index = new Index(
+          indexName,
+          createAggregatedKeyExpression(indexDefinition),
+          IndexTypes.MAX_EVER_TUPLE);
+        break;
+      case MIN_EVER:
+        index = new Index(
+          indexName,
+          createAggregatedKeyExpression(indexDefinition),
+          IndexTypes.MIN_EVER_TUPLE);
+        break;
+      case COUNT:
+        index = new Index(
+          indexName,
+          new GroupingKeyExpression(createGroupKeyExpression(indexDefinition.getGroupByFieldsList()), 0),
+          IndexTypes.COUNT);
+        break;
+      case RANK:
+        index = new Index(
+          indexName,
+          createAggregatedKeyExpression(indexDefinition),
+          IndexTypes.RANK);
+        break;
       case UNRECOGNIZED:
         return null;
     }
     return index;
   }
 
+  /**
+   * @return the field of the index, grouped by the group fields of the definition
+   */
+  private GroupingKeyExpression createAggregatedKeyExpression(RecordStoreProtocol.IndexDefinition indexDefinition) {
+    FieldKeyExpression field = Key.Expressions.field(indexDefinition.getField(), getFanType(indexDefinition.getFanType()));
+    List<String> groupByFields = indexDefinition.getGroupByFieldsList();
+    if (groupByFields.isEmpty()) {
+      return field.ungrouped();
+    }
+    KeyExpression[] groups = groupByFields.stream().map(Key.Expressions::field).toArray(KeyExpression[]::new);
+    return field.groupBy(groups[0], Arrays.copyOfRange(groups, 1, groups.length));
+  }
+
+  private KeyExpression createGroupKeyExpression(List<String> groupByFields) {
+    switch (groupByFields.size()) {
+      case 0:
+        return EmptyKeyExpression.EMPTY;
+      case 1:
+        return Key.Expressions.field(groupByFields.get(0));
+      default:
+        return Key.Expressions.concatenateFields(groupByFields);
+    }
+  }
+
   private KeyExpression createKeyExpressionFromIndexDefinition(RecordStoreProtocol.IndexDefinition nestedIndex) {
     return Key.Expressions.field(nestedIndex.getField(), getFanType(nestedIndex.getFanType()));
   }
@@ -339,91 +556,746 @@ public class RecordLayer {
   }
 
   public Tuple getCountAndCountUpdates(String tenantID, String recordSpace, SecretKey key) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metadataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, recordSpace);
-    FDBRecordStore r = createFDBRecordStore(context, metadataStore, key, tenantID, recordSpace);
+    return join(getCountAndCountUpdatesAsync(tenantID, recordSpace, key));
+  }
 
-    CompletableFuture<Tuple> countFuture = r.evaluateAggregateFunction(
-      EvaluationContext.EMPTY,
-      Collections.emptyList(),
-      INDEX_COUNT_AGGREGATE_FUNCTION,
-      TupleRange.ALL,
-      IsolationLevel.SERIALIZABLE);
+  public CompletableFuture<Tuple> getCountAndCountUpdatesAsync(String tenantID, String recordSpace) {
+    return getCountAndCountUpdatesAsync(tenantID, recordSpace, defaultKey);
+  }
 
-    CompletableFuture<Tuple> updateFuture = r.evaluateAggregateFunction(
-      EvaluationContext.EMPTY,
-      Collections.emptyList(),
-      INDEX_COUNT_UPDATES_AGGREGATE_FUNCTION,
-      TupleRange.ALL,
-      IsolationLevel.SERIALIZABLE);
+  public CompletableFuture<Tuple> getCountAndCountUpdatesAsync(String tenantID, String recordSpace, SecretKey key) {
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r -> {
+      CompletableFuture<Tuple> countFuture = r.evaluateAggregateFunction(
+        EvaluationContext.EMPTY,
+        Collections.emptyList(),
+        INDEX_COUNT_AGGREGATE_FUNCTION,
+        TupleRange.ALL,
+        IsolationLevel.SERIALIZABLE);
+
+      CompletableFuture<Tuple> updateFuture = r.evaluateAggregateFunction(
+        EvaluationContext.EMPTY,
+        Collections.emptyList(),
+        INDEX_COUNT_UPDATES_AGGREGATE_FUNCTION,
+        TupleRange.ALL,
+        IsolationLevel.SERIALIZABLE);
+
+      return countFuture.thenCombine(updateFuture, (count, update)
+        -> Tuple.from(count.getLong(0), update.getLong(0)));
+    }));
+  }
 
-    return countFuture.thenCombine(updateFuture, (count, update)
-      -> Tuple.from(count.getLong(0), update.getLong(0))).join();
+  public RecordStoreProtocol.AggregateResponse aggregate(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, TupleRange groupRange) {
+    return join(aggregateAsync(tenantID, recordSpace, recordTypeName, indexDefinition, groupRange, defaultKey));
   }
 
-  public void putRecord(String tenantID, String recordSpace, String table, byte[] record, SecretKey customKey) throws InvalidProtocolBufferException {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metaDataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, recordSpace);
+  public CompletableFuture<RecordStoreProtocol.AggregateResponse> aggregateAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, TupleRange groupRange) {
+    return aggregateAsync(tenantID, recordSpace, recordTypeName, indexDefinition, groupRange, defaultKey);
+  }
 
-    Descriptors.Descriptor descriptor = metaDataStore.getRecordMetaData().getRecordsDescriptor().findMessageTypeByName(table);
+  /**
+   * evaluate an aggregate index over the groups of the range
+   *
+   * @param indexDefinition definition of the index, as given when upserting the schema
+   * @param groupRange      range of the group keys to aggregate, {@link TupleRange#ALL} for all the records
+   */
+  public CompletableFuture<RecordStoreProtocol.AggregateResponse> aggregateAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, TupleRange groupRange, SecretKey key) {
+    String functionName;
+    switch (indexDefinition.getIndexType()) {
+      case SUM:
+        functionName = FunctionNames.SUM;
+        break;
+      case MAX_EVER:
+        functionName = FunctionNames.MAX_EVER;
+        break;
+      case MIN_EVER:
+        functionName = FunctionNames.MIN_EVER;
+        break;
+      case COUNT:
+        functionName = FunctionNames.COUNT;
+        break;
+      default:
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription(indexDefinition.getIndexType() + " is not an aggregate index"));
+    }
+    String indexName = generateIndexName(recordTypeName, indexDefinition);
+
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r -> {
+      Index index = getReadableIndex(r, indexName);
+      return r.evaluateAggregateFunction(
+        EvaluationContext.EMPTY,
+        Collections.singletonList(recordTypeName),
+        new IndexAggregateFunction(functionName, index.getRootExpression(), indexName),
+        groupRange,
+        IsolationLevel.SERIALIZABLE);
+    })).thenApply(value -> toAggregateResponse(indexDefinition.getIndexType(), value));
+  }
 
-    if (descriptor == null) {
-      throw new RuntimeException("cannot find descriptor for table " + table);
+  public RecordStoreProtocol.RankedRecordsResponse getByRank(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple group, long rankBegin, long rankEnd) {
+    return join(getByRankAsync(tenantID, recordSpace, recordTypeName, indexDefinition, group, rankBegin, rankEnd, defaultKey));
+  }
+
+  public CompletableFuture<RecordStoreProtocol.RankedRecordsResponse> getByRankAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple group, long rankBegin, long rankEnd) {
+    return getByRankAsync(tenantID, recordSpace, recordTypeName, indexDefinition, group, rankBegin, rankEnd, defaultKey);
+  }
+
+  /**
+   * return the records of a group of a RANK index between two ranks, reading only the ranked set and the range of the index
+   *
+   * @param group     values of all the group fields of the index
+   * @param rankBegin first rank to return
+   * @param rankEnd   rank after the last one to return
+   */
+  public CompletableFuture<RecordStoreProtocol.RankedRecordsResponse> getByRankAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple group, long rankBegin, long rankEnd, SecretKey key) {
+    String indexName = getRankIndexName(recordTypeName, indexDefinition);
+    if (rankBegin < 0 || rankEnd < rankBegin) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("ranks must be positive, with rankEnd after rankBegin"));
+    }
+
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r -> {
+      Index index = getReadableIndex(r, indexName);
+      checkGroup(index, group);
+      TupleRange range = new TupleRange(group.add(rankBegin), group.add(rankEnd), EndpointType.RANGE_INCLUSIVE, EndpointType.RANGE_EXCLUSIVE);
+      return r.scanIndexRecords(indexName, IndexScanType.BY_RANK, range, null, ScanProperties.FORWARD_SCAN)
+        .limitRowsTo(options.getRankMaxRecords())
+        .asList()
+        // the scan starts at the first record of rankBegin
+        .thenApply(records -> rankRecords(index, records, rankBegin, 1));
+    }));
+  }
+
+  public RecordStoreProtocol.GetRankResponse getRank(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple primaryKey) {
+    return join(getRankAsync(tenantID, recordSpace, recordTypeName, indexDefinition, primaryKey, defaultKey));
+  }
+
+  public CompletableFuture<RecordStoreProtocol.GetRankResponse> getRankAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple primaryKey) {
+    return getRankAsync(tenantID, recordSpace, recordTypeName, indexDefinition, primaryKey, defaultKey);
+  }
+
+  /**
+   * return the rank of a record in its group of a RANK index
+   *
+   * @param primaryKey values of the primary key fields of the record
+   */
+  public CompletableFuture<RecordStoreProtocol.GetRankResponse> getRankAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple primaryKey, SecretKey key) {
+    String indexName = getRankIndexName(recordTypeName, indexDefinition);
+
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r -> {
+      Index index = getReadableIndex(r, indexName);
+      Tuple storedPrimaryKey = getPrimaryKey(r.getRecordMetaData(), recordTypeName, primaryKey);
+      return r.loadRecordAsync(storedPrimaryKey).thenCompose(record -> {
+        if (record == null) {
+          throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("record " + primaryKey + " does not exist"));
+        }
+        return r.evaluateRecordFunction(getRankFunction(index), record);
+      });
+    })).thenApply(rank -> RecordStoreProtocol.GetRankResponse.newBuilder().setRank(rank).build());
+  }
+
+  public RecordStoreProtocol.TopNResponse topN(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple groupPrefix, int n) {
+    return join(topNAsync(tenantID, recordSpace, recordTypeName, indexDefinition, groupPrefix, n, defaultKey));
+  }
+
+  public CompletableFuture<RecordStoreProtocol.TopNResponse> topNAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple groupPrefix, int n) {
+    return topNAsync(tenantID, recordSpace, recordTypeName, indexDefinition, groupPrefix, n, defaultKey);
+  }
+
+  /**
+   * return the records with the highest values of each group of a RANK index.
+   * Groups are found by seeking the index, so only the returned records are read,
+   * until the max number of records returned by rank reads is reached.
+   *
+   * @param groupPrefix values of the leading group fields of the groups to return
+   * @param n           number of records to return for each group
+   */
+  public CompletableFuture<RecordStoreProtocol.TopNResponse> topNAsync(String tenantID, String recordSpace, String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition, Tuple groupPrefix, int n, SecretKey key) {
+    String indexName = getRankIndexName(recordTypeName, indexDefinition);
+    if (n <= 0) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("n must be positive"));
     }
 
-    FDBRecordStore r = createFDBRecordStore(context, metaDataStore, customKey, tenantID, recordSpace);
-    DynamicMessage msg = DynamicMessage.parseFrom(descriptor, record);
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r -> {
+      Index index = getReadableIndex(r, indexName);
+      int groupingCount = ((GroupingKeyExpression) index.getRootExpression()).getGroupingCount();
+      if (groupPrefix.size() > groupingCount) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("index " + indexName + " has " + groupingCount + " group fields"));
+      }
+      RecordStoreProtocol.TopNResponse.Builder response = RecordStoreProtocol.TopNResponse.newBuilder();
+      if (groupPrefix.size() == groupingCount) {
+        return topNOfGroup(r, index, groupPrefix, n).thenApply(group -> response.addGroups(group).build());
+      }
+      return topNOfGroups(r, index, groupPrefix, null, n, options.getRankMaxRecords(), response)
+        .thenApply(RecordStoreProtocol.TopNResponse.Builder::build);
+    }));
+  }
 
-    r.saveRecord(msg);
-    context.commit();
+  /**
+   * add the top records of the groups following lastGroup, one group at a time
+   */
+  private CompletableFuture<RecordStoreProtocol.TopNResponse.Builder> topNOfGroups(FDBRecordStore r, Index index, Tuple groupPrefix, Tuple lastGroup, int n, int remaining, RecordStoreProtocol.TopNResponse.Builder response) {
+    if (remaining <= 0) {
+      return CompletableFuture.completedFuture(response);
+    }
+    int groupingCount = ((GroupingKeyExpression) index.getRootExpression()).getGroupingCount();
+    TupleRange range = lastGroup == null ? getGroupRange(groupPrefix) : new TupleRange(
+      lastGroup,
+      groupPrefix.isEmpty() ? null : groupPrefix,
+      EndpointType.RANGE_EXCLUSIVE,
+      groupPrefix.isEmpty() ? EndpointType.TREE_END : EndpointType.RANGE_INCLUSIVE);
+
+    // the first entry after the last group gives the next group
+    return r.scanIndex(index, IndexScanType.BY_VALUE, range, null, ScanProperties.FORWARD_SCAN).first().thenCompose(entry -> {
+      if (!entry.isPresent()) {
+        return CompletableFuture.completedFuture(response);
+      }
+      Tuple group = Tuple.fromList(entry.get().getKey().getItems().subList(0, groupingCount));
+      return topNOfGroup(r, index, group, Math.min(n, remaining)).thenCompose(records -> {
+        response.addGroups(records);
+        return topNOfGroups(r, index, groupPrefix, group, n, remaining - records.getRecordsCount(), response);
+      });
+    });
   }
 
+  private CompletableFuture<RecordStoreProtocol.RankedRecordsResponse> topNOfGroup(FDBRecordStore r, Index index, Tuple group, int n) {
+    return r.scanIndexRecords(index.getName(), IndexScanType.BY_VALUE, getGroupRange(group), null, ScanProperties.REVERSE_SCAN)
+      .limitRowsTo(n)
+      .asList()
+      .thenCompose(records -> {
+        if (records.isEmpty()) {
+          return CompletableFuture.completedFuture(RecordStoreProtocol.RankedRecordsResponse.getDefaultInstance());
+        }
+        // the rank of the highest record is read from the ranked set, the others follow it
+        return r.evaluateRecordFunction(getRankFunction(index), records.get(0))
+          .thenApply(rank -> rankRecords(index, records, rank, -1));
+      });
+  }
+
+  /**
+   * @param firstRank rank of the first record
+   * @param step      1 if the records are sorted by increasing values, -1 otherwise
+   */
+  private static RecordStoreProtocol.RankedRecordsResponse rankRecords(Index index, List<FDBIndexedRecord<Message>> records, long firstRank, int step) {
+    GroupingKeyExpression grouping = (GroupingKeyExpression) index.getRootExpression();
+    int scoreBegin = grouping.getGroupingCount();
+    int scoreEnd = scoreBegin + grouping.getGroupedCount();
+
+    RecordStoreProtocol.RankedRecordsResponse.Builder response = RecordStoreProtocol.RankedRecordsResponse.newBuilder();
+    long rank = firstRank;
+    List<Object> lastScore = null;
+    for (FDBIndexedRecord<Message> record : records) {
+      // ranks are dense, records with the same value share their rank
+      List<Object> score = record.getIndexEntry().getKey().getItems().subList(scoreBegin, scoreEnd);
+      if (lastScore != null && !Tuple.fromList(lastScore).equals(Tuple.fromList(score))) {
+        rank += step;
+      }
+      lastScore = score;
+      response.addRecords(RecordStoreProtocol.RankedRecord.newBuilder()
+        .setRecord(record.getRecord().toByteString())
+        .setRank(rank)
+        .build());
+    }
+    return response.build();
+  }
+
+  private String getRankIndexName(String recordTypeName, RecordStoreProtocol.IndexDefinition indexDefinition) {
+    if (indexDefinition.getIndexType() != RecordStoreProtocol.IndexType.RANK) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription(indexDefinition.getIndexType() + " is not a RANK index"));
+    }
+    return generateIndexName(recordTypeName, indexDefinition);
+  }
+
+  private static IndexRecordFunction<Long> getRankFunction(Index index) {
+    return new IndexRecordFunction<>(FunctionNames.RANK, (GroupingKeyExpression) index.getRootExpression(), index.getName());
+  }
+
+  private static void checkGroup(Index index, Tuple group) {
+    int groupingCount = ((GroupingKeyExpression) index.getRootExpression()).getGroupingCount();
+    if (group.size() != groupingCount) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("index " + index.getName() + " has " + groupingCount + " group fields"));
+    }
+  }
+
+  private static TupleRange getGroupRange(Tuple group) {
+    return group.isEmpty() ? TupleRange.ALL : TupleRange.allOf(group);
+  }
+
+  private static Index getReadableIndex(FDBRecordStore r, String indexName) {
+    if (!r.getRecordMetaData().hasIndex(indexName)) {
+      throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("index " + indexName + " does not exist"));
+    }
+    Index index = r.getRecordMetaData().getIndex(indexName);
+    if (!r.isIndexReadable(index)) {
+      throw new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription("index " + indexName + " is still being built"));
+    }
+    return index;
+  }
+
+  /**
+   * @return the primary key of the record as stored, prefixed by the key of its recordType
+   */
+  private static Tuple getPrimaryKey(RecordMetaData metaData, String recordTypeName, Tuple primaryKey) {
+    RecordType recordType = metaData.getRecordTypes().get(recordTypeName);
+    if (recordType == null) {
+      throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("recordType " + recordTypeName + " does not exist"));
+    }
+    return recordType.getRecordTypeKeyTuple().addAll(primaryKey);
+  }
+
+  private static RecordStoreProtocol.AggregateResponse toAggregateResponse(RecordStoreProtocol.IndexType indexType, Tuple value) {
+    RecordStoreProtocol.AggregateResponse.Builder response = RecordStoreProtocol.AggregateResponse.newBuilder();
+    Object aggregate = value == null || value.isEmpty() ? null : value.get(0);
+    if (aggregate == null) {
+      // no group matched, only the extremes are undefined
+      return indexType == RecordStoreProtocol.IndexType.SUM || indexType == RecordStoreProtocol.IndexType.COUNT ?
+        response.setInt64Value(0).build() : response.build();
+    }
+    if (aggregate instanceof Number) {
+      return aggregate instanceof Float || aggregate instanceof Double ?
+        response.setDoubleValue(((Number) aggregate).doubleValue()).build() :
+        response.setInt64Value(((Number) aggregate).longValue()).build();
+    }
+    if (aggregate instanceof Boolean) {
+      return response.setBoolValue((Boolean) aggregate).build();
+    }
+    if (aggregate instanceof byte[]) {
+      return response.setBytesValue(ByteString.copyFrom((byte[]) aggregate)).build();
+    }
+    return response.setStringValue(aggregate.toString()).build();
+  }
+
+  public void putRecord(String tenantID, String recordSpace, String table, byte[] record, SecretKey customKey) throws InvalidProtocolBufferException {
+    join(putRecordAsync(tenantID, recordSpace, table, record, customKey), InvalidProtocolBufferException.class);
+  }
 
   public void putRecord(String tenantID, String recordSpace, String table, byte[] record) throws InvalidProtocolBufferException {
     putRecord(tenantID, recordSpace, table, record, defaultKey);
   }
 
+  public CompletableFuture<Void> putRecordAsync(String tenantID, String recordSpace, String table, byte[] record) {
+    return putRecordAsync(tenantID, recordSpace, table, record, defaultKey);
+  }
+
+  public CompletableFuture<Void> putRecordAsync(String tenantID, String recordSpace, String table, byte[] record, SecretKey customKey) {
+    return transactions.runAsync(tenantID, context -> openRecordStoreAsync(context, customKey, tenantID, recordSpace).thenCompose(r -> {
+      Descriptors.Descriptor descriptor = r.getRecordMetaData().getRecordsDescriptor().findMessageTypeByName(table);
+
+      if (descriptor == null) {
+        throw new RuntimeException("cannot find descriptor for table " + table);
+      }
+
+      DynamicMessage msg;
+      try {
+        msg = DynamicMessage.parseFrom(descriptor, record);
+      } catch (InvalidProtocolBufferException e) {
+        throw new CompletionException(e);
+      }
+
+      return r.saveRecordAsync(msg).thenCompose(stored -> RecordWatcher.markChanged(context, tenantID, recordSpace));
+    }));
+  }
+
+  /**
+   * get the progress of an import, or an empty checkpoint if it never started
+   */
+  CompletableFuture<RecordStoreProtocol.ImportCheckpoint> getImportCheckpointAsync(String tenantID, String recordSpace, String importID) {
+    return transactions.runAsync(tenantID, context -> RecordStoreKeySpace.getImportsKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context)
+      .thenCompose(subspace -> context.ensureActive().get(subspace.pack(Tuple.from(importID))))
+      .thenApply(value -> {
+        try {
+          return value == null ?
+            RecordStoreProtocol.ImportCheckpoint.getDefaultInstance() : RecordStoreProtocol.ImportCheckpoint.parseFrom(value);
+        } catch (InvalidProtocolBufferException e) {
+          throw new CompletionException(e);
+        }
+      }));
+  }
+
+  CompletableFuture<Void> saveImportCheckpointAsync(String tenantID, String recordSpace, String importID, RecordStoreProtocol.ImportCheckpoint checkpoint) {
+    return transactions.runAsync(tenantID, context -> RecordStoreKeySpace.getImportsKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context)
+      .thenAccept(subspace -> context.ensureActive().set(subspace.pack(Tuple.from(importID)), checkpoint.toByteArray())));
+  }
+
+  public RecordStoreProtocol.PutRecordBatchResponse putRecords(String tenantID, String recordSpace, List<RecordStoreProtocol.PutRecordRequest> records) {
+    return putRecords(tenantID, recordSpace, records, defaultKey);
+  }
+
+  public RecordStoreProtocol.PutRecordBatchResponse putRecords(String tenantID, String recordSpace, List<RecordStoreProtocol.PutRecordRequest> records, SecretKey key) {
+    return join(putRecordsAsync(tenantID, recordSpace, records, key));
+  }
+
+  public CompletableFuture<RecordStoreProtocol.PutRecordBatchResponse> putRecordsAsync(String tenantID, String recordSpace, List<RecordStoreProtocol.PutRecordRequest> records) {
+    return putRecordsAsync(tenantID, recordSpace, records, defaultKey);
+  }
+
+  /**
+   * put records, packing them in as few transactions as allowed by the putBatch options.
+   * Conflicting transactions are retried. A chunk too large for a transaction, or holding a record that cannot be
+   * saved, is split until the records that cannot be written are isolated. Any other error fails the whole batch.
+   */
+  public CompletableFuture<RecordStoreProtocol.PutRecordBatchResponse> putRecordsAsync(String tenantID, String recordSpace, List<RecordStoreProtocol.PutRecordRequest> records, SecretKey key) {
+    RecordStoreProtocol.PutRecordResult[] results = new RecordStoreProtocol.PutRecordResult[records.size()];
+    CompletableFuture<Long> transactionCount = CompletableFuture.completedFuture(0L);
+
+    int start = 0;
+    while (start < records.size()) {
+      int end = start;
+      long size = 0;
+      while (end < records.size() && end - start < options.getPutBatchMaxRecords()) {
+        size += records.get(end).getMessage().size();
+        if (end > start && size > options.getPutBatchMaxBytes()) {
+          break;
+        }
+        end++;
+      }
+      int chunkStart = start;
+      int chunkEnd = end;
+      transactionCount = transactionCount.thenCompose(count ->
+        putChunkAsync(tenantID, recordSpace, records, chunkStart, chunkEnd, key, results).thenApply(c -> count + c));
+      start = end;
+    }
+
+    return transactionCount.thenApply(count -> RecordStoreProtocol.PutRecordBatchResponse.newBuilder()
+      .addAllResults(Arrays.asList(results))
+      .setTransactionCount(count)
+      .build());
+  }
+
+  private CompletableFuture<Long> putChunkAsync(String tenantID, String recordSpace, List<RecordStoreProtocol.PutRecordRequest> records, int start, int end, SecretKey key, RecordStoreProtocol.PutRecordResult[] results) {
+    CompletableFuture<Void> chunk = transactions.runAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r -> {
+      CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+      for (int i = start; i < end; i++) {
+        int index = i;
+        saved = saved.thenCompose(v -> saveRecordAsync(r, index, records.get(index))
+          .handle((result, err) -> {
+            if (err != null) {
+              throw recordPutError(err);
+            }
+            results[index] = result;
+            return null;
+          }));
+      }
+      return saved.thenCompose(v -> RecordWatcher.markChanged(context, tenantID, recordSpace));
+    }));
+
+    return chunk.handle((v, err) -> {
+      if (err == null) {
+        return CompletableFuture.completedFuture(1L);
+      }
+      Throwable cause = unwrap(err);
+      if (!isSplittable(cause)) {
+        return CompletableFuture.<Long>failedFuture(cause);
+      }
+      if (end - start == 1) {
+        LOGGER.error("could not put record {} in {}/{}: {}", start, tenantID, recordSpace, cause.getMessage());
+        results[start] = RecordStoreProtocol.PutRecordResult.newBuilder()
+          .setIndex(start)
+          .setError(String.valueOf(cause.getMessage()))
+          .build();
+        return CompletableFuture.completedFuture(0L);
+      }
+      LOGGER.debug("could not put records [{}, {}) in {}/{}, splitting: {}", start, end, tenantID, recordSpace, cause.getMessage());
+      int middle = (start + end) / 2;
+      return putChunkAsync(tenantID, recordSpace, records, start, middle, key, results)
+        .thenCompose(first -> putChunkAsync(tenantID, recordSpace, records, middle, end, key, results)
+          .thenApply(second -> first + second));
+    }).thenCompose(Function.identity());
+  }
+
+  /**
+   * tag the errors of a record that are not errors of the cluster, so that the chunk holding it is split
+   */
+  private static RuntimeException recordPutError(Throwable err) {
+    Throwable cause = unwrap(err);
+    if (FDBExceptions.getFDBCause(cause) != null) {
+      return cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+    }
+    return new RecordPutException(cause);
+  }
+
+  /**
+   * @return true if putting the records of the chunk separately may succeed
+   */
+  private static boolean isSplittable(Throwable cause) {
+    FDBException fdbCause = FDBExceptions.getFDBCause(cause);
+    if (fdbCause != null) {
+      return SIZE_ERROR_CODES.contains(fdbCause.getCode());
+    }
+    return cause instanceof RecordPutException || cause instanceof FDBExceptions.FDBStoreTransactionSizeException;
+  }
+
+  private CompletableFuture<RecordStoreProtocol.PutRecordResult> saveRecordAsync(FDBRecordStore r, int index, RecordStoreProtocol.PutRecordRequest request) {
+    RecordStoreProtocol.PutRecordResult.Builder result = RecordStoreProtocol.PutRecordResult.newBuilder().setIndex(index);
+
+    Descriptors.Descriptor descriptor = r.getRecordMetaData().getRecordsDescriptor().findMessageTypeByName(request.getRecordTypeName());
+    if (descriptor == null) {
+      return CompletableFuture.completedFuture(result.setError("cannot find descriptor for table " + request.getRecordTypeName()).build());
+    }
+
+    DynamicMessage message;
+    try {
+      message = DynamicMessage.parseFrom(descriptor, request.getMessage());
+    } catch (InvalidProtocolBufferException e) {
+      return CompletableFuture.completedFuture(result.setError("could not parse Protobuf: " + e.getMessage()).build());
+    }
+    try {
+      return r.saveRecordAsync(message).thenApply(stored -> result.setSuccess(true).build());
+    } catch (RuntimeException e) {
+      // the record may be rejected before being written, for instance by the evaluation of its keys
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  public Message getRecord(String tenantID, String recordSpace, String recordTypeName, Tuple primaryKey) {
+    return join(getRecordAsync(tenantID, recordSpace, recordTypeName, primaryKey, defaultKey));
+  }
+
+  public CompletableFuture<Message> getRecordAsync(String tenantID, String recordSpace, String recordTypeName, Tuple primaryKey) {
+    return getRecordAsync(tenantID, recordSpace, recordTypeName, primaryKey, defaultKey);
+  }
+
+  /**
+   * load a record by its primary key, without planning a query
+   *
+   * @param primaryKey values of the primary key fields of the record
+   * @return the record, or null if it does not exist
+   */
+  public CompletableFuture<Message> getRecordAsync(String tenantID, String recordSpace, String recordTypeName, Tuple primaryKey, SecretKey key) {
+    return getRecordsAsync(tenantID, recordSpace, recordTypeName, Collections.singletonList(primaryKey), key)
+      .thenApply(records -> records.get(0));
+  }
+
+  public List<Message> getRecords(String tenantID, String recordSpace, String recordTypeName, List<Tuple> primaryKeys) {
+    return join(getRecordsAsync(tenantID, recordSpace, recordTypeName, primaryKeys, defaultKey));
+  }
+
+  public CompletableFuture<List<Message>> getRecordsAsync(String tenantID, String recordSpace, String recordTypeName, List<Tuple> primaryKeys) {
+    return getRecordsAsync(tenantID, recordSpace, recordTypeName, primaryKeys, defaultKey);
+  }
+
+  /**
+   * load records by their primary keys, all read concurrently in a single transaction
+   *
+   * @param primaryKeys values of the primary key fields of the records, at most {@link RecordLayerOptions#getMultiGetMaxKeys()}
+   * @return the records in the order of the primary keys, with null for the ones that do not exist
+   */
+  public CompletableFuture<List<Message>> getRecordsAsync(String tenantID, String recordSpace, String recordTypeName, List<Tuple> primaryKeys, SecretKey key) {
+    if (primaryKeys.size() > options.getMultiGetMaxKeys()) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription(
+        "cannot get more than " + options.getMultiGetMaxKeys() + " records at once"));
+    }
+
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r -> {
+      List<CompletableFuture<Message>> records = new ArrayList<>();
+      for (Tuple primaryKey : primaryKeys) {
+        records.add(r.loadRecordAsync(getPrimaryKey(r.getRecordMetaData(), recordTypeName, primaryKey))
+          .thenApply(record -> record == null ? null : record.getRecord()));
+      }
+      return CompletableFuture.allOf(records.toArray(new CompletableFuture[0]))
+        .thenApply(v -> records.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }));
+  }
+
   public List<Message> queryRecords(String tenantID, String recordSpace, RecordQuery query) {
     return queryRecords(tenantID, recordSpace, query, defaultKey);
   }
 
   public List<Message> queryRecords(String tenantID, String recordSpace, RecordQuery query, SecretKey key) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metadataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, recordSpace);
-    FDBRecordStore r = createFDBRecordStore(context, metadataStore, key, tenantID, recordSpace);
-
-    return this.executeQuery(r, query, tenantID, recordSpace)
-      .map(e -> {
-        if (LOGGER.isTraceEnabled()) {
-          LOGGER.trace("found record '{}' from {}/{}", e.getPrimaryKey(), tenantID, recordSpace);
-        }
-        return e;
-      })
-      .map(FDBRecord::getRecord)
-      .asList()
-      .join();
+    return join(queryRecordsAsync(tenantID, recordSpace, query, key));
   }
 
-  public void queryRecords(String tenantID, String recordSpace, RecordQuery query, IsolationLevel isolationLevel, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
-    queryRecords(tenantID, recordSpace, query, isolationLevel, defaultKey, responseObserver);
+  public CompletableFuture<List<Message>> queryRecordsAsync(String tenantID, String recordSpace, RecordQuery query, SecretKey key) {
+    RecordProjection projection = RecordProjection.of(query);
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, recordSpace).thenCompose(r ->
+      this.executeQuery(r, query, tenantID, recordSpace)
+        .map(e -> {
+          if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("found record '{}' from {}/{}", e.getPrimaryKey(), tenantID, recordSpace);
+          }
+          return e;
+        })
+        .map(e -> projection.apply(e.getRecord()))
+        .asList()));
+  }
+
+  public CompletableFuture<Void> queryRecords(String tenantID, String recordSpace, RecordQuery query, IsolationLevel isolationLevel, byte[] continuation, int resultLimit, boolean chainTransactions, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
+    return queryRecords(tenantID, recordSpace, query, isolationLevel, continuation, resultLimit, chainTransactions, defaultKey, responseObserver);
   }
 
-  public void queryRecords(String tenantID, String container, RecordQuery query, IsolationLevel isolationLevel, SecretKey key, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metadataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, container);
-    FDBRecordStore r = createFDBRecordStore(context, metadataStore, key, tenantID, container);
+  /**
+   * stream the records matching the query, followed by a last response holding the continuation.
+   * The observer is completed by this method, following gRPC flow control if it is a {@link io.grpc.stub.CallStreamObserver}.
+   *
+   * @param continuation      continuation returned by a previous call, null to start from the beginning
+   * @param resultLimit       max number of records to return, 0 for no limit
+   * @param chainTransactions open new transactions when one reaches its time or scan limits instead of stopping
+   */
+  public CompletableFuture<Void> queryRecords(String tenantID, String container, RecordQuery query, IsolationLevel isolationLevel, byte[] continuation, int resultLimit, boolean chainTransactions, SecretKey key, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
+    QueryStreamer streamer = new QueryStreamer(transactions, timer, tenantID,
+      (context, cursorContinuation, limit) -> openRecordStoreAsync(context, key, tenantID, container).thenApply(r -> {
+        ExecuteProperties executeProperties = executeProperties(isolationLevel)
+          .setReturnedRowLimit(limit)
+          .setTimeLimit(options.getQueryTransactionTimeLimitMs())
+          .build();
+        return this.executeQuery(r, query, cursorContinuation, executeProperties, tenantID, container);
+      }),
+      RecordProjection.of(query), resultLimit, chainTransactions, responseObserver);
+    return streamer.start(continuation);
+  }
 
-    this.executeQuery(r, query, isolationLevel, tenantID, container)
-      .map(e -> {
-        if (LOGGER.isTraceEnabled()) {
-          LOGGER.trace("found record '{}' from {}/{}", e.getPrimaryKey(), tenantID, container);
+  public CompletableFuture<Void> watchRecords(String tenantID, String recordSpace, String recordTypeName, byte[] versionstamp, boolean fromNow, int batchSize, StreamObserver<RecordStoreProtocol.WatchResponse> responseObserver) {
+    return watchRecords(tenantID, recordSpace, recordTypeName, versionstamp, fromNow, batchSize, defaultKey, responseObserver);
+  }
+
+  /**
+   * stream the records of the recordType saved after the versionstamp, read from its VERSION index, then the records
+   * saved later as they are committed. The observer is only completed with an error, the stream runs until the call
+   * is cancelled.
+   *
+   * @param versionstamp versionstamp of the last record received, null to start from the oldest record
+   * @param fromNow      when no versionstamp is given, only stream the records saved after the watch started
+   * @param batchSize    max number of records per response, capped by {@link RecordLayerOptions#getWatchBatchSize()}
+   */
+  public CompletableFuture<Void> watchRecords(String tenantID, String container, String recordTypeName, byte[] versionstamp, boolean fromNow, int batchSize, SecretKey key, StreamObserver<RecordStoreProtocol.WatchResponse> responseObserver) {
+    if (versionstamp != null && versionstamp.length != FDBRecordVersion.VERSION_LENGTH) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("versionstamp must be " + FDBRecordVersion.VERSION_LENGTH + " bytes long"));
+    }
+    int limit = batchSize <= 0 ? options.getWatchBatchSize() : Math.min(batchSize, options.getWatchBatchSize());
+
+    RecordWatcher.BatchReader reader = (after, max) -> transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, container).thenCompose(r -> {
+      Index index = getVersionIndex(r, recordTypeName);
+      CompletableFuture<FDBRecordVersion> start = after != null ? CompletableFuture.completedFuture(FDBRecordVersion.fromBytes(after)) :
+        fromNow ? context.getReadVersionAsync().thenApply(FDBRecordVersion::lastInDBVersion) : CompletableFuture.completedFuture(null);
+
+      return start.thenCompose(version -> {
+        TupleRange range = version == null ? TupleRange.ALL :
+          new TupleRange(Tuple.from(version.toVersionstamp()), null, EndpointType.RANGE_EXCLUSIVE, EndpointType.TREE_END);
+        ScanProperties scanProperties = new ScanProperties(ExecuteProperties.newBuilder()
+          .setIsolationLevel(IsolationLevel.SERIALIZABLE)
+          .setReturnedRowLimit(max)
+          .build());
+
+        return r.scanIndexRecords(index.getName(), IndexScanType.BY_VALUE, range, null, scanProperties)
+          .map(RecordWatcher::toWatchedRecord)
+          .asList()
+          .thenCompose(records -> {
+            byte[] last = records.isEmpty() ?
+              (version == null ? null : version.toBytes()) :
+              records.get(records.size() - 1).getVersionstamp().toByteArray();
+            if (records.size() == max) {
+              return CompletableFuture.completedFuture(new RecordWatcher.Batch(records, last, null));
+            }
+            // watching in the transaction of the read, so that no commit is missed between the read and the watch
+            return RecordWatcher.watchChanges(context, tenantID, container)
+              .thenApply(changed -> new RecordWatcher.Batch(records, last, changed));
+          });
+      });
+    }));
+
+    return new RecordWatcher(timer, reader, limit, options.getWatchBatchDelayMs(), options.getWatchPollIntervalMs(), responseObserver)
+      .start(versionstamp);
+  }
+
+  private static Index getVersionIndex(FDBRecordStore r, String recordTypeName) {
+    RecordType recordType = r.getRecordMetaData().getRecordTypes().get(recordTypeName);
+    if (recordType == null) {
+      throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("recordType " + recordTypeName + " does not exist"));
+    }
+    Index index = recordType.getIndexes().stream()
+      .filter(i -> IndexTypes.VERSION.equals(i.getType()))
+      .findFirst()
+      .orElseThrow(() -> new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription("recordType " + recordTypeName + " has no VERSION index")));
+    return getReadableIndex(r, index.getName());
+  }
+
+  public CompletableFuture<Void> queryRecordsInParallel(String tenantID, String recordSpace, RecordQuery query, IsolationLevel isolationLevel, int parallelism, int resultLimit, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
+    return queryRecordsInParallel(tenantID, recordSpace, query, isolationLevel, parallelism, resultLimit, defaultKey, responseObserver);
+  }
+
+  /**
+   * stream the records matching the query, scanning up to parallelism ranges of primary keys concurrently
+   * when the query is planned as a scan of the records. Other plans are run in a single partition.
+   * Transactions are always chained, and the last response holds no continuation.
+   *
+   * @param parallelism max number of ranges, capped by {@link RecordLayerOptions#getQueryMaxParallelism()}
+   * @param resultLimit max number of records to return, 0 for no limit
+   */
+  public CompletableFuture<Void> queryRecordsInParallel(String tenantID, String container, RecordQuery query, IsolationLevel isolationLevel, int parallelism, int resultLimit, SecretKey key, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
+    int maxPartitions = Math.max(1, Math.min(parallelism, options.getQueryMaxParallelism()));
+    ParallelQueryStreamer streamer = new ParallelQueryStreamer(transactions, timer, tenantID, query.getSort(), query.isSortReverse(),
+      RecordProjection.of(query), resultLimit, options.getQueryPartitionBufferSize(), responseObserver);
+
+    return streamer.start(transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, container).thenCompose(r -> {
+      RecordQueryPlan plan = queryPlanCache.plan(r, tenantID, container, query).getPlan();
+      if (maxPartitions == 1 || !plan.hasRecordScan() || !plan.getUsedIndexes().isEmpty()) {
+        LOGGER.info("running query for {}/{} in a single partition: '{}'", tenantID, container, plan);
+        QueryStreamer.CursorFactory planned = (partitionContext, continuation, limit) -> openRecordStoreAsync(partitionContext, key, tenantID, container)
+          .thenApply(store -> this.executeQuery(store, query, continuation, executeProperties(isolationLevel)
+            .setReturnedRowLimit(limit)
+            .setTimeLimit(options.getQueryTransactionTimeLimitMs())
+            .build(), tenantID, container));
+        return CompletableFuture.completedFuture(Collections.singletonList(planned));
+      }
+
+      // primary keys start with the recordType, so a query on a single recordType only needs to split its prefix
+      Tuple prefix = null;
+      if (query.getRecordTypes().size() == 1) {
+        RecordType recordType = r.getRecordMetaData().getRecordType(query.getRecordTypes().iterator().next());
+        if (recordType.primaryKeyHasRecordTypePrefix()) {
+          prefix = recordType.getRecordTypeKeyTuple();
         }
-        return e;
-      })
-      .map(FDBRecord::getRecord)
-      .map(Message::toByteString)
-      .forEach(e -> responseObserver.onNext(RecordStoreProtocol.QueryResponse.newBuilder().setRecord(e).build()))
-      .join();
+      }
+      Tuple scannedPrefix = prefix;
+      return r.getPrimaryKeyBoundaries(null, null).asList().thenApply(boundaries -> {
+        List<TupleRange> ranges = partitionPrimaryKeys(scannedPrefix, boundaries, maxPartitions);
+        LOGGER.info("running query for {}/{} over {} ranges: '{}'", tenantID, container, ranges.size(), plan);
+        List<QueryStreamer.CursorFactory> partitions = new ArrayList<>();
+        for (TupleRange range : ranges) {
+          partitions.add((partitionContext, continuation, limit) -> openRecordStoreAsync(partitionContext, key, tenantID, container)
+            .thenApply(store -> store.scanRecords(range.getLow(), range.getHigh(), range.getLowEndpoint(), range.getHighEndpoint(), continuation,
+              new ScanProperties(executeProperties(isolationLevel)
+                .setTimeLimit(options.getQueryTransactionTimeLimitMs())
+                .build(), plan.isReverse()))
+              .filter(record -> matches(store, query, record))
+              .map(FDBQueriedRecord::stored)
+              .limitRowsTo(limit)));
+        }
+        return partitions;
+      });
+    })));
+  }
+
+  /**
+   * split the primary keys, or the ones starting with the prefix, in at most count ranges following the boundaries of the shards
+   */
+  static List<TupleRange> partitionPrimaryKeys(Tuple prefix, List<Tuple> boundaries, int count) {
+    List<Tuple> splits = boundaries.stream()
+      .filter(boundary -> prefix == null || (boundary.size() > prefix.size() && Tuple.fromList(boundary.getItems().subList(0, prefix.size())).equals(prefix)))
+      .collect(Collectors.toList());
+    if (splits.size() >= count) {
+      List<Tuple> selected = new ArrayList<>();
+      for (int i = 1; i < count; i++) {
+        selected.add(splits.get(i * splits.size() / count));
+      }
+      splits = selected;
+    }
+
+    EndpointType start = prefix == null ? EndpointType.TREE_START : EndpointType.RANGE_INCLUSIVE;
+    EndpointType end = prefix == null ? EndpointType.TREE_END : EndpointType.RANGE_INCLUSIVE;
+    List<TupleRange> ranges = new ArrayList<>();
+    Tuple low = prefix;
+    EndpointType lowEndpoint = start;
+    for (Tuple split : splits) {
+      ranges.add(new TupleRange(low, split, lowEndpoint, EndpointType.RANGE_EXCLUSIVE));
+      low = split;
+      lowEndpoint = EndpointType.RANGE_INCLUSIVE;
+    }
+    ranges.add(new TupleRange(low, prefix, lowEndpoint, end));
+    return ranges;
+  }
+
+  private static boolean matches(FDBRecordStore r, RecordQuery query, FDBStoredRecord<Message> record) {
+    if (!query.getRecordTypes().isEmpty() && !query.getRecordTypes().contains(record.getRecordType().getName())) {
+      return false;
+    }
+    return query.getFilter() == null || Boolean.TRUE.equals(query.getFilter().eval(r, EvaluationContext.EMPTY, record));
   }
 
   public void queryRecords(String tenantID, String container, RecordQuery query, Promise<List<Map<String, Object>>> future) {
@@ -431,15 +1303,10 @@ public class RecordLayer {
   }
 
   public void queryRecords(String tenantID, String container, RecordQuery query, SecretKey encryptionKey, Promise<List<Map<String, Object>>> future) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metadataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, container);
-    FDBRecordStore r = createFDBRecordStore(context, metadataStore, encryptionKey, tenantID, container);
-
-    Descriptors.Descriptor descriptor = r.getRecordMetaData().getRecordsDescriptor().findMessageTypeByName("User");
+    transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, encryptionKey, tenantID, container).thenCompose(r -> {
+      Descriptors.Descriptor descriptor = r.getRecordMetaData().getRecordsDescriptor().findMessageTypeByName("User");
 
-    List<Map<String, Object>> result = null;
-    try {
-      result = this.executeQuery(r, query, tenantID, container)
+      return this.executeQuery(r, query, tenantID, container)
         .map(e -> {
           if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("found record '{}' from {}/{}", e.getPrimaryKey(), tenantID, container);
@@ -461,11 +1328,14 @@ public class RecordLayer {
           dynamicMessage.getAllFields().forEach((key, value) -> results.put(key.getName(), value));
           return results;
         })
-        .asList().get();
-      future.complete(result);
-    } catch (InterruptedException | ExecutionException e) {
-      future.fail(e);
-    }
+        .asList();
+    })).whenComplete((result, err) -> {
+      if (err != null) {
+        future.fail(unwrap(err));
+      } else {
+        future.complete(result);
+      }
+    });
   }
 
   private RecordCursor<FDBQueriedRecord<Message>> executeQuery(FDBRecordStore r, RecordQuery query, String tenantID, String container) {
@@ -473,6 +1343,17 @@ public class RecordLayer {
   }
 
   private RecordCursor<FDBQueriedRecord<Message>> executeQuery(FDBRecordStore r, RecordQuery query, IsolationLevel isolationLevel, String tenantID, String container) {
+    return this.executeQuery(r, query, null, executeProperties(isolationLevel).build(), tenantID, container);
+  }
+
+  private ExecuteProperties.Builder executeProperties(IsolationLevel isolationLevel) {
+    return ExecuteProperties.newBuilder()
+      .setIsolationLevel(isolationLevel)
+      .setScannedBytesLimit(options.getQueryScannedBytesLimit())
+      .setDefaultCursorStreamingMode(CursorStreamingMode.ITERATOR); // either WANT_ALL OR streaming mode
+  }
+
+  private RecordCursor<FDBQueriedRecord<Message>> executeQuery(FDBRecordStore r, RecordQuery query, byte[] continuation, ExecuteProperties executeProperties, String tenantID, String container) {
     // TODO: handle errors instead of throwing null
     if (query == null) {
       LOGGER.error("query is null, skipping");
@@ -481,16 +1362,23 @@ public class RecordLayer {
 
     LOGGER.info(query.toString());
 
-    RecordQueryPlan plan = r.planQuery(query);
-    LOGGER.info("running query for {}/{}: '{}'", tenantID, container, plan);
-
-    ExecuteProperties.Builder executeProperties = ExecuteProperties.newBuilder()
-      .setIsolationLevel(isolationLevel)
-      .setDefaultCursorStreamingMode(CursorStreamingMode.ITERATOR); // either WANT_ALL OR streaming mode
+    QueryPlanCache.PreparedQuery prepared = queryPlanCache.plan(r, tenantID, container, query);
+    LOGGER.info("running query for {}/{}: '{}'", tenantID, container, prepared.getPlan());
+    if (isCovering(prepared.getPlan())) {
+      timer.increment(RecordStoreMetrics.Counts.QUERY_COVERING_INDEX);
+    }
 
-    executeProperties.setScannedBytesLimit(1_000_000); // 1MB
+    return prepared.execute(r, continuation, executeProperties);
+  }
 
-    return r.executeQuery(query, null, executeProperties.build());
+  /**
+   * @return true if the plan reads the index entries without loading the records
+   */
+  private static boolean isCovering(RecordQueryPlan plan) {
+    if (plan instanceof RecordQueryCoveringIndexPlan) {
+      return true;
+    }
+    return !plan.getChildren().isEmpty() && plan.getChildren().stream().allMatch(RecordLayer::isCovering);
   }
 
   public long deleteAllRecords(String tenantID, String container) {
@@ -498,12 +1386,77 @@ public class RecordLayer {
   }
 
   public long deleteAllRecords(String tenantID, String container, SecretKey key) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metadataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, container);
-    FDBRecordStore r = createFDBRecordStore(context, metadataStore, key, tenantID, container);
-    r.deleteAllRecords();
-    // TODO: return count of records with the call stats
-    return 0;
+    return join(deleteAllRecordsAsync(tenantID, container, key));
+  }
+
+  public CompletableFuture<Long> deleteAllRecordsAsync(String tenantID, String container) {
+    return deleteAllRecordsAsync(tenantID, container, defaultKey);
+  }
+
+  public CompletableFuture<Long> deleteAllRecordsAsync(String tenantID, String container, SecretKey key) {
+    return transactions.runAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, container).thenCompose(r ->
+      // the count index is read in the same transaction, so it matches what is deleted
+      r.evaluateAggregateFunction(
+        EvaluationContext.EMPTY,
+        Collections.emptyList(),
+        INDEX_COUNT_AGGREGATE_FUNCTION,
+        TupleRange.ALL,
+        IsolationLevel.SERIALIZABLE)
+        .thenApply(count -> {
+          r.deleteAllRecords();
+          return count.getLong(0);
+        })));
+  }
+
+  public long deleteRecordsWhere(String tenantID, String container, String recordTypeName) {
+    return deleteRecordsWhere(tenantID, container, recordTypeName, defaultKey);
+  }
+
+  public long deleteRecordsWhere(String tenantID, String container, String recordTypeName, SecretKey key) {
+    return join(deleteRecordsWhereAsync(tenantID, container, recordTypeName, key));
+  }
+
+  public CompletableFuture<Long> deleteRecordsWhereAsync(String tenantID, String container, String recordTypeName) {
+    return deleteRecordsWhereAsync(tenantID, container, recordTypeName, defaultKey);
+  }
+
+  /**
+   * delete all the records of a recordType by clearing their ranges in a single transaction, instead of deleting
+   * them one by one. Deleting by primary key prefix is not supported: the Record Layer requires every index of the
+   * recordType to start with the prefix, and the universal count indexes are grouped by recordType only
+   *
+   * @return the number of deleted records, read from the count index in the same transaction
+   */
+  public CompletableFuture<Long> deleteRecordsWhereAsync(String tenantID, String container, String recordTypeName, SecretKey key) {
+    return transactions.runAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, container).thenCompose(r -> {
+      RecordType recordType = r.getRecordMetaData().getRecordTypes().get(recordTypeName);
+      if (recordType == null) {
+        throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("recordType " + recordTypeName + " does not exist"));
+      }
+
+      return r.evaluateAggregateFunction(
+        EvaluationContext.EMPTY,
+        Collections.emptyList(),
+        INDEX_COUNT_AGGREGATE_FUNCTION,
+        TupleRange.allOf(recordType.getRecordTypeKeyTuple()),
+        IsolationLevel.SERIALIZABLE)
+        .thenApply(c -> c == null || c.isEmpty() ? 0L : c.getLong(0))
+        .thenCompose(deleted -> {
+          LOGGER.info("clearing records of {} in {}/{}", recordTypeName, tenantID, container);
+          CompletableFuture<Void> cleared;
+          try {
+            cleared = r.deleteRecordsWhereAsync(recordTypeName, null);
+          } catch (Query.InvalidExpressionException | RecordCoreException e) {
+            // thrown while checking the indexes, before anything is cleared
+            throw new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription(
+              "records of " + recordTypeName + " cannot be cleared: " + e.getMessage()));
+          }
+          return cleared.thenApply(v -> {
+            timer.increment(RecordStoreMetrics.Counts.DELETE_WHERE);
+            return deleted;
+          });
+        });
+    }));
   }
 
   public long deleteRecords(String tenantID, String container, RecordQuery query) {
@@ -511,21 +1464,92 @@ public class RecordLayer {
   }
 
   public long deleteRecords(String tenantID, String container, RecordQuery query, SecretKey key) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metadataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, container);
-    FDBRecordStore r = createFDBRecordStore(context, metadataStore, key, tenantID, container);
-
-    Integer count = this.executeQuery(r, query, tenantID, container)
-      .map(e -> {
-        if (LOGGER.isTraceEnabled()) {
-          LOGGER.trace("deleting {} from {}/{}", e.getPrimaryKey(), tenantID, container);
-        }
-        return e;
-      })
-      .map(e -> r.deleteRecord(e.getPrimaryKey()))
-      .getCount().join();
-    context.commit();
-    return count;
+    return join(deleteRecordsAsync(tenantID, container, query, null, key));
+  }
+
+  public CompletableFuture<Long> deleteRecordsAsync(String tenantID, String container, RecordQuery query) {
+    return deleteRecordsAsync(tenantID, container, query, null, defaultKey);
+  }
+
+  public CompletableFuture<Long> deleteRecordsAsync(String tenantID, String container, RecordQuery query, byte[] continuation) {
+    return deleteRecordsAsync(tenantID, container, query, continuation, defaultKey);
+  }
+
+  /**
+   * delete the records matching the query, by batches of {@link RecordLayerOptions#getDeleteBatchSize()} records
+   * each deleted in its own transaction
+   *
+   * @param continuation continuation of a cancelled or failed delete, null to start from the beginning
+   * @return the number of deleted records
+   */
+  public CompletableFuture<Long> deleteRecordsAsync(String tenantID, String container, RecordQuery query, byte[] continuation, SecretKey key) {
+    checkQuery(query);
+    return recordDeleter.delete(tenantID, container, batchDeleter(tenantID, container, query, key), continuation).getDone();
+  }
+
+  public RecordStoreProtocol.DeleteJob startDeleteRecords(String tenantID, String container, RecordQuery query, byte[] continuation) {
+    return startDeleteRecords(tenantID, container, query, continuation, defaultKey);
+  }
+
+  /**
+   * delete the records matching the query in the background, the job can be followed with {@link #getDeleteJob(String, String)}
+   *
+   * @param continuation continuation of a cancelled or failed delete, null to start from the beginning
+   */
+  public RecordStoreProtocol.DeleteJob startDeleteRecords(String tenantID, String container, RecordQuery query, byte[] continuation, SecretKey key) {
+    checkQuery(query);
+    return recordDeleter.start(tenantID, container, batchDeleter(tenantID, container, query, key), continuation).toProto();
+  }
+
+  /**
+   * @return the background deletes of the tenant, running or recently finished
+   */
+  public List<RecordStoreProtocol.DeleteJob> getDeleteJobs(String tenantID) {
+    return recordDeleter.getJobs(tenantID).stream().map(RecordDeleter.Job::toProto).collect(Collectors.toList());
+  }
+
+  public RecordStoreProtocol.DeleteJob getDeleteJob(String tenantID, String jobID) {
+    return recordDeleter.getJob(tenantID, jobID).toProto();
+  }
+
+  /**
+   * stop a background delete once its current batch is committed
+   */
+  public RecordStoreProtocol.DeleteJob cancelDeleteJob(String tenantID, String jobID) {
+    RecordDeleter.Job job = recordDeleter.getJob(tenantID, jobID);
+    job.cancel();
+    return job.toProto();
+  }
+
+  private RecordDeleter.BatchDeleter batchDeleter(String tenantID, String container, RecordQuery query, SecretKey key) {
+    return continuation -> transactions.runAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, container).thenCompose(r -> {
+      ExecuteProperties executeProperties = executeProperties(IsolationLevel.SERIALIZABLE)
+        .setReturnedRowLimit(options.getDeleteBatchSize())
+        .setTimeLimit(options.getQueryTransactionTimeLimitMs())
+        .build();
+      // counted per attempt, only the one of the committed attempt is returned
+      long[] deleted = {0};
+      return this.executeQuery(r, query, continuation, executeProperties, tenantID, container)
+        .map(e -> {
+          if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("deleting {} from {}/{}", e.getPrimaryKey(), tenantID, container);
+          }
+          return e;
+        })
+        .mapPipelined(e -> r.deleteRecordAsync(e.getPrimaryKey()), DELETE_PIPELINE_SIZE)
+        .forEachResult(result -> {
+          if (result.get()) {
+            deleted[0]++;
+          }
+        })
+        .thenApply(last -> new RecordDeleter.Batch(deleted[0], last.getContinuation().isEnd() ? null : last.getContinuation().toBytes()));
+    }));
+  }
+
+  private static void checkQuery(RecordQuery query) {
+    if (query == null) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("bad query"));
+    }
   }
 
   public String getQueryPlan(String tenantID, String container, RecordQuery query) {
@@ -533,27 +1557,121 @@ public class RecordLayer {
   }
 
   public String getQueryPlan(String tenantID, String container, RecordQuery query, SecretKey key) {
-    FDBRecordContext context = db.openContext(Collections.singletonMap("tenant", tenantID), timer);
-    FDBMetaDataStore metadataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenantID, container);
-    FDBRecordStore r = createFDBRecordStore(context, metadataStore, key, tenantID, container);
-    return r.planQuery(query).toString();
+    return join(getQueryPlanAsync(tenantID, container, query, key));
+  }
+
+  public CompletableFuture<String> getQueryPlanAsync(String tenantID, String container, RecordQuery query) {
+    return getQueryPlanAsync(tenantID, container, query, defaultKey);
+  }
+
+  public CompletableFuture<String> getQueryPlanAsync(String tenantID, String container, RecordQuery query, SecretKey key) {
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, key, tenantID, container)
+      .thenApply(r -> r.planQuery(query).toString()));
+  }
+
+  /**
+   * delete the expired records of every recordSpace in the background, every
+   * {@link RecordLayerOptions#getExpirationSweepIntervalMs()}
+   */
+  public void startExpirationSweeper() {
+    recordExpirer.start();
   }
 
-  private FDBRecordStore createFDBRecordStore(FDBRecordContext context,
-                                              FDBMetaDataStore metaDataStore,
-                                              SecretKey key, String tenantID, String container) {
+  /**
+   * stop the background tasks of the record layer, the pending sweep of expired records is cancelled
+   */
+  public void close() {
+    recordExpirer.stop();
+  }
+
+  public long sweepExpiredRecords() {
+    return join(sweepExpiredRecordsAsync());
+  }
+
+  /**
+   * delete the expired records of every recordSpace now, or wait for the running sweep
+   *
+   * @return the number of deleted records
+   */
+  public CompletableFuture<Long> sweepExpiredRecordsAsync() {
+    return recordExpirer.sweep();
+  }
+
+  /**
+   * run a read-only operation on the record store of a recordSpace, in a single transaction
+   */
+  <T> CompletableFuture<T> readRecordStoreAsync(String tenantID, String recordSpace, BiFunction<FDBRecordContext, FDBRecordStore, CompletableFuture<T>> operation) {
+    return transactions.readAsync(tenantID, context -> openRecordStoreAsync(context, defaultKey, tenantID, recordSpace)
+      .thenCompose(r -> operation.apply(context, r)));
+  }
 
-    TransformedRecordSerializer<Message> serializer = TransformedRecordSerializerJCE.newDefaultBuilder()
-      .setEncryptWhenSerializing(true)
-      .setCompressWhenSerializing(true)
-      .setEncryptionKey(key)
-      .build();
+  private CompletableFuture<FDBRecordStore> openRecordStoreAsync(FDBRecordContext context, SecretKey key, String tenantID, String container) {
+    return metaDataCache.getRecordSpaceAsync(context, tenantID, container)
+      .thenCompose(recordSpace -> {
+        FDBRecordStore.Builder builder = recordStoreBuilder(recordSpace, key, tenantID, container);
+        return builder.copyBuilder().setContext(context).createOrOpenAsync().thenApply(r -> {
+          List<Index> pendingIndexes = r.getRecordMetaData().getAllIndexes().stream()
+            .filter(index -> !r.isIndexReadable(index))
+            .collect(Collectors.toList());
+          if (!pendingIndexes.isEmpty()) {
+            context.addAfterCommit(() -> indexBuilder.build(pendingIndexes, builder, tenantID, container));
+          }
+          return r;
+        });
+      });
+  }
 
+  private FDBRecordStore.Builder recordStoreBuilder(RecordStoreMetaDataCache.RecordSpaceMetaData recordSpace,
+                                                    SecretKey key, String tenantID, String container) {
     return FDBRecordStore.newBuilder()
-      .setMetaDataProvider(metaDataStore)
-      .setContext(context)
-      .setSerializer(serializer)
-      .setKeySpacePath(RecordStoreKeySpace.getDataKeySpacePath(tenantID, container))
-      .createOrOpen();
+      .setMetaDataProvider(recordSpace.getMetaData())
+      .setUserVersionChecker(indexBuilder.userVersionChecker())
+      .setSerializer(serializers.get(key, recordSpace.getCompression()))
+      .setKeySpacePath(RecordStoreKeySpace.getDataKeySpacePath(tenantID, container));
+  }
+
+  private static Throwable unwrap(Throwable t) {
+    while (t instanceof CompletionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  /**
+   * wait for the future, rethrowing the exception that failed it
+   */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = unwrap(e);
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+    }
+  }
+
+  /**
+   * wait for the future, rethrowing the checked exception that failed it, even if it was wrapped
+   */
+  private static <T, E extends Exception> T join(CompletableFuture<T> future, Class<E> checkedException) throws E {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        if (checkedException.isInstance(cause)) {
+          throw checkedException.cast(cause);
+        }
+      }
+      Throwable cause = unwrap(e);
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+    }
+  }
+
+  /**
+   * a record of a put that cannot be saved, for instance because a value of an index is too large
+   */
+  private static class RecordPutException extends RuntimeException {
+    private RecordPutException(Throwable cause) {
+      super(cause.getMessage(), cause);
+    }
   }
 }
@@ -0,0 +1,414 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import fr.pierrezemb.recordstore.Constants;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Tuning options of the {@link RecordLayer}, usually built from the verticle configuration.
+ */
+public class RecordLayerOptions {
+  private int metaDataCacheSize = Constants.CONFIG_METADATA_CACHE_SIZE_DEFAULT;
+  private int queryPlanCacheSize = Constants.CONFIG_QUERY_PLAN_CACHE_SIZE_DEFAULT;
+  private int putBatchMaxBytes = Constants.CONFIG_PUT_BATCH_MAX_BYTES_DEFAULT;
+  private int putBatchMaxRecords = Constants.CONFIG_PUT_BATCH_MAX_RECORDS_DEFAULT;
+  private long queryScannedBytesLimit = Constants.CONFIG_QUERY_SCANNED_BYTES_LIMIT_DEFAULT;
+  private long queryTransactionTimeLimitMs = Constants.CONFIG_QUERY_TRANSACTION_TIME_LIMIT_MS_DEFAULT;
+  private long transactionTimeoutMs = Constants.CONFIG_TRANSACTION_TIMEOUT_MS_DEFAULT;
+  private int transactionMaxAttempts = Constants.CONFIG_TRANSACTION_MAX_ATTEMPTS_DEFAULT;
+  private long readVersionStalenessMs = Constants.CONFIG_READ_VERSION_STALENESS_MS_DEFAULT;
+  private int compressionLevel = Constants.CONFIG_COMPRESSION_LEVEL_DEFAULT;
+  private int compressionThresholdBytes = Constants.CONFIG_COMPRESSION_THRESHOLD_BYTES_DEFAULT;
+  private int importParallelism = Constants.CONFIG_IMPORT_PARALLELISM_DEFAULT;
+  private int exportParallelism = Constants.CONFIG_EXPORT_PARALLELISM_DEFAULT;
+  private int queryMaxParallelism = Constants.CONFIG_QUERY_MAX_PARALLELISM_DEFAULT;
+  private int queryPartitionBufferSize = Constants.CONFIG_QUERY_PARTITION_BUFFER_SIZE_DEFAULT;
+  private long indexInlineBuildMaxRecords = Constants.CONFIG_INDEX_INLINE_BUILD_MAX_RECORDS_DEFAULT;
+  private int indexBuildRecordsPerSecond = Constants.CONFIG_INDEX_BUILD_RECORDS_PER_SECOND_DEFAULT;
+  private int rankMaxRecords = Constants.CONFIG_RANK_MAX_RECORDS_DEFAULT;
+  private int multiGetMaxKeys = Constants.CONFIG_MULTI_GET_MAX_KEYS_DEFAULT;
+  private int deleteBatchSize = Constants.CONFIG_DELETE_BATCH_SIZE_DEFAULT;
+  private int watchBatchSize = Constants.CONFIG_WATCH_BATCH_SIZE_DEFAULT;
+  private long watchBatchDelayMs = Constants.CONFIG_WATCH_BATCH_DELAY_MS_DEFAULT;
+  private long watchPollIntervalMs = Constants.CONFIG_WATCH_POLL_INTERVAL_MS_DEFAULT;
+  private long expirationSweepIntervalMs = Constants.CONFIG_EXPIRATION_SWEEP_INTERVAL_MS_DEFAULT;
+  private int expirationBatchSize = Constants.CONFIG_EXPIRATION_BATCH_SIZE_DEFAULT;
+  private int expirationRecordsPerSecond = Constants.CONFIG_EXPIRATION_RECORDS_PER_SECOND_DEFAULT;
+  private int expirationBacklogScanLimit = Constants.CONFIG_EXPIRATION_BACKLOG_SCAN_LIMIT_DEFAULT;
+
+  public RecordLayerOptions() {
+  }
+
+  public RecordLayerOptions(JsonObject config) {
+    metaDataCacheSize = config.getInteger(Constants.CONFIG_METADATA_CACHE_SIZE, metaDataCacheSize);
+    queryPlanCacheSize = config.getInteger(Constants.CONFIG_QUERY_PLAN_CACHE_SIZE, queryPlanCacheSize);
+    putBatchMaxBytes = config.getInteger(Constants.CONFIG_PUT_BATCH_MAX_BYTES, putBatchMaxBytes);
+    putBatchMaxRecords = config.getInteger(Constants.CONFIG_PUT_BATCH_MAX_RECORDS, putBatchMaxRecords);
+    queryScannedBytesLimit = config.getLong(Constants.CONFIG_QUERY_SCANNED_BYTES_LIMIT, queryScannedBytesLimit);
+    queryTransactionTimeLimitMs = config.getLong(Constants.CONFIG_QUERY_TRANSACTION_TIME_LIMIT_MS, queryTransactionTimeLimitMs);
+    transactionTimeoutMs = config.getLong(Constants.CONFIG_TRANSACTION_TIMEOUT_MS, transactionTimeoutMs);
+    transactionMaxAttempts = config.getInteger(Constants.CONFIG_TRANSACTION_MAX_ATTEMPTS, transactionMaxAttempts);
+    readVersionStalenessMs = config.getLong(Constants.CONFIG_READ_VERSION_STALENESS_MS, readVersionStalenessMs);
+    compressionLevel = config.getInteger(Constants.CONFIG_COMPRESSION_LEVEL, compressionLevel);
+    compressionThresholdBytes = config.getInteger(Constants.CONFIG_COMPRESSION_THRESHOLD_BYTES, compressionThresholdBytes);
+    importParallelism = config.getInteger(Constants.CONFIG_IMPORT_PARALLELISM, importParallelism);
+    exportParallelism = config.getInteger(Constants.CONFIG_EXPORT_PARALLELISM, exportParallelism);
+    queryMaxParallelism = config.getInteger(Constants.CONFIG_QUERY_MAX_PARALLELISM, queryMaxParallelism);
+    queryPartitionBufferSize = config.getInteger(Constants.CONFIG_QUERY_PARTITION_BUFFER_SIZE, queryPartitionBufferSize);
+    indexInlineBuildMaxRecords = config.getLong(Constants.CONFIG_INDEX_INLINE_BUILD_MAX_RECORDS, indexInlineBuildMaxRecords);
+    indexBuildRecordsPerSecond = config.getInteger(Constants.CONFIG_INDEX_BUILD_RECORDS_PER_SECOND, indexBuildRecordsPerSecond);
+    rankMaxRecords = config.getInteger(Constants.CONFIG_RANK_MAX_RECORDS, rankMaxRecords);
+    multiGetMaxKeys = config.getInteger(Constants.CONFIG_MULTI_GET_MAX_KEYS, multiGetMaxKeys);
+    deleteBatchSize = config.getInteger(Constants.CONFIG_DELETE_BATCH_SIZE, deleteBatchSize);
+    watchBatchSize = config.getInteger(Constants.CONFIG_WATCH_BATCH_SIZE, watchBatchSize);
+    watchBatchDelayMs = config.getLong(Constants.CONFIG_WATCH_BATCH_DELAY_MS, watchBatchDelayMs);
+    watchPollIntervalMs = config.getLong(Constants.CONFIG_WATCH_POLL_INTERVAL_MS, watchPollIntervalMs);
+    expirationSweepIntervalMs = config.getLong(Constants.CONFIG_EXPIRATION_SWEEP_INTERVAL_MS, expirationSweepIntervalMs);
+    expirationBatchSize = config.getInteger(Constants.CONFIG_EXPIRATION_BATCH_SIZE, expirationBatchSize);
+    expirationRecordsPerSecond = config.getInteger(Constants.CONFIG_EXPIRATION_RECORDS_PER_SECOND, expirationRecordsPerSecond);
+    expirationBacklogScanLimit = config.getInteger(Constants.CONFIG_EXPIRATION_BACKLOG_SCAN_LIMIT, expirationBacklogScanLimit);
+  }
+
+  public int getMetaDataCacheSize() {
+    return metaDataCacheSize;
+  }
+
+  /**
+   * @param metaDataCacheSize number of recordSpaces for which the metadata is kept in memory
+   */
+  public RecordLayerOptions setMetaDataCacheSize(int metaDataCacheSize) {
+    this.metaDataCacheSize = metaDataCacheSize;
+    return this;
+  }
+
+  public int getQueryPlanCacheSize() {
+    return queryPlanCacheSize;
+  }
+
+  /**
+   * @param queryPlanCacheSize number of query plans kept in memory, across all recordSpaces
+   */
+  public RecordLayerOptions setQueryPlanCacheSize(int queryPlanCacheSize) {
+    this.queryPlanCacheSize = queryPlanCacheSize;
+    return this;
+  }
+
+  public int getPutBatchMaxBytes() {
+    return putBatchMaxBytes;
+  }
+
+  /**
+   * @param putBatchMaxBytes size of the serialized records written in a single transaction.
+   *                         FDB rejects transactions over 10MB, which also account for indexes.
+   */
+  public RecordLayerOptions setPutBatchMaxBytes(int putBatchMaxBytes) {
+    this.putBatchMaxBytes = putBatchMaxBytes;
+    return this;
+  }
+
+  public int getPutBatchMaxRecords() {
+    return putBatchMaxRecords;
+  }
+
+  /**
+   * @param putBatchMaxRecords number of records written in a single transaction
+   */
+  public RecordLayerOptions setPutBatchMaxRecords(int putBatchMaxRecords) {
+    this.putBatchMaxRecords = putBatchMaxRecords;
+    return this;
+  }
+
+  public long getQueryScannedBytesLimit() {
+    return queryScannedBytesLimit;
+  }
+
+  /**
+   * @param queryScannedBytesLimit bytes scanned by a query before it stops and returns a continuation
+   */
+  public RecordLayerOptions setQueryScannedBytesLimit(long queryScannedBytesLimit) {
+    this.queryScannedBytesLimit = queryScannedBytesLimit;
+    return this;
+  }
+
+  public long getQueryTransactionTimeLimitMs() {
+    return queryTransactionTimeLimitMs;
+  }
+
+  /**
+   * @param queryTransactionTimeLimitMs time spent by a query in a transaction before it stops and returns a continuation.
+   *                                    It must stay under the 5 seconds lifetime of FDB transactions.
+   */
+  public RecordLayerOptions setQueryTransactionTimeLimitMs(long queryTransactionTimeLimitMs) {
+    this.queryTransactionTimeLimitMs = queryTransactionTimeLimitMs;
+    return this;
+  }
+
+  public long getTransactionTimeoutMs() {
+    return transactionTimeoutMs;
+  }
+
+  /**
+   * @param transactionTimeoutMs time after which a transaction is cancelled, so that no operation hangs forever
+   */
+  public RecordLayerOptions setTransactionTimeoutMs(long transactionTimeoutMs) {
+    this.transactionTimeoutMs = transactionTimeoutMs;
+    return this;
+  }
+
+  public int getTransactionMaxAttempts() {
+    return transactionMaxAttempts;
+  }
+
+  /**
+   * @param transactionMaxAttempts number of times an operation is tried when its transaction hits a retriable error
+   */
+  public RecordLayerOptions setTransactionMaxAttempts(int transactionMaxAttempts) {
+    this.transactionMaxAttempts = transactionMaxAttempts;
+    return this;
+  }
+
+  public long getReadVersionStalenessMs() {
+    return readVersionStalenessMs;
+  }
+
+  /**
+   * @param readVersionStalenessMs age of a read version that read-only operations may reuse instead of asking
+   *                               the cluster for a new one. 0 disables it, so that reads always see the last writes.
+   */
+  public RecordLayerOptions setReadVersionStalenessMs(long readVersionStalenessMs) {
+    this.readVersionStalenessMs = readVersionStalenessMs;
+    return this;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * @param compressionLevel deflate level of the recordSpaces that did not set their own
+   */
+  public RecordLayerOptions setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+    return this;
+  }
+
+  public int getCompressionThresholdBytes() {
+    return compressionThresholdBytes;
+  }
+
+  /**
+   * @param compressionThresholdBytes size under which records are stored uncompressed,
+   *                                  for the recordSpaces that did not set their own
+   */
+  public RecordLayerOptions setCompressionThresholdBytes(int compressionThresholdBytes) {
+    this.compressionThresholdBytes = compressionThresholdBytes;
+    return this;
+  }
+
+  public int getImportParallelism() {
+    return importParallelism;
+  }
+
+  /**
+   * @param importParallelism number of batches of an import parsed and committed concurrently
+   */
+  public RecordLayerOptions setImportParallelism(int importParallelism) {
+    this.importParallelism = importParallelism;
+    return this;
+  }
+
+  public int getExportParallelism() {
+    return exportParallelism;
+  }
+
+  /**
+   * @param exportParallelism number of primary key ranges of an export scanned concurrently
+   */
+  public RecordLayerOptions setExportParallelism(int exportParallelism) {
+    this.exportParallelism = exportParallelism;
+    return this;
+  }
+
+  public int getQueryMaxParallelism() {
+    return queryMaxParallelism;
+  }
+
+  /**
+   * @param queryMaxParallelism max number of primary key ranges of a parallel query scanned concurrently
+   */
+  public RecordLayerOptions setQueryMaxParallelism(int queryMaxParallelism) {
+    this.queryMaxParallelism = queryMaxParallelism;
+    return this;
+  }
+
+  public int getQueryPartitionBufferSize() {
+    return queryPartitionBufferSize;
+  }
+
+  /**
+   * @param queryPartitionBufferSize max number of records buffered for each range of a parallel query
+   */
+  public RecordLayerOptions setQueryPartitionBufferSize(int queryPartitionBufferSize) {
+    this.queryPartitionBufferSize = queryPartitionBufferSize;
+    return this;
+  }
+
+  public long getIndexInlineBuildMaxRecords() {
+    return indexInlineBuildMaxRecords;
+  }
+
+  /**
+   * @param indexInlineBuildMaxRecords max number of records for which a new index is built in the transaction adding it,
+   *                                   bigger recordSpaces build it in the background
+   */
+  public RecordLayerOptions setIndexInlineBuildMaxRecords(long indexInlineBuildMaxRecords) {
+    this.indexInlineBuildMaxRecords = indexInlineBuildMaxRecords;
+    return this;
+  }
+
+  public int getIndexBuildRecordsPerSecond() {
+    return indexBuildRecordsPerSecond;
+  }
+
+  /**
+   * @param indexBuildRecordsPerSecond max number of records indexed per second by each background index build
+   */
+  public RecordLayerOptions setIndexBuildRecordsPerSecond(int indexBuildRecordsPerSecond) {
+    this.indexBuildRecordsPerSecond = indexBuildRecordsPerSecond;
+    return this;
+  }
+
+  public int getRankMaxRecords() {
+    return rankMaxRecords;
+  }
+
+  /**
+   * @param rankMaxRecords max number of records returned by a read of a RANK index
+   */
+  public RecordLayerOptions setRankMaxRecords(int rankMaxRecords) {
+    this.rankMaxRecords = rankMaxRecords;
+    return this;
+  }
+
+  public int getMultiGetMaxKeys() {
+    return multiGetMaxKeys;
+  }
+
+  /**
+   * @param multiGetMaxKeys max number of records read by a single MultiGet
+   */
+  public RecordLayerOptions setMultiGetMaxKeys(int multiGetMaxKeys) {
+    this.multiGetMaxKeys = multiGetMaxKeys;
+    return this;
+  }
+
+  public int getDeleteBatchSize() {
+    return deleteBatchSize;
+  }
+
+  /**
+   * @param deleteBatchSize max number of records deleted in a single transaction by a delete query
+   */
+  public RecordLayerOptions setDeleteBatchSize(int deleteBatchSize) {
+    this.deleteBatchSize = deleteBatchSize;
+    return this;
+  }
+
+  public int getWatchBatchSize() {
+    return watchBatchSize;
+  }
+
+  /**
+   * @param watchBatchSize max number of records sent in a single response of a watch
+   */
+  public RecordLayerOptions setWatchBatchSize(int watchBatchSize) {
+    this.watchBatchSize = watchBatchSize;
+    return this;
+  }
+
+  public long getWatchBatchDelayMs() {
+    return watchBatchDelayMs;
+  }
+
+  /**
+   * @param watchBatchDelayMs time a watch waits after being woken up, so that a burst of writes is read at once
+   */
+  public RecordLayerOptions setWatchBatchDelayMs(long watchBatchDelayMs) {
+    this.watchBatchDelayMs = watchBatchDelayMs;
+    return this;
+  }
+
+  public long getWatchPollIntervalMs() {
+    return watchPollIntervalMs;
+  }
+
+  /**
+   * @param watchPollIntervalMs time after which a watch reads the index again even if it was not woken up
+   */
+  public RecordLayerOptions setWatchPollIntervalMs(long watchPollIntervalMs) {
+    this.watchPollIntervalMs = watchPollIntervalMs;
+    return this;
+  }
+
+  public long getExpirationSweepIntervalMs() {
+    return expirationSweepIntervalMs;
+  }
+
+  /**
+   * @param expirationSweepIntervalMs time between two sweeps of the expired records, 0 to never sweep them
+   */
+  public RecordLayerOptions setExpirationSweepIntervalMs(long expirationSweepIntervalMs) {
+    this.expirationSweepIntervalMs = expirationSweepIntervalMs;
+    return this;
+  }
+
+  public int getExpirationBatchSize() {
+    return expirationBatchSize;
+  }
+
+  /**
+   * @param expirationBatchSize max number of expired records deleted in a single transaction
+   */
+  public RecordLayerOptions setExpirationBatchSize(int expirationBatchSize) {
+    this.expirationBatchSize = expirationBatchSize;
+    return this;
+  }
+
+  public int getExpirationRecordsPerSecond() {
+    return expirationRecordsPerSecond;
+  }
+
+  /**
+   * @param expirationRecordsPerSecond max number of expired records deleted per second by this record-store
+   */
+  public RecordLayerOptions setExpirationRecordsPerSecond(int expirationRecordsPerSecond) {
+    this.expirationRecordsPerSecond = expirationRecordsPerSecond;
+    return this;
+  }
+
+  public int getExpirationBacklogScanLimit() {
+    return expirationBacklogScanLimit;
+  }
+
+  /**
+   * @param expirationBacklogScanLimit max number of expired entries counted per recordType to estimate the backlog
+   */
+  public RecordLayerOptions setExpirationBacklogScanLimit(int expirationBacklogScanLimit) {
+    this.expirationBacklogScanLimit = expirationBacklogScanLimit;
+    return this;
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.metadata.expressions.FieldKeyExpression;
+import com.apple.foundationdb.record.metadata.expressions.KeyExpression;
+import com.apple.foundationdb.record.metadata.expressions.NestingKeyExpression;
+import com.apple.foundationdb.record.metadata.expressions.ThenKeyExpression;
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Trims the records returned by a query to its required results.
+ * <p>
+ * Records read through a covering index plan are already partial, but they also hold the other
+ * fields of the index entry, so they go through the projection too. Nested fields are returned
+ * with their whole parent field.
+ */
+class RecordProjection {
+  static final RecordProjection ALL_FIELDS = new RecordProjection(null);
+
+  // null to return the whole records
+  private final Set<String> fields;
+
+  private RecordProjection(Set<String> fields) {
+    this.fields = fields;
+  }
+
+  static RecordProjection of(RecordQuery query) {
+    List<KeyExpression> requiredResults = query.getRequiredResults();
+    if (requiredResults == null || requiredResults.isEmpty()) {
+      return ALL_FIELDS;
+    }
+    Set<String> fields = new HashSet<>();
+    for (KeyExpression requiredResult : requiredResults) {
+      if (!addFields(requiredResult, fields)) {
+        return ALL_FIELDS;
+      }
+    }
+    return new RecordProjection(fields);
+  }
+
+  /**
+   * @return false if the expression is not made of fields, in which case the records are not trimmed
+   */
+  private static boolean addFields(KeyExpression expression, Set<String> fields) {
+    if (expression instanceof FieldKeyExpression) {
+      fields.add(((FieldKeyExpression) expression).getFieldName());
+      return true;
+    }
+    if (expression instanceof NestingKeyExpression) {
+      fields.add(((NestingKeyExpression) expression).getParent().getFieldName());
+      return true;
+    }
+    if (expression instanceof ThenKeyExpression) {
+      for (KeyExpression child : ((ThenKeyExpression) expression).getChildren()) {
+        if (!addFields(child, fields)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  Message apply(Message record) {
+    if (fields == null) {
+      return record;
+    }
+    Descriptors.Descriptor descriptor = record.getDescriptorForType();
+    DynamicMessage.Builder projected = DynamicMessage.newBuilder(descriptor);
+    for (String field : fields) {
+      Descriptors.FieldDescriptor fieldDescriptor = descriptor.findFieldByName(field);
+      if (fieldDescriptor == null) {
+        continue;
+      }
+      if (fieldDescriptor.isRepeated() ? record.getRepeatedFieldCount(fieldDescriptor) > 0 : record.hasField(fieldDescriptor)) {
+        projected.setField(fieldDescriptor, record.getField(fieldDescriptor));
+      }
+    }
+    return projected.build();
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+
+import javax.crypto.SecretKey;
+import java.util.Objects;
+
+/**
+ * Serializers shared by the record stores, one per encryption key and compression setting,
+ * so that the JCE machinery is not set up again for each request.
+ */
+public class RecordSerializers {
+  private static final long MAXIMUM_SIZE = 1000;
+
+  private final int defaultCompressionLevel;
+  private final int defaultCompressionThreshold;
+  private final Cache<SerializerKey, EncryptedRecordSerializer> cache = CacheBuilder.newBuilder()
+    .maximumSize(MAXIMUM_SIZE)
+    .build();
+
+  public RecordSerializers(int defaultCompressionLevel, int defaultCompressionThreshold) {
+    this.defaultCompressionLevel = defaultCompressionLevel;
+    this.defaultCompressionThreshold = defaultCompressionThreshold;
+  }
+
+  public EncryptedRecordSerializer get(SecretKey key, RecordStoreProtocol.CompressionOptions compression) {
+    int level = compression.getDisabled() ? 0 :
+      compression.getLevel() > 0 ? compression.getLevel() : defaultCompressionLevel;
+    int threshold = compression.getThresholdBytes() > 0 ? compression.getThresholdBytes() : defaultCompressionThreshold;
+
+    return cache.asMap().computeIfAbsent(new SerializerKey(key, level, threshold),
+      k -> new EncryptedRecordSerializer(k.key, k.compressionLevel, k.compressionThreshold));
+  }
+
+  private static class SerializerKey {
+    private final SecretKey key;
+    private final int compressionLevel;
+    private final int compressionThreshold;
+
+    private SerializerKey(SecretKey key, int compressionLevel, int compressionThreshold) {
+      this.key = key;
+      this.compressionLevel = compressionLevel;
+      this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      SerializerKey that = (SerializerKey) o;
+      return compressionLevel == that.compressionLevel &&
+        compressionThreshold == that.compressionThreshold &&
+        key.equals(that.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(key, compressionLevel, compressionThreshold);
+    }
+  }
+}
@@ -29,6 +29,8 @@ public class RecordStoreKeySpace {
           .addSubdirectory(new KeySpaceDirectory("recordSpace", KeySpaceDirectory.KeyType.STRING)
             .addSubdirectory(new KeySpaceDirectory("metadata", KeySpaceDirectory.KeyType.STRING, "m"))
             .addSubdirectory(new KeySpaceDirectory("data", KeySpaceDirectory.KeyType.STRING, "d"))
+            .addSubdirectory(new KeySpaceDirectory("imports", KeySpaceDirectory.KeyType.STRING, "i"))
+            .addSubdirectory(new KeySpaceDirectory("changes", KeySpaceDirectory.KeyType.STRING, "c"))
           )));
 
   public static KeySpacePath getMetaDataKeySpacePath(String tenant, String recordSpace) {
@@ -45,6 +47,14 @@ public class RecordStoreKeySpace {
     return getKeySpacePath(tenant, recordSpace, "data");
   }
 
+  public static KeySpacePath getImportsKeySpacePath(String tenant, String recordSpace) {
+    return getKeySpacePath(tenant, recordSpace, "imports");
+  }
+
+  public static KeySpacePath getChangesKeySpacePath(String tenant, String recordSpace) {
+    return getKeySpacePath(tenant, recordSpace, "changes");
+  }
+
   private static KeySpacePath getKeySpacePath(String tenant, String env, String subDirectory) {
     return RS_KEY_SPACE
       .path("application", APPLICATION_NAME)
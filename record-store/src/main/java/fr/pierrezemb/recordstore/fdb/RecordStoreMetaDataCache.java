@@ -0,0 +1,217 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.record.RecordMetaData;
+import com.apple.foundationdb.record.provider.foundationdb.FDBMetaDataStore;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContext;
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoreTimer;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.apple.foundationdb.tuple.Versionstamp;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.protobuf.InvalidProtocolBufferException;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Size-bounded cache of the {@link RecordMetaData} of each tenant/recordSpace.
+ * <p>
+ * Every schema upsert writes a versionstamp next to the metadata. A cached {@link RecordMetaData} is
+ * only used when the versionstamp read in the current transaction is the one it was loaded with,
+ * so schema changes and recreated recordSpaces are never served from a stale entry. RecordSpaces created before
+ * the versionstamp existed get one the first time their metadata is loaded, and are cached from then on.
+ * The compression and expiration options of the recordSpace are saved and cached along with its metadata.
+ */
+public class RecordStoreMetaDataCache {
+  static final Tuple VERSIONSTAMP_KEY = Tuple.from("versionstamp");
+  private static final Tuple COMPRESSION_KEY = Tuple.from("compression");
+  private static final Tuple TIME_TO_LIVE_KEY = Tuple.from("ttl");
+
+  private final Cache<Tuple, CachedMetaData> cache;
+  // versionstamp of the metadata handed out, for the caches keyed on the version of the metadata
+  private final Cache<RecordMetaData, byte[]> versionstamps = CacheBuilder.newBuilder().weakKeys().build();
+
+  public RecordStoreMetaDataCache(long maximumSize, FDBStoreTimer timer) {
+    cache = CacheBuilder.newBuilder()
+      .maximumSize(maximumSize)
+      .removalListener((RemovalListener<Tuple, CachedMetaData>) notification -> {
+        if (notification.wasEvicted()) {
+          timer.increment(RecordStoreMetrics.Counts.METADATA_CACHE_EVICTION);
+        }
+      })
+      .build();
+  }
+
+  public RecordMetaData getRecordMetaData(FDBRecordContext context, String tenant, String recordSpace) {
+    return context.asyncToSync(FDBStoreTimer.Waits.WAIT_LOAD_META_DATA, getRecordMetaDataAsync(context, tenant, recordSpace));
+  }
+
+  public CompletableFuture<RecordMetaData> getRecordMetaDataAsync(FDBRecordContext context, String tenant, String recordSpace) {
+    return getRecordSpaceAsync(context, tenant, recordSpace).thenApply(RecordSpaceMetaData::getMetaData);
+  }
+
+  public CompletableFuture<RecordSpaceMetaData> getRecordSpaceAsync(FDBRecordContext context, String tenant, String recordSpace) {
+    Tuple cacheKey = Tuple.from(tenant, recordSpace);
+    return RecordStoreKeySpace.getMetaDataKeySpacePath(tenant, recordSpace).toSubspaceAsync(context)
+      .thenCompose(subspace -> context.ensureActive().get(subspace.pack(VERSIONSTAMP_KEY))
+        .thenCompose(versionstamp -> {
+          CachedMetaData cached = cache.getIfPresent(cacheKey);
+          if (versionstamp != null && cached != null && Arrays.equals(versionstamp, cached.versionstamp)) {
+            context.increment(RecordStoreMetrics.Counts.METADATA_CACHE_HIT);
+            return CompletableFuture.completedFuture(cached.recordSpace);
+          }
+
+          context.increment(RecordStoreMetrics.Counts.METADATA_CACHE_MISS);
+          FDBMetaDataStore metaDataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenant, recordSpace);
+          CompletableFuture<byte[]> compression = context.ensureActive().get(subspace.pack(COMPRESSION_KEY));
+          CompletableFuture<byte[]> timeToLive = context.ensureActive().get(subspace.pack(TIME_TO_LIVE_KEY));
+          return metaDataStore.getRecordMetaDataAsync(true)
+            .thenCombine(CompletableFuture.allOf(compression, timeToLive), (metaData, v) -> {
+              RecordSpaceMetaData loaded = new RecordSpaceMetaData(versionstamp, metaData, parseCompression(compression.join()), parseTimeToLive(timeToLive.join()));
+              if (versionstamp != null) {
+                cache.put(cacheKey, new CachedMetaData(versionstamp, loaded));
+                versionstamps.put(metaData, versionstamp);
+              } else {
+                // the versionstamp is only known once committed, the next load will be cached.
+                // An upsert committed meanwhile wrote the key we read, so this transaction conflicts instead of stamping stale metadata
+                stamp(context, subspace);
+              }
+              return loaded;
+            });
+        }));
+  }
+
+  /**
+   * read the expiration options of a recordSpace, without loading its metadata
+   */
+  public CompletableFuture<RecordStoreProtocol.TimeToLiveOptions> getTimeToLiveAsync(FDBRecordContext context, String tenant, String recordSpace) {
+    return RecordStoreKeySpace.getMetaDataKeySpacePath(tenant, recordSpace).toSubspaceAsync(context)
+      .thenCompose(subspace -> context.ensureActive().get(subspace.pack(TIME_TO_LIVE_KEY)))
+      .thenApply(RecordStoreMetaDataCache::parseTimeToLive);
+  }
+
+  /**
+   * save the metadata and stamp it, so that every cached copy of the previous one is discarded
+   */
+  public void saveRecordMetaData(FDBRecordContext context, String tenant, String recordSpace, RecordMetaData metaData,
+                                 RecordStoreProtocol.CompressionOptions compression, RecordStoreProtocol.TimeToLiveOptions timeToLive) {
+    FDBMetaDataStore metaDataStore = RecordStoreMetaDataStore.createMetadataStore(context, tenant, recordSpace);
+    metaDataStore.saveRecordMetaData(metaData.toProto());
+
+    Subspace subspace = RecordStoreKeySpace.getMetaDataKeySpacePath(tenant, recordSpace).toSubspace(context);
+    context.ensureActive().set(subspace.pack(COMPRESSION_KEY), compression.toByteArray());
+    context.ensureActive().set(subspace.pack(TIME_TO_LIVE_KEY), timeToLive.toByteArray());
+    stamp(context, subspace);
+
+    context.addAfterCommit(() -> invalidate(tenant, recordSpace));
+  }
+
+  private static void stamp(FDBRecordContext context, Subspace subspace) {
+    context.ensureActive().mutate(
+      MutationType.SET_VERSIONSTAMPED_VALUE,
+      subspace.pack(VERSIONSTAMP_KEY),
+      Tuple.from(Versionstamp.incomplete()).packWithVersionstamp());
+  }
+
+  /**
+   * @return the versionstamp the metadata was loaded with, or null if it was not stamped yet
+   */
+  public byte[] getVersionstamp(RecordMetaData metaData) {
+    return versionstamps.getIfPresent(metaData);
+  }
+
+  public void invalidate(String tenant, String recordSpace) {
+    cache.invalidate(Tuple.from(tenant, recordSpace));
+  }
+
+  private static RecordStoreProtocol.CompressionOptions parseCompression(byte[] compression) {
+    if (compression == null) {
+      return RecordStoreProtocol.CompressionOptions.getDefaultInstance();
+    }
+    try {
+      return RecordStoreProtocol.CompressionOptions.parseFrom(compression);
+    } catch (InvalidProtocolBufferException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  private static RecordStoreProtocol.TimeToLiveOptions parseTimeToLive(byte[] timeToLive) {
+    if (timeToLive == null) {
+      return RecordStoreProtocol.TimeToLiveOptions.getDefaultInstance();
+    }
+    try {
+      return RecordStoreProtocol.TimeToLiveOptions.parseFrom(timeToLive);
+    } catch (InvalidProtocolBufferException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  /**
+   * what is needed to open the record store of a recordSpace
+   */
+  public static class RecordSpaceMetaData {
+    private final byte[] versionstamp;
+    private final RecordMetaData metaData;
+    private final RecordStoreProtocol.CompressionOptions compression;
+    private final RecordStoreProtocol.TimeToLiveOptions timeToLive;
+
+    private RecordSpaceMetaData(byte[] versionstamp, RecordMetaData metaData, RecordStoreProtocol.CompressionOptions compression,
+                                RecordStoreProtocol.TimeToLiveOptions timeToLive) {
+      this.versionstamp = versionstamp;
+      this.metaData = metaData;
+      this.compression = compression;
+      this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the versionstamp of the last upsert, unique to each version of the metadata even across recreated
+     * recordSpaces, or null if the recordSpace was not stamped yet
+     */
+    public byte[] getVersionstamp() {
+      return versionstamp;
+    }
+
+    public RecordMetaData getMetaData() {
+      return metaData;
+    }
+
+    public RecordStoreProtocol.CompressionOptions getCompression() {
+      return compression;
+    }
+
+    public RecordStoreProtocol.TimeToLiveOptions getTimeToLive() {
+      return timeToLive;
+    }
+  }
+
+  private static class CachedMetaData {
+    private final byte[] versionstamp;
+    private final RecordSpaceMetaData recordSpace;
+
+    private CachedMetaData(byte[] versionstamp, RecordSpaceMetaData recordSpace) {
+      this.versionstamp = versionstamp;
+      this.recordSpace = recordSpace;
+    }
+  }
+}
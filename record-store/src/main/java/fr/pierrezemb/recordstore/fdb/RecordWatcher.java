@@ -0,0 +1,283 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.record.provider.foundationdb.FDBIndexedRecord;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContext;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordVersion;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the records of a recordType saved after a versionstamp, following its VERSION index.
+ * <p>
+ * Transactions saving records add one to a change key of their recordSpace. Once a watch has sent every
+ * record, it sets an FDB watch on that key in the transaction of its last read, and sleeps until a later
+ * commit changes the key instead of polling the index. It then waits a little so that a burst of writes
+ * is read as a few batches, and resumes from the versionstamp of the last record it sent.
+ */
+class RecordWatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecordWatcher.class);
+  private static final byte[] ONE = ByteArrayUtil.encodeInt(1);
+
+  private final FDBMetricsStoreTimer timer;
+  private final BatchReader reader;
+  private final int batchSize;
+  private final long batchDelayMs;
+  private final long pollIntervalMs;
+  private final StreamObserver<RecordStoreProtocol.WatchResponse> observer;
+  private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+  private byte[] versionstamp;
+  private long sent = 0;
+  private boolean first = true;
+  private boolean running = false;
+  private boolean finished = false;
+  private CompletableFuture<Void> wake;
+  private volatile boolean cancelled = false;
+
+  RecordWatcher(FDBMetricsStoreTimer timer, BatchReader reader, int batchSize, long batchDelayMs, long pollIntervalMs,
+                StreamObserver<RecordStoreProtocol.WatchResponse> observer) {
+    this.timer = timer;
+    this.reader = reader;
+    this.batchSize = batchSize;
+    this.batchDelayMs = batchDelayMs;
+    this.pollIntervalMs = pollIntervalMs;
+    this.observer = observer;
+  }
+
+  /**
+   * notify the watches of the recordSpace once the transaction commits
+   */
+  static CompletableFuture<Void> markChanged(FDBRecordContext context, String tenantID, String recordSpace) {
+    // an atomic add does not conflict with the other writers
+    return RecordStoreKeySpace.getChangesKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context)
+      .thenAccept(subspace -> context.ensureActive().mutate(MutationType.ADD, subspace.pack(), ONE));
+  }
+
+  /**
+   * @return a future completed when a transaction committed after this one marks the recordSpace as changed
+   */
+  static CompletableFuture<CompletableFuture<Void>> watchChanges(FDBRecordContext context, String tenantID, String recordSpace) {
+    return RecordStoreKeySpace.getChangesKeySpacePath(tenantID, recordSpace).toSubspaceAsync(context)
+      .thenApply(subspace -> context.ensureActive().watch(subspace.pack()));
+  }
+
+  static RecordStoreProtocol.WatchedRecord toWatchedRecord(FDBIndexedRecord<Message> record) {
+    // entries of a VERSION index start with the version of the record
+    FDBRecordVersion version = FDBRecordVersion.fromVersionstamp(record.getIndexEntry().getKey().getVersionstamp(0));
+    return RecordStoreProtocol.WatchedRecord.newBuilder()
+      .setRecord(record.getRecord().toByteString())
+      .setVersionstamp(ByteString.copyFrom(version.toBytes()))
+      .build();
+  }
+
+  /**
+   * start streaming, until the call is cancelled or a read fails
+   *
+   * @param versionstamp versionstamp of the last record received, null to start from the oldest record
+   */
+  CompletableFuture<Void> start(byte[] versionstamp) {
+    this.versionstamp = versionstamp;
+    if (observer instanceof ServerCallStreamObserver) {
+      ((ServerCallStreamObserver<?>) observer).setOnCancelHandler(() -> {
+        cancelled = true;
+        CompletableFuture<Void> sleeping;
+        synchronized (this) {
+          sleeping = wake;
+        }
+        if (sleeping != null) {
+          sleeping.complete(null);
+        }
+        resume();
+      });
+    }
+    if (observer instanceof CallStreamObserver) {
+      ((CallStreamObserver<?>) observer).setOnReadyHandler(this::resume);
+    }
+
+    synchronized (this) {
+      running = true;
+    }
+    read();
+    return done;
+  }
+
+  private void resume() {
+    synchronized (this) {
+      if (running || finished) {
+        return;
+      }
+      running = true;
+    }
+    read();
+  }
+
+  private void read() {
+    if (cancelled) {
+      LOGGER.debug("watch cancelled after {} records", sent);
+      finished = true;
+      done.cancel(false);
+      return;
+    }
+
+    if (!isReady()) {
+      synchronized (this) {
+        running = false;
+      }
+      // the observer may have become ready before running was reset
+      if (isReady()) {
+        resume();
+      }
+      return;
+    }
+
+    try {
+      reader.read(versionstamp, batchSize).whenComplete((batch, err) -> {
+        if (err != null) {
+          fail(err);
+          return;
+        }
+        try {
+          handle(batch);
+        } catch (RuntimeException e) {
+          fail(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void handle(Batch batch) {
+    if (batch.last != null) {
+      versionstamp = batch.last;
+    }
+    if (first || !batch.records.isEmpty()) {
+      first = false;
+      sent += batch.records.size();
+      timer.increment(RecordStoreMetrics.Counts.WATCH_RECORD, batch.records.size());
+      RecordStoreProtocol.WatchResponse.Builder response = RecordStoreProtocol.WatchResponse.newBuilder()
+        .addAllRecords(batch.records);
+      if (versionstamp != null) {
+        response.setVersionstamp(ByteString.copyFrom(versionstamp));
+      }
+      observer.onNext(response.build());
+    }
+
+    if (batch.changed == null) {
+      // a full batch, more records may be waiting
+      read();
+      return;
+    }
+    sleep(batch.changed);
+  }
+
+  /**
+   * wait for the next change of the recordSpace, or for the poll interval if the FDB watch failed or missed it
+   */
+  private void sleep(CompletableFuture<Void> recordSpaceChanged) {
+    CompletableFuture<Void> sleeping = new CompletableFuture<>();
+    synchronized (this) {
+      wake = sleeping;
+    }
+
+    recordSpaceChanged.whenComplete((v, err) -> {
+      if (err == null) {
+        timer.increment(RecordStoreMetrics.Counts.WATCH_WAKEUP);
+        // waiting a little gathers the records of a burst of commits in the same batch
+        CompletableFuture.delayedExecutor(batchDelayMs, TimeUnit.MILLISECONDS).execute(() -> sleeping.complete(null));
+      } else if (!cancelled && !sleeping.isDone()) {
+        LOGGER.warn("could not watch changes, reading again in {}ms: {}", pollIntervalMs, err.getMessage());
+      }
+    });
+    sleeping.completeOnTimeout(null, pollIntervalMs, TimeUnit.MILLISECONDS);
+    if (cancelled) {
+      sleeping.complete(null);
+    }
+
+    sleeping.thenRun(() -> {
+      // releases the FDB watch when woken up by the poll interval or a cancellation
+      recordSpaceChanged.cancel(true);
+      synchronized (this) {
+        wake = null;
+      }
+      read();
+    });
+  }
+
+  private boolean isReady() {
+    return !(observer instanceof CallStreamObserver) || ((CallStreamObserver<?>) observer).isReady();
+  }
+
+  private void fail(Throwable t) {
+    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    if (finished) {
+      return;
+    }
+    finished = true;
+    LOGGER.error("watch failed after {} records: {}", sent, cause.getMessage());
+    if (!cancelled) {
+      observer.onError(cause instanceof StatusRuntimeException ?
+        cause : new StatusRuntimeException(Status.INTERNAL.withDescription(cause.getMessage())));
+    }
+    done.completeExceptionally(cause);
+  }
+
+  /**
+   * reads the records following a versionstamp in a single transaction
+   */
+  interface BatchReader {
+    /**
+     * @param versionstamp versionstamp of the last record sent, null for the first read
+     * @param limit        max number of records to read
+     */
+    CompletableFuture<Batch> read(byte[] versionstamp, int limit);
+  }
+
+  static class Batch {
+    private final List<RecordStoreProtocol.WatchedRecord> records;
+    private final byte[] last;
+    private final CompletableFuture<Void> changed;
+
+    /**
+     * @param last    versionstamp to resume from, null to keep the current one
+     * @param changed watch of the changes set in the transaction of the read, null if the batch is full
+     */
+    Batch(List<RecordStoreProtocol.WatchedRecord> records, byte[] last, CompletableFuture<Void> changed) {
+      this.records = records;
+      this.last = last;
+      this.changed = changed;
+    }
+  }
+}
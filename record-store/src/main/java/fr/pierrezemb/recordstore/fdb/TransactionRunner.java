@@ -0,0 +1,112 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.provider.foundationdb.FDBDatabase;
+import com.apple.foundationdb.record.provider.foundationdb.FDBDatabaseRunner;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContext;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContextConfig;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Runs every transaction of the {@link RecordLayer}.
+ * <p>
+ * Transactions are retried on retriable errors, cancelled after the configured timeout, always closed,
+ * and counted in the open transactions gauge. Read-only operations may reuse a recent read version
+ * instead of asking the cluster for a new one, if a staleness is configured.
+ */
+class TransactionRunner {
+  private final FDBDatabase db;
+  private final FDBMetricsStoreTimer timer;
+  private final RecordLayerOptions options;
+  private final FDBDatabase.WeakReadSemantics weakReadSemantics;
+
+  TransactionRunner(FDBDatabase db, FDBMetricsStoreTimer timer, RecordLayerOptions options) {
+    this.db = db;
+    this.timer = timer;
+    this.options = options;
+
+    if (options.getReadVersionStalenessMs() > 0) {
+      db.setTrackLastSeenVersion(true);
+      weakReadSemantics = new FDBDatabase.WeakReadSemantics(0L, options.getReadVersionStalenessMs(), false);
+    } else {
+      weakReadSemantics = null;
+    }
+  }
+
+  /**
+   * run the operation in a transaction that is committed once the returned future completes
+   */
+  <T> CompletableFuture<T> runAsync(String tenantID, Function<FDBRecordContext, CompletableFuture<T>> operation) {
+    return runAsync(tenantID, null, operation);
+  }
+
+  /**
+   * run a read-only operation, which may see a slightly stale state of the database
+   */
+  <T> CompletableFuture<T> readAsync(String tenantID, Function<FDBRecordContext, CompletableFuture<T>> operation) {
+    return runAsync(tenantID, weakReadSemantics, operation);
+  }
+
+  /**
+   * open a read-only transaction, that must be given back to {@link #close(FDBRecordContext)}
+   */
+  FDBRecordContext openReadContext(String tenantID) {
+    FDBRecordContext context = db.openContext(FDBRecordContextConfig.newBuilder()
+      .setMdcContext(mdc(tenantID))
+      .setTimer(timer)
+      .setWeakReadSemantics(weakReadSemantics)
+      .setTransactionTimeoutMillis(options.getTransactionTimeoutMs())
+      .build());
+    timer.transactionOpened();
+    return context;
+  }
+
+  void close(FDBRecordContext context) {
+    context.close();
+    timer.transactionClosed();
+  }
+
+  private <T> CompletableFuture<T> runAsync(String tenantID, FDBDatabase.WeakReadSemantics readSemantics, Function<FDBRecordContext, CompletableFuture<T>> operation) {
+    FDBDatabaseRunner runner = db.newRunner(timer, mdc(tenantID), readSemantics);
+    runner.setMaxAttempts(options.getTransactionMaxAttempts());
+    runner.setTransactionTimeoutMillis(options.getTransactionTimeoutMs());
+
+    // the post transaction handler is called before the runner closes each attempt
+    CompletableFuture<T> result = runner.runAsync(context -> {
+      timer.transactionOpened();
+      try {
+        return operation.apply(context);
+      } catch (RuntimeException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }, (value, err) -> {
+      timer.transactionClosed();
+      return Pair.of(value, err);
+    });
+    return result.whenComplete((value, err) -> runner.close());
+  }
+
+  private static Map<String, String> mdc(String tenantID) {
+    return Collections.singletonMap("tenant", tenantID);
+  }
+}
@@ -21,20 +21,67 @@ import io.vertx.micrometer.backends.BackendRegistries;
 
 import javax.annotation.Nonnull;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FDBMetricsStoreTimer extends FDBStoreTimer {
 
   // I did not find how to enable properly metrics when firing tests
   // so trying to use metrics without SPI enabled triggers NPE
   private final boolean export;
+  private final AtomicLong openTransactions = new AtomicLong();
+  private final AtomicLong expirationBacklog = new AtomicLong();
+  private final AtomicLong expiredPerSecond = new AtomicLong();
 
   public FDBMetricsStoreTimer(boolean enableExport) {
     export = enableExport;
     if (export) {
       Metrics.addRegistry(BackendRegistries.getDefaultNow());
+      Metrics.gauge(buildClassname("open_transactions"), openTransactions);
+      Metrics.gauge(buildClassname("expiration_backlog"), expirationBacklog);
+      Metrics.gauge(buildClassname("expired_per_second"), expiredPerSecond);
     }
   }
 
+  /**
+   * Record that a transaction was opened. A gauge that keeps growing is a leak of transactions.
+   */
+  public void transactionOpened() {
+    openTransactions.incrementAndGet();
+  }
+
+  /**
+   * Record that a transaction was closed.
+   */
+  public void transactionClosed() {
+    openTransactions.decrementAndGet();
+  }
+
+  public long getOpenTransactions() {
+    return openTransactions.get();
+  }
+
+  /**
+   * Record the number of expired records waiting to be deleted, estimated at the start of a sweep.
+   */
+  public void setExpirationBacklog(long backlog) {
+    expirationBacklog.set(backlog);
+  }
+
+  public long getExpirationBacklog() {
+    return expirationBacklog.get();
+  }
+
+  /**
+   * Record the rate at which the last sweep deleted expired records.
+   */
+  public void setExpiredPerSecond(long expired) {
+    expiredPerSecond.set(expired);
+  }
+
+  public long getExpiredPerSecond() {
+    return expiredPerSecond.get();
+  }
+
   /**
    * Record the amount of time each element in a set of events took to run.
    * This applies the same time difference to each event in the set.
@@ -98,6 +145,18 @@ public class FDBMetricsStoreTimer extends FDBStoreTimer {
     super.increment(event);
   }
 
+  /**
+   * Record the number of transactions a query needed to stream all its records.
+   * It is exported as a distribution, so that queries chaining many transactions can be spotted.
+   *
+   * @param transactions the number of transactions used by the query
+   */
+  public void recordQueryTransactions(long transactions) {
+    if (export) {
+      Metrics.summary(buildClassname("query_transactions")).record(transactions);
+    }
+  }
+
   private String buildClassname(String name) {
     return "record_layer_" + name.toLowerCase();
   }
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb.metrics;
+
+import com.apple.foundationdb.record.provider.common.StoreTimer;
+
+/**
+ * Events recorded by the record-store itself, on top of the ones provided by the Record Layer.
+ * They are going through the {@link FDBMetricsStoreTimer}, so they are exported like the others.
+ */
+public class RecordStoreMetrics {
+
+  public enum Counts implements StoreTimer.Count {
+    METADATA_CACHE_HIT("metadata cache hit"),
+    METADATA_CACHE_MISS("metadata cache miss"),
+    METADATA_CACHE_EVICTION("metadata cache eviction"),
+    QUERY_PLAN_CACHE_HIT("query plan cache hit"),
+    QUERY_PLAN_CACHE_MISS("query plan cache miss"),
+    QUERY_PLAN_CACHE_EVICTION("query plan cache eviction"),
+    QUERY_TRANSACTION("query transaction"),
+    QUERY_CHAINED_TRANSACTION("query chained transaction"),
+    QUERY_PARALLEL("parallel query"),
+    QUERY_PARALLEL_PARTITION("parallel query partition"),
+    QUERY_COVERING_INDEX("covering index query"),
+    DELETE_RECORD("delete record"),
+    DELETE_TRANSACTION("delete transaction"),
+    DELETE_WHERE("delete by primary key prefix"),
+    WATCH_WAKEUP("watch wakeup"),
+    WATCH_RECORD("watched record"),
+    EXPIRED_RECORD("expired record"),
+    EXPIRATION_TRANSACTION("expiration transaction"),
+    BULK_LOAD_RECORD("bulk load record"),
+    BULK_LOAD_FAILED_RECORD("bulk load failed record"),
+    BULK_LOAD_TRANSACTION("bulk load transaction"),
+    IMPORT_RECORD("import record"),
+    IMPORT_FAILED_RECORD("import failed record"),
+    IMPORT_CHECKPOINT("import checkpoint"),
+    EXPORT_RECORD("export record"),
+    EXPORT_TRANSACTION("export transaction"),
+    INDEX_BUILD_STARTED("index build started"),
+    INDEX_BUILD_COMPLETED("index build completed"),
+    INDEX_BUILD_FAILED("index build failed"),
+    AUTH_TOKEN_CACHE_HIT("auth token cache hit"),
+    AUTH_TOKEN_CACHE_MISS("auth token cache miss");
+
+    private final String title;
+
+    Counts(String title) {
+      this.title = title;
+    }
+
+    @Override
+    public String title() {
+      return title;
+    }
+
+    @Override
+    public boolean isSize() {
+      return false;
+    }
+  }
+
+  public enum Events implements StoreTimer.Event {
+    AUTH_TOKEN_VERIFICATION("auth token verification");
+
+    private final String title;
+
+    Events(String title) {
+      this.title = title;
+    }
+
+    @Override
+    public String title() {
+      return title;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.graphql;
+
+import com.apple.foundationdb.record.RecordMetaData;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import graphql.ExecutionInput;
+import graphql.GraphQL;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Size-bounded cache of the {@link GraphQL} engine of each tenant/recordSpace.
+ * <p>
+ * An engine is reused as long as the metadata of the recordSpace has the versionstamp it was generated with,
+ * which changes at each schema upsert, so reloading the same metadata does not regenerate the engine. Each engine also keeps the parsed and validated documents of the queries it already ran.
+ */
+public class GraphQLCache {
+  private final Cache<Tuple, CachedGraphQL> cache;
+  private final long documentCacheSize;
+  private final RuntimeWiring runtimeWiring;
+
+  public GraphQLCache(long maximumSize, long documentCacheSize, RuntimeWiring runtimeWiring) {
+    this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    this.documentCacheSize = documentCacheSize;
+    this.runtimeWiring = runtimeWiring;
+  }
+
+  /**
+   * @param versionstamp versionstamp of the metadata, null if it has none yet and cannot be cached
+   */
+  public GraphQL get(String tenant, String recordSpace, byte[] versionstamp, RecordMetaData metaData) {
+    if (versionstamp == null) {
+      return createGraphQL(metaData);
+    }
+    return cache.asMap().compute(Tuple.from(tenant, recordSpace), (key, cached) ->
+      cached != null && Arrays.equals(cached.versionstamp, versionstamp) ? cached : new CachedGraphQL(versionstamp, createGraphQL(metaData))
+    ).graphQL;
+  }
+
+  private GraphQL createGraphQL(RecordMetaData metaData) {
+    String schema = GraphQLSchemaGenerator.generate(metaData);
+    TypeDefinitionRegistry typeDefinitionRegistry = new SchemaParser().parse(schema);
+    GraphQLSchema graphQLSchema = new SchemaGenerator().makeExecutableSchema(typeDefinitionRegistry, runtimeWiring);
+
+    GraphQL.Builder builder = GraphQL.newGraphQL(graphQLSchema);
+    if (documentCacheSize > 0) {
+      builder.preparsedDocumentProvider(new CachedDocumentProvider(documentCacheSize));
+    }
+    return builder.build();
+  }
+
+  /**
+   * documents are validated against the schema, so each engine gets its own cache
+   */
+  private static class CachedDocumentProvider implements PreparsedDocumentProvider {
+    private final Cache<String, PreparsedDocumentEntry> documents;
+
+    private CachedDocumentProvider(long maximumSize) {
+      documents = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    @Override
+    public PreparsedDocumentEntry getDocument(ExecutionInput executionInput, Function<ExecutionInput, PreparsedDocumentEntry> parseAndValidateFunction) {
+      return documents.asMap().computeIfAbsent(executionInput.getQuery(), query -> parseAndValidateFunction.apply(executionInput));
+    }
+  }
+
+  private static class CachedGraphQL {
+    private final byte[] versionstamp;
+    private final GraphQL graphQL;
+
+    private CachedGraphQL(byte[] versionstamp, GraphQL graphQL) {
+      this.versionstamp = versionstamp;
+      this.graphQL = graphQL;
+    }
+  }
+}
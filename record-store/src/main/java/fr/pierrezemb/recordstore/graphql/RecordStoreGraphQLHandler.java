@@ -15,18 +15,14 @@
  */
 package fr.pierrezemb.recordstore.graphql;
 
-import com.apple.foundationdb.record.RecordMetaData;
 import com.apple.foundationdb.record.query.RecordQuery;
+import fr.pierrezemb.recordstore.Constants;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
 import fr.pierrezemb.recordstore.query.GraphQLQueryGenerator;
 import graphql.ExecutionInput;
 import graphql.GraphQL;
 import graphql.schema.DataFetchingEnvironment;
-import graphql.schema.GraphQLSchema;
 import graphql.schema.idl.RuntimeWiring;
-import graphql.schema.idl.SchemaGenerator;
-import graphql.schema.idl.SchemaParser;
-import graphql.schema.idl.TypeDefinitionRegistry;
 import io.vertx.core.Context;
 import io.vertx.core.Promise;
 import io.vertx.core.buffer.Buffer;
@@ -43,8 +39,6 @@ import io.vertx.ext.web.handler.graphql.impl.GraphQLBatch;
 import io.vertx.ext.web.handler.graphql.impl.GraphQLInput;
 import io.vertx.ext.web.handler.graphql.impl.GraphQLQuery;
 import org.dataloader.DataLoaderRegistry;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Locale;
@@ -63,19 +57,33 @@ import static java.util.stream.Collectors.toList;
  * Taken from https://github.com/vert-x3/vertx-web/blob/3.9/vertx-web-graphql/src/main/java/io/vertx/ext/web/handler/graphql/impl/GraphQLHandlerImpl.java
  */
 public class RecordStoreGraphQLHandler implements GraphQLHandler {
-  private static final Logger LOGGER = LoggerFactory.getLogger(RecordStoreGraphQLHandler.class);
-
   private static final Function<RoutingContext, Object> DEFAULT_QUERY_CONTEXT_FACTORY = rc -> rc;
   private static final Function<RoutingContext, DataLoaderRegistry> DEFAULT_DATA_LOADER_REGISTRY_FACTORY = rc -> null;
   private static final Function<RoutingContext, Locale> DEFAULT_LOCALE_FACTORY = rc -> null;
   private final RecordLayer recordLayer;
+  private final GraphQLCache graphQLCache;
 
   private Function<RoutingContext, Object> queryContextFactory = DEFAULT_QUERY_CONTEXT_FACTORY;
   private Function<RoutingContext, DataLoaderRegistry> dataLoaderRegistryFactory = DEFAULT_DATA_LOADER_REGISTRY_FACTORY;
   private Function<RoutingContext, Locale> localeFactory = DEFAULT_LOCALE_FACTORY;
 
   public RecordStoreGraphQLHandler(RecordLayer recordLayer) {
+    this(recordLayer, Constants.CONFIG_GRAPHQL_SCHEMA_CACHE_SIZE_DEFAULT, Constants.CONFIG_GRAPHQL_DOCUMENT_CACHE_SIZE_DEFAULT);
+  }
+
+  /**
+   * @param schemaCacheSize   number of recordSpaces for which the GraphQL engine is kept in memory
+   * @param documentCacheSize number of parsed queries kept by each GraphQL engine, 0 disables it
+   */
+  public RecordStoreGraphQLHandler(RecordLayer recordLayer, long schemaCacheSize, long documentCacheSize) {
     this.recordLayer = recordLayer;
+    RuntimeWiring runtimeWiring = newRuntimeWiring()
+      .type("Query", builder -> {
+        VertxDataFetcher<List<Map<String, Object>>> getAllRecords = new VertxDataFetcher<>(this::getAllRecords);
+        return builder.dataFetcher("allUsers", getAllRecords);
+      })
+      .build();
+    this.graphQLCache = new GraphQLCache(schemaCacheSize, documentCacheSize, runtimeWiring);
   }
 
   @Override
@@ -264,11 +272,11 @@ public class RecordStoreGraphQLHandler implements GraphQLHandler {
       builder.locale(locale);
     }
 
-    GraphQL graphQL = createGraphQL(DEFAULT_DEMO_TENANT, "USER");
-
-    return graphQL.executeAsync(builder.build()).thenApplyAsync(executionResult -> {
-      return new JsonObject(executionResult.toSpecification());
-    }, contextExecutor(rc));
+    return getGraphQL(DEFAULT_DEMO_TENANT, "USER")
+      .thenCompose(graphQL -> graphQL.executeAsync(builder.build()))
+      .thenApplyAsync(executionResult -> {
+        return new JsonObject(executionResult.toSpecification());
+      }, contextExecutor(rc));
   }
 
 
@@ -303,33 +311,9 @@ public class RecordStoreGraphQLHandler implements GraphQLHandler {
     return command -> ctx.runOnContext(v -> command.run());
   }
 
-  private GraphQL createGraphQL(String tenant, String recordSpace) {
-
-    String schema = "";
-    RecordMetaData metadata;
-    try {
-      metadata = this.recordLayer.getSchema(tenant, recordSpace);
-      schema = GraphQLSchemaGenerator.generate(metadata);
-    } catch (RuntimeException e) {
-      LOGGER.error("cannot generate graphQL schema: {}", e.getMessage());
-      return null;
-    }
-
-    SchemaParser schemaParser = new SchemaParser();
-    TypeDefinitionRegistry typeDefinitionRegistry = schemaParser.parse(schema);
-
-    RuntimeWiring runtimeWiring = newRuntimeWiring()
-      .type("Query", builder -> {
-        VertxDataFetcher<List<Map<String, Object>>> getAllRecords = new VertxDataFetcher<>(this::getAllRecords);
-        return builder.dataFetcher("allUsers", getAllRecords);
-      })
-      .build();
-
-    SchemaGenerator schemaGenerator = new SchemaGenerator();
-    GraphQLSchema graphQLSchema = schemaGenerator.makeExecutableSchema(typeDefinitionRegistry, runtimeWiring);
-
-    return GraphQL.newGraphQL(graphQLSchema)
-      .build();
+  private CompletableFuture<GraphQL> getGraphQL(String tenant, String recordSpace) {
+    return recordLayer.getRecordSpaceAsync(tenant, recordSpace)
+      .thenApply(metaData -> graphQLCache.get(tenant, recordSpace, metaData.getVersionstamp(), metaData.getMetaData()));
   }
 
   private void getAllRecords(DataFetchingEnvironment env, Promise<List<Map<String, Object>>> future) {
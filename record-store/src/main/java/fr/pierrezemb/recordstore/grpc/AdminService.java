@@ -18,13 +18,11 @@ package fr.pierrezemb.recordstore.grpc;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
 import fr.pierrezemb.recordstore.proto.AdminServiceGrpc;
 import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
-import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class AdminService extends AdminServiceGrpc.AdminServiceImplBase {
   private static final Logger LOGGER = LoggerFactory.getLogger(AdminService.class);
@@ -43,16 +41,37 @@ public class AdminService extends AdminServiceGrpc.AdminServiceImplBase {
   public void list(RecordStoreProtocol.ListContainerRequest request, StreamObserver<RecordStoreProtocol.ListContainerResponse> responseObserver) {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
 
-    List<String> results;
-    try {
-      results = recordLayer.listContainers(tenantID);
-    } catch (RuntimeException e) {
-      LOGGER.error("cannot list recordSpaces: {}", e);
-      throw new StatusRuntimeException(Status.INTERNAL.withCause(e));
-    }
+    GrpcResponses.complete(recordLayer.listContainersAsync(tenantID)
+      .thenApply(results -> RecordStoreProtocol.ListContainerResponse.newBuilder()
+        .addAllContainers(results)
+        .build()), responseObserver);
+  }
+
+  /**
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void delete(RecordStoreProtocol.DeleteContainerRequest request, StreamObserver<RecordStoreProtocol.EmptyResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+
+    CompletableFuture<Void> deleted = CompletableFuture.allOf(request.getContainersList().stream()
+      .map(recordSpace -> recordLayer.deleteContainerAsync(tenantID, recordSpace))
+      .toArray(CompletableFuture[]::new));
+
+    GrpcResponses.complete(deleted.thenApply(v -> RecordStoreProtocol.EmptyResponse.newBuilder().build()), responseObserver);
+  }
+
+  /**
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void listDeleteJobs(RecordStoreProtocol.EmptyRequest request, StreamObserver<RecordStoreProtocol.ListDeleteJobsResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
 
-    responseObserver.onNext(RecordStoreProtocol.ListContainerResponse.newBuilder()
-      .addAllContainers(results)
+    responseObserver.onNext(RecordStoreProtocol.ListDeleteJobsResponse.newBuilder()
+      .addAllJobs(recordLayer.getDeleteJobs(tenantID))
       .build());
     responseObserver.onCompleted();
   }
@@ -62,20 +81,22 @@ public class AdminService extends AdminServiceGrpc.AdminServiceImplBase {
    * @param responseObserver
    */
   @Override
-  public void delete(RecordStoreProtocol.DeleteContainerRequest request, StreamObserver<RecordStoreProtocol.EmptyResponse> responseObserver) {
+  public void getDeleteJob(RecordStoreProtocol.DeleteJobRequest request, StreamObserver<RecordStoreProtocol.DeleteJob> responseObserver) {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
 
-    try {
-      for (String recordSpace : request.getContainersList()) {
-        recordLayer.deleteContainer(tenantID, recordSpace);
-      }
-    } catch (RuntimeException runtimeException) {
-      LOGGER.error("could not delete recordSpace", runtimeException);
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(runtimeException.getMessage()));
-    }
+    responseObserver.onNext(recordLayer.getDeleteJob(tenantID, request.getJobId()));
+    responseObserver.onCompleted();
+  }
 
-    responseObserver.onNext(RecordStoreProtocol.EmptyResponse.newBuilder()
-      .build());
+  /**
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void cancelDeleteJob(RecordStoreProtocol.DeleteJobRequest request, StreamObserver<RecordStoreProtocol.DeleteJob> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+
+    responseObserver.onNext(recordLayer.cancelDeleteJob(tenantID, request.getJobId()));
     responseObserver.onCompleted();
   }
 
@@ -48,7 +48,11 @@ public class AuthInterceptor implements ServerInterceptor {
   );
 
   public AuthInterceptor(String key) {
-    biscuitManager = new BiscuitManager(key);
+    this(new BiscuitManager(key));
+  }
+
+  public AuthInterceptor(BiscuitManager biscuitManager) {
+    this.biscuitManager = biscuitManager;
   }
 
   /**
@@ -70,7 +74,8 @@ public class AuthInterceptor implements ServerInterceptor {
   public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
 
     Context context = Context.current();
-    LOGGER.info("{}", headers);
+    // headers are holding the token, they must not be logged
+    LOGGER.trace("intercepting call to {}", call.getMethodDescriptor().getFullMethodName());
 
     if (!headers.containsKey(GrpcMetadataKeys.AUTHORIZATION_METADATA_KEY)) {
       call.close(Status.PERMISSION_DENIED.withDescription("no authorization token"), new Metadata());
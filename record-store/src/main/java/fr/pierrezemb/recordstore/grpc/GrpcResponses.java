@@ -0,0 +1,68 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.grpc;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Completes unary calls from the futures returned by the RecordLayer,
+ * so that handlers return without waiting for FoundationDB.
+ */
+public final class GrpcResponses {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GrpcResponses.class);
+
+  private GrpcResponses() {
+  }
+
+  public static <T> void complete(CompletableFuture<T> future, StreamObserver<T> responseObserver) {
+    future.whenComplete((response, err) -> {
+      if (err != null) {
+        responseObserver.onError(toStatusException(err));
+        return;
+      }
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    });
+  }
+
+  public static StatusRuntimeException toStatusException(Throwable err) {
+    Throwable cause = err;
+    while (cause instanceof CompletionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+
+    if (cause instanceof StatusRuntimeException) {
+      return (StatusRuntimeException) cause;
+    }
+
+    for (Throwable t = cause; t != null; t = t.getCause()) {
+      if (t instanceof InvalidProtocolBufferException) {
+        return new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("could not parse Protobuf: " + t.getMessage()));
+      }
+    }
+
+    LOGGER.error(cause.getMessage());
+    return new StatusRuntimeException(Status.INTERNAL.withDescription(cause.getMessage()));
+  }
+}
@@ -16,24 +16,57 @@
 package fr.pierrezemb.recordstore.grpc;
 
 import com.apple.foundationdb.record.IsolationLevel;
+import com.apple.foundationdb.record.TupleRange;
 import com.apple.foundationdb.record.query.RecordQuery;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.Constants;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
+import fr.pierrezemb.recordstore.fdb.RecordExporter;
+import fr.pierrezemb.recordstore.fdb.RecordImporter;
+import fr.pierrezemb.recordstore.fdb.RecordLayerOptions;
 import fr.pierrezemb.recordstore.proto.RecordServiceGrpc;
 import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
 import fr.pierrezemb.recordstore.query.GrpcQueryGenerator;
+import fr.pierrezemb.recordstore.query.PreparedQueries;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
 public class RecordService extends RecordServiceGrpc.RecordServiceImplBase {
   private static final Logger log = LoggerFactory.getLogger(RecordService.class);
+  // only names of a single path element are used to build the directory of an export
+  private static final Pattern EXPORT_PATH_ELEMENT = Pattern.compile("[A-Za-z0-9_\\-][A-Za-z0-9_.\\-]*");
   private final RecordLayer recordLayer;
+  private final Path exportDirectory;
+  private final PreparedQueries preparedQueries;
 
   public RecordService(RecordLayer recordLayer) {
+    this(recordLayer, null);
+  }
+
+  public RecordService(RecordLayer recordLayer, Path exportDirectory) {
+    this(recordLayer, exportDirectory, new PreparedQueries(Constants.CONFIG_PREPARED_QUERY_CACHE_SIZE_DEFAULT, Constants.CONFIG_PREPARED_QUERY_TTL_MS_DEFAULT));
+  }
+
+  /**
+   * @param exportDirectory directory in which exports are written, null to disable them
+   */
+  public RecordService(RecordLayer recordLayer, Path exportDirectory, PreparedQueries preparedQueries) {
     this.recordLayer = recordLayer;
+    this.exportDirectory = exportDirectory;
+    this.preparedQueries = preparedQueries;
   }
 
   /**
@@ -45,19 +78,273 @@ public class RecordService extends RecordServiceGrpc.RecordServiceImplBase {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
     String recordSpace = GrpcContextKeys.getContainerOrFail();
 
-    try {
-      this.recordLayer.putRecord(tenantID, recordSpace, request.getRecordTypeName(), request.getMessage().toByteArray());
-    } catch (InvalidProtocolBufferException e) {
-      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("could not parse Protobuf: " + e.getMessage()));
-    } catch (RuntimeException e) {
-      log.error(e.getMessage());
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()));
+    GrpcResponses.complete(
+      this.recordLayer.putRecordAsync(tenantID, recordSpace, request.getRecordTypeName(), request.getMessage().toByteArray())
+        .thenApply(v -> RecordStoreProtocol.EmptyResponse.newBuilder().build()),
+      responseObserver);
+  }
+
+  /**
+   * put all the records of the request, using as few transactions as possible
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void putBatch(RecordStoreProtocol.PutRecordBatchRequest request, StreamObserver<RecordStoreProtocol.PutRecordBatchResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+
+    GrpcResponses.complete(this.recordLayer.putRecordsAsync(tenantID, recordSpace, request.getRecordsList()), responseObserver);
+  }
+
+  /**
+   * put the streamed records, flushing them each time enough records are buffered to fill a transaction.
+   * No more records are requested from the client while a flush is running.
+   *
+   * @param responseObserver
+   */
+  @Override
+  public StreamObserver<RecordStoreProtocol.PutRecordRequest> putStream(StreamObserver<RecordStoreProtocol.PutRecordBatchResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    RecordLayerOptions options = this.recordLayer.getOptions();
+
+    ServerCallStreamObserver<RecordStoreProtocol.PutRecordBatchResponse> serverObserver =
+      responseObserver instanceof ServerCallStreamObserver ?
+        (ServerCallStreamObserver<RecordStoreProtocol.PutRecordBatchResponse>) responseObserver : null;
+    if (serverObserver != null) {
+      serverObserver.disableAutoInboundFlowControl();
+      serverObserver.request(1);
     }
 
-    responseObserver.onNext(RecordStoreProtocol.EmptyResponse.newBuilder().build());
-    responseObserver.onCompleted();
+    return new StreamObserver<RecordStoreProtocol.PutRecordRequest>() {
+      private final RecordStoreProtocol.PutRecordBatchResponse.Builder response = RecordStoreProtocol.PutRecordBatchResponse.newBuilder();
+      private List<RecordStoreProtocol.PutRecordRequest> buffer = new ArrayList<>();
+      private long bufferedBytes = 0;
+      private long offset = 0;
+      private CompletableFuture<Void> flushed = CompletableFuture.completedFuture(null);
+      private volatile boolean failed = false;
+
+      @Override
+      public void onNext(RecordStoreProtocol.PutRecordRequest request) {
+        if (failed) {
+          return;
+        }
+        buffer.add(request);
+        bufferedBytes += request.getMessage().size();
+        if (buffer.size() >= options.getPutBatchMaxRecords() || bufferedBytes >= options.getPutBatchMaxBytes()) {
+          flush().whenComplete((v, err) -> {
+            if (err != null) {
+              fail(err);
+            } else {
+              requestNext();
+            }
+          });
+        } else {
+          requestNext();
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        log.error("putStream for {}/{} aborted after {} records: {}", tenantID, recordSpace, offset, t.getMessage());
+        failed = true;
+        buffer.clear();
+      }
+
+      @Override
+      public void onCompleted() {
+        if (failed) {
+          return;
+        }
+        flush().whenComplete((v, err) -> {
+          if (err != null) {
+            fail(err);
+          } else {
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+          }
+        });
+      }
+
+      private void fail(Throwable err) {
+        if (!failed) {
+          failed = true;
+          responseObserver.onError(GrpcResponses.toStatusException(err));
+        }
+      }
+
+      private void requestNext() {
+        if (serverObserver != null) {
+          serverObserver.request(1);
+        }
+      }
+
+      /**
+       * write the buffered records once the previous flush is done
+       */
+      private CompletableFuture<Void> flush() {
+        if (buffer.isEmpty()) {
+          return flushed;
+        }
+        List<RecordStoreProtocol.PutRecordRequest> records = buffer;
+        long recordsOffset = offset;
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+        offset += records.size();
+
+        flushed = flushed.thenCompose(v -> recordLayer.putRecordsAsync(tenantID, recordSpace, records))
+          .thenAccept(batch -> {
+            for (RecordStoreProtocol.PutRecordResult result : batch.getResultsList()) {
+              response.addResults(result.toBuilder().setIndex(result.getIndex() + recordsOffset));
+            }
+            response.setTransactionCount(response.getTransactionCount() + batch.getTransactionCount());
+          });
+        return flushed;
+      }
+    };
+  }
+
+  /**
+   * import the records of the streamed file. The first message describes the import, and the chunks of the file
+   * that are already imported according to the checkpoint of the import are skipped.
+   * No more chunks are requested from the client while the import has as many batches in flight as allowed.
+   *
+   * @param responseObserver
+   */
+  @Override
+  public StreamObserver<RecordStoreProtocol.ImportRecordsRequest> importRecords(StreamObserver<RecordStoreProtocol.ImportRecordsResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    int parallelism = this.recordLayer.getOptions().getImportParallelism();
+
+    ServerCallStreamObserver<RecordStoreProtocol.ImportRecordsResponse> serverObserver =
+      responseObserver instanceof ServerCallStreamObserver ?
+        (ServerCallStreamObserver<RecordStoreProtocol.ImportRecordsResponse>) responseObserver : null;
+    if (serverObserver != null) {
+      serverObserver.disableAutoInboundFlowControl();
+      serverObserver.request(1);
+    }
+
+    return new StreamObserver<RecordStoreProtocol.ImportRecordsRequest>() {
+      private RecordImporter importer;
+      private CompletableFuture<Void> fed = CompletableFuture.completedFuture(null);
+      // bytes received but not consumed yet, starting at position in the file
+      private ByteBuffer carry = ByteBuffer.allocate(0);
+      private long position;
+      private volatile boolean failed = false;
+
+      @Override
+      public void onNext(RecordStoreProtocol.ImportRecordsRequest request) {
+        if (failed) {
+          return;
+        }
+        if (importer == null) {
+          if (request.getImportId().isEmpty() || request.getRecordTypeName().isEmpty()) {
+            fail(new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("importId and recordTypeName are required")));
+            return;
+          }
+          importer = new RecordImporter(recordLayer, tenantID, recordSpace, request.getImportId(),
+            request.getRecordTypeName(), request.getFormat(), parallelism);
+          position = request.getOffset();
+          fed = importer.startAsync().thenAccept(checkpoint -> {
+            if (position > checkpoint) {
+              throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription(
+                "import " + request.getImportId() + " is checkpointed at offset " + checkpoint + ", cannot resume at offset " + position));
+            }
+          });
+        }
+
+        fed = fed.thenCompose(v -> feed(append(request.getData()), false));
+        fed.whenComplete((v, err) -> {
+          if (err != null) {
+            fail(err);
+          } else if (serverObserver != null) {
+            serverObserver.request(1);
+          }
+        });
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        log.error("import for {}/{} aborted at offset {}: {}", tenantID, recordSpace, position, t.getMessage());
+        failed = true;
+      }
+
+      @Override
+      public void onCompleted() {
+        if (failed) {
+          return;
+        }
+        if (importer == null) {
+          responseObserver.onError(new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("nothing to import")));
+          return;
+        }
+        GrpcResponses.complete(fed.thenCompose(v -> feed(carry, true)).thenCompose(v -> importer.finishAsync()), responseObserver);
+      }
+
+      private ByteBuffer append(ByteString data) {
+        if (!carry.hasRemaining()) {
+          return data.asReadOnlyByteBuffer();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(carry.remaining() + data.size());
+        buffer.put(carry);
+        data.copyTo(buffer);
+        buffer.flip();
+        return buffer;
+      }
+
+      /**
+       * feed the importer until the buffer holds no whole record, waiting for the batches in flight when needed
+       */
+      private CompletableFuture<Void> feed(ByteBuffer buffer, boolean last) {
+        return importer.ready().thenCompose(v -> {
+          int consumed = importer.feed(buffer, position, last);
+          position += consumed;
+          if (consumed > 0 && buffer.hasRemaining()) {
+            return feed(buffer, last);
+          }
+          carry = buffer;
+          return CompletableFuture.completedFuture(null);
+        });
+      }
+
+      private void fail(Throwable err) {
+        if (!failed) {
+          failed = true;
+          responseObserver.onError(GrpcResponses.toStatusException(err));
+        }
+      }
+    };
   }
 
+  /**
+   * export the records of the recordSpace in the export directory of the server,
+   * under the tenant, the recordSpace and the id of the export
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void exportRecords(RecordStoreProtocol.ExportRecordsRequest request, StreamObserver<RecordStoreProtocol.ExportManifest> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+
+    if (exportDirectory == null) {
+      throw new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription("exports are disabled on this server"));
+    }
+    for (String element : new String[]{tenantID, recordSpace, request.getExportId()}) {
+      if (!EXPORT_PATH_ELEMENT.matcher(element).matches()) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("'" + element + "' cannot be used as the name of an export directory"));
+      }
+    }
+
+    Path directory = exportDirectory.resolve(tenantID).resolve(recordSpace).resolve(request.getExportId());
+    GrpcResponses.complete(
+      new RecordExporter(recordLayer, tenantID, recordSpace, recordLayer.getOptions().getExportParallelism()).exportAsync(directory),
+      responseObserver);
+  }
 
   /**
    * @param request
@@ -68,17 +355,90 @@ public class RecordService extends RecordServiceGrpc.RecordServiceImplBase {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
     String recordSpace = GrpcContextKeys.getContainerOrFail();
     RecordQuery query = GrpcQueryGenerator.generate(request);
+    checkNoParameters(query);
+    runQuery(tenantID, recordSpace, query, request, responseObserver);
+  }
+
+  /**
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void prepareQuery(RecordStoreProtocol.QueryRequest request, StreamObserver<RecordStoreProtocol.PrepareQueryResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    PreparedQueries.PreparedQuery prepared = preparedQueries.prepare(tenantID, recordSpace, request);
+
+    responseObserver.onNext(RecordStoreProtocol.PrepareQueryResponse.newBuilder()
+      .setPreparedQueryId(prepared.getId())
+      .addAllParameters(prepared.getParameters())
+      .build());
+    responseObserver.onCompleted();
+  }
+
+  /**
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void executePrepared(RecordStoreProtocol.ExecutePreparedRequest request, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    PreparedQueries.PreparedQuery prepared = preparedQueries.get(tenantID, recordSpace, request.getPreparedQueryId());
+    RecordQuery query = prepared.bind(request.getParametersList());
+
+    RecordStoreProtocol.QueryRequest.Builder queryRequest = prepared.getRequest().toBuilder()
+      .setContinuation(request.getContinuation());
+    if (request.getResultLimit() != 0) {
+      queryRequest.setResultLimit(request.getResultLimit());
+    }
+    runQuery(tenantID, recordSpace, query, queryRequest.build(), responseObserver);
+  }
+
+  /**
+   * stream the records saved after a versionstamp, then the new ones as they are committed
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void watch(RecordStoreProtocol.WatchRequest request, StreamObserver<RecordStoreProtocol.WatchResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    byte[] versionstamp = request.getVersionstamp().isEmpty() ? null : request.getVersionstamp().toByteArray();
+
+    this.recordLayer.watchRecords(tenantID, recordSpace, request.getRecordTypeName(), versionstamp, request.getFromNow(), request.getBatchSize(), responseObserver);
+  }
+
+  private static void checkNoParameters(RecordQuery query) {
+    if (!PreparedQueries.getParameters(query).isEmpty()) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("queries with parameters must be prepared"));
+    }
+  }
+
+  private void runQuery(String tenantID, String recordSpace, RecordQuery query, RecordStoreProtocol.QueryRequest request, StreamObserver<RecordStoreProtocol.QueryResponse> responseObserver) {
     IsolationLevel isolationLevel = request
       .getQueryIsolationLevel().equals(RecordStoreProtocol.QueryIsolationLevel.SERIALIZABLE) ?
       IsolationLevel.SERIALIZABLE : IsolationLevel.SNAPSHOT;
 
-    try {
-      this.recordLayer.queryRecords(tenantID, recordSpace, query, isolationLevel, responseObserver);
-      responseObserver.onCompleted();
-    } catch (RuntimeException e) {
-      log.error(e.getMessage());
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()));
+    if (request.getResultLimit() < 0) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("resultLimit cannot be negative"));
     }
+    int resultLimit = (int) Math.min(request.getResultLimit(), Integer.MAX_VALUE);
+    if (request.getParallelism() < 0) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("parallelism cannot be negative"));
+    }
+    byte[] continuation = request.getContinuation().isEmpty() ? null : request.getContinuation().toByteArray();
+
+    // the observer is completed by the recordLayer, following the flow control of the call
+    if (request.getParallelism() > 1) {
+      if (continuation != null) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("parallel queries cannot be resumed from a continuation"));
+      }
+      this.recordLayer.queryRecordsInParallel(tenantID, recordSpace, query, isolationLevel, request.getParallelism(), resultLimit, responseObserver);
+      return;
+    }
+    this.recordLayer.queryRecords(tenantID, recordSpace, query, isolationLevel, continuation, resultLimit, request.getChainTransactions(), responseObserver);
   }
 
 
@@ -91,23 +451,168 @@ public class RecordService extends RecordServiceGrpc.RecordServiceImplBase {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
     String recordSpace = GrpcContextKeys.getContainerOrFail();
 
-    long count = 0L;
-    try {
-      if (request.getDeleteAll()) {
-        count = this.recordLayer.deleteAllRecords(tenantID, recordSpace);
-      } else {
-        RecordQuery query = GrpcQueryGenerator.generate(request);
-        count = this.recordLayer.deleteRecords(tenantID, recordSpace, query);
+    CompletableFuture<Long> count;
+    if (request.getDeleteAll()) {
+      count = this.recordLayer.deleteAllRecordsAsync(tenantID, recordSpace);
+    } else {
+      RecordQuery query = GrpcQueryGenerator.generate(request);
+      if (query != null) {
+        checkNoParameters(query);
+      }
+      byte[] continuation = request.getContinuation().isEmpty() ? null : request.getContinuation().toByteArray();
+      if (request.getBackground()) {
+        RecordStoreProtocol.DeleteJob job = this.recordLayer.startDeleteRecords(tenantID, recordSpace, query, continuation);
+        responseObserver.onNext(RecordStoreProtocol.DeleteRecordResponse.newBuilder()
+          .setJobId(job.getJobId())
+          .build());
+        responseObserver.onCompleted();
+        return;
       }
+      count = this.recordLayer.deleteRecordsAsync(tenantID, recordSpace, query, continuation);
+    }
 
-      responseObserver.onNext(RecordStoreProtocol.DeleteRecordResponse.newBuilder()
-        .setDeletedCount(count)
-        .build());
-      responseObserver.onCompleted();
-    } catch (RuntimeException e) {
-      log.error(e.getMessage());
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()));
+    GrpcResponses.complete(count.thenApply(deleted -> RecordStoreProtocol.DeleteRecordResponse.newBuilder()
+      .setDeletedCount(deleted)
+      .build()), responseObserver);
+  }
+
+  /**
+   * delete all the records of a recordType, with range clears
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void deleteWhere(RecordStoreProtocol.DeleteWhereRequest request, StreamObserver<RecordStoreProtocol.DeleteRecordResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+
+    GrpcResponses.complete(
+      this.recordLayer.deleteRecordsWhereAsync(tenantID, recordSpace, request.getRecordTypeName())
+        .thenApply(deleted -> RecordStoreProtocol.DeleteRecordResponse.newBuilder()
+          .setDeletedCount(deleted)
+          .build()),
+      responseObserver);
+  }
+
+  /**
+   * evaluate an aggregate index, over the groups matching the filters of the request
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void aggregate(RecordStoreProtocol.AggregateRequest request, StreamObserver<RecordStoreProtocol.AggregateResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    TupleRange groupRange = GrpcQueryGenerator.generate(request);
+
+    GrpcResponses.complete(
+      this.recordLayer.aggregateAsync(tenantID, recordSpace, request.getRecordTypeName(), request.getIndex(), groupRange),
+      responseObserver);
+  }
+
+  /**
+   * return the records of a group of a RANK index between two ranks
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void getByRank(RecordStoreProtocol.GetByRankRequest request, StreamObserver<RecordStoreProtocol.RankedRecordsResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    Tuple group = GrpcQueryGenerator.generateGroupPrefix(request.getIndex().getGroupByFieldsList(), request.getGroupFiltersList());
+
+    GrpcResponses.complete(
+      this.recordLayer.getByRankAsync(tenantID, recordSpace, request.getRecordTypeName(), request.getIndex(), group, request.getRankBegin(), request.getRankEnd()),
+      responseObserver);
+  }
+
+  /**
+   * return the rank of a record in its group of a RANK index
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void getRank(RecordStoreProtocol.GetRankRequest request, StreamObserver<RecordStoreProtocol.GetRankResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    Tuple primaryKey = GrpcQueryGenerator.generateKey(request.getPrimaryKeyList());
+
+    GrpcResponses.complete(
+      this.recordLayer.getRankAsync(tenantID, recordSpace, request.getRecordTypeName(), request.getIndex(), primaryKey),
+      responseObserver);
+  }
+
+  /**
+   * return a record by its primary key
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void get(RecordStoreProtocol.GetRecordRequest request, StreamObserver<RecordStoreProtocol.GetRecordResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    Tuple primaryKey = GrpcQueryGenerator.generateKey(request.getPrimaryKeyList());
+
+    GrpcResponses.complete(
+      this.recordLayer.getRecordAsync(tenantID, recordSpace, request.getRecordTypeName(), primaryKey)
+        .thenApply(record -> {
+          if (record == null) {
+            throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("record " + primaryKey + " does not exist"));
+          }
+          return RecordStoreProtocol.GetRecordResponse.newBuilder().setRecord(record.toByteString()).build();
+        }),
+      responseObserver);
+  }
+
+  /**
+   * return records by their primary keys, read in a single transaction
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void multiGet(RecordStoreProtocol.MultiGetRecordsRequest request, StreamObserver<RecordStoreProtocol.MultiGetRecordsResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    List<Tuple> primaryKeys = new ArrayList<>();
+    for (RecordStoreProtocol.PrimaryKey primaryKey : request.getPrimaryKeysList()) {
+      primaryKeys.add(GrpcQueryGenerator.generateKey(primaryKey.getValuesList()));
     }
+
+    GrpcResponses.complete(
+      this.recordLayer.getRecordsAsync(tenantID, recordSpace, request.getRecordTypeName(), primaryKeys)
+        .thenApply(records -> {
+          RecordStoreProtocol.MultiGetRecordsResponse.Builder response = RecordStoreProtocol.MultiGetRecordsResponse.newBuilder();
+          for (Message record : records) {
+            response.addResults(record == null ?
+              RecordStoreProtocol.GetRecordResult.getDefaultInstance() :
+              RecordStoreProtocol.GetRecordResult.newBuilder().setFound(true).setRecord(record.toByteString()).build());
+          }
+          return response.build();
+        }),
+      responseObserver);
+  }
+
+  /**
+   * return the records with the highest values of each group of a RANK index
+   *
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void topN(RecordStoreProtocol.TopNRequest request, StreamObserver<RecordStoreProtocol.TopNResponse> responseObserver) {
+    String tenantID = GrpcContextKeys.getTenantIDOrFail();
+    String recordSpace = GrpcContextKeys.getContainerOrFail();
+    Tuple groupPrefix = GrpcQueryGenerator.generateGroupPrefix(request.getIndex().getGroupByFieldsList(), request.getGroupFiltersList());
+
+    GrpcResponses.complete(
+      this.recordLayer.topNAsync(tenantID, recordSpace, request.getRecordTypeName(), request.getIndex(), groupPrefix, request.getN()),
+      responseObserver);
   }
 
   @Override
@@ -116,16 +621,9 @@ public class RecordService extends RecordServiceGrpc.RecordServiceImplBase {
     String recordSpace = GrpcContextKeys.getContainerOrFail();
     RecordQuery query = GrpcQueryGenerator.generate(request);
 
-    try {
-      String queryPlan = this.recordLayer.getQueryPlan(tenantID, recordSpace, query);
-      responseObserver.onNext(RecordStoreProtocol.GetQueryPlanResponse.newBuilder()
-        .setQueryPlan(query.toString())
+    GrpcResponses.complete(this.recordLayer.getQueryPlanAsync(tenantID, recordSpace, query)
+      .thenApply(queryPlan -> RecordStoreProtocol.GetQueryPlanResponse.newBuilder()
         .setQueryPlan(queryPlan)
-        .build());
-      responseObserver.onCompleted();
-    } catch (RuntimeException e) {
-      log.error(e.getMessage());
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()));
-    }
+        .build()), responseObserver);
   }
 }
@@ -16,21 +16,17 @@
 package fr.pierrezemb.recordstore.grpc;
 
 import com.apple.foundationdb.record.RecordMetaData;
-import com.apple.foundationdb.record.metadata.MetaDataException;
-import com.apple.foundationdb.tuple.Tuple;
 import com.google.common.collect.ImmutableMap;
-import com.google.protobuf.Descriptors;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
 import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
 import fr.pierrezemb.recordstore.proto.SchemaServiceGrpc;
 import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
-import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class SchemaService extends SchemaServiceGrpc.SchemaServiceImplBase {
@@ -50,12 +46,10 @@ public class SchemaService extends SchemaServiceGrpc.SchemaServiceImplBase {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
     String recordSpace = GrpcContextKeys.getContainerOrFail();
 
-    try {
-
-      List<RecordStoreProtocol.IndexDescription> indexes = recordLayer.getIndexes(tenantID, recordSpace);
-
-      RecordMetaData metadataStore = recordLayer.getSchema(tenantID, recordSpace);
+    CompletableFuture<List<RecordStoreProtocol.IndexDescription>> indexesFuture = recordLayer.getIndexesAsync(tenantID, recordSpace);
+    CompletableFuture<RecordMetaData> metaDataFuture = recordLayer.getSchemaAsync(tenantID, recordSpace);
 
+    GrpcResponses.complete(indexesFuture.thenCombine(metaDataFuture, (indexes, metadataStore) -> {
       List<RecordStoreProtocol.SchemaDescription> records =
         ImmutableMap.of(request.getRecordTypeName(), metadataStore.getRecordMetaData().getRecordType(request.getRecordTypeName()))
           .entrySet()
@@ -68,16 +62,11 @@ public class SchemaService extends SchemaServiceGrpc.SchemaServiceImplBase {
             .build())
           .collect(Collectors.toList());
 
-
-      responseObserver.onNext(RecordStoreProtocol.GetSchemaResponse.newBuilder()
+      return RecordStoreProtocol.GetSchemaResponse.newBuilder()
         .setSchemas(records.get(0))
         .setVersion(metadataStore.getRecordMetaData().getVersion())
-        .build());
-      responseObserver.onCompleted();
-    } catch (RuntimeException e) {
-      log.error(e.getMessage());
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()));
-    }
+        .build();
+    }), responseObserver);
   }
 
 
@@ -90,15 +79,10 @@ public class SchemaService extends SchemaServiceGrpc.SchemaServiceImplBase {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
     String recordSpace = GrpcContextKeys.getContainerOrFail();
 
-    try {
-      recordLayer.upsertSchema(tenantID, recordSpace, request.getSchema(), request.getRecordTypeIndexDefinitionsList());
-    } catch (MetaDataException | Descriptors.DescriptorValidationException e) {
-      log.error(e.getMessage());
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()));
-    }
-
-    responseObserver.onNext(RecordStoreProtocol.EmptyResponse.newBuilder().build());
-    responseObserver.onCompleted();
+    GrpcResponses.complete(
+      recordLayer.upsertSchemaAsync(tenantID, recordSpace, request.getSchema(), request.getRecordTypeIndexDefinitionsList(), request.getCompression())
+        .thenApply(v -> RecordStoreProtocol.EmptyResponse.newBuilder().build()),
+      responseObserver);
   }
 
 
@@ -111,16 +95,10 @@ public class SchemaService extends SchemaServiceGrpc.SchemaServiceImplBase {
     String tenantID = GrpcContextKeys.getTenantIDOrFail();
     String recordSpace = GrpcContextKeys.getContainerOrFail();
 
-    try {
-      Tuple result = recordLayer.getCountAndCountUpdates(tenantID, recordSpace);
-      responseObserver.onNext(RecordStoreProtocol.StatResponse.newBuilder()
+    GrpcResponses.complete(recordLayer.getCountAndCountUpdatesAsync(tenantID, recordSpace)
+      .thenApply(result -> RecordStoreProtocol.StatResponse.newBuilder()
         .setCount(result.getLong(0))
         .setCountUpdates(result.getLong(1))
-        .build());
-      responseObserver.onCompleted();
-    } catch (RuntimeException e) {
-      log.error(e.getMessage());
-      throw new StatusRuntimeException(Status.INTERNAL.withDescription(e.getMessage()));
-    }
+        .build()), responseObserver);
   }
 }
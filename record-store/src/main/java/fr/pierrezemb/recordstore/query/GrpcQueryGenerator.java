@@ -15,12 +15,20 @@
  */
 package fr.pierrezemb.recordstore.query;
 
+import com.apple.foundationdb.record.Bindings;
+import com.apple.foundationdb.record.EndpointType;
+import com.apple.foundationdb.record.TupleRange;
 import com.apple.foundationdb.record.metadata.Key;
 import com.apple.foundationdb.record.metadata.expressions.VersionKeyExpression;
 import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Comparisons;
 import com.apple.foundationdb.record.query.expressions.Field;
+import com.apple.foundationdb.record.query.expressions.FieldWithComparison;
+import com.apple.foundationdb.record.query.expressions.OneOfThemWithComparison;
 import com.apple.foundationdb.record.query.expressions.Query;
 import com.apple.foundationdb.record.query.expressions.QueryComponent;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.protobuf.ByteString;
 import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
@@ -29,7 +37,10 @@ import org.slf4j.LoggerFactory;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -42,9 +53,11 @@ public class GrpcQueryGenerator {
       .setRecordType(request.getRecordTypeName());
 
     if (request.getFieldsToReturnCount() > 0) {
-      queryBuilder.setRequiredResults(request.getFieldsToReturnList().asByteStringList()
+      // the planner uses a covering index when it holds all these fields
+      queryBuilder.setRequiredResults(request.getFieldsToReturnList()
         .stream()
-        .map(e -> Key.Expressions.field(String.valueOf(e.toString()))).collect(Collectors.toList()));
+        .map(Key.Expressions::field)
+        .collect(Collectors.toList()));
     }
 
     if (request.hasSortBy()) {
@@ -92,6 +105,137 @@ public class GrpcQueryGenerator {
     return queryBuilder.build();
   }
 
+  /**
+   * generate the range of the groups of an aggregate index matching the filters of the request
+   */
+  public static TupleRange generate(RecordStoreProtocol.AggregateRequest request) {
+    return generateGroupRange(request.getIndex().getGroupByFieldsList(), request.getGroupFiltersList());
+  }
+
+  /**
+   * generate the values of the leading group fields filtered with EQUALS
+   *
+   * @return an empty tuple if no field is filtered
+   */
+  public static Tuple generateGroupPrefix(List<String> groupByFields, List<RecordStoreProtocol.QueryFilterFieldNode> filters) {
+    for (RecordStoreProtocol.QueryFilterFieldNode filter : filters) {
+      if (filter.getOperation() != RecordStoreProtocol.FilterOperation.EQUALS) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("groups can only be filtered with EQUALS"));
+      }
+    }
+    Tuple prefix = generateGroupRange(groupByFields, filters).getLow();
+    return prefix == null ? new Tuple() : prefix;
+  }
+
+  /**
+   * generate a key, such as a primary key, from its values
+   */
+  public static Tuple generateKey(List<RecordStoreProtocol.KeyValue> values) {
+    List<Object> key = new ArrayList<>();
+    for (RecordStoreProtocol.KeyValue value : values) {
+      switch (value.getValueCase()) {
+        case STRING_VALUE:
+          key.add(value.getStringValue());
+          break;
+        case INT64_VALUE:
+          key.add(value.getInt64Value());
+          break;
+        case FLOAT_VALUE:
+          key.add(value.getFloatValue());
+          break;
+        case DOUBLE_VALUE:
+          key.add(value.getDoubleValue());
+          break;
+        case BOOL_VALUE:
+          key.add(value.getBoolValue());
+          break;
+        case BYTES_VALUE:
+          key.add(value.getBytesValue().toByteArray());
+          break;
+        default:
+          throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("value of the key is not set"));
+      }
+    }
+    return Tuple.fromList(key);
+  }
+
+  /**
+   * generate the range of the groups matching the filters.
+   * Leading group fields can be filtered with EQUALS, and the next one with a range.
+   */
+  public static TupleRange generateGroupRange(List<String> groupByFields, List<RecordStoreProtocol.QueryFilterFieldNode> filters) {
+    Map<String, Object> equalities = new HashMap<>();
+    Map<String, List<RecordStoreProtocol.QueryFilterFieldNode>> ranges = new HashMap<>();
+
+    for (RecordStoreProtocol.QueryFilterFieldNode filter : filters) {
+      if (!groupByFields.contains(filter.getField())) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("'" + filter.getField() + "' is not a group field of the index"));
+      }
+      switch (filter.getOperation()) {
+        case EQUALS:
+          if (equalities.put(filter.getField(), parseGroupValue(filter)) != null) {
+            throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("'" + filter.getField() + "' is filtered by several EQUALS"));
+          }
+          break;
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQUALS:
+          ranges.computeIfAbsent(filter.getField(), k -> new ArrayList<>()).add(filter);
+          break;
+        default:
+          throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription(filter.getOperation() + " cannot filter the groups of an aggregate"));
+      }
+    }
+
+    // the groups are ordered by their fields, so only a prefix of equalities followed by a range is a range of keys
+    List<Object> prefix = new ArrayList<>();
+    while (prefix.size() < groupByFields.size() && equalities.containsKey(groupByFields.get(prefix.size()))) {
+      prefix.add(equalities.get(groupByFields.get(prefix.size())));
+    }
+    String rangeField = prefix.size() < groupByFields.size() ? groupByFields.get(prefix.size()) : null;
+    if (prefix.size() != equalities.size() || ranges.keySet().stream().anyMatch(field -> !field.equals(rangeField))) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription(
+        "group fields " + groupByFields + " must be filtered in order, by EQUALS and then a range on the next field"));
+    }
+
+    Tuple low = prefix.isEmpty() ? null : Tuple.fromList(prefix);
+    Tuple high = low;
+    EndpointType lowEndpoint = prefix.isEmpty() ? EndpointType.TREE_START : EndpointType.RANGE_INCLUSIVE;
+    EndpointType highEndpoint = prefix.isEmpty() ? EndpointType.TREE_END : EndpointType.RANGE_INCLUSIVE;
+    boolean lowBound = false;
+    boolean highBound = false;
+    for (RecordStoreProtocol.QueryFilterFieldNode filter : ranges.getOrDefault(rangeField, Collections.emptyList())) {
+      Tuple bound = Tuple.fromList(prefix).addObject(parseGroupValue(filter));
+      RecordStoreProtocol.FilterOperation operation = filter.getOperation();
+      boolean lower = operation == RecordStoreProtocol.FilterOperation.GREATER_THAN ||
+        operation == RecordStoreProtocol.FilterOperation.GREATER_THAN_OR_EQUALS;
+      if (lower ? lowBound : highBound) {
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("'" + rangeField + "' has several " + (lower ? "lower" : "upper") + " bounds"));
+      }
+      if (lower) {
+        lowBound = true;
+        low = bound;
+        lowEndpoint = operation == RecordStoreProtocol.FilterOperation.GREATER_THAN ? EndpointType.RANGE_EXCLUSIVE : EndpointType.RANGE_INCLUSIVE;
+      } else {
+        highBound = true;
+        high = bound;
+        highEndpoint = operation == RecordStoreProtocol.FilterOperation.LESS_THAN ? EndpointType.RANGE_EXCLUSIVE : EndpointType.RANGE_INCLUSIVE;
+      }
+    }
+    return new TupleRange(low, high, lowEndpoint, highEndpoint);
+  }
+
+  private static Object parseGroupValue(RecordStoreProtocol.QueryFilterFieldNode filter) {
+    try {
+      Object value = parseValue(filter);
+      // tuples hold bytes as arrays
+      return value instanceof ByteString ? ((ByteString) value).toByteArray() : value;
+    } catch (ParseException e) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("cannot read the value of '" + filter.getField() + "': " + e.getMessage()));
+    }
+  }
+
   public static QueryComponent parseNode(RecordStoreProtocol.QueryFilterNode node) throws ParseException {
 
     if (node == null) {
@@ -113,6 +257,10 @@ public class GrpcQueryGenerator {
   }
 
   private static QueryComponent handleMapNode(RecordStoreProtocol.QueryFilterMapNode mapNode) {
+    if (mapNode.getKey().getValueCase() == RecordStoreProtocol.QueryFilterFieldNode.ValueCase.PARAMETER ||
+      mapNode.getValue().getValueCase() == RecordStoreProtocol.QueryFilterFieldNode.ValueCase.PARAMETER) {
+      throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("map nodes cannot hold parameters"));
+    }
 
     if (mapNode.hasKey() && !mapNode.hasValue()) {
       return Query.field(mapNode.getField()).mapMatches(constructFunctionMatcher(mapNode.getKey()), null);
@@ -161,11 +309,52 @@ public class GrpcQueryGenerator {
       throw new ParseException("node is null", 0);
     }
 
+    if (node.getValueCase() == RecordStoreProtocol.QueryFilterFieldNode.ValueCase.PARAMETER) {
+      return parseParameterNode(node);
+    }
+
     Field temporaryQuery = Query.field(node.getField());
 
     return switchOnOperations(temporaryQuery, node);
   }
 
+  /**
+   * a comparison with a parameter, bound when the prepared query runs
+   */
+  private static QueryComponent parseParameterNode(RecordStoreProtocol.QueryFilterFieldNode node) throws ParseException {
+    Comparisons.Type type;
+    switch (node.getOperation()) {
+      case EQUALS:
+        type = Comparisons.Type.EQUALS;
+        break;
+      case NOT_EQUALS:
+        type = Comparisons.Type.NOT_EQUALS;
+        break;
+      case GREATER_THAN:
+        type = Comparisons.Type.GREATER_THAN;
+        break;
+      case GREATER_THAN_OR_EQUALS:
+        type = Comparisons.Type.GREATER_THAN_OR_EQUALS;
+        break;
+      case LESS_THAN:
+        type = Comparisons.Type.LESS_THAN;
+        break;
+      case LESS_THAN_OR_EQUALS:
+        type = Comparisons.Type.LESS_THAN_OR_EQUALS;
+        break;
+      default:
+        throw new ParseException(node.getOperation() + " cannot be used with a parameter", 0);
+    }
+    if (node.getParameter().isEmpty() || Bindings.Internal.isInternal(node.getParameter())) {
+      throw new ParseException("invalid parameter name '" + node.getParameter() + "'", 0);
+    }
+
+    Comparisons.Comparison comparison = new Comparisons.ParameterComparison(type, node.getParameter());
+    return node.getIsFieldDefinedAsRepeated() ?
+      new OneOfThemWithComparison(node.getField(), comparison) :
+      new FieldWithComparison(node.getField(), comparison);
+  }
+
   private static QueryComponent switchOnOperations(Field temporaryQuery, RecordStoreProtocol.QueryFilterFieldNode node) throws ParseException {
     switch (node.getOperation()) {
       case GREATER_THAN_OR_EQUALS:
@@ -218,6 +407,38 @@ public class GrpcQueryGenerator {
     }
   }
 
+  /**
+   * read the value of a parameter of a prepared query, converted like the values of the filters
+   */
+  public static Object parseValue(RecordStoreProtocol.QueryParameter parameter) {
+    switch (parameter.getValueCase()) {
+      case STRING_VALUE:
+        return parameter.getStringValue();
+      case INT32_VALUE:
+        return parameter.getInt32Value();
+      case INT64_VALUE:
+        return parameter.getInt64Value();
+      case FLOAT_VALUE:
+        return parameter.getFloatValue();
+      case UINT32_VALUE:
+        return parameter.getUint32Value();
+      case UINT64_VALUE:
+        return parameter.getUint64Value();
+      case SINT32_VALUE:
+        return parameter.getSint32Value();
+      case SINT64_VALUE:
+        return parameter.getSint64Value();
+      case DOUBLE_VALUE:
+        return parameter.getDoubleValue();
+      case BOOL_VALUE:
+        return parameter.getBoolValue();
+      case BYTES_VALUE:
+        return parameter.getBytesValue();
+      default:
+        throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("value of parameter '" + parameter.getName() + "' is not set"));
+    }
+  }
+
   private static Object parseValue(RecordStoreProtocol.QueryFilterFieldNode node) throws ParseException {
     switch (node.getValueCase()) {
       case STRING_VALUE:
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.query;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Comparisons;
+import com.apple.foundationdb.record.query.expressions.ComponentWithChildren;
+import com.apple.foundationdb.record.query.expressions.ComponentWithComparison;
+import com.apple.foundationdb.record.query.expressions.ComponentWithSingleChild;
+import com.apple.foundationdb.record.query.expressions.QueryComponent;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Queries prepared in each tenant/recordSpace, kept in memory until they are not used for a while.
+ * <p>
+ * A prepared query is parsed once, and its parameters are replaced by their values each time it runs.
+ * The plan of the bound query comes from the plan cache of the {@link fr.pierrezemb.recordstore.fdb.RecordLayer},
+ * as the values are extracted again before planning.
+ */
+public class PreparedQueries {
+  private final Cache<Tuple, PreparedQuery> cache;
+
+  /**
+   * @param maximumSize max number of prepared queries, across all recordSpaces
+   * @param ttlMs       time after which an unused prepared query is dropped
+   */
+  public PreparedQueries(long maximumSize, long ttlMs) {
+    cache = CacheBuilder.newBuilder()
+      .maximumSize(maximumSize)
+      .expireAfterAccess(ttlMs, TimeUnit.MILLISECONDS)
+      .build();
+  }
+
+  /**
+   * parse and register the query. Its continuation is ignored, and a continuation is given at each run instead
+   */
+  public PreparedQuery prepare(String tenantID, String recordSpace, RecordStoreProtocol.QueryRequest request) {
+    RecordStoreProtocol.QueryRequest template = request.toBuilder().clearContinuation().build();
+    String id = Hashing.sha256().hashBytes(template.toByteArray()).toString();
+    Tuple key = Tuple.from(tenantID, recordSpace, id);
+
+    PreparedQuery prepared = cache.getIfPresent(key);
+    if (prepared == null) {
+      prepared = new PreparedQuery(id, template, GrpcQueryGenerator.generate(template));
+      cache.put(key, prepared);
+    }
+    return prepared;
+  }
+
+  public PreparedQuery get(String tenantID, String recordSpace, String id) {
+    PreparedQuery prepared = cache.getIfPresent(Tuple.from(tenantID, recordSpace, id));
+    if (prepared == null) {
+      throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("prepared query '" + id + "' not found, it must be prepared again"));
+    }
+    return prepared;
+  }
+
+  /**
+   * @return the names of the parameters of the query
+   */
+  public static Set<String> getParameters(RecordQuery query) {
+    Set<String> parameters = new TreeSet<>();
+    if (query.getFilter() != null) {
+      collectParameters(query.getFilter(), parameters);
+    }
+    return parameters;
+  }
+
+  private static void collectParameters(QueryComponent component, Set<String> parameters) {
+    if (component instanceof ComponentWithComparison) {
+      Comparisons.Comparison comparison = ((ComponentWithComparison) component).getComparison();
+      if (comparison instanceof Comparisons.ParameterComparison) {
+        parameters.add(((Comparisons.ParameterComparison) comparison).getParameter());
+      }
+    } else if (component instanceof ComponentWithChildren) {
+      ((ComponentWithChildren) component).getChildren().forEach(child -> collectParameters(child, parameters));
+    } else if (component instanceof ComponentWithSingleChild) {
+      collectParameters(((ComponentWithSingleChild) component).getChild(), parameters);
+    }
+  }
+
+  private static QueryComponent bind(QueryComponent component, Map<String, Object> values) {
+    if (component instanceof ComponentWithComparison) {
+      Comparisons.Comparison comparison = ((ComponentWithComparison) component).getComparison();
+      if (!(comparison instanceof Comparisons.ParameterComparison)) {
+        return component;
+      }
+      Object value = values.get(((Comparisons.ParameterComparison) comparison).getParameter());
+      return ((ComponentWithComparison) component).withOtherComparison(new Comparisons.SimpleComparison(comparison.getType(), value));
+    }
+    if (component instanceof ComponentWithChildren) {
+      List<QueryComponent> children = ((ComponentWithChildren) component).getChildren().stream()
+        .map(child -> bind(child, values))
+        .collect(Collectors.toList());
+      return ((ComponentWithChildren) component).withOtherChildren(children);
+    }
+    if (component instanceof ComponentWithSingleChild) {
+      return ((ComponentWithSingleChild) component).withOtherChild(bind(((ComponentWithSingleChild) component).getChild(), values));
+    }
+    return component;
+  }
+
+  public static class PreparedQuery {
+    private final String id;
+    private final RecordStoreProtocol.QueryRequest request;
+    private final RecordQuery query;
+    private final Set<String> parameters;
+
+    private PreparedQuery(String id, RecordStoreProtocol.QueryRequest request, RecordQuery query) {
+      this.id = id;
+      this.request = request;
+      this.query = query;
+      this.parameters = PreparedQueries.getParameters(query);
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return the request the query was prepared from, without continuation
+     */
+    public RecordStoreProtocol.QueryRequest getRequest() {
+      return request;
+    }
+
+    public Set<String> getParameters() {
+      return parameters;
+    }
+
+    /**
+     * @return the query with the values of all its parameters
+     */
+    public RecordQuery bind(List<RecordStoreProtocol.QueryParameter> parameters) {
+      Map<String, Object> values = new HashMap<>();
+      for (RecordStoreProtocol.QueryParameter parameter : parameters) {
+        if (!this.parameters.contains(parameter.getName())) {
+          throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("unknown parameter '" + parameter.getName() + "'"));
+        }
+        if (values.put(parameter.getName(), GrpcQueryGenerator.parseValue(parameter)) != null) {
+          throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("parameter '" + parameter.getName() + "' is bound several times"));
+        }
+      }
+      for (String parameter : this.parameters) {
+        if (!values.containsKey(parameter)) {
+          throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("parameter '" + parameter + "' is not bound"));
+        }
+      }
+
+      if (query.getFilter() == null) {
+        return query;
+      }
+      return query.toBuilder().setFilter(PreparedQueries.bind(query.getFilter(), values)).build();
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.utils.protobuf;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Parses the JSON mapping of Protobuf into a {@link DynamicMessage} of any descriptor.
+ * <p>
+ * Fields are matched by their JSON or Protobuf name, 64 bits integers can be numbers or strings,
+ * bytes are base64 encoded, enums are given by name or number, and maps are JSON objects. Unknown
+ * fields are rejected.
+ */
+public final class JsonMessageParser {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private JsonMessageParser() {
+  }
+
+  public static DynamicMessage parse(Descriptor descriptor, byte[] json, int offset, int length) throws InvalidProtocolBufferException {
+    JsonNode node;
+    try {
+      node = MAPPER.readTree(json, offset, length);
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException("invalid JSON: " + e.getMessage());
+    }
+    return parseMessage(descriptor, node);
+  }
+
+  public static DynamicMessage parse(Descriptor descriptor, String json) throws InvalidProtocolBufferException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    return parse(descriptor, bytes, 0, bytes.length);
+  }
+
+  private static DynamicMessage parseMessage(Descriptor descriptor, JsonNode node) throws InvalidProtocolBufferException {
+    if (node == null || !node.isObject()) {
+      throw new InvalidProtocolBufferException("expected an object for " + descriptor.getFullName());
+    }
+    DynamicMessage.Builder builder = DynamicMessage.newBuilder(descriptor);
+    Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> entry = fields.next();
+      FieldDescriptor field = findField(descriptor, entry.getKey());
+      JsonNode value = entry.getValue();
+      if (value.isNull()) {
+        continue;
+      }
+      if (field.isMapField()) {
+        parseMap(builder, field, value);
+      } else if (field.isRepeated()) {
+        if (!value.isArray()) {
+          throw new InvalidProtocolBufferException("expected an array for " + field.getFullName());
+        }
+        for (JsonNode element : value) {
+          builder.addRepeatedField(field, parseValue(field, element));
+        }
+      } else {
+        builder.setField(field, parseValue(field, value));
+      }
+    }
+    return builder.build();
+  }
+
+  private static void parseMap(DynamicMessage.Builder builder, FieldDescriptor field, JsonNode value) throws InvalidProtocolBufferException {
+    if (!value.isObject()) {
+      throw new InvalidProtocolBufferException("expected an object for " + field.getFullName());
+    }
+    Descriptor entryDescriptor = field.getMessageType();
+    FieldDescriptor keyField = entryDescriptor.findFieldByNumber(1);
+    FieldDescriptor valueField = entryDescriptor.findFieldByNumber(2);
+    Iterator<Map.Entry<String, JsonNode>> entries = value.fields();
+    while (entries.hasNext()) {
+      Map.Entry<String, JsonNode> entry = entries.next();
+      builder.addRepeatedField(field, DynamicMessage.newBuilder(entryDescriptor)
+        .setField(keyField, parseValue(keyField, MAPPER.getNodeFactory().textNode(entry.getKey())))
+        .setField(valueField, parseValue(valueField, entry.getValue()))
+        .build());
+    }
+  }
+
+  private static Object parseValue(FieldDescriptor field, JsonNode value) throws InvalidProtocolBufferException {
+    try {
+      switch (field.getJavaType()) {
+        case INT:
+          return value.isTextual() ? Integer.parseInt(value.asText()) : checkedInt(field, value);
+        case LONG:
+          return value.isTextual() ? Long.parseLong(value.asText()) : checkedLong(field, value);
+        case FLOAT:
+          return value.isTextual() ? Float.parseFloat(value.asText()) : (float) checkedNumber(field, value).doubleValue();
+        case DOUBLE:
+          return value.isTextual() ? Double.parseDouble(value.asText()) : checkedNumber(field, value).doubleValue();
+        case BOOLEAN:
+          if (value.isBoolean() || (value.isTextual() && ("true".equals(value.asText()) || "false".equals(value.asText())))) {
+            return value.asBoolean();
+          }
+          throw new InvalidProtocolBufferException("expected a boolean for " + field.getFullName());
+        case STRING:
+          if (!value.isTextual()) {
+            throw new InvalidProtocolBufferException("expected a string for " + field.getFullName());
+          }
+          return value.asText();
+        case BYTE_STRING:
+          return ByteString.copyFrom(Base64.getDecoder().decode(value.asText()));
+        case ENUM:
+          EnumValueDescriptor enumValue = value.isNumber() ?
+            field.getEnumType().findValueByNumber(value.asInt()) : field.getEnumType().findValueByName(value.asText());
+          if (enumValue == null) {
+            throw new InvalidProtocolBufferException("unknown value " + value + " for " + field.getFullName());
+          }
+          return enumValue;
+        case MESSAGE:
+          return parseMessage(field.getMessageType(), value);
+        default:
+          throw new InvalidProtocolBufferException("unsupported type " + field.getJavaType() + " for " + field.getFullName());
+      }
+    } catch (IllegalArgumentException e) {
+      throw new InvalidProtocolBufferException("invalid value " + value + " for " + field.getFullName());
+    }
+  }
+
+  private static int checkedInt(FieldDescriptor field, JsonNode value) throws InvalidProtocolBufferException {
+    if (!value.canConvertToInt() || !value.isIntegralNumber()) {
+      throw new InvalidProtocolBufferException("expected an int32 for " + field.getFullName());
+    }
+    return value.intValue();
+  }
+
+  private static long checkedLong(FieldDescriptor field, JsonNode value) throws InvalidProtocolBufferException {
+    if (!value.canConvertToLong() || !value.isIntegralNumber()) {
+      throw new InvalidProtocolBufferException("expected an int64 for " + field.getFullName());
+    }
+    return value.longValue();
+  }
+
+  private static Number checkedNumber(FieldDescriptor field, JsonNode value) throws InvalidProtocolBufferException {
+    if (!value.isNumber()) {
+      throw new InvalidProtocolBufferException("expected a number for " + field.getFullName());
+    }
+    return value.numberValue();
+  }
+
+  private static FieldDescriptor findField(Descriptor descriptor, String name) throws InvalidProtocolBufferException {
+    FieldDescriptor field = descriptor.findFieldByName(name);
+    if (field != null) {
+      return field;
+    }
+    for (FieldDescriptor candidate : descriptor.getFields()) {
+      if (candidate.getJsonName().equals(name)) {
+        return candidate;
+      }
+    }
+    throw new InvalidProtocolBufferException("cannot find field " + name + " in " + descriptor.getFullName());
+  }
+}
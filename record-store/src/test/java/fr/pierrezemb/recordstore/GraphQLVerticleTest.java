@@ -16,6 +16,8 @@
 package fr.pierrezemb.recordstore;
 
 import com.apple.foundationdb.record.RecordMetaData;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
 import fr.pierrezemb.recordstore.auth.BiscuitManager;
 import fr.pierrezemb.recordstore.datasets.DatasetsLoader;
 import fr.pierrezemb.recordstore.fdb.RecordLayer;
@@ -63,15 +65,18 @@ class GraphQLVerticleTest extends AbstractFDBContainer {
   private RecordLayer recordLayer;
 
   @BeforeAll
-  void deploy_verticle(Vertx vertx, VertxTestContext testContext) throws InterruptedException, TimeoutException, ExecutionException {
+  void deploy_verticle(Vertx vertx, VertxTestContext testContext) throws InterruptedException, TimeoutException, ExecutionException, InvalidProtocolBufferException, Descriptors.DescriptorValidationException {
 
     clusterFile = container.getClusterFile();
     SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY.getBytes(), "AES");
     recordLayer = new RecordLayer(clusterFile.getAbsolutePath(), vertx.isMetricsEnabled(), secretKey);
 
+    // the demo is loaded by the gRPC verticle, which is not deployed here
+    DatasetsLoader datasetsLoader = new DatasetsLoader(recordLayer);
+    datasetsLoader.loadDataset("User");
+
     DeploymentOptions options = new DeploymentOptions()
       .setConfig(new JsonObject()
-        .put(Constants.CONFIG_LOAD_DEMO, "User")
         .put(Constants.CONFIG_FDB_CLUSTER_FILE, clusterFile.getAbsolutePath())
         .put(Constants.CONFIG_GRAPHQL_LISTEN_PORT, port));
 
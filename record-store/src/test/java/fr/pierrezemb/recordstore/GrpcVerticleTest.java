@@ -173,6 +173,10 @@ public class GrpcVerticleTest extends AbstractFDBContainer {
 
     recordServiceVertxStub.query(request, response -> {
       response.handler(req -> {
+        if (req.hasContinuation()) {
+          assertEquals(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED, req.getContinuation().getNoNextReason());
+          return;
+        }
         System.out.println("received a response");
         DemoUserProto.User p = null;
         try {
@@ -219,6 +223,10 @@ public class GrpcVerticleTest extends AbstractFDBContainer {
 
     recordServiceVertxStub.query(request, response -> {
       response.handler(req -> {
+        if (req.hasContinuation()) {
+          assertEquals(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED, req.getContinuation().getNoNextReason());
+          return;
+        }
         System.out.println("received a response");
         DemoUserProto.User p = null;
         try {
@@ -303,6 +311,10 @@ public class GrpcVerticleTest extends AbstractFDBContainer {
     recordServiceVertxStub.query(request, response -> {
       List<DemoUserProto.User> results = new ArrayList<>();
       response.handler(req -> {
+        if (req.hasContinuation()) {
+          assertEquals(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED, req.getContinuation().getNoNextReason());
+          return;
+        }
         System.out.println("received a response");
         DemoUserProto.User p = null;
         try {
@@ -333,6 +345,10 @@ public class GrpcVerticleTest extends AbstractFDBContainer {
     recordServiceVertxStub.query(request, response -> {
       List<DemoUserProto.User> results = new ArrayList<>();
       response.handler(req -> {
+        if (req.hasContinuation()) {
+          assertEquals(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED, req.getContinuation().getNoNextReason());
+          return;
+        }
         System.out.println("received a response");
         DemoUserProto.User p = null;
         try {
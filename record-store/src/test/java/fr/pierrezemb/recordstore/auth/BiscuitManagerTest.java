@@ -15,7 +15,9 @@
  */
 package fr.pierrezemb.recordstore.auth;
 
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoreTimer;
 import com.clevercloud.biscuit.error.Error;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
 import io.vavr.control.Either;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -23,6 +25,7 @@ import org.junit.jupiter.api.TestInstance;
 
 import java.util.Collections;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -48,4 +51,48 @@ class BiscuitManagerTest {
     Either<Error, Void> res2 = this.biscuitManager.checkTenant("my-tedsanant", sealed);
     assertTrue(res2.isLeft());
   }
+
+  @Test
+  public void cachedVerification() {
+    BiscuitManager cachingManager = new BiscuitManager(KEY, 10, 60_000);
+    String sealed = cachingManager.create("cached-tenant", Collections.emptyList());
+
+    assertFalse(cachingManager.checkTenant("cached-tenant", sealed).isLeft());
+    assertFalse(cachingManager.checkTenant("cached-tenant", sealed).isLeft());
+    assertEquals(1, cachingManager.getCacheHitCount());
+
+    // the tenant is part of the key
+    assertTrue(cachingManager.checkTenant("other-tenant", sealed).isLeft());
+    assertTrue(cachingManager.checkTenant("other-tenant", sealed).isLeft());
+    assertEquals(2, cachingManager.getCacheHitCount());
+  }
+
+  @Test
+  public void revokedToken() {
+    FDBStoreTimer timer = new FDBStoreTimer();
+    BiscuitManager cachingManager = new BiscuitManager(KEY, 10, 60_000, timer);
+    String sealed = cachingManager.create("revoked-tenant", Collections.emptyList());
+    assertFalse(cachingManager.checkTenant("revoked-tenant", sealed).isLeft());
+    assertFalse(cachingManager.checkTenant("revoked-tenant", sealed).isLeft());
+    assertEquals(1, timer.getCount(RecordStoreMetrics.Events.AUTH_TOKEN_VERIFICATION));
+
+    // the revoked token is verified again instead of being served from the cache
+    cachingManager.revoke(sealed);
+    assertFalse(cachingManager.checkTenant("revoked-tenant", sealed).isLeft());
+    assertEquals(2, timer.getCount(RecordStoreMetrics.Events.AUTH_TOKEN_VERIFICATION));
+    assertEquals(1, cachingManager.getCacheHitCount());
+  }
+
+  @Test
+  public void verificationsAreRecorded() {
+    FDBStoreTimer timer = new FDBStoreTimer();
+    BiscuitManager cachingManager = new BiscuitManager(KEY, 10, 60_000, timer);
+    String sealed = cachingManager.create("timed-tenant", Collections.emptyList());
+
+    assertFalse(cachingManager.checkTenant("timed-tenant", sealed).isLeft());
+    assertFalse(cachingManager.checkTenant("timed-tenant", sealed).isLeft());
+    assertEquals(1, timer.getCount(RecordStoreMetrics.Counts.AUTH_TOKEN_CACHE_MISS));
+    assertEquals(1, timer.getCount(RecordStoreMetrics.Counts.AUTH_TOKEN_CACHE_HIT));
+    assertEquals(1, timer.getCount(RecordStoreMetrics.Events.AUTH_TOKEN_VERIFICATION));
+  }
 }
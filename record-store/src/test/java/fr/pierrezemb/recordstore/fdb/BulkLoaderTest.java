@@ -0,0 +1,109 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class BulkLoaderTest extends AbstractFDBContainer {
+  private static final String TENANT = "bulk-load-tenant";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setPutBatchMaxRecords(50));
+
+    DescriptorProtos.FileDescriptorSet dependencies =
+      ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
+    for (String recordSpace : ImmutableList.of("users", "invalid-users")) {
+      recordLayer.upsertSchema(TENANT, recordSpace, dependencies, ImmutableList.of(
+        RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+          .setName("User")
+          .addPrimaryKeyFields("id")
+          .build()));
+    }
+  }
+
+  @Test
+  public void testConcurrentProducers() throws InterruptedException, ExecutionException {
+    ExecutorService producers = Executors.newFixedThreadPool(4);
+    BulkLoader loader = new BulkLoader(recordLayer, TENANT, "users", 3);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int producer = 0; producer < 4; producer++) {
+      int start = producer * 250;
+      futures.add(producers.submit(() -> {
+        for (long id = start; id < start + 250; id++) {
+          loader.add("User", user(id));
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    producers.shutdown();
+
+    assertEquals(1000, loader.finish());
+    assertEquals(0, loader.getFailedCount());
+    assertEquals(20, loader.getTransactionCount());
+
+    List<?> users = recordLayer.queryRecords(TENANT, "users", RecordQuery.newBuilder().setRecordType("User").build());
+    assertEquals(1000, users.size());
+  }
+
+  @Test
+  public void testInvalidRecordsAreCounted() throws InterruptedException {
+    try (BulkLoader loader = new BulkLoader(recordLayer, TENANT, "invalid-users", 2)) {
+      for (long id = 0; id < 120; id++) {
+        loader.add("User", id % 10 == 0 ? ByteString.copyFromUtf8("not a protobuf") : user(id));
+      }
+      assertEquals(108, loader.finish());
+      assertEquals(12, loader.getFailedCount());
+    }
+  }
+
+  private ByteString user(long id) {
+    return DemoUserProto.User.newBuilder()
+      .setId(id)
+      .setName("user-" + id)
+      .build()
+      .toByteString();
+  }
+}
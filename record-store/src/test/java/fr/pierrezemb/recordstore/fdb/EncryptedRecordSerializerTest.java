@@ -0,0 +1,100 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.RecordMetaData;
+import com.apple.foundationdb.record.RecordMetaDataBuilder;
+import com.apple.foundationdb.record.metadata.Key;
+import com.apple.foundationdb.record.metadata.RecordType;
+import com.apple.foundationdb.record.provider.common.RecordSerializer;
+import com.apple.foundationdb.record.provider.common.TransformedRecordSerializerJCE;
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoreTimer;
+import com.apple.foundationdb.tuple.Tuple;
+import com.github.javafaker.Faker;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.UserDataset;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+class EncryptedRecordSerializerTest {
+  private static final SecretKeySpec KEY = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+
+  private RecordMetaData metaData;
+  private RecordType recordType;
+  private DemoUserProto.User user;
+  private FDBStoreTimer timer;
+
+  @BeforeEach
+  void setUp() {
+    RecordMetaDataBuilder builder = RecordMetaData.newBuilder().setRecords(DemoUserProto.getDescriptor());
+    builder.getRecordType("User").setPrimaryKey(Key.Expressions.field("id"));
+    metaData = builder.build();
+    recordType = metaData.getRecordType("User");
+    user = new UserDataset().createUser(1, new Faker(new Random(42)));
+    timer = new FDBStoreTimer();
+  }
+
+  @Test
+  public void testCompatibleWithJCESerializer() {
+    RecordSerializer<Message> jce = TransformedRecordSerializerJCE.newDefaultBuilder()
+      .setEncryptWhenSerializing(true)
+      .setCompressWhenSerializing(true)
+      .setEncryptionKey(KEY)
+      .build();
+    EncryptedRecordSerializer serializer = new EncryptedRecordSerializer(KEY, 9, 0);
+
+    byte[] fromJCE = jce.serialize(metaData, recordType, user, timer);
+    assertEquals(user, serializer.deserialize(metaData, Tuple.from(1L), fromJCE, timer));
+
+    byte[] fromSerializer = serializer.serialize(metaData, recordType, user, timer);
+    assertEquals(user, jce.deserialize(metaData, Tuple.from(1L), fromSerializer, timer));
+  }
+
+  @Test
+  public void testSmallRecordsAreNotCompressed() {
+    EncryptedRecordSerializer serializer = new EncryptedRecordSerializer(KEY, 9, 1_000_000);
+
+    byte[] serialized = serializer.serialize(metaData, recordType, user, timer);
+    assertEquals(1, timer.getCount(RecordSerializer.Counts.ESCHEW_RECORD_COMPRESSION));
+    assertEquals(user, serializer.deserialize(metaData, Tuple.from(1L), serialized, timer));
+  }
+
+  @Test
+  public void testSerializersAreShared() {
+    RecordSerializers serializers = new RecordSerializers(9, 128);
+    RecordStoreProtocol.CompressionOptions defaults = RecordStoreProtocol.CompressionOptions.getDefaultInstance();
+
+    assertSame(
+      serializers.get(KEY, defaults),
+      serializers.get(new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES"), defaults));
+    assertSame(
+      serializers.get(KEY, defaults),
+      serializers.get(KEY, RecordStoreProtocol.CompressionOptions.newBuilder().setLevel(9).setThresholdBytes(128).build()));
+    assertNotSame(
+      serializers.get(KEY, defaults),
+      serializers.get(KEY, RecordStoreProtocol.CompressionOptions.newBuilder().setDisabled(true).build()));
+  }
+}
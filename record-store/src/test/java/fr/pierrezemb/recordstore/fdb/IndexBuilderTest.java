@@ -0,0 +1,109 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class IndexBuilderTest extends AbstractFDBContainer {
+  private static final String TENANT = "index-builder-tenant";
+  private static final String RECORD_SPACE = "users";
+  private static final String INDEX_NAME = "User_idx_name_VALUE";
+  private RecordLayer recordLayer;
+  private DescriptorProtos.FileDescriptorSet dependencies;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions()
+      .setIndexInlineBuildMaxRecords(10)
+      .setIndexBuildRecordsPerSecond(100));
+
+    dependencies = ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, dependencies, ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .build()));
+
+    try (BulkLoader loader = new BulkLoader(recordLayer, TENANT, RECORD_SPACE, 2)) {
+      for (long i = 0; i < 200; i++) {
+        loader.add("User", DemoUserProto.User.newBuilder().setId(i).setName("user-" + i).build().toByteString());
+      }
+      loader.finish();
+    }
+  }
+
+  @Test
+  public void testIndexIsBuiltInTheBackground() throws Descriptors.DescriptorValidationException, InterruptedException {
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, dependencies, ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(RecordStoreProtocol.IndexDefinition.newBuilder()
+          .setField("name")
+          .setIndexType(RecordStoreProtocol.IndexType.VALUE)
+          .build())
+        .build()));
+
+    RecordQuery query = RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.field("name").equalsValue("user-42"))
+      .build();
+
+    // at 100 records per second, the build of the 200 users takes a while
+    RecordStoreProtocol.IndexDescription index = getIndex();
+    assertEquals(RecordStoreProtocol.IndexStatus.Building, index.getStatus());
+    assertTrue(index.getBuildProgress() < 1);
+    assertTrue(!recordLayer.getQueryPlan(TENANT, RECORD_SPACE, query).contains(INDEX_NAME));
+    // the index is already maintained on writes
+    assertEquals(1, recordLayer.queryRecords(TENANT, RECORD_SPACE, query).size());
+
+    for (int i = 0; i < 60 && index.getStatus() != RecordStoreProtocol.IndexStatus.InSync; i++) {
+      Thread.sleep(500);
+      index = getIndex();
+    }
+    assertEquals(RecordStoreProtocol.IndexStatus.InSync, index.getStatus());
+    assertEquals(1f, index.getBuildProgress(), 0);
+    assertTrue(recordLayer.getQueryPlan(TENANT, RECORD_SPACE, query).contains(INDEX_NAME));
+    assertEquals(1, recordLayer.queryRecords(TENANT, RECORD_SPACE, query).size());
+  }
+
+  private RecordStoreProtocol.IndexDescription getIndex() {
+    List<RecordStoreProtocol.IndexDescription> indexes = recordLayer.getIndexes(TENANT, RECORD_SPACE);
+    return indexes.stream().filter(i -> i.getName().equals(INDEX_NAME)).findFirst().orElseThrow(AssertionError::new);
+  }
+}
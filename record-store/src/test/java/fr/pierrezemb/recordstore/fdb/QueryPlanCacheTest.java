@@ -0,0 +1,136 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.metadata.Key;
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class QueryPlanCacheTest extends AbstractFDBContainer {
+  private static final String TENANT = "plan-cache-tenant";
+  private static final String RECORD_SPACE = "users";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey);
+
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(RecordStoreProtocol.IndexDefinition.newBuilder()
+          .setField("name")
+          .setIndexType(RecordStoreProtocol.IndexType.VALUE)
+          .build())
+        .build()));
+
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(i)
+          .setName("user-" + i)
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, RECORD_SPACE, records);
+  }
+
+  @Test
+  public void testLiteralsAreParameterized() {
+    RecordQuery query = RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.and(Query.field("name").equalsValue("user-1"), Query.field("id").greaterThan(0L), Query.field("name").startsWith("user")))
+      .build();
+
+    QueryPlanCache.ParameterizedQuery parameterized = QueryPlanCache.parameterize(query);
+    assertEquals(Arrays.asList("user-1", 0L), parameterized.getBindings());
+    // prefix comparisons are not planned the same whatever their value, so they are part of the shape
+    assertTrue(parameterized.getShape().contains("user"));
+    assertTrue(parameterized.getShape().contains(QueryPlanCache.LITERAL_PREFIX + "0"));
+
+    RecordQuery other = RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.and(Query.field("name").equalsValue("user-2"), Query.field("id").greaterThan(5L), Query.field("name").startsWith("user")))
+      .build();
+    assertEquals(parameterized.getShape(), QueryPlanCache.parameterize(other).getShape());
+
+    RecordQuery reversed = other.toBuilder().setSort(Key.Expressions.field("name"), true).build();
+    assertNotEquals(parameterized.getShape(), QueryPlanCache.parameterize(reversed).getShape());
+  }
+
+  @Test
+  public void testCachedPlanIsRunWithItsLiterals() throws InvalidProtocolBufferException {
+    long hits = recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.QUERY_PLAN_CACHE_HIT);
+    for (int i = 0; i < 10; i++) {
+      RecordQuery query = RecordQuery.newBuilder()
+        .setRecordType("User")
+        .setFilter(Query.field("name").equalsValue("user-" + i))
+        .build();
+
+      // the explained plan shows the values of the query, not the parameters of the cached plan
+      String queryPlan = recordLayer.getQueryPlan(TENANT, RECORD_SPACE, query);
+      assertTrue(queryPlan.contains("user-" + i));
+      assertFalse(queryPlan.contains(QueryPlanCache.LITERAL_PREFIX));
+
+      List<Message> results = recordLayer.queryRecords(TENANT, RECORD_SPACE, query);
+      assertEquals(1, results.size());
+      assertEquals(i, DemoUserProto.User.parseFrom(results.get(0).toByteString()).getId());
+    }
+    // every value after the first one is run with the same cached plan
+    assertTrue(recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.QUERY_PLAN_CACHE_HIT) >= hits + 9);
+  }
+
+  @Test
+  public void testCachedRangePlan() {
+    for (int i = 0; i < 10; i++) {
+      RecordQuery query = RecordQuery.newBuilder()
+        .setRecordType("User")
+        .setFilter(Query.and(Query.field("id").greaterThanOrEquals((long) i), Query.field("id").lessThan(10L)))
+        .build();
+      assertEquals(10 - i, recordLayer.queryRecords(TENANT, RECORD_SPACE, query).size());
+    }
+  }
+}
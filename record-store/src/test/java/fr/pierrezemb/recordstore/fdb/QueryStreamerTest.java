@@ -0,0 +1,171 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.IsolationLevel;
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class QueryStreamerTest extends AbstractFDBContainer {
+  private static final String TENANT = "streamer-tenant";
+  private static final String RECORD_SPACE = "users";
+  private static final long TRANSACTION_TIMEOUT_MS = 1_000;
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions()
+      .setTransactionTimeoutMs(TRANSACTION_TIMEOUT_MS));
+
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .build()));
+
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(i)
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, RECORD_SPACE, records);
+  }
+
+  @Test
+  public void testObserverNotReadyForLongerThanTheTransactionTimeout() throws Exception {
+    QueryObserver observer = new QueryObserver();
+    CompletableFuture<Void> done = recordLayer.queryRecords(TENANT, RECORD_SPACE,
+      RecordQuery.newBuilder().setRecordType("User").build(), IsolationLevel.SERIALIZABLE, null, 0, true, observer);
+
+    // the observer is not ready after the first record, the transaction is closed meanwhile
+    Thread.sleep(2 * TRANSACTION_TIMEOUT_MS);
+    assertFalse(done.isDone());
+    assertEquals(1, observer.records.size());
+    assertEquals(0, recordLayer.getTimer().getOpenTransactions());
+
+    observer.setReady();
+    done.get(5, TimeUnit.SECONDS);
+    assertEquals(20, observer.records.size());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, DemoUserProto.User.parseFrom(observer.records.get(i)).getId());
+    }
+    assertNull(observer.error);
+    assertTrue(observer.completed);
+  }
+
+  /**
+   * an observer that is not ready once it received its first record, until it is set ready
+   */
+  private static class QueryObserver extends ServerCallStreamObserver<RecordStoreProtocol.QueryResponse> {
+    private final List<ByteString> records = Collections.synchronizedList(new ArrayList<>());
+    private volatile Throwable error;
+    private volatile boolean ready = true;
+    private volatile boolean completed = false;
+    private Runnable onReady;
+
+    void setReady() {
+      ready = true;
+      onReady.run();
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+    }
+
+    @Override
+    public void setCompression(String compression) {
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+      this.onReady = onReadyHandler;
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+    }
+
+    @Override
+    public void request(int count) {
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+    }
+
+    @Override
+    public void onNext(RecordStoreProtocol.QueryResponse value) {
+      if (value.hasContinuation()) {
+        return;
+      }
+      records.add(value.getRecord());
+      if (records.size() == 1) {
+        ready = false;
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+    }
+
+    @Override
+    public void onCompleted() {
+      completed = true;
+    }
+  }
+}
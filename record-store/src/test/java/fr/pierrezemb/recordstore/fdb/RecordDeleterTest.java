@@ -0,0 +1,120 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordDeleterTest extends AbstractFDBContainer {
+  private static final String TENANT = "delete-tenant";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setDeleteBatchSize(7));
+  }
+
+  @Test
+  public void testDeleteByBatches() throws Descriptors.DescriptorValidationException {
+    load("batches", 100);
+    long transactions = recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.DELETE_TRANSACTION);
+
+    // half of the records, so 50 records deleted in 8 batches
+    assertEquals(50, recordLayer.deleteRecords(TENANT, "batches", evenUsers()));
+    assertTrue(recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.DELETE_TRANSACTION) - transactions >= 8);
+    assertEquals(0, recordLayer.deleteRecords(TENANT, "batches", evenUsers()));
+    assertEquals(50, recordLayer.queryRecords(TENANT, "batches", RecordQuery.newBuilder().setRecordType("User").build()).size());
+
+    assertEquals(50, recordLayer.deleteAllRecords(TENANT, "batches"));
+    assertEquals(0, recordLayer.queryRecords(TENANT, "batches", RecordQuery.newBuilder().setRecordType("User").build()).size());
+  }
+
+  @Test
+  public void testBackgroundDelete() throws Descriptors.DescriptorValidationException, InterruptedException {
+    load("background", 100);
+
+    RecordStoreProtocol.DeleteJob job = recordLayer.startDeleteRecords(TENANT, "background", evenUsers(), null);
+    assertTrue(recordLayer.getDeleteJobs(TENANT).stream().anyMatch(j -> j.getJobId().equals(job.getJobId())));
+    while (recordLayer.getDeleteJob(TENANT, job.getJobId()).getState() == RecordStoreProtocol.DeleteJobState.DELETE_JOB_RUNNING) {
+      Thread.sleep(50);
+    }
+
+    RecordStoreProtocol.DeleteJob done = recordLayer.getDeleteJob(TENANT, job.getJobId());
+    assertEquals(RecordStoreProtocol.DeleteJobState.DELETE_JOB_COMPLETED, done.getState());
+    assertEquals(50, done.getDeletedCount());
+    assertTrue(done.getContinuation().isEmpty());
+
+    // jobs are only visible to their tenant
+    StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> recordLayer.getDeleteJob("other-tenant", job.getJobId()));
+    assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+  }
+
+  private static RecordQuery evenUsers() {
+    return RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.field("email").equalsValue("even"))
+      .build();
+  }
+
+  private void load(String recordSpace, int count) throws Descriptors.DescriptorValidationException {
+    recordLayer.upsertSchema(TENANT, recordSpace, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(RecordStoreProtocol.IndexDefinition.newBuilder()
+          .setField("email")
+          .setIndexType(RecordStoreProtocol.IndexType.VALUE)
+          .build())
+        .build()));
+
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(i)
+          .setEmail(i % 2 == 0 ? "even" : "odd")
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, recordSpace, records);
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordExpirerTest extends AbstractFDBContainer {
+  private static final String TENANT = "expiration-tenant";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    // small batches, so that a sweep needs several transactions
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions()
+      .setExpirationBatchSize(10)
+      .setExpirationRecordsPerSecond(10_000));
+  }
+
+  @Test
+  public void testExpireByTimestampField() throws Descriptors.DescriptorValidationException {
+    // the id is used as the timestamp of the records
+    createSchema("field", "id", TimeUnit.HOURS.toSeconds(1));
+    long now = System.currentTimeMillis();
+    put("field", now - TimeUnit.HOURS.toMillis(2), 25);
+    put("field", now, 5);
+    long transactions = recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.EXPIRATION_TRANSACTION);
+
+    assertTrue(recordLayer.sweepExpiredRecords() >= 25);
+    assertTrue(recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.EXPIRATION_TRANSACTION) >= transactions + 3);
+    assertTrue(recordLayer.getTimer().getExpirationBacklog() >= 25);
+
+    List<?> records = recordLayer.queryRecords(TENANT, "field", RecordQuery.newBuilder().setRecordType("User").build());
+    assertEquals(5, records.size());
+  }
+
+  @Test
+  public void testZeroOrNegativeTimestampsNeverExpire() throws Descriptors.DescriptorValidationException {
+    createSchema("zero", "id", TimeUnit.HOURS.toSeconds(1));
+    // ids from -5 to 0, older than any time to live
+    put("zero", -5, 6);
+    put("zero", System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2), 4);
+
+    assertTrue(recordLayer.sweepExpiredRecords() >= 4);
+    List<?> records = recordLayer.queryRecords(TENANT, "zero", RecordQuery.newBuilder().setRecordType("User").build());
+    assertEquals(6, records.size());
+  }
+
+  @Test
+  public void testExpireByVersion() throws Descriptors.DescriptorValidationException, InterruptedException {
+    createSchema("version", "", 1);
+    put("version", 0, 10);
+    // the records saved before are now older than their time to live
+    Thread.sleep(2_500);
+    put("version", 100, 3);
+
+    recordLayer.sweepExpiredRecords();
+    List<?> records = recordLayer.queryRecords(TENANT, "version", RecordQuery.newBuilder().setRecordType("User").build());
+    assertEquals(3, records.size());
+  }
+
+  @Test
+  public void testInvalidTimeToLive() {
+    StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> createSchema("invalid", "name", 60));
+    assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+
+    e = assertThrows(StatusRuntimeException.class, () -> createSchema("invalid", "unknown", 60));
+    assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+
+    e = assertThrows(StatusRuntimeException.class, () -> createSchema("invalid", "id", -1));
+    assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+  }
+
+  private void createSchema(String recordSpace, String timestampField, long ttlSeconds) throws Descriptors.DescriptorValidationException {
+    recordLayer.upsertSchema(TENANT, recordSpace, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .setTimeToLive(RecordStoreProtocol.TimeToLive.newBuilder()
+          .setTimestampField(timestampField)
+          .setTtlSeconds(ttlSeconds)
+          .build())
+        .build()));
+  }
+
+  private void put(String recordSpace, long firstID, int count) {
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(firstID + i)
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, recordSpace, records);
+  }
+}
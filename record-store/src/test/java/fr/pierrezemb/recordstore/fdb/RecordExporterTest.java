@@ -0,0 +1,114 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.TextFormat;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.io.TempDir;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordExporterTest extends AbstractFDBContainer {
+  private static final String TENANT = "export-tenant";
+  private static final String RECORD_SPACE = "users";
+  private static final int NBR_USERS = 500;
+  private RecordLayer recordLayer;
+
+  @TempDir
+  Path directory;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setPutBatchMaxRecords(50));
+
+    DescriptorProtos.FileDescriptorSet dependencies =
+      ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, dependencies, ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .build()));
+
+    try (BulkLoader loader = new BulkLoader(recordLayer, TENANT, RECORD_SPACE, 2)) {
+      for (long i = 0; i < NBR_USERS; i++) {
+        loader.add("User", DemoUserProto.User.newBuilder().setId(i).setName("user-" + i).build().toByteString());
+      }
+      loader.finish();
+    }
+  }
+
+  @Test
+  public void testExport() throws IOException {
+    Path output = directory.resolve("export");
+    RecordStoreProtocol.ExportManifest manifest = new RecordExporter(recordLayer, TENANT, RECORD_SPACE, 3).export(output);
+    assertEquals(TENANT, manifest.getTenant());
+    assertEquals(RECORD_SPACE, manifest.getRecordSpace());
+    assertEquals(NBR_USERS, manifest.getRecordCount());
+
+    // every user is exported exactly once, across all the ranges
+    Set<Long> ids = new HashSet<>();
+    long count = 0;
+    for (RecordStoreProtocol.ExportedFile file : manifest.getFilesList()) {
+      assertEquals("User", file.getRecordTypeName());
+      assertTrue(file.getReadVersionsCount() > 0);
+      Path path = output.resolve(file.getPath());
+      assertEquals(file.getSizeBytes(), Files.size(path));
+
+      long fileCount = 0;
+      try (InputStream input = Files.newInputStream(path)) {
+        DemoUserProto.User user;
+        while ((user = DemoUserProto.User.parseDelimitedFrom(input)) != null) {
+          ids.add(user.getId());
+          assertEquals("user-" + user.getId(), user.getName());
+          fileCount++;
+        }
+      }
+      assertEquals(file.getRecordCount(), fileCount);
+      count += fileCount;
+    }
+    assertEquals(NBR_USERS, count);
+    assertEquals(NBR_USERS, ids.size());
+
+    // the manifest written next to the files is the one returned
+    RecordStoreProtocol.ExportManifest.Builder written = RecordStoreProtocol.ExportManifest.newBuilder();
+    TextFormat.merge(new String(Files.readAllBytes(output.resolve(RecordExporter.MANIFEST_FILE)), StandardCharsets.UTF_8), written);
+    assertEquals(manifest, written.build());
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.io.TempDir;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordImporterTest extends AbstractFDBContainer {
+  private static final String TENANT = "import-tenant";
+  private RecordLayer recordLayer;
+
+  @TempDir
+  Path directory;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setPutBatchMaxRecords(20));
+
+    DescriptorProtos.FileDescriptorSet dependencies =
+      ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
+    for (String recordSpace : ImmutableList.of("delimited", "ndjson", "resumed")) {
+      recordLayer.upsertSchema(TENANT, recordSpace, dependencies, ImmutableList.of(
+        RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+          .setName("User")
+          .addPrimaryKeyFields("id")
+          .build()));
+    }
+  }
+
+  @Test
+  public void testImportDelimited() throws IOException {
+    Path file = writeDelimited("users.bin", 250);
+
+    RecordStoreProtocol.ImportRecordsResponse response = new RecordImporter(recordLayer, TENANT, "delimited", "users",
+      "User", RecordStoreProtocol.ImportFormat.DELIMITED, 3).importFile(file);
+    assertEquals(250, response.getImportedCount());
+    assertEquals(0, response.getFailedCount());
+    assertEquals(13, response.getTransactionCount());
+    assertEquals(Files.size(file), response.getCheckpoint());
+    assertEquals(250, countUsers("delimited"));
+
+    // the import is complete, running it again does not write anything
+    response = new RecordImporter(recordLayer, TENANT, "delimited", "users",
+      "User", RecordStoreProtocol.ImportFormat.DELIMITED, 3).importFile(file);
+    assertEquals(250, response.getImportedCount());
+    assertEquals(0, response.getTransactionCount());
+  }
+
+  @Test
+  public void testImportNDJSON() throws IOException {
+    Path file = directory.resolve("users.ndjson");
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      lines.append("{\"id\": ").append(i).append(", \"name\": \"user-").append(i).append("\"}\n");
+    }
+    lines.append("\n");
+    lines.append("{\"id\": \"not a number\"}\n");
+    lines.append("{\"id\": 50, \"name\": \"user-50\"}");
+    Files.write(file, lines.toString().getBytes(StandardCharsets.UTF_8));
+
+    RecordStoreProtocol.ImportRecordsResponse response = new RecordImporter(recordLayer, TENANT, "ndjson", "users",
+      "User", RecordStoreProtocol.ImportFormat.NDJSON, 2).importFile(file);
+    assertEquals(51, response.getImportedCount());
+    assertEquals(1, response.getFailedCount());
+    assertEquals(51, countUsers("ndjson"));
+  }
+
+  @Test
+  public void testResumeAfterCheckpoint() throws IOException {
+    Path file = writeDelimited("resumed.bin", 100);
+    long offset = 0;
+    for (int i = 0; i < 40; i++) {
+      offset += user(i).getSerializedSize();
+      offset += CodedOutputStream.computeUInt32SizeNoTag(user(i).getSerializedSize());
+    }
+    recordLayer.saveImportCheckpointAsync(TENANT, "resumed", "users", RecordStoreProtocol.ImportCheckpoint.newBuilder()
+      .setOffset(offset)
+      .setImportedCount(40)
+      .build()).join();
+
+    RecordStoreProtocol.ImportRecordsResponse response = new RecordImporter(recordLayer, TENANT, "resumed", "users",
+      "User", RecordStoreProtocol.ImportFormat.DELIMITED, 2).importFile(file);
+    assertEquals(100, response.getImportedCount());
+    assertEquals(60, countUsers("resumed"));
+  }
+
+  private Path writeDelimited(String name, int count) throws IOException {
+    Path file = directory.resolve(name);
+    try (OutputStream output = Files.newOutputStream(file)) {
+      for (int i = 0; i < count; i++) {
+        user(i).writeDelimitedTo(output);
+      }
+    }
+    return file;
+  }
+
+  private DemoUserProto.User user(long id) {
+    return DemoUserProto.User.newBuilder()
+      .setId(id)
+      .setName("user-" + id)
+      .build();
+  }
+
+  private int countUsers(String recordSpace) {
+    return recordLayer.queryRecords(TENANT, recordSpace, RecordQuery.newBuilder().setRecordType("User").build()).size();
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.query.GrpcQueryGenerator;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordLayerAggregateTest extends AbstractFDBContainer {
+  private static final String TENANT = "aggregate-tenant";
+  private static final String RECORD_SPACE = "users";
+  private static final RecordStoreProtocol.IndexDefinition SUM_BY_EMAIL = aggregateIndex(RecordStoreProtocol.IndexType.SUM, "id", "email");
+  private static final RecordStoreProtocol.IndexDefinition COUNT_BY_EMAIL = aggregateIndex(RecordStoreProtocol.IndexType.COUNT, "", "email");
+  private static final RecordStoreProtocol.IndexDefinition MAX_EVER_BY_EMAIL = aggregateIndex(RecordStoreProtocol.IndexType.MAX_EVER, "id", "email");
+  private static final RecordStoreProtocol.IndexDefinition MIN_EVER = aggregateIndex(RecordStoreProtocol.IndexType.MIN_EVER, "name");
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey);
+
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(SUM_BY_EMAIL)
+        .addIndexDefinitions(COUNT_BY_EMAIL)
+        .addIndexDefinitions(MAX_EVER_BY_EMAIL)
+        .addIndexDefinitions(MIN_EVER)
+        .build()));
+
+    // 30 users spread over 3 groups of emails
+    try (BulkLoader loader = new BulkLoader(recordLayer, TENANT, RECORD_SPACE, 2)) {
+      for (long i = 0; i < 30; i++) {
+        loader.add("User", DemoUserProto.User.newBuilder()
+          .setId(i)
+          .setName("user-" + i)
+          .setEmail("group-" + (i % 3))
+          .build().toByteString());
+      }
+      loader.finish();
+    }
+  }
+
+  @Test
+  public void testAggregateAllGroups() {
+    assertEquals(435, aggregate(SUM_BY_EMAIL).getInt64Value());
+    assertEquals(30, aggregate(COUNT_BY_EMAIL).getInt64Value());
+    assertEquals(29, aggregate(MAX_EVER_BY_EMAIL).getInt64Value());
+    assertEquals("user-0", aggregate(MIN_EVER).getStringValue());
+  }
+
+  @Test
+  public void testAggregateFilteredGroups() {
+    // ids 1, 4, ..., 28
+    assertEquals(145, aggregate(SUM_BY_EMAIL, filter(RecordStoreProtocol.FilterOperation.EQUALS, "group-1")).getInt64Value());
+    assertEquals(20, aggregate(COUNT_BY_EMAIL, filter(RecordStoreProtocol.FilterOperation.GREATER_THAN_OR_EQUALS, "group-1")).getInt64Value());
+    assertEquals(10, aggregate(COUNT_BY_EMAIL, filter(RecordStoreProtocol.FilterOperation.GREATER_THAN, "group-1")).getInt64Value());
+    assertEquals(28, aggregate(MAX_EVER_BY_EMAIL, filter(RecordStoreProtocol.FilterOperation.LESS_THAN, "group-2")).getInt64Value());
+    assertEquals(0, aggregate(COUNT_BY_EMAIL, filter(RecordStoreProtocol.FilterOperation.EQUALS, "group-3")).getInt64Value());
+    assertEquals(RecordStoreProtocol.AggregateResponse.ValueCase.VALUE_NOT_SET,
+      aggregate(MAX_EVER_BY_EMAIL, filter(RecordStoreProtocol.FilterOperation.EQUALS, "group-3")).getValueCase());
+  }
+
+  @Test
+  public void testAggregateErrors() {
+    assertStatus(Status.Code.NOT_FOUND, () -> aggregate(aggregateIndex(RecordStoreProtocol.IndexType.SUM, "id")));
+    assertStatus(Status.Code.INVALID_ARGUMENT, () -> aggregate(aggregateIndex(RecordStoreProtocol.IndexType.VALUE, "id")));
+    assertStatus(Status.Code.INVALID_ARGUMENT, () -> aggregate(SUM_BY_EMAIL, RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+      .setField("name")
+      .setOperation(RecordStoreProtocol.FilterOperation.EQUALS)
+      .setStringValue("user-1")
+      .build()));
+  }
+
+  private RecordStoreProtocol.AggregateResponse aggregate(RecordStoreProtocol.IndexDefinition index, RecordStoreProtocol.QueryFilterFieldNode... filters) {
+    RecordStoreProtocol.AggregateRequest request = RecordStoreProtocol.AggregateRequest.newBuilder()
+      .setRecordTypeName("User")
+      .setIndex(index)
+      .addAllGroupFilters(ImmutableList.copyOf(filters))
+      .build();
+    return recordLayer.aggregate(TENANT, RECORD_SPACE, request.getRecordTypeName(), request.getIndex(), GrpcQueryGenerator.generate(request));
+  }
+
+  private static RecordStoreProtocol.QueryFilterFieldNode filter(RecordStoreProtocol.FilterOperation operation, String email) {
+    return RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+      .setField("email")
+      .setOperation(operation)
+      .setStringValue(email)
+      .build();
+  }
+
+  private static RecordStoreProtocol.IndexDefinition aggregateIndex(RecordStoreProtocol.IndexType indexType, String field, String... groupByFields) {
+    return RecordStoreProtocol.IndexDefinition.newBuilder()
+      .setField(field)
+      .setIndexType(indexType)
+      .addAllGroupByFields(ImmutableList.copyOf(groupByFields))
+      .build();
+  }
+
+  private static void assertStatus(Status.Code code, Runnable runnable) {
+    try {
+      runnable.run();
+    } catch (StatusRuntimeException e) {
+      assertEquals(code, e.getStatus().getCode());
+      return;
+    }
+    throw new AssertionError("expected a " + code + " error");
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordLayerDeleteWhereTest extends AbstractFDBContainer {
+  private static final String TENANT = "delete-where-tenant";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey);
+  }
+
+  @Test
+  public void testDeleteRecordType() throws Descriptors.DescriptorValidationException {
+    load("type", 100);
+    long deletes = recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.DELETE_WHERE);
+
+    assertEquals(100, recordLayer.deleteRecordsWhere(TENANT, "type", "User"));
+    assertEquals(deletes + 1, recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.DELETE_WHERE));
+    assertEquals(0, recordLayer.queryRecords(TENANT, "type", RecordQuery.newBuilder().setRecordType("User").build()).size());
+
+    // the index entries are cleared as well
+    load("type", 10);
+    assertEquals(5, recordLayer.queryRecords(TENANT, "type", RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.field("email").equalsValue("even"))
+      .build()).size());
+  }
+
+  @Test
+  public void testInvalidDeletes() throws Descriptors.DescriptorValidationException {
+    load("invalid", 10);
+
+    StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> recordLayer.deleteRecordsWhere(TENANT, "invalid", "Unknown"));
+    assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+    assertEquals(10, recordLayer.queryRecords(TENANT, "invalid", RecordQuery.newBuilder().setRecordType("User").build()).size());
+  }
+
+  private void load(String recordSpace, int count) throws Descriptors.DescriptorValidationException {
+    recordLayer.upsertSchema(TENANT, recordSpace, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(RecordStoreProtocol.IndexDefinition.newBuilder()
+          .setField("email")
+          .setIndexType(RecordStoreProtocol.IndexType.VALUE)
+          .build())
+        .build()));
+
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(i)
+          .setEmail(i % 2 == 0 ? "even" : "odd")
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, recordSpace, records);
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordLayerGetTest extends AbstractFDBContainer {
+  private static final String TENANT = "get-tenant";
+  private static final String RECORD_SPACE = "users";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setMultiGetMaxKeys(5));
+
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .build()));
+
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(i)
+          .setName("user-" + i)
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, RECORD_SPACE, records);
+  }
+
+  @Test
+  public void testGetRecord() throws InvalidProtocolBufferException {
+    Message record = recordLayer.getRecord(TENANT, RECORD_SPACE, "User", Tuple.from(3L));
+    assertEquals("user-3", DemoUserProto.User.parseFrom(record.toByteString()).getName());
+
+    assertNull(recordLayer.getRecord(TENANT, RECORD_SPACE, "User", Tuple.from(42L)));
+    assertThrows(StatusRuntimeException.class, () -> recordLayer.getRecord(TENANT, RECORD_SPACE, "Unknown", Tuple.from(3L)));
+  }
+
+  @Test
+  public void testGetRecords() throws InvalidProtocolBufferException {
+    List<Message> records = recordLayer.getRecords(TENANT, RECORD_SPACE, "User",
+      Arrays.asList(Tuple.from(7L), Tuple.from(42L), Tuple.from(1L)));
+    assertEquals(3, records.size());
+    assertEquals(7, DemoUserProto.User.parseFrom(records.get(0).toByteString()).getId());
+    assertNull(records.get(1));
+    assertEquals(1, DemoUserProto.User.parseFrom(records.get(2).toByteString()).getId());
+
+    List<Tuple> tooManyKeys = new ArrayList<>();
+    for (long i = 0; i < 6; i++) {
+      tooManyKeys.add(Tuple.from(i));
+    }
+    assertThrows(StatusRuntimeException.class, () -> recordLayer.getRecords(TENANT, RECORD_SPACE, "User", tooManyKeys));
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.provider.foundationdb.FDBStoreTimer;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordLayerPutRecordsTest extends AbstractFDBContainer {
+  private static final String TENANT = "put-records-tenant";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setPutBatchMaxRecords(3));
+
+    DescriptorProtos.FileDescriptorSet dependencies =
+      ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
+    recordLayer.upsertSchema(TENANT, "users", dependencies, ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .build()));
+  }
+
+  @Test
+  public void testRecordsArePacked() {
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      records.add(user(i));
+    }
+
+    RecordStoreProtocol.PutRecordBatchResponse response = recordLayer.putRecords(TENANT, "users", records);
+    assertEquals(4, response.getTransactionCount());
+    assertEquals(10, response.getResultsCount());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, response.getResults(i).getIndex());
+      assertTrue(response.getResults(i).getSuccess());
+    }
+  }
+
+  @Test
+  public void testInvalidRecordsAreReported() {
+    List<RecordStoreProtocol.PutRecordRequest> records = ImmutableList.of(
+      user(100),
+      RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("Unknown")
+        .setMessage(ByteString.EMPTY)
+        .build(),
+      RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(ByteString.copyFromUtf8("not a protobuf"))
+        .build(),
+      user(101));
+
+    RecordStoreProtocol.PutRecordBatchResponse response = recordLayer.putRecords(TENANT, "users", records);
+    assertEquals(2, response.getTransactionCount());
+    assertTrue(response.getResults(0).getSuccess());
+    assertFalse(response.getResults(1).getSuccess());
+    assertFalse(response.getResults(1).getError().isEmpty());
+    assertFalse(response.getResults(2).getSuccess());
+    assertTrue(response.getResults(3).getSuccess());
+  }
+
+  @Test
+  public void testMissingRecordSpaceFailsTheBatch() {
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      records.add(user(i));
+    }
+
+    long contexts = recordLayer.getTimer().getCount(FDBStoreTimer.Counts.CLOSE_CONTEXT);
+    assertThrows(RuntimeException.class, () -> recordLayer.putRecords(TENANT, "missing", records));
+    // the first chunk fails the batch, without being split nor followed by the next chunk
+    assertTrue(recordLayer.getTimer().getCount(FDBStoreTimer.Counts.CLOSE_CONTEXT) - contexts <= 1);
+  }
+
+  private RecordStoreProtocol.PutRecordRequest user(long id) {
+    return RecordStoreProtocol.PutRecordRequest.newBuilder()
+      .setRecordTypeName("User")
+      .setMessage(DemoUserProto.User.newBuilder()
+        .setId(id)
+        .setName("user-" + id)
+        .build()
+        .toByteString())
+      .build();
+  }
+}
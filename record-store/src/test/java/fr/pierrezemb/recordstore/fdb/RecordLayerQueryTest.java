@@ -0,0 +1,207 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.EndpointType;
+import com.apple.foundationdb.record.IsolationLevel;
+import com.apple.foundationdb.record.TupleRange;
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordLayerQueryTest extends AbstractFDBContainer {
+  private static final String TENANT = "query-tenant";
+  private static final String RECORD_SPACE = "users";
+  private RecordLayer recordLayer;
+  // stops each transaction after a single record
+  private RecordLayer limitedRecordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey);
+    limitedRecordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setQueryScannedBytesLimit(1));
+
+    DescriptorProtos.FileDescriptorSet dependencies =
+      ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, dependencies, ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .build()));
+
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder().setId(i).setName("user-" + i).build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, RECORD_SPACE, records);
+  }
+
+  @Test
+  public void testQueryIsResumedWithContinuation() throws InvalidProtocolBufferException {
+    RecordQuery query = RecordQuery.newBuilder().setRecordType("User").build();
+    List<Long> ids = new ArrayList<>();
+    byte[] continuation = null;
+
+    for (int page = 0; page < 4; page++) {
+      List<RecordStoreProtocol.QueryResponse> responses = query(recordLayer, query, continuation, 3, false);
+      RecordStoreProtocol.QueryResponse last = responses.get(responses.size() - 1);
+      assertTrue(last.hasContinuation());
+
+      for (RecordStoreProtocol.QueryResponse response : responses.subList(0, responses.size() - 1)) {
+        ids.add(DemoUserProto.User.parseFrom(response.getRecord()).getId());
+      }
+
+      if (page < 3) {
+        assertEquals(3, responses.size() - 1);
+        assertEquals(RecordStoreProtocol.NoNextReason.RETURN_LIMIT_REACHED, last.getContinuation().getNoNextReason());
+      } else {
+        assertEquals(1, responses.size() - 1);
+        assertEquals(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED, last.getContinuation().getNoNextReason());
+        assertTrue(last.getContinuation().getContinuation().isEmpty());
+      }
+      continuation = last.getContinuation().getContinuation().toByteArray();
+    }
+
+    assertEquals(ImmutableList.of(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), ids);
+  }
+
+  @Test
+  public void testQueryStopsAtTransactionLimits() {
+    RecordQuery query = RecordQuery.newBuilder().setRecordType("User").build();
+    List<RecordStoreProtocol.QueryResponse> responses = query(limitedRecordLayer, query, null, 0, false);
+
+    RecordStoreProtocol.QueryResponse last = responses.get(responses.size() - 1);
+    assertEquals(RecordStoreProtocol.NoNextReason.BYTE_LIMIT_REACHED, last.getContinuation().getNoNextReason());
+    assertEquals(1, last.getContinuation().getTransactionCount());
+    assertTrue(responses.size() - 1 < 10);
+  }
+
+  @Test
+  public void testQueryChainsTransactions() throws InvalidProtocolBufferException {
+    RecordQuery query = RecordQuery.newBuilder().setRecordType("User").build();
+    List<RecordStoreProtocol.QueryResponse> responses = query(limitedRecordLayer, query, null, 7, true);
+
+    RecordStoreProtocol.QueryResponse last = responses.get(responses.size() - 1);
+    assertEquals(RecordStoreProtocol.NoNextReason.RETURN_LIMIT_REACHED, last.getContinuation().getNoNextReason());
+    assertTrue(last.getContinuation().getTransactionCount() > 1);
+    assertEquals(8, responses.size());
+    for (int i = 0; i < 7; i++) {
+      assertEquals(i, DemoUserProto.User.parseFrom(responses.get(i).getRecord()).getId());
+    }
+
+    responses = query(limitedRecordLayer, query, last.getContinuation().getContinuation().toByteArray(), 0, true);
+    last = responses.get(responses.size() - 1);
+    assertEquals(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED, last.getContinuation().getNoNextReason());
+    assertEquals(4, responses.size());
+  }
+
+  @Test
+  public void testParallelQuery() throws InvalidProtocolBufferException {
+    RecordQuery query = RecordQuery.newBuilder()
+      .setRecordType("User")
+      .setFilter(Query.field("id").greaterThanOrEquals(3L))
+      .build();
+    // the limited recordLayer fetches a single record per transaction
+    for (RecordLayer layer : ImmutableList.of(recordLayer, limitedRecordLayer)) {
+      List<RecordStoreProtocol.QueryResponse> responses = queryInParallel(layer, query, 0);
+      RecordStoreProtocol.QueryResponse last = responses.get(responses.size() - 1);
+      assertEquals(RecordStoreProtocol.NoNextReason.SOURCE_EXHAUSTED, last.getContinuation().getNoNextReason());
+      assertTrue(last.getContinuation().getContinuation().isEmpty());
+
+      List<Long> ids = new ArrayList<>();
+      for (RecordStoreProtocol.QueryResponse response : responses.subList(0, responses.size() - 1)) {
+        ids.add(DemoUserProto.User.parseFrom(response.getRecord()).getId());
+      }
+      ids.sort(Long::compareTo);
+      assertEquals(ImmutableList.of(3L, 4L, 5L, 6L, 7L, 8L, 9L), ids);
+    }
+
+    List<RecordStoreProtocol.QueryResponse> responses = queryInParallel(limitedRecordLayer, query, 2);
+    assertEquals(3, responses.size());
+    assertEquals(RecordStoreProtocol.NoNextReason.RETURN_LIMIT_REACHED, responses.get(2).getContinuation().getNoNextReason());
+  }
+
+  @Test
+  public void testPartitionPrimaryKeys() {
+    Tuple prefix = Tuple.from(1L);
+    List<Tuple> boundaries = ImmutableList.of(Tuple.from(0L, 5L), Tuple.from(1L, 10L), Tuple.from(1L, 20L), Tuple.from(1L, 30L), Tuple.from(2L, 0L));
+
+    // only the boundaries of the prefix are used, and selected to have at most the requested ranges
+    assertEquals(ImmutableList.of(
+      new TupleRange(prefix, Tuple.from(1L, 20L), EndpointType.RANGE_INCLUSIVE, EndpointType.RANGE_EXCLUSIVE),
+      new TupleRange(Tuple.from(1L, 20L), prefix, EndpointType.RANGE_INCLUSIVE, EndpointType.RANGE_INCLUSIVE)),
+      RecordLayer.partitionPrimaryKeys(prefix, boundaries, 2));
+    assertEquals(4, RecordLayer.partitionPrimaryKeys(prefix, boundaries, 8).size());
+    assertEquals(ImmutableList.of(TupleRange.ALL), RecordLayer.partitionPrimaryKeys(null, ImmutableList.of(), 4));
+    assertEquals(6, RecordLayer.partitionPrimaryKeys(null, boundaries, 8).size());
+  }
+
+  private List<RecordStoreProtocol.QueryResponse> queryInParallel(RecordLayer recordLayer, RecordQuery query, int resultLimit) {
+    List<RecordStoreProtocol.QueryResponse> responses = new ArrayList<>();
+    recordLayer.queryRecordsInParallel(TENANT, RECORD_SPACE, query, IsolationLevel.SNAPSHOT, 4, resultLimit, collect(responses)).join();
+    return responses;
+  }
+
+  private List<RecordStoreProtocol.QueryResponse> query(RecordLayer recordLayer, RecordQuery query, byte[] continuation, int resultLimit, boolean chainTransactions) {
+    List<RecordStoreProtocol.QueryResponse> responses = new ArrayList<>();
+    recordLayer.queryRecords(TENANT, RECORD_SPACE, query, IsolationLevel.SNAPSHOT, continuation, resultLimit, chainTransactions, collect(responses)).join();
+    return responses;
+  }
+
+  private StreamObserver<RecordStoreProtocol.QueryResponse> collect(List<RecordStoreProtocol.QueryResponse> responses) {
+    return new StreamObserver<RecordStoreProtocol.QueryResponse>() {
+      @Override
+      public void onNext(RecordStoreProtocol.QueryResponse value) {
+        responses.add(value);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    };
+  }
+}
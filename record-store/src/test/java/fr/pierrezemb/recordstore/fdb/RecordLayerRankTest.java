@@ -0,0 +1,136 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordLayerRankTest extends AbstractFDBContainer {
+  private static final String TENANT = "rank-tenant";
+  private static final String RECORD_SPACE = "users";
+  private static final RecordStoreProtocol.IndexDefinition ID_BY_EMAIL = RecordStoreProtocol.IndexDefinition.newBuilder()
+    .setField("id")
+    .setIndexType(RecordStoreProtocol.IndexType.RANK)
+    .addGroupByFields("email")
+    .build();
+  private static final RecordStoreProtocol.IndexDefinition EMAIL = RecordStoreProtocol.IndexDefinition.newBuilder()
+    .setField("email")
+    .setIndexType(RecordStoreProtocol.IndexType.RANK)
+    .build();
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey);
+
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(ID_BY_EMAIL)
+        .addIndexDefinitions(EMAIL)
+        .build()));
+
+    // 30 users spread over 3 groups of emails
+    try (BulkLoader loader = new BulkLoader(recordLayer, TENANT, RECORD_SPACE, 2)) {
+      for (long i = 0; i < 30; i++) {
+        loader.add("User", DemoUserProto.User.newBuilder()
+          .setId(i)
+          .setName("user-" + i)
+          .setEmail("group-" + (i % 3))
+          .build().toByteString());
+      }
+      loader.finish();
+    }
+  }
+
+  @Test
+  public void testGetByRank() throws InvalidProtocolBufferException {
+    RecordStoreProtocol.RankedRecordsResponse response = recordLayer.getByRank(TENANT, RECORD_SPACE, "User", ID_BY_EMAIL, Tuple.from("group-1"), 0, 3);
+    assertEquals(Arrays.asList(1L, 4L, 7L), ids(response));
+    assertEquals(Arrays.asList(0L, 1L, 2L), ranks(response));
+
+    // users of the same email share their rank
+    response = recordLayer.getByRank(TENANT, RECORD_SPACE, "User", EMAIL, new Tuple(), 1, 2);
+    assertEquals(10, response.getRecordsCount());
+    response.getRecordsList().forEach(record -> assertEquals(1, record.getRank()));
+
+    assertThrows(StatusRuntimeException.class, () ->
+      recordLayer.getByRank(TENANT, RECORD_SPACE, "User", ID_BY_EMAIL, new Tuple(), 0, 3));
+  }
+
+  @Test
+  public void testGetRank() {
+    assertEquals(9, recordLayer.getRank(TENANT, RECORD_SPACE, "User", ID_BY_EMAIL, Tuple.from(28L)).getRank());
+    assertEquals(2, recordLayer.getRank(TENANT, RECORD_SPACE, "User", EMAIL, Tuple.from(28L)).getRank());
+    assertThrows(StatusRuntimeException.class, () ->
+      recordLayer.getRank(TENANT, RECORD_SPACE, "User", ID_BY_EMAIL, Tuple.from(100L)));
+  }
+
+  @Test
+  public void testTopN() throws InvalidProtocolBufferException {
+    RecordStoreProtocol.TopNResponse response = recordLayer.topN(TENANT, RECORD_SPACE, "User", ID_BY_EMAIL, new Tuple(), 2);
+    assertEquals(3, response.getGroupsCount());
+    assertEquals(Arrays.asList(27L, 24L), ids(response.getGroups(0)));
+    assertEquals(Arrays.asList(9L, 8L), ranks(response.getGroups(0)));
+    assertEquals(Arrays.asList(28L, 25L), ids(response.getGroups(1)));
+    assertEquals(Arrays.asList(29L, 26L), ids(response.getGroups(2)));
+
+    response = recordLayer.topN(TENANT, RECORD_SPACE, "User", ID_BY_EMAIL, Tuple.from("group-2"), 1);
+    assertEquals(1, response.getGroupsCount());
+    assertEquals(Arrays.asList(29L), ids(response.getGroups(0)));
+
+    response = recordLayer.topN(TENANT, RECORD_SPACE, "User", EMAIL, new Tuple(), 3);
+    assertEquals(Arrays.asList(2L, 2L, 2L), ranks(response.getGroups(0)));
+  }
+
+  private static List<Long> ids(RecordStoreProtocol.RankedRecordsResponse response) throws InvalidProtocolBufferException {
+    List<Long> ids = new ArrayList<>();
+    for (RecordStoreProtocol.RankedRecord record : response.getRecordsList()) {
+      ids.add(DemoUserProto.User.parseFrom(record.getRecord()).getId());
+    }
+    return ids;
+  }
+
+  private static List<Long> ranks(RecordStoreProtocol.RankedRecordsResponse response) {
+    List<Long> ranks = new ArrayList<>();
+    response.getRecordsList().forEach(record -> ranks.add(record.getRank()));
+    return ranks;
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.query.GrpcQueryGenerator;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordProjectionTest extends AbstractFDBContainer {
+  private static final String TENANT = "projection-tenant";
+  private static final String RECORD_SPACE = "users";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException, Descriptors.DescriptorValidationException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey);
+
+    recordLayer.upsertSchema(TENANT, RECORD_SPACE, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(RecordStoreProtocol.IndexDefinition.newBuilder()
+          .setField("name")
+          .setIndexType(RecordStoreProtocol.IndexType.VALUE)
+          .build())
+        .build()));
+
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(i)
+          .setName("user-" + i)
+          .setEmail("user-" + i + "@example.com")
+          .setRickAndMortyQuotes("wubba lubba dub dub")
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, RECORD_SPACE, records);
+  }
+
+  @Test
+  public void testCoveringIndexQuery() throws InvalidProtocolBufferException {
+    RecordQuery query = GrpcQueryGenerator.generate(RecordStoreProtocol.QueryRequest.newBuilder()
+      .setRecordTypeName("User")
+      .setSortBy(RecordStoreProtocol.SortByRequest.newBuilder()
+        .setType(RecordStoreProtocol.SortByType.SORT_BY_VALUE)
+        .setField("name")
+        .build())
+      .addFieldsToReturn("name")
+      .build());
+
+    assertTrue(recordLayer.getQueryPlan(TENANT, RECORD_SPACE, query).contains("Covering"));
+    List<Message> results = recordLayer.queryRecords(TENANT, RECORD_SPACE, query);
+    assertEquals(10, results.size());
+    for (int i = 0; i < 10; i++) {
+      DemoUserProto.User user = DemoUserProto.User.parseFrom(results.get(i).toByteString());
+      assertEquals("user-" + i, user.getName());
+      // the primary key is in the index entry, but it was not requested
+      assertEquals(0, user.getId());
+      assertTrue(user.getEmail().isEmpty());
+    }
+  }
+
+  @Test
+  public void testProjectedQuery() throws InvalidProtocolBufferException {
+    RecordQuery query = GrpcQueryGenerator.generate(RecordStoreProtocol.QueryRequest.newBuilder()
+      .setRecordTypeName("User")
+      .addFieldsToReturn("id")
+      .addFieldsToReturn("email")
+      .build());
+
+    assertFalse(recordLayer.getQueryPlan(TENANT, RECORD_SPACE, query).contains("Covering"));
+    List<Message> results = recordLayer.queryRecords(TENANT, RECORD_SPACE, query);
+    assertEquals(10, results.size());
+    for (Message result : results) {
+      DemoUserProto.User user = DemoUserProto.User.parseFrom(result.toByteString());
+      assertEquals("user-" + user.getId() + "@example.com", user.getEmail());
+      assertTrue(user.getName().isEmpty());
+      assertTrue(user.getRickAndMortyQuotes().isEmpty());
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.RecordMetaData;
+import com.apple.foundationdb.record.provider.foundationdb.FDBDatabase;
+import com.apple.foundationdb.record.provider.foundationdb.FDBDatabaseFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.fdb.metrics.RecordStoreMetrics;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordStoreMetaDataCacheTest extends AbstractFDBContainer {
+  private static final String TENANT = "metadata-cache-tenant";
+  private RecordLayer recordLayer;
+  private FDBDatabase db;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException {
+    db = FDBDatabaseFactory.instance().getDatabase(container.getClusterFile().getAbsolutePath());
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setMetaDataCacheSize(1));
+  }
+
+  @Test
+  public void testSchemaChangesAreSeen() throws Descriptors.DescriptorValidationException {
+    upsert("schema-changes", "name");
+    RecordMetaData first = recordLayer.getSchema(TENANT, "schema-changes");
+    assertSame(first, recordLayer.getSchema(TENANT, "schema-changes"));
+
+    upsert("schema-changes", "email");
+    RecordMetaData second = recordLayer.getSchema(TENANT, "schema-changes");
+    assertEquals(first.getVersion() + 1, second.getVersion());
+  }
+
+  @Test
+  public void testRecreatedRecordSpaceIsSeen() throws Descriptors.DescriptorValidationException {
+    upsert("recreated", "name");
+    RecordMetaData first = recordLayer.getSchema(TENANT, "recreated");
+
+    recordLayer.deleteContainer(TENANT, "recreated");
+    upsert("recreated", "email");
+    RecordMetaData second = recordLayer.getSchema(TENANT, "recreated");
+
+    // same version number, but not the same metadata
+    assertEquals(first.getVersion(), second.getVersion());
+    assertEquals(first.getAllIndexes().size(), second.getAllIndexes().size());
+    assertEquals(1, second.getAllIndexes().stream().filter(i -> i.getName().contains("email")).count());
+  }
+
+  @Test
+  public void testEvictedRecordSpaceIsReloaded() throws Descriptors.DescriptorValidationException {
+    upsert("evicted-1", "name");
+    upsert("evicted-2", "name");
+
+    // cache has a size of 1, so each call evicts the other recordSpace
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, recordLayer.getSchema(TENANT, "evicted-1").getVersion());
+      assertEquals(0, recordLayer.getSchema(TENANT, "evicted-2").getVersion());
+    }
+  }
+
+  @Test
+  public void testRecordSpaceWithoutVersionstampIsCached() throws Descriptors.DescriptorValidationException {
+    upsert("unstamped", "name");
+    // like a recordSpace created before the metadata was stamped
+    db.run(context -> {
+      context.ensureActive().clear(RecordStoreKeySpace.getMetaDataKeySpacePath(TENANT, "unstamped").toSubspace(context)
+        .pack(RecordStoreMetaDataCache.VERSIONSTAMP_KEY));
+      return null;
+    });
+
+    // the first load stamps the metadata, the second one caches it
+    recordLayer.getSchema(TENANT, "unstamped");
+    RecordMetaData stamped = recordLayer.getSchema(TENANT, "unstamped");
+    long hits = recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.METADATA_CACHE_HIT);
+    assertSame(stamped, recordLayer.getSchema(TENANT, "unstamped"));
+    assertEquals(hits + 1, recordLayer.getTimer().getCount(RecordStoreMetrics.Counts.METADATA_CACHE_HIT));
+  }
+
+  private void upsert(String recordSpace, String indexedField) throws Descriptors.DescriptorValidationException {
+    DescriptorProtos.FileDescriptorSet dependencies =
+      ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor());
+
+    List<RecordStoreProtocol.RecordTypeIndexDefinition> indexes = ImmutableList.of(
+      RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+        .setName("User")
+        .addPrimaryKeyFields("id")
+        .addIndexDefinitions(RecordStoreProtocol.IndexDefinition.newBuilder()
+          .setIndexType(RecordStoreProtocol.IndexType.VALUE)
+          .setField(indexedField)
+          .build())
+        .build());
+
+    recordLayer.upsertSchema(TENANT, recordSpace, dependencies, indexes);
+  }
+}
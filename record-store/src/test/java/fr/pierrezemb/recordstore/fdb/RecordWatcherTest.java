@@ -0,0 +1,221 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors;
+import fr.pierrezemb.recordstore.Constants;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import fr.pierrezemb.recordstore.utils.protobuf.ProtobufReflectionUtil;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RecordWatcherTest extends AbstractFDBContainer {
+  private static final String TENANT = "watch-tenant";
+  private RecordLayer recordLayer;
+
+  @BeforeAll
+  void beforeAll() throws InterruptedException, ExecutionException, TimeoutException {
+    SecretKeySpec secretKey = new SecretKeySpec(Constants.CONFIG_ENCRYPTION_KEY_DEFAULT.getBytes(), "AES");
+    recordLayer = new RecordLayer(container.getClusterFile().getAbsolutePath(), false, secretKey, new RecordLayerOptions().setWatchBatchSize(3));
+  }
+
+  @Test
+  public void testWatch() throws Exception {
+    createSchema("watch", true);
+    put("watch", 0, 5);
+
+    WatchObserver observer = new WatchObserver();
+    CompletableFuture<Void> done = recordLayer.watchRecords(TENANT, "watch", "User", null, false, 0, observer);
+
+    // the existing records, by batches of 3
+    List<RecordStoreProtocol.WatchedRecord> records = observer.take(5);
+    assertEquals(0, DemoUserProto.User.parseFrom(records.get(0).getRecord()).getId());
+    assertEquals(4, DemoUserProto.User.parseFrom(records.get(4).getRecord()).getId());
+    byte[] last = records.get(4).getVersionstamp().toByteArray();
+
+    // then the new ones, once committed
+    put("watch", 5, 7);
+    records = observer.take(2);
+    assertEquals(5, DemoUserProto.User.parseFrom(records.get(0).getRecord()).getId());
+    assertEquals(6, DemoUserProto.User.parseFrom(records.get(1).getRecord()).getId());
+
+    observer.cancel();
+    assertTrue(done.handle((v, err) -> err != null).get(5, TimeUnit.SECONDS));
+
+    // resuming after the 5th record
+    WatchObserver resumed = new WatchObserver();
+    recordLayer.watchRecords(TENANT, "watch", "User", last, false, 0, resumed);
+    records = resumed.take(2);
+    assertEquals(5, DemoUserProto.User.parseFrom(records.get(0).getRecord()).getId());
+    resumed.cancel();
+  }
+
+  @Test
+  public void testWatchFromNow() throws Exception {
+    createSchema("now", true);
+    put("now", 0, 5);
+
+    WatchObserver observer = new WatchObserver();
+    recordLayer.watchRecords(TENANT, "now", "User", null, true, 0, observer);
+
+    // the first response holds no record, only the versionstamp the watch started from
+    RecordStoreProtocol.WatchResponse first = observer.responses.poll(5, TimeUnit.SECONDS);
+    assertNotNull(first);
+    assertEquals(0, first.getRecordsCount());
+    assertFalse(first.getVersionstamp().isEmpty());
+
+    put("now", 10, 11);
+    List<RecordStoreProtocol.WatchedRecord> records = observer.take(1);
+    assertEquals(10, DemoUserProto.User.parseFrom(records.get(0).getRecord()).getId());
+    observer.cancel();
+  }
+
+  @Test
+  public void testWatchWithoutVersionIndex() throws Exception {
+    createSchema("noversion", false);
+
+    WatchObserver observer = new WatchObserver();
+    recordLayer.watchRecords(TENANT, "noversion", "User", null, false, 0, observer);
+    Throwable error = observer.error.get(5, TimeUnit.SECONDS);
+    assertEquals(Status.Code.FAILED_PRECONDITION, ((StatusRuntimeException) error).getStatus().getCode());
+  }
+
+  private void createSchema(String recordSpace, boolean versionIndex) throws Descriptors.DescriptorValidationException {
+    RecordStoreProtocol.RecordTypeIndexDefinition.Builder definition = RecordStoreProtocol.RecordTypeIndexDefinition.newBuilder()
+      .setName("User")
+      .addPrimaryKeyFields("id");
+    if (versionIndex) {
+      definition.addIndexDefinitions(RecordStoreProtocol.IndexDefinition.newBuilder()
+        .setIndexType(RecordStoreProtocol.IndexType.VERSION)
+        .build());
+    }
+    recordLayer.upsertSchema(TENANT, recordSpace, ProtobufReflectionUtil.protoFileDescriptorSet(DemoUserProto.User.getDescriptor()), ImmutableList.of(definition.build()));
+  }
+
+  private void put(String recordSpace, int from, int to) {
+    List<RecordStoreProtocol.PutRecordRequest> records = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      records.add(RecordStoreProtocol.PutRecordRequest.newBuilder()
+        .setRecordTypeName("User")
+        .setMessage(DemoUserProto.User.newBuilder()
+          .setId(i)
+          .build().toByteString())
+        .build());
+    }
+    recordLayer.putRecords(TENANT, recordSpace, records);
+  }
+
+  /**
+   * an always ready observer, that can be cancelled like a gRPC call
+   */
+  private static class WatchObserver extends ServerCallStreamObserver<RecordStoreProtocol.WatchResponse> {
+    private final BlockingQueue<RecordStoreProtocol.WatchResponse> responses = new LinkedBlockingQueue<>();
+    private final CompletableFuture<Throwable> error = new CompletableFuture<>();
+    private volatile boolean cancelled = false;
+    private Runnable onCancel;
+
+    /**
+     * @return the next count records, across responses
+     */
+    List<RecordStoreProtocol.WatchedRecord> take(int count) throws InterruptedException {
+      List<RecordStoreProtocol.WatchedRecord> records = new ArrayList<>();
+      while (records.size() < count) {
+        RecordStoreProtocol.WatchResponse response = responses.poll(5, TimeUnit.SECONDS);
+        assertNotNull("missing records, got " + records.size(), response);
+        assertTrue(response.getRecordsCount() <= 3);
+        records.addAll(response.getRecordsList());
+      }
+      return records;
+    }
+
+    void cancel() {
+      cancelled = true;
+      onCancel.run();
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+      this.onCancel = onCancelHandler;
+    }
+
+    @Override
+    public void setCompression(String compression) {
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+    }
+
+    @Override
+    public void request(int count) {
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+    }
+
+    @Override
+    public void onNext(RecordStoreProtocol.WatchResponse value) {
+      responses.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error.complete(t);
+    }
+
+    @Override
+    public void onCompleted() {
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.fdb;
+
+import com.apple.foundationdb.record.provider.foundationdb.FDBDatabase;
+import com.apple.foundationdb.record.provider.foundationdb.FDBDatabaseFactory;
+import com.apple.foundationdb.record.provider.foundationdb.FDBRecordContext;
+import com.apple.foundationdb.tuple.Tuple;
+import fr.pierrezemb.recordstore.fdb.metrics.FDBMetricsStoreTimer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.testcontainers.containers.AbstractFDBContainer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class TransactionRunnerTest extends AbstractFDBContainer {
+  private static final byte[] KEY = Tuple.from("transaction-runner-test").pack();
+  private FDBMetricsStoreTimer timer;
+  private TransactionRunner transactions;
+
+  @BeforeAll
+  void beforeAll() {
+    FDBDatabase db = FDBDatabaseFactory.instance().getDatabase(container.getClusterFile().getAbsolutePath());
+    timer = new FDBMetricsStoreTimer(false);
+    transactions = new TransactionRunner(db, timer, new RecordLayerOptions().setReadVersionStalenessMs(100));
+  }
+
+  @Test
+  public void testTransactionsAreClosed() {
+    transactions.runAsync("tenant", context -> {
+      context.ensureActive().set(KEY, Tuple.from(42).pack());
+      return CompletableFuture.completedFuture(null);
+    }).join();
+
+    byte[] value = transactions.readAsync("tenant", context -> context.ensureActive().get(KEY)).join();
+    assertArrayEquals(Tuple.from(42).pack(), value);
+
+    assertThrows(CompletionException.class, () -> transactions.readAsync("tenant", context -> {
+      throw new IllegalStateException("failing operation");
+    }).join());
+
+    FDBRecordContext context = transactions.openReadContext("tenant");
+    assertEquals(1, timer.getOpenTransactions());
+    transactions.close(context);
+
+    assertEquals(0, timer.getOpenTransactions());
+  }
+}
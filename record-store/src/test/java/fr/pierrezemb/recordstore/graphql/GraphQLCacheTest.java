@@ -0,0 +1,134 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.graphql;
+
+import com.apple.foundationdb.record.RecordMetaData;
+import com.apple.foundationdb.record.RecordMetaDataBuilder;
+import com.apple.foundationdb.record.metadata.Key;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static graphql.schema.idl.RuntimeWiring.newRuntimeWiring;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+class GraphQLCacheTest {
+  private AtomicInteger fetches;
+  private GraphQLCache cache;
+
+  @BeforeEach
+  void setUp() {
+    fetches = new AtomicInteger();
+    cache = new GraphQLCache(1, 10, newRuntimeWiring()
+      .type("Query", builder -> builder.dataFetcher("allUsers", env -> {
+        fetches.incrementAndGet();
+        return ImmutableList.of(ImmutableMap.of("name", "user"));
+      }))
+      .build());
+  }
+
+  @Test
+  public void testGraphQLIsReusedForTheSameVersion() {
+    GraphQL graphQL = cache.get("tenant", "recordSpace", versionstamp(1), metaData());
+    // the metadata may have been loaded again, with the same versionstamp
+    assertSame(graphQL, cache.get("tenant", "recordSpace", versionstamp(1), metaData()));
+
+    // a schema upsert gives a new versionstamp
+    assertNotSame(graphQL, cache.get("tenant", "recordSpace", versionstamp(2), metaData()));
+  }
+
+  @Test
+  public void testUnstampedMetaDataIsNotCached() {
+    RecordMetaData metaData = metaData();
+    assertNotSame(cache.get("tenant", "recordSpace", null, metaData), cache.get("tenant", "recordSpace", null, metaData));
+  }
+
+  @Test
+  public void testRecordSpacesAreEvicted() {
+    RecordMetaData metaData = metaData();
+    GraphQL graphQL = cache.get("tenant", "recordSpace-1", versionstamp(1), metaData);
+    cache.get("tenant", "recordSpace-2", versionstamp(1), metaData);
+
+    assertNotSame(graphQL, cache.get("tenant", "recordSpace-1", versionstamp(1), metaData));
+  }
+
+  @Test
+  public void testCachedDocumentsAreExecuted() {
+    GraphQL graphQL = cache.get("tenant", "recordSpace", versionstamp(1), metaData());
+
+    for (int i = 0; i < 3; i++) {
+      ExecutionResult result = graphQL.execute("{ allUsers { name } }");
+      assertTrue(result.getErrors().isEmpty());
+      assertEquals(ImmutableMap.of("allUsers", ImmutableList.of(ImmutableMap.of("name", "user"))), result.getData());
+    }
+    assertEquals(3, fetches.get());
+
+    // invalid queries are cached with their errors
+    for (int i = 0; i < 2; i++) {
+      assertEquals(1, graphQL.execute("{ allUsers { unknown } }").getErrors().size());
+    }
+  }
+
+  private static byte[] versionstamp(int version) {
+    return Tuple.from(version).pack();
+  }
+
+  private static RecordMetaData metaData() {
+    DescriptorProtos.FileDescriptorProto file = DescriptorProtos.FileDescriptorProto.newBuilder()
+      .setName("user.proto")
+      .setSyntax("proto3")
+      .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+        .setName("User")
+        .addField(field("id", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64, null))
+        .addField(field("name", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, null)))
+      .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+        .setName("RecordTypeUnion")
+        .addField(field("_User", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE, "User")))
+      .build();
+
+    RecordMetaDataBuilder builder;
+    try {
+      builder = RecordMetaData.newBuilder().setRecords(Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[]{}));
+    } catch (Descriptors.DescriptorValidationException e) {
+      throw new IllegalStateException(e);
+    }
+    builder.getRecordType("User").setPrimaryKey(Key.Expressions.field("id"));
+    return builder.build();
+  }
+
+  private static DescriptorProtos.FieldDescriptorProto field(String name, int number, DescriptorProtos.FieldDescriptorProto.Type type, String typeName) {
+    DescriptorProtos.FieldDescriptorProto.Builder builder = DescriptorProtos.FieldDescriptorProto.newBuilder()
+      .setName(name)
+      .setNumber(number)
+      .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL)
+      .setType(type);
+    if (typeName != null) {
+      builder.setTypeName(typeName);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.query;
+
+import com.apple.foundationdb.record.query.RecordQuery;
+import com.apple.foundationdb.record.query.expressions.Query;
+import com.google.protobuf.ByteString;
+import fr.pierrezemb.recordstore.proto.RecordStoreProtocol;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PreparedQueriesTest {
+  private static final RecordStoreProtocol.QueryRequest TEMPLATE = RecordStoreProtocol.QueryRequest.newBuilder()
+    .setRecordTypeName("User")
+    .setFilter(RecordStoreProtocol.QueryFilterNode.newBuilder()
+      .setAndNode(RecordStoreProtocol.QueryFilterAndNode.newBuilder()
+        .addNodes(RecordStoreProtocol.QueryFilterNode.newBuilder()
+          .setFieldNode(RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+            .setField("name")
+            .setOperation(RecordStoreProtocol.FilterOperation.EQUALS)
+            .setParameter("name")
+            .build()))
+        .addNodes(RecordStoreProtocol.QueryFilterNode.newBuilder()
+          .setFieldNode(RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+            .setField("id")
+            .setOperation(RecordStoreProtocol.FilterOperation.GREATER_THAN)
+            .setParameter("minID")
+            .build()))))
+    .build();
+
+  @Test
+  public void testPrepare() {
+    PreparedQueries preparedQueries = new PreparedQueries(10, 60_000);
+    PreparedQueries.PreparedQuery prepared = preparedQueries.prepare("tenant", "users", TEMPLATE);
+    assertEquals(Arrays.asList("minID", "name"), Arrays.asList(prepared.getParameters().toArray()));
+
+    // the continuation is not part of the prepared query
+    assertSame(prepared, preparedQueries.prepare("tenant", "users", TEMPLATE.toBuilder().setContinuation(ByteString.copyFromUtf8("c")).build()));
+    assertSame(prepared, preparedQueries.get("tenant", "users", prepared.getId()));
+    assertNotEquals(prepared.getId(), preparedQueries.prepare("tenant", "users", TEMPLATE.toBuilder().setResultLimit(10).build()).getId());
+
+    StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> preparedQueries.get("tenant", "other", prepared.getId()));
+    assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+  }
+
+  @Test
+  public void testBind() {
+    PreparedQueries.PreparedQuery prepared = new PreparedQueries(10, 60_000).prepare("tenant", "users", TEMPLATE);
+
+    RecordQuery query = prepared.bind(Arrays.asList(
+      RecordStoreProtocol.QueryParameter.newBuilder().setName("name").setStringValue("user-1").build(),
+      RecordStoreProtocol.QueryParameter.newBuilder().setName("minID").setInt64Value(1).build()));
+    assertEquals(Query.and(Query.field("name").equalsValue("user-1"), Query.field("id").greaterThan(1L)), query.getFilter());
+    assertEquals(Collections.emptySet(), PreparedQueries.getParameters(query));
+
+    StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> prepared.bind(Collections.singletonList(
+      RecordStoreProtocol.QueryParameter.newBuilder().setName("name").setStringValue("user-1").build())));
+    assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+
+    e = assertThrows(StatusRuntimeException.class, () -> prepared.bind(Arrays.asList(
+      RecordStoreProtocol.QueryParameter.newBuilder().setName("name").setStringValue("user-1").build(),
+      RecordStoreProtocol.QueryParameter.newBuilder().setName("minID").setInt64Value(1).build(),
+      RecordStoreProtocol.QueryParameter.newBuilder().setName("maxID").setInt64Value(1).build())));
+    assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+  }
+
+  @Test
+  public void testInvalidParameter() {
+    RecordStoreProtocol.QueryRequest request = RecordStoreProtocol.QueryRequest.newBuilder()
+      .setRecordTypeName("User")
+      .setFilter(RecordStoreProtocol.QueryFilterNode.newBuilder()
+        .setFieldNode(RecordStoreProtocol.QueryFilterFieldNode.newBuilder()
+          .setField("name")
+          .setOperation(RecordStoreProtocol.FilterOperation.START_WITH)
+          .setParameter("prefix")
+          .build()))
+      .build();
+
+    StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> new PreparedQueries(10, 60_000).prepare("tenant", "users", request));
+    assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2020 Pierre Zemb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.pierrezemb.recordstore.utils.protobuf;
+
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import fr.pierrezemb.recordstore.datasets.proto.DemoUserProto;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JsonMessageParserTest {
+
+  @Test
+  public void testParse() throws InvalidProtocolBufferException {
+    DynamicMessage message = JsonMessageParser.parse(DemoUserProto.User.getDescriptor(), "{" +
+      "\"id\": \"42\"," +
+      "\"name\": \"Arthur\"," +
+      "\"beers\": [\"Guinness\", \"Pan Galactic Gargle Blaster\"]," +
+      "\"rickAndMortyQuotes\": \"Wubba lubba dub dub\"," +
+      "\"favorite_locations_from_tv\": {\"hitchhikers_guide_to_the_galaxy\": \"Magrathea\"}," +
+      "\"address\": {\"city\": \"Cottington\"}," +
+      "\"email\": null" +
+      "}");
+
+    DemoUserProto.User expected = DemoUserProto.User.newBuilder()
+      .setId(42)
+      .setName("Arthur")
+      .addBeers("Guinness")
+      .addBeers("Pan Galactic Gargle Blaster")
+      .setRickAndMortyQuotes("Wubba lubba dub dub")
+      .putFavoriteLocationsFromTv("hitchhikers_guide_to_the_galaxy", "Magrathea")
+      .setAddress(DemoUserProto.Address.newBuilder().setCity("Cottington"))
+      .build();
+    assertEquals(expected, DemoUserProto.User.parseFrom(message.toByteString()));
+  }
+
+  @Test
+  public void testParseSlice() throws InvalidProtocolBufferException {
+    byte[] json = "xx{\"id\": 7}xx".getBytes();
+    DynamicMessage message = JsonMessageParser.parse(DemoUserProto.User.getDescriptor(), json, 2, json.length - 4);
+    assertEquals(7L, DemoUserProto.User.parseFrom(message.toByteString()).getId());
+  }
+
+  @Test
+  public void testInvalidDocuments() {
+    for (String json : new String[]{
+      "{\"unknown\": 1}",
+      "{\"id\": 1.5}",
+      "{\"id\": \"one\"}",
+      "{\"name\": 1}",
+      "{\"beers\": \"Guinness\"}",
+      "[]",
+      "{\"id\": ",
+    }) {
+      assertThrows(InvalidProtocolBufferException.class, () -> JsonMessageParser.parse(DemoUserProto.User.getDescriptor(), json), json);
+    }
+  }
+}